@@ -0,0 +1,209 @@
+/* Copyright (C) 2005 Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.	For further
+   information, see the file `LICENSE' included with this distribution. */
+
+package cc.mallet.topics;
+
+import cc.mallet.util.Randoms;
+
+import java.util.Arrays;
+
+/**
+ * Walker's alias method, built with Vose's algorithm, for drawing
+ * from a fixed discrete distribution in constant time.
+ * Building the table takes time linear in the number of outcomes.
+ * <p>
+ * Outcomes may be a sparse subset of topics: if <code>outcomes</code>
+ * is non-null, entry <code>i</code> of the table stands for topic
+ * <code>outcomes[i]</code>, in any order. A small open-addressing index
+ * from topic to entry, built with the table, looks up weights by topic
+ * in constant expected time.
+ * The arrays are reused when the table is rebuilt, so refreshing a
+ * stale table does not allocate unless it has grown.
+ */
+
+public class AliasTable {
+
+    int size = 0;
+    int[] outcomes;
+    double[] weights;
+    double mass = 0.0;
+
+    int[] alias;
+    double[] probability;
+
+    // Index from outcome to entry + 1, with 0 for an empty slot.
+    //  Its length is a power of two, at least twice the size.
+    int[] slots;
+
+    // Bookkeeping for callers that rebuild stale tables
+    public int draws = 0;
+    public int stamp = -1;
+
+    public AliasTable() {
+        this(0);
+    }
+
+    public AliasTable(int capacity) {
+        ensureCapacity(capacity);
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (alias == null || alias.length < capacity) {
+            alias = new int[capacity];
+            probability = new double[capacity];
+            weights = new double[capacity];
+        }
+    }
+
+    /**
+     * Build a table over outcomes <code>0 ... size-1</code>.
+     *
+     * @param workspace scratch space with at least <code>size</code> elements
+     */
+    public void build(double[] newWeights, int size, int[] workspace) {
+        build(null, newWeights, size, workspace);
+    }
+
+    /**
+     * Build a table over the distinct topics in <code>newOutcomes</code>.
+     *
+     * @param workspace scratch space with at least <code>size</code> elements
+     */
+    public void build(int[] newOutcomes, double[] newWeights, int size, int[] workspace) {
+        ensureCapacity(size);
+        if (newOutcomes != null) {
+            if (outcomes == null || outcomes.length < size) {
+                outcomes = new int[alias.length];
+            }
+            System.arraycopy(newOutcomes, 0, outcomes, 0, size);
+            buildIndex(size);
+        } else {
+            outcomes = null;
+        }
+        System.arraycopy(newWeights, 0, weights, 0, size);
+
+        this.size = size;
+        draws = 0;
+
+        mass = 0.0;
+        for (int i = 0; i < size; i++) {
+            mass += weights[i];
+        }
+        if (size == 0) {
+            return;
+        }
+
+        // Scale so that the average bucket holds 1.0, then pair each
+        //  under-full bucket with an over-full one. Small buckets are
+        //  stacked from the front of the workspace, large ones from the back.
+        int numSmall = 0;
+        int largeStart = size;
+        for (int i = 0; i < size; i++) {
+            probability[i] = weights[i] * size / mass;
+            if (probability[i] < 1.0) {
+                workspace[numSmall++] = i;
+            } else {
+                workspace[--largeStart] = i;
+            }
+        }
+
+        while (numSmall > 0 && largeStart < size) {
+            int small = workspace[--numSmall];
+            int large = workspace[largeStart];
+
+            alias[small] = large;
+            probability[large] = (probability[large] + probability[small]) - 1.0;
+
+            if (probability[large] < 1.0) {
+                largeStart++;
+                workspace[numSmall++] = large;
+            }
+        }
+
+        // Anything left over is full, up to rounding error
+        while (numSmall > 0) {
+            int small = workspace[--numSmall];
+            probability[small] = 1.0;
+            alias[small] = small;
+        }
+        while (largeStart < size) {
+            int large = workspace[largeStart++];
+            probability[large] = 1.0;
+            alias[large] = large;
+        }
+    }
+
+    private void buildIndex(int size) {
+        int capacity = Integer.highestOneBit(Math.max(2, 2 * size) - 1) << 1;
+        if (slots == null || slots.length < capacity || slots.length > 4 * capacity) {
+            slots = new int[capacity];
+        } else {
+            Arrays.fill(slots, 0);
+        }
+
+        int slotMask = slots.length - 1;
+        for (int i = 0; i < size; i++) {
+            int slot = outcomes[i] & slotMask;
+            while (slots[slot] != 0) {
+                slot = (slot + 1) & slotMask;
+            }
+            slots[slot] = i + 1;
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * The sum of the weights used to build the table
+     */
+    public double getMass() {
+        return mass;
+    }
+
+    /**
+     * Draw an outcome (a topic, if the table was built with outcomes)
+     */
+    public int sample(Randoms random) {
+        draws++;
+        double u = random.nextUniform() * size;
+        int bucket = (int) u;
+        if (bucket >= size) {
+            bucket = size - 1;
+        }
+        if (u - bucket >= probability[bucket]) {
+            bucket = alias[bucket];
+        }
+        return outcomes == null ? bucket : outcomes[bucket];
+    }
+
+    /**
+     * The (unnormalized) weight of an outcome when the table was built,
+     * or 0 if the outcome was not in the table.
+     */
+    public double getWeight(int outcome) {
+        if (outcomes == null) {
+            return outcome < size ? weights[outcome] : 0.0;
+        }
+
+        if (size == 0) {
+            return 0.0;
+        }
+
+        int slotMask = slots.length - 1;
+        int slot = outcome & slotMask;
+        while (slots[slot] != 0) {
+            int entry = slots[slot] - 1;
+            if (outcomes[entry] == outcome) {
+                return weights[entry];
+            }
+            slot = (slot + 1) & slotMask;
+        }
+        return 0.0;
+    }
+}
@@ -0,0 +1,385 @@
+/* Copyright (C) 2005 Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.	For further
+   information, see the file `LICENSE' included with this distribution. */
+
+package cc.mallet.topics;
+
+import cc.mallet.util.Randoms;
+
+import java.util.ArrayList;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A parallel topic model runnable task that replaces the SparseLDA
+ * sampler with Metropolis-Hastings steps over cheap proposals,
+ * following Yuan et al., LightLDA: Big Topic Models on Modest Computer Clusters, WWW (2015).
+ * <p>
+ * Each token alternates between a <i>word proposal</i>, drawn in constant time from
+ * an alias table over that word's (possibly stale) topic weights, and a
+ * <i>doc proposal</i>, drawn by copying the topic of another token in the document
+ * or by drawing from alpha. Stale proposals are corrected by the acceptance step,
+ * so the cost per token does not depend on the number of topics the word appears in.
+ * This pays off for models with thousands of topics.
+ * <p>
+ * The word proposal for type <i>w</i> is a mixture of a sparse table over the
+ * topics with non-zero count, with weights n(t,w) / (n(t) + beta * V), and a
+ * dense table shared by all words, with weights beta / (n(t) + beta * V).
+ * A word's table is rebuilt once it has been sampled as many times as it has
+ * entries, or at the start of each sweep; the dense table is rebuilt after
+ * <code>numTopics</code> draws.
+ * <p>
+ * Word tables are built straight from the packed counts, and lookups of a
+ * topic's weight in a table are hashed, so neither depends on the order of
+ * the topics. The rows of common types are unpacked into one count per topic
+ * for each sweep (see <code>setDenseTypeThreshold()</code>), so the counts
+ * needed by the acceptance step take constant time to find; the rows of
+ * other types are short enough to scan.
+ */
+
+public class AliasWorkerRunnable extends WorkerRunnable {
+
+    public static final int DEFAULT_MH_STEPS = 2;
+
+    // Types with non-zero counts for at least this fraction of the topics use dense rows
+    public static final double DEFAULT_DENSE_TYPE_THRESHOLD = 0.05;
+
+    // The number of Metropolis-Hastings proposals per token, alternating word and doc proposals
+    int mhSteps = DEFAULT_MH_STEPS;
+
+    // Incremented at the start of each sweep, so word tables from earlier sweeps are rebuilt
+    int sweep = 0;
+
+    AliasTable[] wordTables;
+    AliasTable smoothingTable;
+    double[] smoothingWeights;
+    AliasTable alphaTable;
+
+    // Scratch space for building tables
+    int[] tableWorkspace;
+    int[] tableTopics;
+    double[] tableWeights;
+
+    public AliasWorkerRunnable(int numTopics,
+                               double[] alpha, double alphaSum,
+                               double beta, Randoms random,
+                               ArrayList<TopicAssignment> data,
+                               int[][] typeTopicCounts,
+                               int[] tokensPerTopic,
+                               int startDoc, int numDocs) {
+        super(numTopics, alpha, alphaSum, beta, random, data,
+                typeTopicCounts, tokensPerTopic, startDoc, numDocs);
+
+        wordTables = new AliasTable[numTypes];
+        smoothingTable = new AliasTable(numTopics);
+        smoothingWeights = new double[numTopics];
+        alphaTable = new AliasTable(numTopics);
+
+        tableWorkspace = new int[numTopics];
+        tableTopics = new int[numTopics];
+        tableWeights = new double[numTopics];
+
+        denseTypeThreshold = DEFAULT_DENSE_TYPE_THRESHOLD;
+    }
+
+    public void setMetropolisHastingsSteps(int steps) {
+        if (steps < 1) {
+            throw new IllegalArgumentException("At least one Metropolis-Hastings step is needed, found " + steps);
+        }
+        this.mhSteps = steps;
+    }
+
+    public void run() {
+        sweep++;
+        // Alpha only changes between sweeps
+        alphaTable.build(alpha, numTopics, tableWorkspace);
+        buildSmoothingTable();
+        super.run();
+    }
+
+    private void buildSmoothingTable() {
+        for (int topic = 0; topic < numTopics; topic++) {
+            smoothingWeights[topic] = beta / (tokensPerTopic[topic] + betaSum);
+        }
+        smoothingTable.build(smoothingWeights, numTopics, tableWorkspace);
+    }
+
+    /**
+     * Get the alias table for a word, rebuilding it from the
+     * current counts if it has been used enough to be stale.
+     */
+    private AliasTable getWordTable(int type, int[] currentTypeTopicCounts, int[] denseCounts) {
+        AliasTable table = wordTables[type];
+        if (table == null) {
+            table = new AliasTable();
+            wordTables[type] = table;
+        } else if (table.stamp == sweep && table.draws < Math.max(1, table.size())) {
+            return table;
+        }
+
+        int size = 0;
+        if (denseCounts != null) {
+            for (int topic = 0; topic < numTopics; topic++) {
+                if (denseCounts[topic] > 0) {
+                    tableTopics[size] = topic;
+                    tableWeights[size] = denseCounts[topic] / (tokensPerTopic[topic] + betaSum);
+                    size++;
+                }
+            }
+        } else {
+            while (size < currentTypeTopicCounts.length &&
+                    currentTypeTopicCounts[size] > 0) {
+                int topic = currentTypeTopicCounts[size] & topicMask;
+                tableTopics[size] = topic;
+                tableWeights[size] = (currentTypeTopicCounts[size] >> topicBits) /
+                        (tokensPerTopic[topic] + betaSum);
+                size++;
+            }
+        }
+
+        table.build(tableTopics, tableWeights, size, tableWorkspace);
+        table.stamp = sweep;
+        return table;
+    }
+
+    private int sampleWordProposal(AliasTable wordTable) {
+        double sample = random.nextUniform() * (wordTable.getMass() + smoothingTable.getMass());
+        if (sample < wordTable.getMass()) {
+            return wordTable.sample(random);
+        }
+        return smoothingTable.sample(random);
+    }
+
+    /**
+     * The unnormalized probability of proposing <code>topic</code> from this word's proposal
+     */
+    private double wordProposalWeight(AliasTable wordTable, int topic) {
+        return wordTable.getWeight(topic) + smoothingWeights[topic];
+    }
+
+    /**
+     * The number of tokens of this type assigned to <code>topic</code>,
+     * from its dense row if it has one.
+     */
+    private int getCount(int[] currentTypeTopicCounts, int[] denseCounts, int topic) {
+        if (denseCounts != null) {
+            return denseCounts[topic];
+        }
+        return getCount(currentTypeTopicCounts, topic);
+    }
+
+    /**
+     * The number of tokens of this type assigned to <code>topic</code>
+     */
+    protected int getCount(int[] currentTypeTopicCounts, int topic) {
+        int index = 0;
+        while (index < currentTypeTopicCounts.length &&
+                currentTypeTopicCounts[index] > 0) {
+            if ((currentTypeTopicCounts[index] & topicMask) == topic) {
+                return currentTypeTopicCounts[index] >> topicBits;
+            }
+            index++;
+        }
+        return 0;
+    }
+
+    protected void decrementCount(int[] currentTypeTopicCounts, int topic) {
+        int index = 0;
+        while ((currentTypeTopicCounts[index] & topicMask) != topic) {
+            index++;
+        }
+
+        int currentValue = (currentTypeTopicCounts[index] >> topicBits) - 1;
+        if (currentValue == 0) {
+            currentTypeTopicCounts[index] = 0;
+        } else {
+            currentTypeTopicCounts[index] = (currentValue << topicBits) + topic;
+        }
+
+        // Shift the reduced value to the right, if necessary.
+        while (index < currentTypeTopicCounts.length - 1 &&
+                currentTypeTopicCounts[index] < currentTypeTopicCounts[index + 1]) {
+            int temp = currentTypeTopicCounts[index];
+            currentTypeTopicCounts[index] = currentTypeTopicCounts[index + 1];
+            currentTypeTopicCounts[index + 1] = temp;
+            index++;
+        }
+    }
+
+    protected void incrementCount(int[] currentTypeTopicCounts, int topic) {
+        // Move to the position for the new topic,
+        //  which may be the first empty position if this
+        //  is a new topic for this word.
+        int index = 0;
+        while (currentTypeTopicCounts[index] > 0 &&
+                (currentTypeTopicCounts[index] & topicMask) != topic) {
+            index++;
+        }
+
+        int currentValue = currentTypeTopicCounts[index] >> topicBits;
+        currentTypeTopicCounts[index] = ((currentValue + 1) << topicBits) + topic;
+
+        // Bubble the increased value left, if necessary
+        while (index > 0 &&
+                currentTypeTopicCounts[index] > currentTypeTopicCounts[index - 1]) {
+            int temp = currentTypeTopicCounts[index];
+            currentTypeTopicCounts[index] = currentTypeTopicCounts[index - 1];
+            currentTypeTopicCounts[index - 1] = temp;
+            index--;
+        }
+    }
+
+    protected void sampleTopicsForOneDoc(int[] tokens, int[] oneDocTopics, int start, int end) {
+
+        int docLength = end - start;
+
+        for (int position = start; position < end; position++) {
+            if (oneDocTopics[position] != ParallelTopicModel.UNASSIGNED_TOPIC) {
+                localTopicCounts[oneDocTopics[position]]++;
+            }
+        }
+
+        for (int position = start; position < end; position++) {
+            int type = tokens[position];
+            int oldTopic = oneDocTopics[position];
+            int[] currentTypeTopicCounts = typeTopicCounts[type];
+            // The packed row of a type with a dense row is stale until the end of the sweep
+            int[] denseCounts = denseTypeTopicCounts == null ? null : denseTypeTopicCounts[type];
+
+            if (oldTopic != ParallelTopicModel.UNASSIGNED_TOPIC) {
+                localTopicCounts[oldTopic]--;
+                tokensPerTopic[oldTopic]--;
+            }
+
+            if (smoothingTable.draws >= numTopics) {
+                buildSmoothingTable();
+            }
+
+            int newTopic;
+
+            ReentrantLock typeLock = null;
+            if (typeLocks != null) {
+                typeLock = typeLocks[type % typeLocks.length];
+                typeLock.lock();
+            }
+
+            try {
+                if (oldTopic != ParallelTopicModel.UNASSIGNED_TOPIC) {
+                    if (denseCounts != null) {
+                        denseCounts[oldTopic]--;
+                    } else {
+                        decrementCount(currentTypeTopicCounts, oldTopic);
+                    }
+                }
+
+                AliasTable wordTable = getWordTable(type, currentTypeTopicCounts, denseCounts);
+
+                // Start the chain at the old topic, or at a draw from
+                //  the word proposal if the token has no topic yet.
+                int topic = oldTopic;
+                if (topic == ParallelTopicModel.UNASSIGNED_TOPIC) {
+                    topic = sampleWordProposal(wordTable);
+                }
+                double topicWeight = (localTopicCounts[topic] + alpha[topic]) *
+                        (getCount(currentTypeTopicCounts, denseCounts, topic) + beta) /
+                        (tokensPerTopic[topic] + betaSum);
+
+                for (int step = 0; step < mhSteps; step++) {
+                    int proposal;
+                    double acceptance;
+
+                    if (step % 2 == 0) {
+                        // Word proposal
+                        proposal = sampleWordProposal(wordTable);
+                        if (proposal == topic) {
+                            continue;
+                        }
+
+                        double proposalWeight = (localTopicCounts[proposal] + alpha[proposal]) *
+                                (getCount(currentTypeTopicCounts, denseCounts, proposal) + beta) /
+                                (tokensPerTopic[proposal] + betaSum);
+
+                        acceptance = (proposalWeight * wordProposalWeight(wordTable, topic)) /
+                                (topicWeight * wordProposalWeight(wordTable, proposal));
+
+                        if (acceptance >= 1.0 || random.nextUniform() < acceptance) {
+                            topic = proposal;
+                            topicWeight = proposalWeight;
+                        }
+                    } else {
+                        // Doc proposal: proportional to n(t|d) + alpha_t, not counting
+                        //  this token. Copy the topic of one of the other tokens, or
+                        //  draw from alpha. Picking a token that has no topic yet
+                        //  proposes staying put, which leaves the target unchanged.
+                        double sample = random.nextUniform() * (docLength - 1 + alphaSum);
+                        if (sample < docLength - 1) {
+                            int other = start + (int) sample;
+                            if (other >= position) {
+                                other++;
+                            }
+                            proposal = oneDocTopics[other];
+                            if (proposal == ParallelTopicModel.UNASSIGNED_TOPIC) {
+                                continue;
+                            }
+                        } else {
+                            proposal = alphaTable.sample(random);
+                        }
+                        if (proposal == topic) {
+                            continue;
+                        }
+
+                        double proposalWeight = (localTopicCounts[proposal] + alpha[proposal]) *
+                                (getCount(currentTypeTopicCounts, denseCounts, proposal) + beta) /
+                                (tokensPerTopic[proposal] + betaSum);
+
+                        // The doc terms of the target and proposal cancel
+                        acceptance = (proposalWeight * (localTopicCounts[topic] + alpha[topic])) /
+                                (topicWeight * (localTopicCounts[proposal] + alpha[proposal]));
+
+                        if (acceptance >= 1.0 || random.nextUniform() < acceptance) {
+                            topic = proposal;
+                            topicWeight = proposalWeight;
+                        }
+                    }
+                }
+
+                newTopic = topic;
+                if (denseCounts != null) {
+                    denseCounts[newTopic]++;
+                } else {
+                    incrementCount(currentTypeTopicCounts, newTopic);
+                }
+
+            } finally {
+                if (typeLock != null) {
+                    typeLock.unlock();
+                }
+            }
+
+            oneDocTopics[position] = newTopic;
+            localTopicCounts[newTopic]++;
+            tokensPerTopic[newTopic]++;
+        }
+
+        if (shouldSaveState) {
+            // Update the document-topic count histogram,
+            //  for dirichlet estimation
+            docLengthCounts[docLength]++;
+        }
+
+        // Clean up the local counts, recording them in the histogram
+        //  the first time we see each topic.
+        for (int position = start; position < end; position++) {
+            int topic = oneDocTopics[position];
+            if (localTopicCounts[topic] > 0) {
+                if (shouldSaveState) {
+                    topicDocCounts[topic][localTopicCounts[topic]]++;
+                }
+                localTopicCounts[topic] = 0;
+            }
+        }
+    }
+
+}
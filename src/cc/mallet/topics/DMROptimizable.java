@@ -12,9 +12,11 @@ import cc.mallet.optimize.Optimizable;
 import cc.mallet.types.*;
 import cc.mallet.util.MalletLogger;
 import cc.mallet.util.MalletProgressMessageLogger;
+import cc.mallet.util.ParallelRanges;
 
 import java.text.DecimalFormat;
 import java.text.NumberFormat;
+import java.util.concurrent.ExecutorService;
 import java.util.logging.Logger;
 
 public class DMROptimizable implements Optimizable.ByGradientValue {
@@ -48,6 +50,9 @@ public class DMROptimizable implements Optimizable.ByGradientValue {
     int numFeatures;
     int defaultFeatureIndex;
 
+    ExecutorService executor = null;
+    int numTasks = 1;
+
     public DMROptimizable() {
     }
 
@@ -167,6 +172,16 @@ public class DMROptimizable implements Optimizable.ByGradientValue {
         System.arraycopy(buff, 0, parameters, 0, buff.length);
     }
 
+    /**
+     * Compute the likelihood and gradient in <code>numTasks</code> ranges
+     * of instances on <code>executor</code>. If it is null, as by default,
+     * they are computed on the calling thread.
+     */
+    public void setExecutor(ExecutorService executor, int numTasks) {
+        this.executor = executor;
+        this.numTasks = numTasks;
+    }
+
     /**
      * The log probability of the observed count vectors given the features.
      */
@@ -179,76 +194,32 @@ public class DMROptimizable implements Optimizable.ByGradientValue {
         numGetValueCalls++;
         cachedValue = 0;
 
-        // Incorporate likelihood of data
-        double[] scores = new double[trainingList.getTargetAlphabet().size()];
-        double value = 0.0;
-
-        int instanceIndex = 0;
-
-        for (Instance instance : trainingList) {
-
-            FeatureVector multinomialValues = (FeatureVector) instance.getTarget();
-            if (multinomialValues == null) {
-                continue;
-            }
-
-            //System.out.println("L Now "+inputAlphabet.size()+" regular features.");
-
-            // Get the predicted probability of each class
-            //   under the current model parameters
-            this.classifier.getUnnormalizedClassificationScores(instance, scores);
-
-            double sumScores = 0.0;
-
-            // Exponentiate the scores
-            for (int i = 0; i < scores.length; i++) {
-                // Due to underflow, it's very likely that some of these scores will be 0.0.
-                scores[i] = Math.exp(scores[i]);
-                sumScores += scores[i];
-            }
-
-            FeatureVector features = (FeatureVector) instance.getData();
-
-            // This is really an int, but since FeatureVectors are defined as doubles,
-            //  avoid casting.
-            double totalLength = 0;
-
-            for (int i = 0; i < multinomialValues.numLocations(); i++) {
-                int label = multinomialValues.indexAtLocation(i);
-                double count = multinomialValues.valueAtLocation(i);
-                value += (Dirichlet.logGammaStirling(scores[label] + count) -
-                        Dirichlet.logGammaStirling(scores[label]));
-                totalLength += count;
-            }
-
-            value -= (Dirichlet.logGammaStirling(sumScores + totalLength) -
-                    Dirichlet.logGammaStirling(sumScores));
-
-            // Error Checking:
-
-            if (Double.isNaN(value)) {
-                logger.fine("DCMMaxEntTrainer: Instance " + instance.getName() +
-                        "has NaN value.");
-
-                for (int label : multinomialValues.getIndices()) {
-                    logger.fine("log(scores)= " + Math.log(scores[label]) +
-                            " scores = " + scores[label]);
+        // Incorporate likelihood of data, summing each range separately
+        int numRanges = ParallelRanges.numRanges(executor, trainingList.size(), numTasks);
+        final double[] rangeValues = new double[numRanges];
+        final double[] infiniteValues = new double[numRanges];
+
+        ParallelRanges.run(executor, trainingList.size(), numTasks, new ParallelRanges.Body() {
+            public void run(int start, int end, int task) {
+                double[] scores = new double[trainingList.getTargetAlphabet().size()];
+                for (int index = start; index < end; index++) {
+                    double value = instanceValue(trainingList.get(index), scores);
+                    if (Double.isInfinite(value)) {
+                        infiniteValues[task] = value;
+                        return;
+                    }
+                    rangeValues[task] += value;
                 }
             }
+        });
 
-            if (Double.isInfinite(value)) {
-                logger.warning("Instance " + instance.getSource() +
-                        " has infinite value; skipping value and gradient");
-                cachedValue -= value;
+        for (int range = 0; range < numRanges; range++) {
+            if (infiniteValues[range] != 0.0) {
+                cachedValue = -infiniteValues[range];
                 cachedValueStale = false;
-                return -value;
+                return cachedValue;
             }
-
-            //System.out.println(value);
-
-            cachedValue += value;
-
-            instanceIndex++;
+            cachedValue += rangeValues[range];
         }
 
         // Incorporate prior on parameters
@@ -277,113 +248,89 @@ public class DMROptimizable implements Optimizable.ByGradientValue {
         return cachedValue;
     }
 
-    public void getValueGradient(double[] buffer) {
-
-        MatrixOps.setAll(cachedGradient, 0.0);
+    /**
+     * The log probability of one instance's count vector, or 0 if it has none.
+     */
+    private double instanceValue(Instance instance, double[] scores) {
 
-        // Incorporate likelihood of data
-        double[] scores = new double[trainingList.getTargetAlphabet().size()];
+        FeatureVector multinomialValues = (FeatureVector) instance.getTarget();
+        if (multinomialValues == null) {
+            return 0.0;
+        }
 
-        int instanceIndex = 0;
+        // Get the predicted probability of each class
+        //   under the current model parameters
+        this.classifier.getUnnormalizedClassificationScores(instance, scores);
 
-        for (Instance instance : trainingList) {
+        double sumScores = 0.0;
 
-            FeatureVector multinomialValues = (FeatureVector) instance.getTarget();
-            if (multinomialValues == null) {
-                continue;
-            }
+        // Exponentiate the scores
+        for (int i = 0; i < scores.length; i++) {
+            // Due to underflow, it's very likely that some of these scores will be 0.0.
+            scores[i] = Math.exp(scores[i]);
+            sumScores += scores[i];
+        }
 
-            // Get the predicted probability of each class
-            //   under the current model parameters
-            this.classifier.getUnnormalizedClassificationScores(instance, scores);
+        // This is really an int, but since FeatureVectors are defined as doubles,
+        //  avoid casting.
+        double totalLength = 0;
+        double value = 0.0;
 
-            double sumScores = 0.0;
+        for (int i = 0; i < multinomialValues.numLocations(); i++) {
+            int label = multinomialValues.indexAtLocation(i);
+            double count = multinomialValues.valueAtLocation(i);
+            value += (Dirichlet.logGammaStirling(scores[label] + count) -
+                    Dirichlet.logGammaStirling(scores[label]));
+            totalLength += count;
+        }
 
-            // Exponentiate the scores
-            for (int i = 0; i < scores.length; i++) {
-                // Due to underflow, it's very likely that some of these scores will be 0.0.
-                scores[i] = Math.exp(scores[i]);
-                sumScores += scores[i];
-            }
+        value -= (Dirichlet.logGammaStirling(sumScores + totalLength) -
+                Dirichlet.logGammaStirling(sumScores));
 
-            FeatureVector features = (FeatureVector) instance.getData();
+        // Error Checking:
 
-            double totalLength = 0;
+        if (Double.isNaN(value)) {
+            logger.fine("DCMMaxEntTrainer: Instance " + instance.getName() +
+                    "has NaN value.");
 
-            for (double count : multinomialValues.getValues()) {
-                totalLength += count;
+            for (int label : multinomialValues.getIndices()) {
+                logger.fine("log(scores)= " + Math.log(scores[label]) +
+                        " scores = " + scores[label]);
             }
+        }
 
-            double digammaDifferenceForSums =
-                    Dirichlet.digamma(sumScores + totalLength) -
-                            Dirichlet.digamma(sumScores);
-
-            for (int loc = 0; loc < features.numLocations(); loc++) {
-                int index = features.indexAtLocation(loc);
-                double value = features.valueAtLocation(loc);
-
-                if (value == 0.0) {
-                    continue;
-                }
-
-                // In a FeatureVector, there's no easy way to say "do you know
-                //   about this id?" so I've broken this into two for loops,
-                //  one for all labels, the other for just the non-zero ones.
-
-                for (int label = 0; label < numLabels; label++) {
-                    cachedGradient[label * numFeatures + index] -=
-                            value * scores[label] * digammaDifferenceForSums;
-                }
-
-                for (int labelLoc = 0; labelLoc < multinomialValues.numLocations(); labelLoc++) {
-                    int label = multinomialValues.indexAtLocation(labelLoc);
-                    double count = multinomialValues.valueAtLocation(labelLoc);
-
-                    double diff = 0.0;
-
-                    if (count < 20) {
-                        for (int i = 0; i < count; i++) {
-                            diff += 1 / (scores[label] + i);
-                        }
-                    } else {
-                        diff = Dirichlet.digamma(scores[label] + count) -
-                                Dirichlet.digamma(scores[label]);
-                    }
-
-                    cachedGradient[label * numFeatures + index] +=
-                            value * scores[label] * diff;
-
-                }
-            }
-            // Now add the default feature
+        if (Double.isInfinite(value)) {
+            logger.warning("Instance " + instance.getSource() +
+                    " has infinite value; skipping value and gradient");
+        }
 
-            for (int label = 0; label < numLabels; label++) {
-                cachedGradient[label * numFeatures + defaultFeatureIndex] -=
-                        scores[label] * digammaDifferenceForSums;
-            }
+        return value;
+    }
 
+    public void getValueGradient(double[] buffer) {
 
-            for (int labelLoc = 0; labelLoc < multinomialValues.numLocations(); labelLoc++) {
-                int label = multinomialValues.indexAtLocation(labelLoc);
-                double count = multinomialValues.valueAtLocation(labelLoc);
+        MatrixOps.setAll(cachedGradient, 0.0);
 
-                double diff = 0.0;
+        // Incorporate likelihood of data. Each range adds into its own
+        //  gradient, and the ranges are summed in order.
+        int numRanges = ParallelRanges.numRanges(executor, trainingList.size(), numTasks);
+        final double[][] rangeGradients = new double[numRanges][];
+        rangeGradients[0] = cachedGradient;
+        for (int range = 1; range < numRanges; range++) {
+            rangeGradients[range] = new double[cachedGradient.length];
+        }
 
-                if (count < 20) {
-                    for (int i = 0; i < count; i++) {
-                        diff += 1 / (scores[label] + i);
-                    }
-                } else {
-                    diff = Dirichlet.digamma(scores[label] + count) -
-                            Dirichlet.digamma(scores[label]);
+        ParallelRanges.run(executor, trainingList.size(), numTasks, new ParallelRanges.Body() {
+            public void run(int start, int end, int task) {
+                double[] scores = new double[trainingList.getTargetAlphabet().size()];
+                for (int index = start; index < end; index++) {
+                    addInstanceGradient(trainingList.get(index), scores, rangeGradients[task]);
                 }
-
-                cachedGradient[label * numFeatures + defaultFeatureIndex] +=
-                        scores[label] * diff;
-
-
             }
+        });
 
+        for (int range = 1; range < numRanges; range++) {
+            MatrixOps.plusEquals(cachedGradient, rangeGradients[range]);
         }
 
         numGetValueGradientCalls++;
@@ -412,5 +359,99 @@ public class DMROptimizable implements Optimizable.ByGradientValue {
         System.arraycopy(cachedGradient, 0, buffer, 0, cachedGradient.length);
         //System.out.println ("DCMMaxEntTrainer gradient infinity norm = "+MatrixOps.infinityNorm(cachedGradient));
     }
+
+    /**
+     * Add the gradient of one instance's log probability to <code>gradient</code>.
+     */
+    private void addInstanceGradient(Instance instance, double[] scores, double[] gradient) {
+
+        FeatureVector multinomialValues = (FeatureVector) instance.getTarget();
+        if (multinomialValues == null) {
+            return;
+        }
+
+        // Get the predicted probability of each class
+        //   under the current model parameters
+        this.classifier.getUnnormalizedClassificationScores(instance, scores);
+
+        double sumScores = 0.0;
+
+        // Exponentiate the scores
+        for (int i = 0; i < scores.length; i++) {
+            // Due to underflow, it's very likely that some of these scores will be 0.0.
+            scores[i] = Math.exp(scores[i]);
+            sumScores += scores[i];
+        }
+
+        FeatureVector features = (FeatureVector) instance.getData();
+
+        double totalLength = 0;
+
+        for (double count : multinomialValues.getValues()) {
+            totalLength += count;
+        }
+
+        double digammaDifferenceForSums =
+                Dirichlet.digamma(sumScores + totalLength) -
+                        Dirichlet.digamma(sumScores);
+
+        for (int loc = 0; loc < features.numLocations(); loc++) {
+            int index = features.indexAtLocation(loc);
+            double value = features.valueAtLocation(loc);
+
+            if (value == 0.0) {
+                continue;
+            }
+
+            // In a FeatureVector, there's no easy way to say "do you know
+            //   about this id?" so I've broken this into two for loops,
+            //  one for all labels, the other for just the non-zero ones.
+
+            for (int label = 0; label < numLabels; label++) {
+                gradient[label * numFeatures + index] -=
+                        value * scores[label] * digammaDifferenceForSums;
+            }
+
+            for (int labelLoc = 0; labelLoc < multinomialValues.numLocations(); labelLoc++) {
+                int label = multinomialValues.indexAtLocation(labelLoc);
+                double count = multinomialValues.valueAtLocation(labelLoc);
+
+                gradient[label * numFeatures + index] +=
+                        value * scores[label] * countDigammaDifference(scores[label], count);
+            }
+        }
+        // Now add the default feature
+
+        for (int label = 0; label < numLabels; label++) {
+            gradient[label * numFeatures + defaultFeatureIndex] -=
+                    scores[label] * digammaDifferenceForSums;
+        }
+
+        for (int labelLoc = 0; labelLoc < multinomialValues.numLocations(); labelLoc++) {
+            int label = multinomialValues.indexAtLocation(labelLoc);
+            double count = multinomialValues.valueAtLocation(labelLoc);
+
+            gradient[label * numFeatures + defaultFeatureIndex] +=
+                    scores[label] * countDigammaDifference(scores[label], count);
+        }
+    }
+
+    /**
+     * digamma(score + count) - digamma(score), summed directly for small counts
+     */
+    private static double countDigammaDifference(double score, double count) {
+        double diff = 0.0;
+
+        if (count < 20) {
+            for (int i = 0; i < count; i++) {
+                diff += 1 / (score + i);
+            }
+        } else {
+            diff = Dirichlet.digamma(score + count) -
+                    Dirichlet.digamma(score);
+        }
+
+        return diff;
+    }
 }
 
@@ -6,10 +6,12 @@ import cc.mallet.optimize.OptimizationException;
 import cc.mallet.pipe.Noop;
 import cc.mallet.pipe.Pipe;
 import cc.mallet.types.*;
+import cc.mallet.util.Randoms;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.util.concurrent.ExecutorService;
 
 public class DMRTopicModel extends LDAHyper {
 
@@ -22,11 +24,39 @@ public class DMRTopicModel extends LDAHyper {
     Pipe parameterPipe = null;
     double[][] alphaCache;
     double[] alphaSumCache;
+    int numThreads = 1;
+    TrainingMetrics trainingMetrics = null;
 
     public DMRTopicModel(int numberOfTopics) {
         super(numberOfTopics);
     }
 
+    /**
+     * A sampler for one thread of <code>model</code>
+     */
+    private DMRTopicModel(DMRTopicModel model, Randoms random) {
+        super(model, random);
+        numFeatures = model.numFeatures;
+        defaultFeatureIndex = model.defaultFeatureIndex;
+    }
+
+    /**
+     * Sample with <code>threads</code> threads, as described in
+     * {@link ShardedSampler}, and use the same threads to compute the
+     * gradient when learning the regression parameters.
+     */
+    public void setNumThreads(int threads) {
+        this.numThreads = threads;
+    }
+
+    /**
+     * Send the throughput, phase times and per-thread busy and idle times
+     * of every iteration to <code>metrics</code>, or to nothing if it is null.
+     */
+    public void setTrainingMetrics(TrainingMetrics metrics) {
+        this.trainingMetrics = metrics;
+    }
+
     public static void main(String[] args) throws IOException {
 
         InstanceList training = InstanceList.load(new File(args[0]));
@@ -56,11 +86,48 @@ public class DMRTopicModel extends LDAHyper {
         alphaCache = new double[numDocs][numTopics];
         alphaSumCache = new double[numDocs];
 
+        ShardedSampler sampler = null;
+        ShardWorker[] workers = null;
+        ExecutorService executor = null;
+        if (numThreads > 1) {
+            int[] docLengths = new int[numDocs];
+            for (int doc = 0; doc < numDocs; doc++) {
+                docLengths[doc] = data.get(doc).topicSequence.getLength();
+            }
+            sampler = new ShardedSampler(docLengths, numThreads);
+            executor = sampler.getExecutor();
+            workers = new ShardWorker[sampler.getNumShards()];
+            for (int shard = 0; shard < workers.length; shard++) {
+                workers[shard] = new ShardWorker(new DMRTopicModel(this, new Randoms(random.nextInt())));
+            }
+        }
+
+        try {
+            sampleIterations(iterationsThisRound, sampler, workers, executor);
+        } finally {
+            if (sampler != null) {
+                sampler.shutdown();
+            }
+        }
+    }
+
+    private void sampleIterations(int iterationsThisRound, ShardedSampler sampler,
+                                  ShardWorker[] workers, ExecutorService executor) throws IOException {
+
+        int numDocs = data.size();
+
         long startTime = System.currentTimeMillis();
         int maxIteration = iterationsSoFar + iterationsThisRound;
 
+        long numTokens = 0;
+        for (int doc = 0; doc < numDocs; doc++) {
+            numTokens += data.get(doc).topicSequence.getLength();
+        }
+        PhaseTimer phaseTimer = new PhaseTimer();
+
         for (; iterationsSoFar <= maxIteration; iterationsSoFar++) {
             long iterationStart = System.currentTimeMillis();
+            phaseTimer.startIteration();
 
             if (showTopicsInterval != 0 && iterationsSoFar != 0 && iterationsSoFar % showTopicsInterval == 0) {
                 System.out.println();
@@ -75,22 +142,24 @@ public class DMRTopicModel extends LDAHyper {
                     iterationsSoFar % optimizeInterval == 0) {
 
                 // Train regression parameters
-                learnParameters();
+                phaseTimer.mark();
+                learnParameters(executor, numThreads);
+                phaseTimer.record(PhaseTimer.Phase.OPTIMIZE);
             }
 
-            // Loop over every document in the corpus
-
-            for (int doc = 0; doc < numDocs; doc++) {
-                FeatureSequence tokenSequence = (FeatureSequence) data.get(doc).instance.getData();
-                LabelSequence topicSequence = (LabelSequence) data.get(doc).topicSequence;
+            phaseTimer.mark();
+            if (sampler != null) {
+                sampler.sweep(workers);
+                phaseTimer.record(PhaseTimer.Phase.SAMPLE);
+                rebuildCounts();
+                phaseTimer.record(PhaseTimer.Phase.MERGE);
+            } else {
+                // Loop over every document in the corpus
 
-                if (dmrParameters != null) {
-                    // set appropriate Alpha parameters
-                    setAlphas(data.get(doc).instance);
+                for (int doc = 0; doc < numDocs; doc++) {
+                    sampleDocument(doc);
                 }
-
-                sampleTopicsForOneDoc(tokenSequence, topicSequence,
-                        false, false);
+                phaseTimer.record(PhaseTimer.Phase.SAMPLE);
             }
 
             long ms = System.currentTimeMillis() - iterationStart;
@@ -106,6 +175,16 @@ public class DMRTopicModel extends LDAHyper {
                     System.out.println(modelLogLikelihood());
             }
             System.out.flush();
+
+            if (trainingMetrics != null) {
+                IterationMetrics metrics = new IterationMetrics("DMRTopicModel", iterationsSoFar, numTokens,
+                        System.currentTimeMillis() - iterationStart);
+                metrics.setPhaseTimes(phaseTimer);
+                if (sampler != null) {
+                    metrics.setThreadTimes(sampler.getBusyNanos(), sampler.getSweepNanos());
+                }
+                trainingMetrics.publish(metrics);
+            }
         }
 
         long seconds = Math.round((System.currentTimeMillis() - startTime) / 1000.0);
@@ -132,6 +211,41 @@ public class DMRTopicModel extends LDAHyper {
         System.out.println(" seconds");
     }
 
+    private void sampleDocument(int doc) {
+        FeatureSequence tokenSequence = (FeatureSequence) data.get(doc).instance.getData();
+        LabelSequence topicSequence = (LabelSequence) data.get(doc).topicSequence;
+
+        if (dmrParameters != null) {
+            // set appropriate Alpha parameters
+            setAlphas(data.get(doc).instance);
+        }
+
+        sampleTopicsForOneDoc(tokenSequence, topicSequence,
+                false, false);
+    }
+
+    /**
+     * Samples one shard with a copy of the model's counts and regression parameters.
+     */
+    private class ShardWorker extends ShardedSampler.Worker {
+        DMRTopicModel sampler;
+
+        ShardWorker(DMRTopicModel sampler) {
+            this.sampler = sampler;
+        }
+
+        public void copyCounts() {
+            sampler.copyCountsFrom(DMRTopicModel.this);
+            sampler.dmrParameters = dmrParameters;
+        }
+
+        public void sample(int startDoc, int endDoc) {
+            for (int doc = startDoc; doc < endDoc; doc++) {
+                sampler.sampleDocument(doc);
+            }
+        }
+    }
+
     /**
      * Use only the default features to set the topic prior (use no document features)
      */
@@ -211,6 +325,15 @@ public class DMRTopicModel extends LDAHyper {
     }
 
     public void learnParameters() {
+        learnParameters(null, 1);
+    }
+
+    /**
+     * Fit the regression parameters, computing the likelihood and its
+     * gradient in <code>numTasks</code> ranges of documents on <code>executor</code>,
+     * or on the calling thread if it is null.
+     */
+    public void learnParameters(ExecutorService executor, int numTasks) {
 
         // Create a "fake" pipe with the features in the data and
         //  a trove int-int hashmap of topic counts in the target.
@@ -249,6 +372,7 @@ public class DMRTopicModel extends LDAHyper {
         DMROptimizable optimizable = new DMROptimizable(parameterInstances, dmrParameters);
         optimizable.setRegularGaussianPriorVariance(0.5);
         optimizable.setInterceptGaussianPriorVariance(100.0);
+        optimizable.setExecutor(executor, numTasks);
 
         LimitedMemoryBFGS optimizer = new LimitedMemoryBFGS(optimizable);
 
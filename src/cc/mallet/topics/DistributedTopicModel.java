@@ -0,0 +1,244 @@
+/* Copyright (C) 2005 Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.  For further
+   information, see the file `LICENSE' included with this distribution. */
+
+package cc.mallet.topics;
+
+import cc.mallet.types.LabelAlphabet;
+import cc.mallet.util.Randoms;
+import gnu.trove.map.hash.TLongIntHashMap;
+
+import java.io.*;
+import java.net.Socket;
+import java.util.Arrays;
+
+/**
+ * One worker process of a multi-process training run, coordinated by a
+ * {@link TopicModelCoordinator}. The worker holds only its own shard
+ * of the documents, added with <code>addInstances()</code>, but a full
+ * copy of the type-topic counts.
+ * <p>
+ * <code>estimate()</code> connects to the coordinator, then alternates
+ * between <code>syncInterval</code> local Gibbs sweeps over the shard
+ * (using <code>numThreads</code> threads) and an exchange with the
+ * coordinator. The worker sends the changes in its type-topic counts
+ * since the last exchange, computed from the topic assignments that
+ * changed, and receives the changes of every worker. After an exchange
+ * every worker and the coordinator hold the same global counts.
+ * <p>
+ * Between exchanges each worker samples against the other workers'
+ * counts as of the last exchange, as the threads of ParallelTopicModel
+ * do between merges. Hyperparameters are not optimized in this mode.
+ * When training ends the worker is an ordinary ParallelTopicModel over
+ * its shard with the global counts, so it can print topics, write its
+ * document topics or produce an inferencer for the full model.
+ */
+
+public class DistributedTopicModel extends ParallelTopicModel {
+
+    private static final long serialVersionUID = 1;
+
+    public static final int DEFAULT_SYNC_INTERVAL = 10;
+
+    String coordinatorHost = "localhost";
+    int coordinatorPort = -1;
+    int syncInterval = DEFAULT_SYNC_INTERVAL;
+
+    int workerIndex = -1;
+    int numWorkers = 0;
+
+    // The topic of every token at the last exchange
+    transient int[][] syncedTopics;
+
+    public DistributedTopicModel(int numberOfTopics, double alphaSum, double beta) {
+        super(numberOfTopics, alphaSum, beta);
+    }
+
+    public DistributedTopicModel(LabelAlphabet topicAlphabet, double alphaSum, double beta) {
+        super(topicAlphabet, alphaSum, beta);
+    }
+
+    public void setCoordinator(String host, int port) {
+        this.coordinatorHost = host;
+        this.coordinatorPort = port;
+    }
+
+    /**
+     * The number of local sweeps between exchanges with the coordinator
+     */
+    public void setSyncInterval(int interval) {
+        this.syncInterval = interval;
+    }
+
+    /**
+     * The position of this worker among the workers of the run, once connected
+     */
+    public int getWorkerIndex() {
+        return workerIndex;
+    }
+
+    public int getNumWorkers() {
+        return numWorkers;
+    }
+
+    public void estimate() throws IOException {
+
+        if (coordinatorPort == -1) {
+            throw new IllegalStateException("No coordinator, call setCoordinator() first");
+        }
+        if (optimizeInterval != 0) {
+            logger.warning("Hyperparameters are not optimized in distributed training");
+        }
+
+        long startTime = System.currentTimeMillis();
+
+        Socket socket = new Socket(coordinatorHost, coordinatorPort);
+        try {
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+
+            join(in, out);
+
+            // Send this shard's initial counts, and receive everyone else's
+            TLongIntHashMap deltas = new TLongIntHashMap();
+            exchangeDeltas(in, out, deltas);
+
+            Randoms[] randoms = newThreadRandoms();
+            long sampleMillis = 0;
+            long exchangeMillis = 0;
+
+            int iteration = 0;
+            while (iteration < numIterations) {
+                int sweeps = Math.min(syncInterval, numIterations - iteration);
+
+                long sampleStart = System.currentTimeMillis();
+                sampleDocumentRange(0, numDocuments(), sweeps, randoms);
+                long exchangeStart = System.currentTimeMillis();
+                exchangeDeltas(in, out, deltas);
+                long exchangeEnd = System.currentTimeMillis();
+
+                sampleMillis += exchangeStart - sampleStart;
+                exchangeMillis += exchangeEnd - exchangeStart;
+                iteration += sweeps;
+
+                logger.info("<" + iteration + "> worker " + workerIndex + ": " + deltas.size() +
+                        " changed counts, sampling " + (exchangeStart - sampleStart) +
+                        "ms, exchange " + (exchangeEnd - exchangeStart) + "ms");
+
+                if (showTopicsInterval != 0 && iteration % showTopicsInterval < sweeps) {
+                    logger.info("\n" + displayTopWords(wordsPerTopic, false));
+                }
+            }
+
+            out.writeInt(TopicModelCoordinator.FINISHED);
+            out.flush();
+
+            logger.info("Worker " + workerIndex + " of " + numWorkers + " finished in " +
+                    (System.currentTimeMillis() - startTime) + "ms: sampling " + sampleMillis +
+                    "ms, exchanges " + exchangeMillis + "ms");
+
+        } finally {
+            socket.close();
+        }
+    }
+
+    /**
+     * Introduce this worker to the coordinator, and grow the rows of the
+     * type-topic counts to hold the tokens of every worker.
+     */
+    private void join(DataInputStream in, DataOutputStream out) throws IOException {
+
+        long checksum = 17;
+        for (int type = 0; type < numTypes; type++) {
+            checksum = 31 * checksum + alphabet.lookupObject(type).hashCode();
+        }
+
+        int numUsedTypes = 0;
+        for (int type = 0; type < numTypes; type++) {
+            if (typeTotals[type] > 0) {
+                numUsedTypes++;
+            }
+        }
+
+        out.writeInt(TopicModelCoordinator.MAGIC);
+        out.writeInt(numTopics);
+        out.writeInt(numTypes);
+        out.writeLong(checksum);
+        out.writeInt(numUsedTypes);
+        for (int type = 0; type < numTypes; type++) {
+            if (typeTotals[type] > 0) {
+                out.writeInt(type);
+                out.writeInt(typeTotals[type]);
+            }
+        }
+        out.flush();
+
+        workerIndex = in.readInt();
+        numWorkers = in.readInt();
+        for (int type = 0; type < numTypes; type++) {
+            int otherOccurrences = in.readInt() - typeTotals[type];
+            if (otherOccurrences > 0) {
+                addTypeOccurrences(type, otherOccurrences);
+            }
+        }
+
+        // Nothing has been sent yet, so every token counts as changed
+        syncedTopics = new int[numDocuments()][];
+        for (int doc = 0; doc < numDocuments(); doc++) {
+            syncedTopics[doc] = new int[documentEnd(doc) - documentStart(doc)];
+            Arrays.fill(syncedTopics[doc], UNASSIGNED_TOPIC);
+        }
+
+        logger.info("Joined as worker " + workerIndex + " of " + numWorkers);
+    }
+
+    /**
+     * Send the changes in this shard's counts since the last exchange,
+     * then apply the changes of the other workers.
+     */
+    private void exchangeDeltas(DataInputStream in, DataOutputStream out,
+                                TLongIntHashMap deltas) throws IOException {
+
+        deltas.clear();
+        for (int doc = 0; doc < numDocuments(); doc++) {
+            int[] tokens = documentTokens(doc);
+            int[] topics = documentTopics(doc);
+            int start = documentStart(doc);
+            int[] synced = syncedTopics[doc];
+
+            for (int position = 0; position < synced.length; position++) {
+                int topic = topics[start + position];
+                if (topic == synced[position]) {
+                    continue;
+                }
+                long key = (long) tokens[start + position] * numTopics;
+                if (synced[position] != UNASSIGNED_TOPIC) {
+                    deltas.adjustOrPutValue(key + synced[position], -1, -1);
+                }
+                deltas.adjustOrPutValue(key + topic, 1, 1);
+                synced[position] = topic;
+            }
+        }
+
+        out.writeInt(TopicModelCoordinator.DELTAS);
+        TopicModelCoordinator.writeDeltas(out, deltas, numTopics);
+        out.flush();
+
+        // The sum of all workers' deltas includes every key this worker sent
+        int numEntries = in.readInt();
+        for (int i = 0; i < numEntries; i++) {
+            int type = in.readInt();
+            int topic = in.readInt();
+            int delta = in.readInt() - deltas.get((long) type * numTopics + topic);
+            if (delta != 0) {
+                TopicModelCoordinator.addToTypeTopicCount(typeTopicCounts[type], topic, delta,
+                        topicBits, topicMask);
+                tokensPerTopic[topic] += delta;
+            }
+        }
+    }
+}
@@ -0,0 +1,144 @@
+/* Copyright (C) 2005 Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.  For further
+   information, see the file `LICENSE' included with this distribution. */
+
+package cc.mallet.topics;
+
+import cc.mallet.types.FeatureSequence;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A division of the training documents into contiguous ranges
+ * that contain roughly equal numbers of tokens.
+ * <p>
+ * Used two ways: with one shard per thread, as a static partition that
+ * accounts for skewed document lengths; or with many small shards, as a
+ * shared queue from which idle workers claim the next unprocessed range
+ * until the sweep is finished.
+ */
+
+public class DocumentShards {
+
+    // Shard i covers documents [boundaries[i], boundaries[i+1])
+    private int[] boundaries;
+    private AtomicInteger nextShard = new AtomicInteger(0);
+
+    public DocumentShards(int[] boundaries) {
+        this.boundaries = boundaries;
+    }
+
+    /**
+     * Split the documents into at most <code>numShards</code> contiguous
+     * ranges, each with about <code>totalTokens / numShards</code> tokens.
+     * Every shard contains at least one document, unless there are no documents.
+     */
+    public static DocumentShards tokenBalanced(ArrayList<TopicAssignment> data, int numShards) {
+        return tokenBalanced(data, 0, data.size(), numShards);
+    }
+
+    /**
+     * Split the documents in <code>[firstDoc, endDoc)</code> into at most
+     * <code>numShards</code> contiguous ranges with about equal numbers of tokens.
+     */
+    public static DocumentShards tokenBalanced(ArrayList<TopicAssignment> data,
+                                               int firstDoc, int endDoc, int numShards) {
+        return tokenBalanced(data, null, null, firstDoc, endDoc, numShards);
+    }
+
+    /**
+     * Split the documents in <code>[firstDoc, endDoc)</code> of a packed
+     * corpus into at most <code>numShards</code> contiguous ranges with about equal numbers of tokens.
+     */
+    public static DocumentShards tokenBalanced(PackedCorpus corpus,
+                                               int firstDoc, int endDoc, int numShards) {
+        return tokenBalanced(null, corpus, null, firstDoc, endDoc, numShards);
+    }
+
+    /**
+     * Split the documents in <code>[firstDoc, endDoc)</code>, where document
+     * <code>d</code> has <code>docLengths[d]</code> tokens, into at most
+     * <code>numShards</code> contiguous ranges with about equal numbers of tokens.
+     */
+    public static DocumentShards tokenBalanced(int[] docLengths,
+                                               int firstDoc, int endDoc, int numShards) {
+        return tokenBalanced(null, null, docLengths, firstDoc, endDoc, numShards);
+    }
+
+    private static int length(ArrayList<TopicAssignment> data, PackedCorpus corpus, int[] docLengths, int doc) {
+        if (docLengths != null) {
+            return docLengths[doc];
+        }
+        if (corpus != null) {
+            return corpus.getLength(doc);
+        }
+        return ((FeatureSequence) data.get(doc).instance.getData()).getLength();
+    }
+
+    private static DocumentShards tokenBalanced(ArrayList<TopicAssignment> data, PackedCorpus corpus,
+                                                int[] docLengths, int firstDoc, int endDoc, int numShards) {
+        int numDocs = endDoc - firstDoc;
+        numShards = Math.max(1, Math.min(numShards, numDocs));
+
+        long totalTokens = 0;
+        for (int doc = firstDoc; doc < endDoc; doc++) {
+            totalTokens += length(data, corpus, docLengths, doc);
+        }
+
+        int[] boundaries = new int[numShards + 1];
+        boundaries[0] = firstDoc;
+        int shard = 1;
+        long tokensSoFar = 0;
+
+        for (int doc = firstDoc; doc < endDoc && shard < numShards; doc++) {
+            tokensSoFar += length(data, corpus, docLengths, doc);
+
+            // Close the current shard once it has its share of the tokens,
+            //  but leave at least one document for each remaining shard.
+            if (tokensSoFar * numShards >= totalTokens * shard ||
+                    endDoc - (doc + 1) == numShards - shard) {
+                boundaries[shard] = doc + 1;
+                shard++;
+            }
+        }
+        boundaries[numShards] = endDoc;
+
+        return new DocumentShards(boundaries);
+    }
+
+    public int size() {
+        return boundaries.length - 1;
+    }
+
+    public int getStart(int shard) {
+        return boundaries[shard];
+    }
+
+    public int getEnd(int shard) {
+        return boundaries[shard + 1];
+    }
+
+    /**
+     * Take the next unprocessed shard.
+     *
+     * @return a shard index, or -1 if every shard has been claimed since the last <code>reset()</code>
+     */
+    public int claim() {
+        int shard = nextShard.getAndIncrement();
+        if (shard >= size()) {
+            return -1;
+        }
+        return shard;
+    }
+
+    /**
+     * Make every shard available to <code>claim()</code> again, for the next sweep.
+     */
+    public void reset() {
+        nextShard.set(0);
+    }
+}
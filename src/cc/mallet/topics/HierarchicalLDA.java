@@ -1,6 +1,7 @@
 package cc.mallet.topics;
 
 import cc.mallet.types.*;
+import cc.mallet.util.ParallelRanges;
 import cc.mallet.util.Randoms;
 import gnu.trove.map.hash.TIntIntHashMap;
 import gnu.trove.map.hash.TObjectDoubleHashMap;
@@ -8,6 +9,8 @@ import gnu.trove.map.hash.TObjectDoubleHashMap;
 import java.io.*;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class HierarchicalLDA {
 
@@ -39,6 +42,9 @@ public class HierarchicalLDA {
     int displayTopicsInterval = 50;
     int numWordsToDisplay = 10;
 
+    int numThreads = 1;
+    PhaseTimer phaseTimer = new PhaseTimer();
+
     public HierarchicalLDA() {
         alpha = 10.0;
         gamma = 1.0;
@@ -83,6 +89,23 @@ public class HierarchicalLDA {
         numWordsToDisplay = words;
     }
 
+    /**
+     * With more than one thread, documents are sampled in shards as
+     * described in {@link HierarchicalLDAWorker}. Each sweep then samples
+     * against the tree as of the start of the phase, rather than the tree
+     * as changed by every earlier document.
+     */
+    public void setNumThreads(int threads) {
+        this.numThreads = Math.max(1, threads);
+    }
+
+    /**
+     * Time spent sampling and merging in multithreaded training
+     */
+    public PhaseTimer getPhaseTimer() {
+        return phaseTimer;
+    }
+
     /**
      * This parameter determines whether the sampler outputs
      * shows progress by outputting a character after every iteration.
@@ -145,6 +168,11 @@ public class HierarchicalLDA {
     }
 
     public void estimate(int numIterations) {
+        if (numThreads > 1) {
+            estimateParallel(numIterations);
+            return;
+        }
+
         for (int iteration = 1; iteration <= numIterations; iteration++) {
             for (int doc = 0; doc < numDocuments; doc++) {
                 samplePath(doc, iteration);
@@ -166,6 +194,112 @@ public class HierarchicalLDA {
         }
     }
 
+    private void estimateParallel(int numIterations) {
+        final int numShards = Math.max(1, Math.min(numDocuments, numThreads));
+
+        final HierarchicalLDAWorker[] workers = new HierarchicalLDAWorker[numShards];
+        for (int shard = 0; shard < numShards; shard++) {
+            workers[shard] = new HierarchicalLDAWorker(this, new Randoms(random.nextInt()));
+        }
+        final NCRPNode[] chosenNodes = new NCRPNode[numDocuments];
+
+        ExecutorService executor = Executors.newFixedThreadPool(numShards);
+        phaseTimer.reset();
+        try {
+            for (int iteration = 1; iteration <= numIterations; iteration++) {
+                phaseTimer.startIteration();
+
+                ParallelRanges.run(executor, numDocuments, numShards, new ParallelRanges.Body() {
+                    public void run(int start, int end, int task) {
+                        workers[task].samplePaths(start, end, chosenNodes);
+                    }
+                });
+                phaseTimer.record(PhaseTimer.Phase.SAMPLE);
+
+                for (int doc = 0; doc < numDocuments; doc++) {
+                    moveDocument(doc, chosenNodes[doc]);
+                    chosenNodes[doc] = null;
+                }
+                phaseTimer.record(PhaseTimer.Phase.MERGE);
+
+                ParallelRanges.run(executor, numDocuments, numShards, new ParallelRanges.Body() {
+                    public void run(int start, int end, int task) {
+                        workers[task].sampleLevels(start, end);
+                    }
+                });
+                phaseTimer.record(PhaseTimer.Phase.SAMPLE);
+
+                for (HierarchicalLDAWorker worker : workers) {
+                    worker.mergeLevelChanges();
+                }
+                phaseTimer.record(PhaseTimer.Phase.MERGE);
+
+                if (showProgress) {
+                    System.out.print(".");
+                    if (iteration % 50 == 0) {
+                        System.out.println(" " + iteration);
+                    }
+                }
+
+                if (iteration % displayTopicsInterval == 0) {
+                    System.out.println(phaseTimer);
+                    printNodes();
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Move a document from its current path to the path through
+     * <code>node</code>, chosen by a worker against the tree as it was
+     * before earlier documents moved. If those moves removed the node,
+     * the document starts a new path below the nearest remaining ancestor.
+     */
+    void moveDocument(int doc, NCRPNode node) {
+        NCRPNode leaf = documentLeaves[doc];
+        if (node == leaf) {
+            return;
+        }
+
+        NCRPNode[] path = new NCRPNode[numLevels];
+        for (int level = numLevels - 1; level >= 0; level--) {
+            path[level] = leaf;
+            leaf = leaf.parent;
+        }
+
+        int[] docLevels = levels[doc];
+        FeatureSequence fs = (FeatureSequence) instances.get(doc).getData();
+        for (int token = 0; token < docLevels.length; token++) {
+            NCRPNode levelNode = path[docLevels[token]];
+            levelNode.typeCounts[fs.getIndexAtPosition(token)]--;
+            levelNode.totalTokens--;
+        }
+        documentLeaves[doc].dropPath();
+
+        // Only the root is in the tree without customers
+        while (node.parent != null && node.customers == 0) {
+            node = node.parent;
+        }
+        if (!node.isLeaf()) {
+            node = node.getNewLeaf();
+        }
+        node.addPath();
+        documentLeaves[doc] = node;
+
+        leaf = node;
+        for (int level = numLevels - 1; level >= 0; level--) {
+            path[level] = leaf;
+            leaf = leaf.parent;
+        }
+        for (int token = 0; token < docLevels.length; token++) {
+            NCRPNode levelNode = path[docLevels[token]];
+            levelNode.typeCounts[fs.getIndexAtPosition(token)]++;
+            levelNode.totalTokens++;
+        }
+    }
+
     public void samplePath(int doc, int iteration) {
         NCRPNode[] path = new NCRPNode[numLevels];
         NCRPNode node;
@@ -223,22 +357,7 @@ public class HierarchicalLDA {
             assert (path[level].totalTokens >= 0);
         }
 
-        // Calculate the weight for a new path at a given level.
-        double[] newTopicWeights = new double[numLevels];
-        for (level = 1; level < numLevels; level++) {  // Skip the root...
-            int[] types = typeCounts[level].keys();
-            int totalTokens = 0;
-
-            for (int t : types) {
-                for (int i = 0; i < typeCounts[level].get(t); i++) {
-                    newTopicWeights[level] +=
-                            Math.log((eta + i) / (etaSum + totalTokens));
-                    totalTokens++;
-                }
-            }
-
-            //if (iteration > 1) { System.out.println(newTopicWeights[level]); }
-        }
+        double[] newTopicWeights = newPathWeights(typeCounts);
 
         calculateWordLikelihood(nodeWeights, rootNode, 0.0, typeCounts, newTopicWeights, 0, iteration);
 
@@ -296,6 +415,26 @@ public class HierarchicalLDA {
         }
     }
 
+    /**
+     * Calculate the weight for a new path at a given level.
+     */
+    double[] newPathWeights(TIntIntHashMap[] typeCounts) {
+        double[] newTopicWeights = new double[numLevels];
+        for (int level = 1; level < numLevels; level++) {  // Skip the root...
+            int[] types = typeCounts[level].keys();
+            int totalTokens = 0;
+
+            for (int t : types) {
+                for (int i = 0; i < typeCounts[level].get(t); i++) {
+                    newTopicWeights[level] +=
+                            Math.log((eta + i) / (etaSum + totalTokens));
+                    totalTokens++;
+                }
+            }
+        }
+        return newTopicWeights;
+    }
+
     public void calculateNCRP(TObjectDoubleHashMap<NCRPNode> nodeWeights,
                               NCRPNode node, double weight) {
         for (NCRPNode child : node.children) {
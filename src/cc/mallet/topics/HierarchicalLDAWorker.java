@@ -0,0 +1,258 @@
+/* Copyright (C) 2005 Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.  For further
+   information, see the file `LICENSE' included with this distribution. */
+
+package cc.mallet.topics;
+
+import cc.mallet.topics.HierarchicalLDA.NCRPNode;
+import cc.mallet.types.FeatureSequence;
+import cc.mallet.util.Randoms;
+import gnu.trove.iterator.TIntIntIterator;
+import gnu.trove.map.hash.TIntIntHashMap;
+import gnu.trove.map.hash.TObjectDoubleHashMap;
+import gnu.trove.map.hash.TObjectIntHashMap;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Samples one shard of the documents of a {@link HierarchicalLDA} on
+ * its own thread, as {@link WorkerRunnable} does for ParallelTopicModel.
+ * <p>
+ * While the workers run, the tree and its counts are read only. When
+ * sampling paths, each worker scores every path as if its document had
+ * been removed from the tree, and records the node it picks; the model
+ * then moves the documents one at a time between phases. When sampling
+ * levels, each worker keeps its changes to the node counts in its own
+ * maps and samples against the shared counts plus its own changes; the
+ * model adds every worker's changes to the tree between phases.
+ */
+
+public class HierarchicalLDAWorker {
+
+    HierarchicalLDA model;
+    Randoms random;
+
+    int numLevels;
+
+    // Changes to node.typeCounts and node.totalTokens since the last merge
+    HashMap<NCRPNode, TIntIntHashMap> typeCountChanges = new HashMap<NCRPNode, TIntIntHashMap>();
+    TObjectIntHashMap<NCRPNode> totalTokenChanges = new TObjectIntHashMap<NCRPNode>();
+
+    public HierarchicalLDAWorker(HierarchicalLDA model, Randoms random) {
+        this.model = model;
+        this.random = random;
+        this.numLevels = model.numLevels;
+    }
+
+    /**
+     * Choose a node for each document in <code>[startDoc, endDoc)</code>,
+     * storing it in <code>chosenNodes</code>. A leaf is an existing path,
+     * an internal node stands for a new path below it.
+     */
+    public void samplePaths(int startDoc, int endDoc, NCRPNode[] chosenNodes) {
+        NCRPNode[] path = new NCRPNode[numLevels];
+        TIntIntHashMap[] typeCounts = new TIntIntHashMap[numLevels];
+        int[] levelTotals = new int[numLevels];
+        for (int level = 0; level < numLevels; level++) {
+            typeCounts[level] = new TIntIntHashMap();
+        }
+        TObjectDoubleHashMap<NCRPNode> nodeWeights = new TObjectDoubleHashMap<NCRPNode>();
+
+        for (int doc = startDoc; doc < endDoc; doc++) {
+            NCRPNode node = model.documentLeaves[doc];
+            for (int level = numLevels - 1; level >= 0; level--) {
+                path[level] = node;
+                node = node.parent;
+            }
+
+            int[] docLevels = model.levels[doc];
+            FeatureSequence fs = (FeatureSequence) model.instances.get(doc).getData();
+            for (int level = 0; level < numLevels; level++) {
+                typeCounts[level].clear();
+            }
+            Arrays.fill(levelTotals, 0);
+            for (int token = 0; token < docLevels.length; token++) {
+                typeCounts[docLevels[token]].adjustOrPutValue(fs.getIndexAtPosition(token), 1, 1);
+                levelTotals[docLevels[token]]++;
+            }
+
+            nodeWeights.clear();
+            calculateNCRP(nodeWeights, model.rootNode, 0.0, path);
+
+            double[] newTopicWeights = model.newPathWeights(typeCounts);
+            calculateWordLikelihood(nodeWeights, model.rootNode, 0.0, typeCounts, levelTotals,
+                    newTopicWeights, 0, path);
+
+            NCRPNode[] nodes = nodeWeights.keys(new NCRPNode[nodeWeights.size()]);
+            double[] weights = new double[nodes.length];
+            double max = Double.NEGATIVE_INFINITY;
+            for (int i = 0; i < nodes.length; i++) {
+                weights[i] = nodeWeights.get(nodes[i]);
+                if (weights[i] > max) {
+                    max = weights[i];
+                }
+            }
+            double sum = 0.0;
+            for (int i = 0; i < nodes.length; i++) {
+                weights[i] = Math.exp(weights[i] - max);
+                sum += weights[i];
+            }
+
+            chosenNodes[doc] = nodes[random.nextDiscrete(weights, sum)];
+        }
+    }
+
+    /**
+     * The number of customers at a node once the current document,
+     * whose path is <code>path</code>, has left the tree.
+     */
+    private int customersWithout(NCRPNode node, NCRPNode[] path) {
+        return path[node.level] == node ? node.customers - 1 : node.customers;
+    }
+
+    private void calculateNCRP(TObjectDoubleHashMap<NCRPNode> nodeWeights,
+                               NCRPNode node, double weight, NCRPNode[] path) {
+        int customers = customersWithout(node, path);
+        for (NCRPNode child : node.children) {
+            int childCustomers = customersWithout(child, path);
+            // Nodes that only this document visits would be removed with it
+            if (childCustomers > 0) {
+                calculateNCRP(nodeWeights, child,
+                        weight + Math.log((double) childCustomers / (customers + model.gamma)), path);
+            }
+        }
+
+        nodeWeights.put(node, weight + Math.log(model.gamma / (customers + model.gamma)));
+    }
+
+    private void calculateWordLikelihood(TObjectDoubleHashMap<NCRPNode> nodeWeights,
+                                         NCRPNode node, double weight,
+                                         TIntIntHashMap[] typeCounts, int[] levelTotals,
+                                         double[] newTopicWeights, int level, NCRPNode[] path) {
+
+        if (!nodeWeights.containsKey(node)) {
+            return;
+        }
+
+        // Leave out the document's own tokens at the nodes on its path
+        boolean onPath = path[level] == node;
+        int nodeTotal = onPath ? node.totalTokens - levelTotals[level] : node.totalTokens;
+
+        double nodeWeight = 0.0;
+        int totalTokens = 0;
+        TIntIntIterator iterator = typeCounts[level].iterator();
+        while (iterator.hasNext()) {
+            iterator.advance();
+            int type = iterator.key();
+            int count = iterator.value();
+            int nodeCount = onPath ? node.typeCounts[type] - count : node.typeCounts[type];
+            for (int i = 0; i < count; i++) {
+                nodeWeight += Math.log((model.eta + nodeCount + i) /
+                        (model.etaSum + nodeTotal + totalTokens));
+                totalTokens++;
+            }
+        }
+
+        for (NCRPNode child : node.children) {
+            calculateWordLikelihood(nodeWeights, child, weight + nodeWeight,
+                    typeCounts, levelTotals, newTopicWeights, level + 1, path);
+        }
+
+        // As in HierarchicalLDA, an internal node also gets the weight of a new path
+        for (level++; level < numLevels; level++) {
+            nodeWeight += newTopicWeights[level];
+        }
+
+        nodeWeights.adjustValue(node, nodeWeight);
+    }
+
+    /**
+     * Resample the level of every token in <code>[startDoc, endDoc)</code>,
+     * recording the changes to the node counts in this worker's maps.
+     */
+    public void sampleLevels(int startDoc, int endDoc) {
+        NCRPNode[] path = new NCRPNode[numLevels];
+        TIntIntHashMap[] pathChanges = new TIntIntHashMap[numLevels];
+        int[] pathTotals = new int[numLevels];
+        int[] levelCounts = new int[numLevels];
+        double[] levelWeights = new double[numLevels];
+
+        double alpha = model.alpha;
+        double eta = model.eta;
+        double etaSum = model.etaSum;
+
+        for (int doc = startDoc; doc < endDoc; doc++) {
+            FeatureSequence fs = (FeatureSequence) model.instances.get(doc).getData();
+            int seqLen = fs.getLength();
+            int[] docLevels = model.levels[doc];
+
+            NCRPNode node = model.documentLeaves[doc];
+            for (int level = numLevels - 1; level >= 0; level--) {
+                path[level] = node;
+                pathChanges[level] = typeCountChanges.get(node);
+                if (pathChanges[level] == null) {
+                    pathChanges[level] = new TIntIntHashMap();
+                    typeCountChanges.put(node, pathChanges[level]);
+                }
+                pathTotals[level] = node.totalTokens + totalTokenChanges.get(node);
+                node = node.parent;
+            }
+
+            Arrays.fill(levelCounts, 0);
+            for (int token = 0; token < seqLen; token++) {
+                levelCounts[docLevels[token]]++;
+            }
+
+            for (int token = 0; token < seqLen; token++) {
+                int type = fs.getIndexAtPosition(token);
+                int oldLevel = docLevels[token];
+
+                levelCounts[oldLevel]--;
+                pathChanges[oldLevel].adjustOrPutValue(type, -1, -1);
+                pathTotals[oldLevel]--;
+
+                double sum = 0.0;
+                for (int level = 0; level < numLevels; level++) {
+                    levelWeights[level] =
+                            (alpha + levelCounts[level]) *
+                                    (eta + path[level].typeCounts[type] + pathChanges[level].get(type)) /
+                                    (etaSum + pathTotals[level]);
+                    sum += levelWeights[level];
+                }
+                int newLevel = random.nextDiscrete(levelWeights, sum);
+
+                docLevels[token] = newLevel;
+                levelCounts[newLevel]++;
+                pathChanges[newLevel].adjustOrPutValue(type, 1, 1);
+                pathTotals[newLevel]++;
+            }
+
+            for (int level = 0; level < numLevels; level++) {
+                totalTokenChanges.put(path[level], pathTotals[level] - path[level].totalTokens);
+            }
+        }
+    }
+
+    /**
+     * Add this worker's changes to the node counts, and forget them.
+     * The model must not be sampling.
+     */
+    public void mergeLevelChanges() {
+        for (Map.Entry<NCRPNode, TIntIntHashMap> entry : typeCountChanges.entrySet()) {
+            NCRPNode node = entry.getKey();
+            TIntIntIterator iterator = entry.getValue().iterator();
+            while (iterator.hasNext()) {
+                iterator.advance();
+                node.typeCounts[iterator.key()] += iterator.value();
+            }
+            node.totalTokens += totalTokenChanges.get(node);
+        }
+        typeCountChanges.clear();
+        totalTokenChanges.clear();
+    }
+}
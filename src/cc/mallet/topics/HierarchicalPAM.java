@@ -45,6 +45,9 @@ public class HierarchicalPAM {
     static CommandOption.Integer numSubTopicsOption = new CommandOption.Integer
             (HierarchicalPAM.class, "num-sub-topics", "INTEGER", true, 20,
                     "The number of sub-topics", null);
+    static CommandOption.Integer numThreadsOption = new CommandOption.Integer
+            (HierarchicalPAM.class, "num-threads", "INTEGER", true, 1,
+                    "The number of threads for parallel sampling", null);
     // Parameters
     int numSuperTopics; // Number of topics to be fit
     int numSubTopics;
@@ -103,6 +106,10 @@ public class HierarchicalPAM {
     int[] tokensPerSuperTopic; // indexed by <topic index>
     int[][] tokensPerSuperSubTopic;
 
+    int numThreads = 1;
+    int numChanges; // number of tokens whose topics changed in the current iteration
+    TrainingMetrics trainingMetrics = null;
+
     Runtime runtime;
     NumberFormat formatter;
 
@@ -125,6 +132,60 @@ public class HierarchicalPAM {
         runtime = Runtime.getRuntime();
     }
 
+    /**
+     * A sampler for one thread of <code>model</code>, sharing its
+     * documents, assignments and parameters but with its own counts,
+     * document frequencies and cached priors.
+     */
+    private HierarchicalPAM(HierarchicalPAM model) {
+        this.numSuperTopics = model.numSuperTopics;
+        this.numSubTopics = model.numSubTopics;
+        this.superTopicBalance = model.superTopicBalance;
+        this.superTopicSmoothing = model.superTopicSmoothing;
+        this.subTopicBalance = model.subTopicBalance;
+        this.subTopicSmoothing = model.subTopicSmoothing;
+        this.beta = model.beta;
+        this.betaSum = model.betaSum;
+        this.instances = model.instances;
+        this.numTypes = model.numTypes;
+        this.superTopics = model.superTopics;
+        this.subTopics = model.subTopics;
+
+        superSubCounts = new int[numSuperTopics + 1][numSubTopics + 1];
+        superCounts = new int[numSuperTopics + 1];
+        superWeights = new double[numSuperTopics + 1];
+        subWeights = new double[numSubTopics];
+        superSubWeights = new double[numSuperTopics + 1][numSubTopics + 1];
+        cumulativeSuperWeights = new double[numSuperTopics];
+
+        superTopicDocumentFrequencies = new int[numSuperTopics + 1];
+        superSubTopicDocumentFrequencies = new int[numSuperTopics + 1][numSubTopics + 1];
+        sumSuperTopicDocumentFrequencies = new int[numSuperTopics];
+        superTopicPriorWeights = new double[numSuperTopics + 1];
+        superSubTopicPriorWeights = new double[numSuperTopics][numSubTopics + 1];
+
+        typeTopicCounts = new int[numTypes][1 + numSuperTopics + numSubTopics];
+        tokensPerTopic = new int[1 + numSuperTopics + numSubTopics];
+        tokensPerSuperTopic = new int[numSuperTopics + 1];
+        tokensPerSuperSubTopic = new int[numSuperTopics + 1][numSubTopics + 1];
+    }
+
+    /**
+     * Sample with <code>threads</code> threads, each holding a copy
+     * of the counts, as described in {@link ShardedSampler}.
+     */
+    public void setNumThreads(int threads) {
+        this.numThreads = threads;
+    }
+
+    /**
+     * Send the throughput, phase times and per-thread busy and idle times
+     * of every iteration to <code>metrics</code>, or to nothing if it is null.
+     */
+    public void setTrainingMetrics(TrainingMetrics metrics) {
+        this.trainingMetrics = metrics;
+    }
+
     public static void main(String[] args) throws IOException {
         CommandOption.setSummary(HierarchicalPAM.class, "Train a three level hierarchy of topics");
         CommandOption.process(HierarchicalPAM.class, args);
@@ -134,6 +195,7 @@ public class HierarchicalPAM {
 
         HierarchicalPAM pam = new HierarchicalPAM(numSuperTopicsOption.value, numSubTopicsOption.value,
                 superTopicBalanceOption.value, subTopicBalanceOption.value);
+        pam.setNumThreads(numThreadsOption.value);
         pam.estimate(instances, testing, 1000, 100, 0, 250, null, new Randoms());
         if (stateFile.wasInvoked()) {
             pam.printState(new File(stateFile.value));
@@ -271,27 +333,174 @@ public class HierarchicalPAM {
             cacheSuperSubTopicPrior(superTopic);
         }
 
+        ShardedSampler sampler = null;
+        ShardWorker[] workers = null;
+        if (numThreads > 1) {
+            int[] docLengths = new int[numDocs];
+            for (int doc = 0; doc < numDocs; doc++) {
+                docLengths[doc] = superTopics[doc].length;
+            }
+            sampler = new ShardedSampler(docLengths, numThreads);
+            workers = new ShardWorker[sampler.getNumShards()];
+            for (int shard = 0; shard < workers.length; shard++) {
+                workers[shard] = new ShardWorker(new HierarchicalPAM(this), new Randoms(r.nextInt()));
+            }
+        }
+
         // Finally, start the sampler!
 
-        for (int iterations = 1; iterations < numIterations; iterations++) {
-            long iterationStart = System.currentTimeMillis();
+        PhaseTimer phaseTimer = new PhaseTimer();
+        try {
+            for (int iterations = 1; iterations < numIterations; iterations++) {
+                long iterationStart = System.currentTimeMillis();
+                phaseTimer.startIteration();
+
+                numChanges = 0;
+                if (sampler != null) {
+                    sampler.sweep(workers);
+                    phaseTimer.record(PhaseTimer.Phase.SAMPLE);
+                    mergeWorkers(workers);
+                    phaseTimer.record(PhaseTimer.Phase.MERGE);
+                } else {
+                    // Loop over every word in the corpus
+                    for (int doc = 0; doc < superTopics.length; doc++) {
+                        sampleTopicsForOneDoc((FeatureSequence) instances.get(doc).getData(),
+                                superTopics[doc], subTopics[doc], r);
+                    }
+                    phaseTimer.record(PhaseTimer.Phase.SAMPLE);
+                }
+
+                long elapsedMillis = Math.max(1, System.currentTimeMillis() - iterationStart);
+                logger.info("<" + iterations + "> " + elapsedMillis + "ms, " +
+                        Math.round(numTokens * 1000.0 / elapsedMillis) + " tokens/sec, " +
+                        numChanges + " topics changed");
+
+                if (showTopicsInterval != 0 && iterations % showTopicsInterval == 0) {
+                    logger.info(printTopWords(8, false));
+                }
 
-            // Loop over every word in the corpus
-            for (int doc = 0; doc < superTopics.length; doc++) {
-                sampleTopicsForOneDoc((FeatureSequence) instances.get(doc).getData(),
-                        superTopics[doc], subTopics[doc], r);
+                if (iterations % 10 == 0) {
+                    phaseTimer.mark();
+                    logger.info("<" + iterations + "> LL: " + formatter.format(modelLogLikelihood() / numTokens));
+                    phaseTimer.record(PhaseTimer.Phase.LIKELIHOOD);
+                }
+
+                if (trainingMetrics != null) {
+                    IterationMetrics metrics = new IterationMetrics("HierarchicalPAM", iterations, numTokens,
+                            System.currentTimeMillis() - iterationStart);
+                    metrics.setPhaseTimes(phaseTimer);
+                    if (sampler != null) {
+                        metrics.setThreadTimes(sampler.getBusyNanos(), sampler.getSweepNanos());
+                    }
+                    metrics.setTopicCountDensity(IterationMetrics.nonZeroFraction(typeTopicCounts, 1 + numSuperTopics + numSubTopics));
+                    trainingMetrics.publish(metrics);
+                }
+            }
+        } finally {
+            if (sampler != null) {
+                sampler.shutdown();
             }
+        }
+
+    }
+
+    /**
+     * Add each worker's changes to the counts and document frequencies,
+     * as in {@link ShardedSampler#mergeDeltas}, and recompute the cached priors.
+     */
+    private void mergeWorkers(ShardWorker[] workers) {
+        int[][] rows = new int[workers.length][];
 
-            if (showTopicsInterval != 0 && iterations % showTopicsInterval == 0) {
-                logger.info(printTopWords(8, false));
+        for (int type = 0; type < numTypes; type++) {
+            for (int w = 0; w < workers.length; w++) {
+                rows[w] = workers[w].sampler.typeTopicCounts[type];
+            }
+            ShardedSampler.mergeDeltas(typeTopicCounts[type], rows);
+        }
+        for (int superTopic = 0; superTopic <= numSuperTopics; superTopic++) {
+            for (int w = 0; w < workers.length; w++) {
+                rows[w] = workers[w].sampler.tokensPerSuperSubTopic[superTopic];
+            }
+            ShardedSampler.mergeDeltas(tokensPerSuperSubTopic[superTopic], rows);
+            for (int w = 0; w < workers.length; w++) {
+                rows[w] = workers[w].sampler.superSubTopicDocumentFrequencies[superTopic];
             }
+            ShardedSampler.mergeDeltas(superSubTopicDocumentFrequencies[superTopic], rows);
+        }
+        for (int w = 0; w < workers.length; w++) {
+            rows[w] = workers[w].sampler.tokensPerTopic;
+        }
+        ShardedSampler.mergeDeltas(tokensPerTopic, rows);
+        for (int w = 0; w < workers.length; w++) {
+            rows[w] = workers[w].sampler.tokensPerSuperTopic;
+        }
+        ShardedSampler.mergeDeltas(tokensPerSuperTopic, rows);
+        for (int w = 0; w < workers.length; w++) {
+            rows[w] = workers[w].sampler.superTopicDocumentFrequencies;
+        }
+        ShardedSampler.mergeDeltas(superTopicDocumentFrequencies, rows);
+        for (int w = 0; w < workers.length; w++) {
+            rows[w] = workers[w].sampler.sumSuperTopicDocumentFrequencies;
+        }
+        ShardedSampler.mergeDeltas(sumSuperTopicDocumentFrequencies, rows);
+
+        int totalDocumentFrequencies = sumDocumentFrequencies;
+        for (ShardWorker worker : workers) {
+            totalDocumentFrequencies += worker.sampler.sumDocumentFrequencies - sumDocumentFrequencies;
+            numChanges += worker.sampler.numChanges;
+        }
+        sumDocumentFrequencies = totalDocumentFrequencies;
+
+        cacheSuperTopicPrior();
+        for (int superTopic = 0; superTopic < numSuperTopics; superTopic++) {
+            cacheSuperSubTopicPrior(superTopic);
+        }
+    }
 
-            logger.fine((System.currentTimeMillis() - iterationStart) + " ");
-            if (iterations % 10 == 0) {
-                logger.info("<" + iterations + "> LL: " + formatter.format(modelLogLikelihood() / numTokens));
+    /**
+     * Samples one shard with a copy of the model's counts.
+     */
+    private class ShardWorker extends ShardedSampler.Worker {
+        HierarchicalPAM sampler;
+        Randoms random;
+
+        ShardWorker(HierarchicalPAM sampler, Randoms random) {
+            this.sampler = sampler;
+            this.random = random;
+        }
+
+        public void copyCounts() {
+            for (int type = 0; type < numTypes; type++) {
+                System.arraycopy(typeTopicCounts[type], 0, sampler.typeTopicCounts[type], 0,
+                        typeTopicCounts[type].length);
+            }
+            for (int superTopic = 0; superTopic <= numSuperTopics; superTopic++) {
+                System.arraycopy(tokensPerSuperSubTopic[superTopic], 0,
+                        sampler.tokensPerSuperSubTopic[superTopic], 0, numSubTopics + 1);
+                System.arraycopy(superSubTopicDocumentFrequencies[superTopic], 0,
+                        sampler.superSubTopicDocumentFrequencies[superTopic], 0, numSubTopics + 1);
             }
+            System.arraycopy(tokensPerTopic, 0, sampler.tokensPerTopic, 0, tokensPerTopic.length);
+            System.arraycopy(tokensPerSuperTopic, 0, sampler.tokensPerSuperTopic, 0, numSuperTopics + 1);
+            System.arraycopy(superTopicDocumentFrequencies, 0,
+                    sampler.superTopicDocumentFrequencies, 0, numSuperTopics + 1);
+            System.arraycopy(sumSuperTopicDocumentFrequencies, 0,
+                    sampler.sumSuperTopicDocumentFrequencies, 0, numSuperTopics);
+            sampler.sumDocumentFrequencies = sumDocumentFrequencies;
+
+            sampler.cacheSuperTopicPrior();
+            for (int superTopic = 0; superTopic < numSuperTopics; superTopic++) {
+                sampler.cacheSuperSubTopicPrior(superTopic);
+            }
+            sampler.numChanges = 0;
         }
 
+        public void sample(int startDoc, int endDoc) {
+            for (int doc = startDoc; doc < endDoc; doc++) {
+                sampler.sampleTopicsForOneDoc((FeatureSequence) instances.get(doc).getData(),
+                        superTopics[doc], subTopics[doc], random);
+            }
+        }
     }
 
     private void cacheSuperTopicPrior() {
@@ -502,6 +711,9 @@ public class HierarchicalPAM {
 
             // Save the choice into the Gibbs state
 
+            if (superTopic != superTopics[position] || subTopic != subTopics[position]) {
+                numChanges++;
+            }
             superTopics[position] = superTopic;
             subTopics[position] = subTopic;
 
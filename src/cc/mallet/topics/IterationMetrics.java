@@ -0,0 +1,217 @@
+/* Copyright (C) 2005 Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.  For further
+   information, see the file `LICENSE' included with this distribution. */
+
+package cc.mallet.topics;
+
+/**
+ * Measurements of one training iteration of a topic model, as sent to a
+ * {@link TrainingMetrics}: throughput, the time spent in each
+ * {@link PhaseTimer.Phase}, how long each sampling thread was busy or
+ * waiting for the others, heap use and the sparsity of the topic counts.
+ * Values a trainer does not measure are left at zero, or
+ * <code>NaN</code> for the density.
+ */
+
+public class IterationMetrics {
+
+    String trainer;
+    int iteration;
+    long tokens;
+    long elapsedMillis;
+    long timestamp;
+
+    long[] phaseMillis = new long[PhaseTimer.Phase.values().length];
+
+    long[] busyNanos = new long[0];
+    long[] threadTokens = null;
+    long samplingNanos = 0;
+
+    long heapUsedBytes;
+    long heapMaxBytes;
+
+    double topicCountDensity = Double.NaN;
+
+    /**
+     * @param trainer       The name of the model being trained, such as its class name
+     * @param iteration     The iteration that just finished
+     * @param tokens        The number of tokens sampled in the iteration
+     * @param elapsedMillis The wall-clock time of the whole iteration
+     */
+    public IterationMetrics(String trainer, int iteration, long tokens, long elapsedMillis) {
+        this.trainer = trainer;
+        this.iteration = iteration;
+        this.tokens = tokens;
+        this.elapsedMillis = elapsedMillis;
+        this.timestamp = System.currentTimeMillis();
+
+        Runtime runtime = Runtime.getRuntime();
+        heapUsedBytes = runtime.totalMemory() - runtime.freeMemory();
+        heapMaxBytes = runtime.maxMemory();
+    }
+
+    /**
+     * Copy the times of this iteration's phases from a timer.
+     */
+    public void setPhaseTimes(PhaseTimer timer) {
+        for (PhaseTimer.Phase phase : PhaseTimer.Phase.values()) {
+            phaseMillis[phase.ordinal()] = timer.getIterationMillis(phase);
+        }
+    }
+
+    public void setPhaseMillis(PhaseTimer.Phase phase, long millis) {
+        phaseMillis[phase.ordinal()] = millis;
+    }
+
+    /**
+     * @param busyNanos     The time each sampling thread spent working
+     * @param samplingNanos The wall-clock time of the sampling phase, which
+     *                      each thread spent either working or idle
+     */
+    public void setThreadTimes(long[] busyNanos, long samplingNanos) {
+        this.busyNanos = busyNanos.clone();
+        this.samplingNanos = samplingNanos;
+    }
+
+    /**
+     * The number of tokens each sampling thread sampled, if it can vary
+     * between threads, as with work stealing.
+     */
+    public void setThreadTokens(long[] threadTokens) {
+        this.threadTokens = threadTokens.clone();
+    }
+
+    /**
+     * The fraction of non-zero entries in the type-topic counts.
+     */
+    public void setTopicCountDensity(double density) {
+        this.topicCountDensity = density;
+    }
+
+    /**
+     * The fraction of non-zero entries in a matrix of counts with
+     * <code>numColumns</code> columns. Rows may be shorter than
+     * <code>numColumns</code>, as in the packed rows of ParallelTopicModel.
+     */
+    public static double nonZeroFraction(int[][] counts, int numColumns) {
+        if (counts.length == 0 || numColumns == 0) {
+            return 0.0;
+        }
+
+        long nonZero = 0;
+        for (int[] row : counts) {
+            for (int i = 0; i < row.length; i++) {
+                if (row[i] != 0) {
+                    nonZero++;
+                }
+            }
+        }
+        return (double) nonZero / ((long) counts.length * numColumns);
+    }
+
+    public String getTrainer() {
+        return trainer;
+    }
+
+    public int getIteration() {
+        return iteration;
+    }
+
+    /**
+     * The time the iteration finished, in milliseconds since the epoch
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public long getTokens() {
+        return tokens;
+    }
+
+    public long getElapsedMillis() {
+        return elapsedMillis;
+    }
+
+    public double getTokensPerSecond() {
+        return tokens * 1000.0 / Math.max(1, elapsedMillis);
+    }
+
+    public long getPhaseMillis(PhaseTimer.Phase phase) {
+        return phaseMillis[phase.ordinal()];
+    }
+
+    /**
+     * The number of sampling threads with recorded times, or 0 if the
+     * trainer did not record them.
+     */
+    public int getNumThreads() {
+        return busyNanos.length;
+    }
+
+    public long getBusyMillis(int thread) {
+        return busyNanos[thread] / 1000000;
+    }
+
+    /**
+     * The time <code>thread</code> spent waiting for the other threads
+     * to finish the sampling phase
+     */
+    public long getIdleMillis(int thread) {
+        return Math.max(0, samplingNanos - busyNanos[thread]) / 1000000;
+    }
+
+    /**
+     * The tokens sampled by <code>thread</code>, or -1 if not recorded
+     */
+    public long getThreadTokens(int thread) {
+        return threadTokens == null ? -1 : threadTokens[thread];
+    }
+
+    public long getTotalBusyMillis() {
+        long total = 0;
+        for (int thread = 0; thread < busyNanos.length; thread++) {
+            total += getBusyMillis(thread);
+        }
+        return total;
+    }
+
+    public long getTotalIdleMillis() {
+        long total = 0;
+        for (int thread = 0; thread < busyNanos.length; thread++) {
+            total += getIdleMillis(thread);
+        }
+        return total;
+    }
+
+    public long getHeapUsedBytes() {
+        return heapUsedBytes;
+    }
+
+    public long getHeapMaxBytes() {
+        return heapMaxBytes;
+    }
+
+    public double getTopicCountDensity() {
+        return topicCountDensity;
+    }
+
+    public String toString() {
+        StringBuilder out = new StringBuilder();
+        out.append(trainer + " <" + iteration + "> " + elapsedMillis + "ms, " +
+                Math.round(getTokensPerSecond()) + " tokens/sec");
+        for (PhaseTimer.Phase phase : PhaseTimer.Phase.values()) {
+            out.append(", " + phase.name().toLowerCase() + ": " + getPhaseMillis(phase) + "ms");
+        }
+        if (busyNanos.length > 0) {
+            out.append(", busy: " + getTotalBusyMillis() + "ms, idle: " + getTotalIdleMillis() + "ms");
+        }
+        out.append(", heap: " + (heapUsedBytes >> 20) + "/" + (heapMaxBytes >> 20) + "MB");
+        if (!Double.isNaN(topicCountDensity)) {
+            out.append(", density: " + topicCountDensity);
+        }
+        return out.toString();
+    }
+}
@@ -0,0 +1,139 @@
+/* Copyright (C) 2005 Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.  For further
+   information, see the file `LICENSE' included with this distribution. */
+
+package cc.mallet.topics;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Publishes the most recent training iteration as a JMX bean on the
+ * platform MBean server, under
+ * <code>cc.mallet.topics:type=TrainingMetrics,name=...</code>, for
+ * monitoring tools such as jconsole. Closing it unregisters the bean.
+ */
+
+public class JmxTrainingMetrics implements TrainingMetrics, JmxTrainingMetricsMBean, Closeable {
+
+    ObjectName objectName = null;
+
+    volatile IterationMetrics latest = null;
+    volatile long totalTokens = 0;
+    volatile long totalMillis = 0;
+
+    /**
+     * Register this bean under <code>name</code>, which should be
+     * different for each model trained in the same JVM.
+     */
+    public void register(String name) throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        objectName = new ObjectName("cc.mallet.topics:type=TrainingMetrics,name=" + ObjectName.quote(name));
+        server.registerMBean(this, objectName);
+    }
+
+    public void unregister() throws JMException {
+        if (objectName != null) {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            objectName = null;
+        }
+    }
+
+    public void close() throws IOException {
+        try {
+            unregister();
+        } catch (JMException e) {
+            throw new IOException("Couldn't unregister " + objectName, e);
+        }
+    }
+
+    public ObjectName getObjectName() {
+        return objectName;
+    }
+
+    public synchronized void publish(IterationMetrics metrics) {
+        totalTokens += metrics.getTokens();
+        totalMillis += metrics.getElapsedMillis();
+        latest = metrics;
+    }
+
+    public String getTrainer() {
+        IterationMetrics metrics = latest;
+        return metrics == null ? null : metrics.getTrainer();
+    }
+
+    public int getIteration() {
+        IterationMetrics metrics = latest;
+        return metrics == null ? 0 : metrics.getIteration();
+    }
+
+    public long getIterationMillis() {
+        IterationMetrics metrics = latest;
+        return metrics == null ? 0 : metrics.getElapsedMillis();
+    }
+
+    public double getTokensPerSecond() {
+        IterationMetrics metrics = latest;
+        return metrics == null ? 0.0 : metrics.getTokensPerSecond();
+    }
+
+    public long getSampleMillis() {
+        IterationMetrics metrics = latest;
+        return metrics == null ? 0 : metrics.getPhaseMillis(PhaseTimer.Phase.SAMPLE);
+    }
+
+    public long getMergeMillis() {
+        IterationMetrics metrics = latest;
+        return metrics == null ? 0 : metrics.getPhaseMillis(PhaseTimer.Phase.MERGE);
+    }
+
+    public long getOptimizeMillis() {
+        IterationMetrics metrics = latest;
+        return metrics == null ? 0 : metrics.getPhaseMillis(PhaseTimer.Phase.OPTIMIZE);
+    }
+
+    public int getNumThreads() {
+        IterationMetrics metrics = latest;
+        return metrics == null ? 0 : metrics.getNumThreads();
+    }
+
+    public long getBusyMillis() {
+        IterationMetrics metrics = latest;
+        return metrics == null ? 0 : metrics.getTotalBusyMillis();
+    }
+
+    public long getIdleMillis() {
+        IterationMetrics metrics = latest;
+        return metrics == null ? 0 : metrics.getTotalIdleMillis();
+    }
+
+    public long getHeapUsedBytes() {
+        IterationMetrics metrics = latest;
+        return metrics == null ? 0 : metrics.getHeapUsedBytes();
+    }
+
+    public long getHeapMaxBytes() {
+        IterationMetrics metrics = latest;
+        return metrics == null ? 0 : metrics.getHeapMaxBytes();
+    }
+
+    public double getTopicCountDensity() {
+        IterationMetrics metrics = latest;
+        return metrics == null ? Double.NaN : metrics.getTopicCountDensity();
+    }
+
+    public long getTotalTokens() {
+        return totalTokens;
+    }
+
+    public long getTotalMillis() {
+        return totalMillis;
+    }
+}
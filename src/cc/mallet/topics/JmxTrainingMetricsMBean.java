@@ -0,0 +1,46 @@
+/* Copyright (C) 2005 Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.  For further
+   information, see the file `LICENSE' included with this distribution. */
+
+package cc.mallet.topics;
+
+/**
+ * The attributes {@link JmxTrainingMetrics} exposes over JMX. Values are
+ * for the most recent iteration, except for the totals.
+ */
+
+public interface JmxTrainingMetricsMBean {
+
+    public String getTrainer();
+
+    public int getIteration();
+
+    public long getIterationMillis();
+
+    public double getTokensPerSecond();
+
+    public long getSampleMillis();
+
+    public long getMergeMillis();
+
+    public long getOptimizeMillis();
+
+    public int getNumThreads();
+
+    public long getBusyMillis();
+
+    public long getIdleMillis();
+
+    public long getHeapUsedBytes();
+
+    public long getHeapMaxBytes();
+
+    public double getTopicCountDensity();
+
+    public long getTotalTokens();
+
+    public long getTotalMillis();
+}
@@ -101,6 +101,74 @@ public class LDAHyper implements Serializable {
         System.err.println("LDA: " + numTopics + " topics");
     }
 
+    /**
+     * A sampler for one thread of <code>model</code>, sharing its documents
+     * and parameters but with its own counts, prior and cached values,
+     * which are filled in by <code>copyCountsFrom()</code>.
+     */
+    protected LDAHyper(LDAHyper model, Randoms random) {
+        this.data = model.data;
+        this.alphabet = model.alphabet;
+        this.topicAlphabet = model.topicAlphabet;
+        this.numTopics = model.numTopics;
+        this.numTypes = model.numTypes;
+        this.alpha = new double[numTopics];
+        this.beta = model.beta;
+        this.betaSum = model.betaSum;
+        this.random = random;
+        this.formatter = model.formatter;
+
+        oneDocTopicCounts = new int[numTopics];
+        tokensPerTopic = new int[numTopics];
+        cachedCoefficients = new double[numTopics];
+        typeTopicCounts = new TIntIntHashMap[numTypes];
+        for (int type = 0; type < numTypes; type++) {
+            typeTopicCounts[type] = new TIntIntHashMap();
+        }
+    }
+
+    /**
+     * Replace this sampler's counts, prior and cached values with those of <code>model</code>.
+     */
+    protected void copyCountsFrom(LDAHyper model) {
+        for (int type = 0; type < numTypes; type++) {
+            typeTopicCounts[type].clear();
+            typeTopicCounts[type].putAll(model.typeTopicCounts[type]);
+        }
+        System.arraycopy(model.tokensPerTopic, 0, tokensPerTopic, 0, numTopics);
+        System.arraycopy(model.alpha, 0, alpha, 0, numTopics);
+        System.arraycopy(model.cachedCoefficients, 0, cachedCoefficients, 0, numTopics);
+        alphaSum = model.alphaSum;
+        smoothingOnlyMass = model.smoothingOnlyMass;
+    }
+
+    /**
+     * Recount the type-topic counts and topic totals from the topic
+     * assignments, and recompute the values cached from them.
+     */
+    protected void rebuildCounts() {
+        for (int type = 0; type < numTypes; type++) {
+            typeTopicCounts[type].clear();
+        }
+        Arrays.fill(tokensPerTopic, 0);
+
+        for (Topication document : data) {
+            FeatureSequence tokenSequence = (FeatureSequence) document.instance.getData();
+            LabelSequence topicSequence = document.topicSequence;
+            for (int position = 0; position < topicSequence.getLength(); position++) {
+                int topic = topicSequence.getIndexAtPosition(position);
+                typeTopicCounts[tokenSequence.getIndexAtPosition(position)].adjustOrPutValue(topic, 1, 1);
+                tokensPerTopic[topic]++;
+            }
+        }
+
+        smoothingOnlyMass = 0;
+        for (int topic = 0; topic < numTopics; topic++) {
+            smoothingOnlyMass += alpha[topic] * beta / (tokensPerTopic[topic] + betaSum);
+            cachedCoefficients[topic] = alpha[topic] / (tokensPerTopic[topic] + betaSum);
+        }
+    }
+
     private static LabelAlphabet newLabelAlphabet(int numTopics) {
         LabelAlphabet ret = new LabelAlphabet();
         for (int i = 0; i < numTopics; i++)
@@ -4,12 +4,21 @@
 package cc.mallet.topics;
 
 import cc.mallet.types.*;
+import cc.mallet.util.MalletLogger;
 import cc.mallet.util.Randoms;
 import gnu.trove.map.hash.TIntIntHashMap;
 
 import java.io.*;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
 import java.util.zip.GZIPOutputStream;
 
 /**
@@ -17,6 +26,11 @@ import java.util.zip.GZIPOutputStream;
  */
 public class LDAStream extends LDAHyper {
 
+    private static Logger logger = MalletLogger.getLogger(LDAStream.class.getName());
+
+    // The number of documents each thread of inferenceStream() takes at a time
+    static final int STREAM_BATCH_SIZE = 64;
+
     protected ArrayList<Topication> test; // the test instances and their topic assignments
 
     /**
@@ -582,6 +596,150 @@ public class LDAStream extends LDAHyper {
         }
     }
 
+    /**
+     * Infer the topics of a stream of documents, writing the theta of each
+     * document to <code>out</code> in the format of <code>printTheta()</code>,
+     * in the order the documents are read.
+     * <p>
+     * Unlike the other inference methods, the training counts stay fixed:
+     * each document is sampled against them and its own topic counts, so
+     * documents are independent and are not kept. The calling thread reads
+     * batches of <code>STREAM_BATCH_SIZE</code> documents and hands them to
+     * <code>numThreads</code> threads, and waits for the oldest batch when
+     * <code>2 * numThreads</code> are in progress, so memory use does not
+     * grow with the number of documents. Each batch has its own random
+     * seed, drawn in order, so the output does not depend on the number of
+     * threads. Words that were not in the training data are ignored.
+     *
+     * @param maxIteration The number of Gibbs sweeps over each document
+     */
+    public void inferenceStream(Iterator<Instance> instances, final int maxIteration,
+                                int numThreads, PrintWriter out) {
+
+        final double[] topicNormalizers = new double[numTopics];
+        for (int topic = 0; topic < numTopics; topic++) {
+            topicNormalizers[topic] = 1.0 / (tokensPerTopic[topic] + betaSum);
+        }
+
+        long startTime = System.currentTimeMillis();
+        int numDocs = 0;
+
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        ArrayDeque<Future<String>> pending = new ArrayDeque<Future<String>>();
+        try {
+            while (instances.hasNext()) {
+                final ArrayList<Instance> batch = new ArrayList<Instance>(STREAM_BATCH_SIZE);
+                while (batch.size() < STREAM_BATCH_SIZE && instances.hasNext()) {
+                    batch.add(instances.next());
+                }
+                numDocs += batch.size();
+
+                final Randoms batchRandom = new Randoms(random.nextInt());
+                pending.add(executor.submit(new Callable<String>() {
+                    public String call() {
+                        return inferBatch(batch, maxIteration, topicNormalizers, batchRandom);
+                    }
+                }));
+
+                if (pending.size() >= 2 * numThreads) {
+                    out.print(getResult(pending.remove()));
+                }
+            }
+            while (!pending.isEmpty()) {
+                out.print(getResult(pending.remove()));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        out.flush();
+
+        logger.info("Inferred " + numDocs + " documents in " +
+                (System.currentTimeMillis() - startTime) + "ms");
+    }
+
+    private static String getResult(Future<String> future) {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted", e);
+        }
+    }
+
+    /**
+     * Sample the topics of each document in a batch against the fixed
+     * training counts, and return the text of their thetas.
+     */
+    private String inferBatch(ArrayList<Instance> batch, int maxIteration,
+                              double[] topicNormalizers, Randoms random) {
+        StringBuilder builder = new StringBuilder();
+        int[] localTopicCounts = new int[numTopics];
+        double[] topicWeights = new double[numTopics];
+
+        for (Instance instance : batch) {
+            FeatureSequence tokenSequence = (FeatureSequence) instance.getData();
+            int docLength = tokenSequence.getLength();
+            int[] topics = new int[docLength];
+
+            int realDocLen = 0;
+            for (int position = 0; position < docLength; position++) {
+                if (tokenSequence.getIndexAtPosition(position) >= numTypes) {
+                    topics[position] = -1;
+                    continue;
+                }
+                topics[position] = random.nextInt(numTopics);
+                localTopicCounts[topics[position]]++;
+                realDocLen++;
+            }
+
+            for (int iter = 0; iter <= maxIteration; iter++) {
+                for (int position = 0; position < docLength; position++) {
+                    int oldTopic = topics[position];
+                    if (oldTopic == -1) {
+                        continue;
+                    }
+                    TIntIntHashMap currentTypeTopicCounts =
+                            typeTopicCounts[tokenSequence.getIndexAtPosition(position)];
+
+                    localTopicCounts[oldTopic]--;
+
+                    double topicWeightsSum = 0;
+                    for (int ti = 0; ti < numTopics; ti++) {
+                        double tw = (currentTypeTopicCounts.get(ti) + beta) * topicNormalizers[ti]
+                                * (localTopicCounts[ti] + alpha[ti]);
+                        topicWeightsSum += tw;
+                        topicWeights[ti] = tw;
+                    }
+                    int newTopic = random.nextDiscrete(topicWeights, topicWeightsSum);
+
+                    topics[position] = newTopic;
+                    localTopicCounts[newTopic]++;
+                }
+            }
+
+            // n(t|d)+alpha(t) / docLen + alphaSum, as in printTheta()
+            builder.append(instance.getName()).append('\n');
+            for (int topic = 0; topic < numTopics; topic++) {
+                double prob = (localTopicCounts[topic] + alpha[topic]) / (realDocLen + alphaSum);
+                builder.append("topic").append(topic).append('\t').append(prob).append('\n');
+            }
+            builder.append('\n');
+
+            Arrays.fill(localTopicCounts, 0);
+        }
+
+        return builder.toString();
+    }
+
     //print human readable doc-topic matrix, for further IR use
     public void printTheta(ArrayList<Topication> dataset, File f, double threshold, int max) throws IOException {
         PrintWriter pw = new PrintWriter(new FileWriter(f));
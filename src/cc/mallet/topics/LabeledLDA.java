@@ -119,6 +119,9 @@ public class LabeledLDA implements Serializable {
     static CommandOption.Integer randomSeed =
             new CommandOption.Integer(LabeledLDA.class, "random-seed", "INTEGER", true, 0,
                     "The random seed for the Gibbs sampler.  Default is 0, which will use the clock.", null);
+    static CommandOption.Integer numThreadsOption =
+            new CommandOption.Integer(LabeledLDA.class, "num-threads", "INTEGER", true, 1,
+                    "The number of threads for parallel training.", null);
     static CommandOption.Double alphaOption =
             new CommandOption.Double(LabeledLDA.class, "alpha", "DECIMAL", true, 0.1,
                     "Alpha parameter: smoothing over doc topic distribution (NOT the sum over topics).", null);
@@ -153,6 +156,8 @@ public class LabeledLDA implements Serializable {
     protected int[] tokensPerTopic; // indexed by <topic index>
     protected Randoms random;
     protected boolean printLogLikelihood = false;
+    protected int numThreads = 1;
+    protected TrainingMetrics trainingMetrics = null;
 
     public LabeledLDA(double alpha, double beta) {
         this.data = new ArrayList<TopicAssignment>();
@@ -164,6 +169,27 @@ public class LabeledLDA implements Serializable {
         logger.info("Labeled LDA");
     }
 
+    /**
+     * A sampler for one thread of <code>model</code>, sharing its
+     * documents and parameters but with its own counts.
+     */
+    private LabeledLDA(LabeledLDA model, Randoms random) {
+        this.data = model.data;
+        this.alphabet = model.alphabet;
+        this.labelAlphabet = model.labelAlphabet;
+        this.topicAlphabet = model.topicAlphabet;
+        this.numTopics = model.numTopics;
+        this.numTypes = model.numTypes;
+        this.alpha = model.alpha;
+        this.beta = model.beta;
+        this.betaSum = model.betaSum;
+        this.random = random;
+
+        oneDocTopicCounts = new int[numTopics];
+        tokensPerTopic = new int[numTopics];
+        typeTopicCounts = new int[numTypes][numTopics];
+    }
+
     public static LabeledLDA read(File f) throws Exception {
 
         LabeledLDA topicModel = null;
@@ -230,6 +256,7 @@ public class LabeledLDA implements Serializable {
         labeledLDA.setTopicDisplay(showTopicsIntervalOption.value, numTopWords.value);
 
         labeledLDA.setNumIterations(numIterationsOption.value);
+        labeledLDA.setNumThreads(numThreadsOption.value);
 
         if (!noInference.value()) {
             labeledLDA.estimate();
@@ -358,6 +385,22 @@ public class LabeledLDA implements Serializable {
         random = new Randoms(seed);
     }
 
+    /**
+     * Sample with <code>threads</code> threads, each holding a copy
+     * of the type-topic counts, as described in {@link ShardedSampler}.
+     */
+    public void setNumThreads(int threads) {
+        this.numThreads = threads;
+    }
+
+    /**
+     * Send the throughput, phase times and per-thread busy and idle times
+     * of every iteration to <code>metrics</code>, or to nothing if it is null.
+     */
+    public void setTrainingMetrics(TrainingMetrics metrics) {
+        this.trainingMetrics = metrics;
+    }
+
     public void setNumIterations(int numIterations) {
         this.numIterations = numIterations;
     }
@@ -465,30 +508,125 @@ public class LabeledLDA implements Serializable {
 
     public void estimate() throws IOException {
 
-        for (int iteration = 1; iteration <= numIterations; iteration++) {
+        ShardedSampler sampler = null;
+        ShardedSampler.Worker[] workers = null;
+        if (numThreads > 1) {
+            int[] docLengths = new int[data.size()];
+            for (int doc = 0; doc < data.size(); doc++) {
+                docLengths[doc] = ((FeatureSequence) data.get(doc).instance.getData()).getLength();
+            }
+            sampler = new ShardedSampler(docLengths, numThreads);
+            workers = new ShardedSampler.Worker[sampler.getNumShards()];
+            for (int shard = 0; shard < workers.length; shard++) {
+                workers[shard] = new ShardWorker(new LabeledLDA(this, new Randoms(random.nextInt())));
+            }
+        }
+
+        long numTokens = 0;
+        for (TopicAssignment document : data) {
+            numTokens += ((FeatureSequence) document.instance.getData()).getLength();
+        }
+        PhaseTimer phaseTimer = new PhaseTimer();
+
+        try {
+            for (int iteration = 1; iteration <= numIterations; iteration++) {
 
-            long iterationStart = System.currentTimeMillis();
+                long iterationStart = System.currentTimeMillis();
+                phaseTimer.startIteration();
 
-            // Loop over every document in the corpus
-            for (int doc = 0; doc < data.size(); doc++) {
-                FeatureSequence tokenSequence =
-                        (FeatureSequence) data.get(doc).instance.getData();
-                FeatureVector labels = (FeatureVector) data.get(doc).instance.getTarget();
-                LabelSequence topicSequence =
-                        (LabelSequence) data.get(doc).topicSequence;
+                if (sampler != null) {
+                    sampler.sweep(workers);
+                    phaseTimer.record(PhaseTimer.Phase.SAMPLE);
+                    rebuildCounts();
+                    phaseTimer.record(PhaseTimer.Phase.MERGE);
+                } else {
+                    // Loop over every document in the corpus
+                    for (int doc = 0; doc < data.size(); doc++) {
+                        sampleDocument(doc);
+                    }
+                    phaseTimer.record(PhaseTimer.Phase.SAMPLE);
+                }
+
+                long elapsedMillis = System.currentTimeMillis() - iterationStart;
+                logger.info(iteration + "\t" + elapsedMillis + "ms\t");
+
+                // Occasionally print more information
+                if (showTopicsInterval != 0 && iteration % showTopicsInterval == 0) {
+                    phaseTimer.mark();
+                    logger.info("<" + iteration + "> Log Likelihood: " + modelLogLikelihood() + "\n" +
+                            topWords(wordsPerTopic));
+                    phaseTimer.record(PhaseTimer.Phase.LIKELIHOOD);
+                }
+
+                if (trainingMetrics != null) {
+                    IterationMetrics metrics = new IterationMetrics("LabeledLDA", iteration, numTokens,
+                            System.currentTimeMillis() - iterationStart);
+                    metrics.setPhaseTimes(phaseTimer);
+                    if (sampler != null) {
+                        metrics.setThreadTimes(sampler.getBusyNanos(), sampler.getSweepNanos());
+                    }
+                    metrics.setTopicCountDensity(IterationMetrics.nonZeroFraction(typeTopicCounts, numTopics));
+                    trainingMetrics.publish(metrics);
+                }
 
-                sampleTopicsForOneDoc(tokenSequence, labels, topicSequence);
             }
+        } finally {
+            if (sampler != null) {
+                sampler.shutdown();
+            }
+        }
+    }
 
-            long elapsedMillis = System.currentTimeMillis() - iterationStart;
-            logger.info(iteration + "\t" + elapsedMillis + "ms\t");
+    private void sampleDocument(int doc) {
+        FeatureSequence tokenSequence =
+                (FeatureSequence) data.get(doc).instance.getData();
+        FeatureVector labels = (FeatureVector) data.get(doc).instance.getTarget();
+        LabelSequence topicSequence =
+                (LabelSequence) data.get(doc).topicSequence;
 
-            // Occasionally print more information
-            if (showTopicsInterval != 0 && iteration % showTopicsInterval == 0) {
-                logger.info("<" + iteration + "> Log Likelihood: " + modelLogLikelihood() + "\n" +
-                        topWords(wordsPerTopic));
+        sampleTopicsForOneDoc(tokenSequence, labels, topicSequence);
+    }
+
+    /**
+     * Recount the type-topic counts and topic totals from the topic assignments.
+     */
+    private void rebuildCounts() {
+        for (int type = 0; type < numTypes; type++) {
+            Arrays.fill(typeTopicCounts[type], 0);
+        }
+        Arrays.fill(tokensPerTopic, 0);
+
+        for (TopicAssignment document : data) {
+            FeatureSequence tokens = (FeatureSequence) document.instance.getData();
+            int[] topics = document.topicSequence.getFeatures();
+            for (int position = 0; position < tokens.getLength(); position++) {
+                typeTopicCounts[tokens.getIndexAtPosition(position)][topics[position]]++;
+                tokensPerTopic[topics[position]]++;
             }
+        }
+    }
+
+    /**
+     * Samples one shard with a copy of the model's counts.
+     */
+    private class ShardWorker extends ShardedSampler.Worker {
+        LabeledLDA sampler;
+
+        ShardWorker(LabeledLDA sampler) {
+            this.sampler = sampler;
+        }
 
+        public void copyCounts() {
+            for (int type = 0; type < numTypes; type++) {
+                System.arraycopy(typeTopicCounts[type], 0, sampler.typeTopicCounts[type], 0, numTopics);
+            }
+            System.arraycopy(tokensPerTopic, 0, sampler.tokensPerTopic, 0, numTopics);
+        }
+
+        public void sample(int startDoc, int endDoc) {
+            for (int doc = startDoc; doc < endDoc; doc++) {
+                sampler.sampleDocument(doc);
+            }
         }
     }
 
@@ -8,15 +8,31 @@
 package cc.mallet.topics;
 
 import cc.mallet.types.FeatureSequence;
-import cc.mallet.types.Instance;
 import cc.mallet.types.InstanceList;
 import cc.mallet.util.Randoms;
 
 import java.io.*;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * An implementation of topic model marginal probability estimators
  * presented in Wallach et al., "Evaluation Methods for Topic Models", ICML (2009)
+ * <p>
+ * Documents are independent given the model, so left-to-right evaluation
+ * can run on <code>numThreads</code> threads, each with its own copy of the
+ * per-document scratch space and its own random number generator. If a
+ * random seed is set, the generator is reseeded from the seed and the
+ * document's index before each document, so the result does not depend
+ * on the number of threads, or on whether the run was interrupted and resumed.
  *
  * @author David Mimno
  */
@@ -26,6 +42,10 @@ public class MarginalProbEstimator implements Serializable {
     private static final long serialVersionUID = 1;
     private static final int CURRENT_SERIAL_VERSION = 0;
     private static final int NULL_INTEGER = -1;
+    // Documents taken at a time by an evaluation thread
+    static final int DOCS_PER_TASK = 16;
+    // Documents per thread between writes to a progress file
+    static final int DOCS_PER_PROGRESS_BLOCK = 256;
     protected int numTopics; // Number of topics to be fit
     // These values are used to encode type/topic counts as
     //  count/topic pairs in a single int.
@@ -41,6 +61,18 @@ public class MarginalProbEstimator implements Serializable {
     protected int[] tokensPerTopic; // indexed by <topic index>
     protected Randoms random;
 
+    int numThreads = 1;
+    int randomSeed = -1;
+
+    // Per-document scratch space, reused from one document to the next.
+    //  localTopicCounts is all zeros between documents; the arrays
+    //  indexed by position grow to fit the longest document seen so far.
+    int[] oneDocTopics;
+    int[] localTopicCounts;
+    int[] localTopicIndex;
+    double[] topicTermScores;
+    double[][] particleProbabilities;
+
     public MarginalProbEstimator(int numTopics,
                                  double[] alpha, double alphaSum,
                                  double beta,
@@ -82,11 +114,43 @@ public class MarginalProbEstimator implements Serializable {
             cachedCoefficients[topic] = alpha[topic] / (tokensPerTopic[topic] + betaSum);
         }
 
+        allocateScratchSpace();
+
         System.err.println("Topic Evaluator: " + numTopics + " topics, " + topicBits + " topic bits, " +
                 Integer.toBinaryString(topicMask) + " topic mask");
 
     }
 
+    /**
+     * A copy for one evaluation thread, sharing the counts and
+     * parameters but with its own scratch space and random numbers.
+     */
+    private MarginalProbEstimator(MarginalProbEstimator source) {
+        numTopics = source.numTopics;
+        topicMask = source.topicMask;
+        topicBits = source.topicBits;
+        alpha = source.alpha;
+        alphaSum = source.alphaSum;
+        beta = source.beta;
+        betaSum = source.betaSum;
+        typeTopicCounts = source.typeTopicCounts;
+        tokensPerTopic = source.tokensPerTopic;
+        smoothingOnlyMass = source.smoothingOnlyMass;
+        cachedCoefficients = source.cachedCoefficients.clone();
+        randomSeed = source.randomSeed;
+        random = new Randoms();
+
+        allocateScratchSpace();
+    }
+
+    private void allocateScratchSpace() {
+        oneDocTopics = new int[0];
+        localTopicCounts = new int[numTopics];
+        localTopicIndex = new int[numTopics];
+        topicTermScores = new double[numTopics];
+        particleProbabilities = new double[0][0];
+    }
+
     public static MarginalProbEstimator read(File f) throws Exception {
 
         MarginalProbEstimator estimator = null;
@@ -106,48 +170,299 @@ public class MarginalProbEstimator implements Serializable {
         return typeTopicCounts;
     }
 
+    public void setNumThreads(int threads) {
+        this.numThreads = Math.max(1, threads);
+    }
+
+    /**
+     * Make evaluations reproducible. The default, -1, seeds from the clock.
+     */
+    public void setRandomSeed(int seed) {
+        this.randomSeed = seed;
+    }
+
     public double evaluateLeftToRight(InstanceList testing, int numParticles, boolean usingResampling,
                                       PrintStream docProbabilityStream) {
-        random = new Randoms();
 
-        double logNumParticles = Math.log(numParticles);
+        int[] docs = new int[testing.size()];
+        for (int doc = 0; doc < docs.length; doc++) {
+            docs[doc] = doc;
+        }
+        double[] docLogLikelihoods = evaluateDocuments(testing, docs, numParticles, usingResampling);
+
         double totalLogLikelihood = 0;
-        for (Instance instance : testing) {
+        for (double docLogLikelihood : docLogLikelihoods) {
+            if (docProbabilityStream != null) {
+                docProbabilityStream.println(docLogLikelihood);
+            }
+            totalLogLikelihood += docLogLikelihood;
+        }
 
-            FeatureSequence tokenSequence = (FeatureSequence) instance.getData();
+        return totalLogLikelihood;
+    }
 
-            double docLogLikelihood = 0;
+    /**
+     * Evaluate the documents in blocks, appending the log probability of
+     * each document to <code>progressFile</code> as each block finishes.
+     * If the file already holds results from an interrupted run over the
+     * same documents, those documents are not evaluated again. With a random
+     * seed set, the result is the same as that of an uninterrupted run.
+     *
+     * @param progressFile Text file with one document log probability per line
+     */
+    public double evaluateLeftToRight(InstanceList testing, int numParticles, boolean usingResampling,
+                                      PrintStream docProbabilityStream, File progressFile) throws IOException {
 
-            double[][] particleProbabilities = new double[numParticles][];
-            for (int particle = 0; particle < numParticles; particle++) {
-                particleProbabilities[particle] =
-                        leftToRight(tokenSequence, usingResampling);
+        double totalLogLikelihood = 0;
+        int numDone = 0;
+
+        if (progressFile.exists()) {
+            // A partly written last line is dropped, and that document evaluated again
+            numDone = truncateToLines(progressFile, testing.size());
+
+            BufferedReader reader = new BufferedReader(new FileReader(progressFile));
+            try {
+                for (int doc = 0; doc < numDone; doc++) {
+                    String line = reader.readLine();
+                    double docLogLikelihood;
+                    try {
+                        docLogLikelihood = Double.parseDouble(line);
+                    } catch (NumberFormatException e) {
+                        throw new IOException("Line " + (doc + 1) + " of " + progressFile +
+                                " is not a log probability: " + line);
+                    }
+                    if (docProbabilityStream != null) {
+                        docProbabilityStream.println(docLogLikelihood);
+                    }
+                    totalLogLikelihood += docLogLikelihood;
+                }
+            } finally {
+                reader.close();
             }
+            if (numDone > 0) {
+                System.err.println("Resuming left-to-right evaluation after " + numDone + " documents");
+            }
+        }
 
-            for (int position = 0; position < particleProbabilities[0].length; position++) {
-                double sum = 0;
-                for (int particle = 0; particle < numParticles; particle++) {
-                    sum += particleProbabilities[particle][position];
+        PrintWriter progress = new PrintWriter(new BufferedWriter(new FileWriter(progressFile, numDone > 0)));
+        try {
+            int blockSize = numThreads * DOCS_PER_PROGRESS_BLOCK;
+            while (numDone < testing.size()) {
+                int[] docs = new int[Math.min(blockSize, testing.size() - numDone)];
+                for (int i = 0; i < docs.length; i++) {
+                    docs[i] = numDone + i;
                 }
 
-                if (sum > 0.0) {
-                    docLogLikelihood += Math.log(sum) - logNumParticles;
+                double[] docLogLikelihoods = evaluateDocuments(testing, docs, numParticles, usingResampling);
+                for (double docLogLikelihood : docLogLikelihoods) {
+                    progress.println(docLogLikelihood);
+                    if (docProbabilityStream != null) {
+                        docProbabilityStream.println(docLogLikelihood);
+                    }
+                    totalLogLikelihood += docLogLikelihood;
+                }
+                progress.flush();
+                if (progress.checkError()) {
+                    throw new IOException("Couldn't write to " + progressFile);
                 }
-            }
 
-            if (docProbabilityStream != null) {
-                docProbabilityStream.println(docLogLikelihood);
+                numDone += docs.length;
             }
-            totalLogLikelihood += docLogLikelihood;
+        } finally {
+            progress.close();
         }
 
         return totalLogLikelihood;
     }
 
-    protected double[] leftToRight(FeatureSequence tokenSequence, boolean usingResampling) {
+    /**
+     * Cut a file after its last complete line, or after <code>maxLines</code>
+     * lines if it has more.
+     *
+     * @return the number of lines kept
+     */
+    private static int truncateToLines(File file, int maxLines) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            InputStream in = new BufferedInputStream(Channels.newInputStream(raf.getChannel()));
+            long position = 0;
+            long length = 0;
+            int lines = 0;
+            int b;
+            while (lines < maxLines && (b = in.read()) != -1) {
+                position++;
+                if (b == '\n') {
+                    lines++;
+                    length = position;
+                }
+            }
+            raf.setLength(length);
+            return lines;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Estimate the log probability of the whole testing set from a
+     * random sample of <code>sampleSize</code> documents, with a standard
+     * error, for quick comparisons between models.
+     */
+    public Estimate evaluateLeftToRightSample(InstanceList testing, int sampleSize,
+                                              int numParticles, boolean usingResampling) {
+
+        int numDocs = testing.size();
+        sampleSize = Math.min(sampleSize, numDocs);
+
+        // The first sampleSize entries of a partial Fisher-Yates shuffle
+        Randoms sampleRandom = randomSeed == -1 ? new Randoms() : new Randoms(randomSeed);
+        int[] order = new int[numDocs];
+        for (int doc = 0; doc < numDocs; doc++) {
+            order[doc] = doc;
+        }
+        for (int i = 0; i < sampleSize; i++) {
+            int j = i + sampleRandom.nextInt(numDocs - i);
+            int temp = order[i];
+            order[i] = order[j];
+            order[j] = temp;
+        }
+        int[] docs = Arrays.copyOf(order, sampleSize);
+        Arrays.sort(docs);
+
+        double[] docLogLikelihoods = evaluateDocuments(testing, docs, numParticles, usingResampling);
+        int[] docLengths = new int[sampleSize];
+        for (int i = 0; i < sampleSize; i++) {
+            docLengths[i] = ((FeatureSequence) testing.get(docs[i]).getData()).getLength();
+        }
+
+        return new Estimate(numDocs, docLogLikelihoods, docLengths);
+    }
+
+    /**
+     * Run the particles over each listed document, on <code>numThreads</code>
+     * threads that take small blocks of documents from a shared counter.
+     *
+     * @return the log probability of each document in <code>docs</code>
+     */
+    private double[] evaluateDocuments(final InstanceList testing, final int[] docs,
+                                       final int numParticles, final boolean usingResampling) {
+
+        final double[] docLogLikelihoods = new double[docs.length];
+
+        if (numThreads == 1 || docs.length <= DOCS_PER_TASK) {
+            random = new Randoms();
+            for (int i = 0; i < docs.length; i++) {
+                docLogLikelihoods[i] = evaluateDocument(testing, docs[i], numParticles, usingResampling);
+            }
+            return docLogLikelihoods;
+        }
 
-        int[] oneDocTopics = new int[tokenSequence.getLength()];
+        final AtomicInteger nextBlock = new AtomicInteger(0);
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        ArrayList<Future<Object>> futures = new ArrayList<Future<Object>>(numThreads);
+        try {
+            for (int thread = 0; thread < numThreads; thread++) {
+                final MarginalProbEstimator evaluator = new MarginalProbEstimator(this);
+                futures.add(executor.submit(new Callable<Object>() {
+                    public Object call() {
+                        int block;
+                        while ((block = nextBlock.getAndIncrement()) * DOCS_PER_TASK < docs.length) {
+                            int end = Math.min(docs.length, (block + 1) * DOCS_PER_TASK);
+                            for (int i = block * DOCS_PER_TASK; i < end; i++) {
+                                docLogLikelihoods[i] = evaluator.evaluateDocument(testing, docs[i],
+                                        numParticles, usingResampling);
+                            }
+                        }
+                        return null;
+                    }
+                }));
+            }
+
+            for (Future<Object> future : futures) {
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException("left-to-right evaluation failed", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted during left-to-right evaluation", e);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        return docLogLikelihoods;
+    }
+
+    /**
+     * The left-to-right estimate of the log probability of one document,
+     * averaged over <code>numParticles</code> particles.
+     */
+    private double evaluateDocument(InstanceList testing, int doc, int numParticles, boolean usingResampling) {
+
+        if (randomSeed != -1) {
+            random.setSeed(documentSeed(doc));
+        }
+
+        FeatureSequence tokenSequence = (FeatureSequence) testing.get(doc).getData();
+        int docLength = tokenSequence.getLength();
+
+        double logNumParticles = Math.log(numParticles);
+        double docLogLikelihood = 0;
+
+        int capacity = particleProbabilities.length == 0 ? 0 : particleProbabilities[0].length;
+        if (particleProbabilities.length < numParticles || capacity < docLength) {
+            particleProbabilities = new double[numParticles][Math.max(capacity, docLength)];
+        }
+        for (int particle = 0; particle < numParticles; particle++) {
+            leftToRight(tokenSequence, usingResampling, particleProbabilities[particle]);
+        }
+
+        for (int position = 0; position < docLength; position++) {
+            double sum = 0;
+            for (int particle = 0; particle < numParticles; particle++) {
+                sum += particleProbabilities[particle][position];
+            }
+
+            if (sum > 0.0) {
+                docLogLikelihood += Math.log(sum) - logNumParticles;
+            }
+        }
+
+        return docLogLikelihood;
+    }
+
+    /**
+     * A seed for one document, mixed so that neighbouring documents get
+     * unrelated sequences (the finalizer of SplitMix64).
+     */
+    private long documentSeed(int doc) {
+        long z = randomSeed * 0x9E3779B97F4A7C15L + doc;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    protected double[] leftToRight(FeatureSequence tokenSequence, boolean usingResampling) {
         double[] wordProbabilities = new double[tokenSequence.getLength()];
+        leftToRight(tokenSequence, usingResampling, wordProbabilities);
+        return wordProbabilities;
+    }
+
+    /**
+     * Run one left-to-right particle over the document, storing the
+     * marginal probability of each token in the first <code>docLength</code>
+     * elements of <code>wordProbabilities</code>.
+     */
+    protected void leftToRight(FeatureSequence tokenSequence, boolean usingResampling,
+                               double[] wordProbabilities) {
+
+        if (oneDocTopics.length < tokenSequence.getLength()) {
+            oneDocTopics = new int[tokenSequence.getLength()];
+        }
+        Arrays.fill(wordProbabilities, 0, tokenSequence.getLength(), 0.0);
 
         int[] currentTypeTopicCounts;
         int type, oldTopic, newTopic;
@@ -158,9 +473,6 @@ public class MarginalProbEstimator implements Serializable {
         //  including out-of-vocabulary words
         int tokensSoFar = 0;
 
-        int[] localTopicCounts = new int[numTopics];
-        int[] localTopicIndex = new int[numTopics];
-
         // Build an array that densely lists the topics that
         //  have non-zero counts.
         int denseIndex = 0;
@@ -172,7 +484,6 @@ public class MarginalProbEstimator implements Serializable {
         double topicBetaMass = 0.0;
         double topicTermMass = 0.0;
 
-        double[] topicTermScores = new double[numTopics];
         int[] topicTermIndices;
         int[] topicTermValues;
         int i;
@@ -566,17 +877,113 @@ public class MarginalProbEstimator implements Serializable {
         }
 
         //	Clean up our mess: reset the coefficients to values with only
-        //	smoothing. The next doc will update its own non-zero topics...
+        //	smoothing, and clear the local counts. The next doc will
+        //	update its own non-zero topics...
 
         for (denseIndex = 0; denseIndex < nonZeroTopics; denseIndex++) {
             int topic = localTopicIndex[denseIndex];
 
             cachedCoefficients[topic] =
                     alpha[topic] / (tokensPerTopic[topic] + betaSum);
+            localTopicCounts[topic] = 0;
         }
 
-        return wordProbabilities;
+    }
+
+    /**
+     * An estimate of the log probability of a testing set from a simple
+     * random sample of its documents, drawn without replacement.
+     * The standard errors include the finite population correction,
+     * and the per-token figure is a ratio estimate.
+     */
+    public static class Estimate {
+
+        // Normal quantile for a two-sided 95% interval
+        public static final double Z_95 = 1.959964;
+
+        int numDocuments;
+        int sampleSize;
+        double logLikelihood;
+        double standardError;
+        double logLikelihoodPerToken;
+        double perTokenStandardError;
+
+        public Estimate(int numDocuments, double[] docLogLikelihoods, int[] docLengths) {
+            this.numDocuments = numDocuments;
+            this.sampleSize = docLogLikelihoods.length;
+
+            double sum = 0;
+            long tokens = 0;
+            for (int i = 0; i < sampleSize; i++) {
+                sum += docLogLikelihoods[i];
+                tokens += docLengths[i];
+            }
+            double mean = sum / sampleSize;
+            logLikelihoodPerToken = tokens == 0 ? 0.0 : sum / tokens;
+            logLikelihood = numDocuments * mean;
+
+            double squaredDeviations = 0;
+            double squaredResiduals = 0;
+            for (int i = 0; i < sampleSize; i++) {
+                double deviation = docLogLikelihoods[i] - mean;
+                double residual = docLogLikelihoods[i] - logLikelihoodPerToken * docLengths[i];
+                squaredDeviations += deviation * deviation;
+                squaredResiduals += residual * residual;
+            }
 
+            if (sampleSize > 1) {
+                double correction = 1.0 - (double) sampleSize / numDocuments;
+                double meanLength = (double) tokens / sampleSize;
+                standardError = numDocuments *
+                        Math.sqrt(correction * squaredDeviations / (sampleSize - 1) / sampleSize);
+                perTokenStandardError = tokens == 0 ? 0.0 :
+                        Math.sqrt(correction * squaredResiduals / (sampleSize - 1) / sampleSize) / meanLength;
+            } else {
+                standardError = Double.POSITIVE_INFINITY;
+                perTokenStandardError = Double.POSITIVE_INFINITY;
+            }
+        }
+
+        public int getNumDocuments() {
+            return numDocuments;
+        }
+
+        public int getSampleSize() {
+            return sampleSize;
+        }
+
+        /**
+         * The estimated log probability of all documents
+         */
+        public double getLogLikelihood() {
+            return logLikelihood;
+        }
+
+        public double getStandardError() {
+            return standardError;
+        }
+
+        public double getLowerBound() {
+            return logLikelihood - Z_95 * standardError;
+        }
+
+        public double getUpperBound() {
+            return logLikelihood + Z_95 * standardError;
+        }
+
+        public double getLogLikelihoodPerToken() {
+            return logLikelihoodPerToken;
+        }
+
+        public double getPerTokenStandardError() {
+            return perTokenStandardError;
+        }
+
+        public String toString() {
+            return String.format(Locale.US, "%.4f (95%% CI %.4f to %.4f), per token %.6f +/- %.6f, from %d of %d documents",
+                    logLikelihood, getLowerBound(), getUpperBound(),
+                    logLikelihoodPerToken, Z_95 * perTokenStandardError, sampleSize, numDocuments);
+        }
     }
 
     private void writeObject(ObjectOutputStream out) throws IOException {
@@ -622,6 +1029,12 @@ public class MarginalProbEstimator implements Serializable {
 
         smoothingOnlyMass = in.readDouble();
         cachedCoefficients = (double[]) in.readObject();
+
+        // Settings for a run, not part of the stored evaluator
+        numThreads = 1;
+        randomSeed = -1;
+
+        allocateScratchSpace();
     }
 
 
@@ -0,0 +1,258 @@
+/* Copyright (C) 2005 Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.  For further
+   information, see the file `LICENSE' included with this distribution. */
+
+package cc.mallet.topics;
+
+import cc.mallet.types.*;
+import cc.mallet.util.Randoms;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * Streaming Gibbs sampling for LDA over corpora that do not fit in memory.
+ * <p>
+ * Documents are read from an iterator in minibatches. Each minibatch is
+ * given topics by sampling against the counts of every earlier document,
+ * is swept a few more times, and is then dropped. Its topic assignments
+ * stay in the type-topic counts, so memory depends on the vocabulary and
+ * the batch size, not on the number of documents. The vocabulary may
+ * grow as new documents arrive.
+ * <p>
+ * Before the counts would overflow their packed representation, every
+ * count is halved. This also gradually discounts old documents relative
+ * to new ones. Hyperparameters are not optimized in this mode.
+ * <p>
+ * The trained model can be used like any other ParallelTopicModel for
+ * printing topics, getting an inferencer or writing a model file. Only the
+ * most recent minibatch is available as <code>data</code>.
+ */
+
+public class OnlineTopicModel extends ParallelTopicModel {
+
+    private static final long serialVersionUID = 1;
+
+    public static final int DEFAULT_BATCH_SIZE = 1000;
+    public static final int DEFAULT_SWEEPS_PER_BATCH = 4;
+
+    int batchSize = DEFAULT_BATCH_SIZE;
+    int sweepsPerBatch = DEFAULT_SWEEPS_PER_BATCH;
+    // Report progress every this many batches
+    int logInterval = 10;
+
+    long numDocsSeen = 0;
+    long numTokensSeen = 0;
+    int numBatches = 0;
+    int numRescales = 0;
+
+    // Number of times each type occurs in the current batch, and the types that do
+    int[] batchTypeCounts = new int[0];
+    int[] batchTypes = new int[0];
+
+    public OnlineTopicModel(int numberOfTopics, double alphaSum, double beta) {
+        super(numberOfTopics, alphaSum, beta);
+        initializeEmptyModel();
+    }
+
+    public OnlineTopicModel(LabelAlphabet topicAlphabet, double alphaSum, double beta) {
+        super(topicAlphabet, alphaSum, beta);
+        initializeEmptyModel();
+    }
+
+    private void initializeEmptyModel() {
+        numTypes = 0;
+        typeTopicCounts = new int[0][];
+        typeTotals = new int[0];
+        docLengthCounts = new int[1];
+        topicDocCounts = new int[numTopics][1];
+    }
+
+    /**
+     * The number of documents in each minibatch
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * The number of Gibbs sweeps over each minibatch. The first sweep
+     * assigns the initial topics.
+     */
+    public void setSweepsPerBatch(int sweeps) {
+        this.sweepsPerBatch = sweeps;
+    }
+
+    public void setLogInterval(int batches) {
+        this.logInterval = batches;
+    }
+
+    public long getNumDocsSeen() {
+        return numDocsSeen;
+    }
+
+    public long getNumTokensSeen() {
+        return numTokensSeen;
+    }
+
+    /**
+     * Train on every instance the iterator returns. May be called again
+     * with more instances, which continue to update the same model.
+     */
+    public void train(Iterator<Instance> instances) throws IOException {
+
+        Randoms[] randoms = newThreadRandoms();
+
+        long startTime = System.currentTimeMillis();
+        long startTokens = numTokensSeen;
+
+        while (instances.hasNext()) {
+            ArrayList<TopicAssignment> batch = new ArrayList<TopicAssignment>(batchSize);
+            while (batch.size() < batchSize && instances.hasNext()) {
+                Instance instance = instances.next();
+                FeatureSequence tokens = (FeatureSequence) instance.getData();
+                int[] topics = new int[tokens.getLength()];
+                Arrays.fill(topics, UNASSIGNED_TOPIC);
+                batch.add(new TopicAssignment(instance, new LabelSequence(topicAlphabet, topics)));
+            }
+
+            prepareBatch(batch);
+            sampleDocumentRange(0, batch.size(), sweepsPerBatch, randoms);
+
+            numBatches++;
+            if (logInterval != 0 && numBatches % logInterval == 0) {
+                long elapsedMillis = Math.max(1, System.currentTimeMillis() - startTime);
+                logger.info("<batch " + numBatches + "> " + numDocsSeen + " docs, " +
+                        numTokensSeen + " tokens, " +
+                        Math.round((numTokensSeen - startTokens) * sweepsPerBatch * 1000.0 / elapsedMillis) +
+                        " tokens/sec");
+            }
+        }
+
+        logger.info("Trained on " + numDocsSeen + " documents, " + numTokensSeen + " tokens, " +
+                numTypes + " word types in " + numBatches + " batches, " +
+                numRescales + " count rescales");
+    }
+
+    /**
+     * Make room for a new minibatch: grow the vocabulary and the rows of
+     * the types it contains, and rescale the counts if they could overflow.
+     */
+    void prepareBatch(ArrayList<TopicAssignment> batch) {
+
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        if (alphabet == null) {
+            alphabet = batch.get(0).instance.getDataAlphabet();
+        }
+        growVocabulary(alphabet.size());
+        if (batchTypeCounts.length < numTypes) {
+            int capacity = Math.max(numTypes, 2 * batchTypeCounts.length);
+            batchTypeCounts = new int[capacity];
+            batchTypes = new int[capacity];
+        }
+
+        int numBatchTypes = 0;
+        int batchTokens = 0;
+        int maxLength = 0;
+
+        for (TopicAssignment document : batch) {
+            FeatureSequence tokens = (FeatureSequence) document.instance.getData();
+            for (int position = 0; position < tokens.getLength(); position++) {
+                int type = tokens.getIndexAtPosition(position);
+                if (batchTypeCounts[type] == 0) {
+                    batchTypes[numBatchTypes++] = type;
+                }
+                batchTypeCounts[type]++;
+            }
+            batchTokens += tokens.getLength();
+            maxLength = Math.max(maxLength, tokens.getLength());
+        }
+
+        // No type-topic count can exceed the total count of its type,
+        //  which must fit in the bits left over from the topic.
+        int maxCount = (1 << (31 - topicBits)) - 1;
+        long largestTypeTotal = maxTypeCount;
+        for (int i = 0; i < numBatchTypes; i++) {
+            int type = batchTypes[i];
+            largestTypeTotal = Math.max(largestTypeTotal, (long) typeTotals[type] + batchTypeCounts[type]);
+        }
+        long largestTopicTotal = 0;
+        for (int topic = 0; topic < numTopics; topic++) {
+            largestTopicTotal = Math.max(largestTopicTotal, tokensPerTopic[topic]);
+        }
+        if (largestTypeTotal > maxCount ||
+                largestTopicTotal + batchTokens > Integer.MAX_VALUE) {
+            rescaleCounts();
+        }
+
+        // The workers never resize rows, so make sure each row has
+        //  room for every topic its new tokens could be assigned to.
+        for (int i = 0; i < numBatchTypes; i++) {
+            int type = batchTypes[i];
+            addTypeOccurrences(type, batchTypeCounts[type]);
+            batchTypeCounts[type] = 0;
+        }
+
+        data = batch;
+        totalTokens = batchTokens;
+        numDocsSeen += batch.size();
+        numTokensSeen += batchTokens;
+
+        if (docLengthCounts.length <= maxLength) {
+            docLengthCounts = new int[maxLength + 1];
+            topicDocCounts = new int[numTopics][maxLength + 1];
+        }
+    }
+
+    /**
+     * Halve every type-topic count, rounding down and dropping counts
+     * that reach zero, and recompute the topic totals to match. Each row
+     * is kept in descending order.
+     */
+    public void rescaleCounts() {
+
+        Arrays.fill(tokensPerTopic, 0);
+
+        for (int type = 0; type < numTypes; type++) {
+            int[] currentTypeTopicCounts = typeTopicCounts[type];
+
+            int target = 0;
+            for (int index = 0; index < currentTypeTopicCounts.length &&
+                    currentTypeTopicCounts[index] > 0; index++) {
+                int topic = currentTypeTopicCounts[index] & topicMask;
+                int count = (currentTypeTopicCounts[index] >> topicBits) / 2;
+                if (count > 0) {
+                    currentTypeTopicCounts[target++] = (count << topicBits) + topic;
+                    tokensPerTopic[topic] += count;
+                }
+            }
+            Arrays.fill(currentTypeTopicCounts, target, currentTypeTopicCounts.length, 0);
+
+            // Different counts can halve to the same count, which leaves
+            //  their topics out of order. The row is otherwise still in
+            //  descending order, so an insertion sort is close to linear.
+            for (int index = 1; index < target; index++) {
+                int entry = currentTypeTopicCounts[index];
+                int position = index;
+                while (position > 0 && currentTypeTopicCounts[position - 1] < entry) {
+                    currentTypeTopicCounts[position] = currentTypeTopicCounts[position - 1];
+                    position--;
+                }
+                currentTypeTopicCounts[position] = entry;
+            }
+
+            typeTotals[type] /= 2;
+        }
+
+        maxTypeCount /= 2;
+        numRescales++;
+    }
+}
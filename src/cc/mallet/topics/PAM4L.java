@@ -11,11 +11,13 @@ information, see the file `LICENSE' included with this distribution. */
 import cc.mallet.types.Alphabet;
 import cc.mallet.types.FeatureSequence;
 import cc.mallet.types.InstanceList;
+import cc.mallet.util.MalletLogger;
 import cc.mallet.util.Randoms;
 
 import java.io.*;
 import java.text.NumberFormat;
 import java.util.Arrays;
+import java.util.logging.Logger;
 
 /**
  * Four Level Pachinko Allocation with MLE learning,
@@ -26,6 +28,8 @@ import java.util.Arrays;
 
 public class PAM4L {
 
+    protected static Logger logger = MalletLogger.getLogger(PAM4L.class.getName());
+
     // Parameters
     int numSuperTopics; // Number of topics to be fit
     int numSubTopics;
@@ -68,6 +72,10 @@ public class PAM4L {
     //  eg, [17][4] is # of docs with 4 words in sT 17...
     int[][][] subTopicHistograms; // for each supertopic, histogram of # of words per subtopic
 
+    int numThreads = 1;
+    int numChanges; // number of tokens whose topics changed in the current iteration
+    TrainingMetrics trainingMetrics = null;
+
     Runtime runtime;
     NumberFormat formatter;
 
@@ -101,6 +109,58 @@ public class PAM4L {
         runtime = Runtime.getRuntime();
     }
 
+    /**
+     * A sampler for one thread of <code>model</code>, sharing its
+     * documents, assignments and parameters but with its own counts,
+     * per-document arrays and histograms.
+     */
+    private PAM4L(PAM4L model) {
+        this.numSuperTopics = model.numSuperTopics;
+        this.numSubTopics = model.numSubTopics;
+        this.alpha = model.alpha;
+        this.alphaSum = model.alphaSum;
+        this.subAlphas = model.subAlphas;
+        this.subAlphaSums = model.subAlphaSums;
+        this.beta = model.beta;
+        this.vBeta = model.vBeta;
+        this.ilist = model.ilist;
+        this.numTypes = model.numTypes;
+        this.superTopics = model.superTopics;
+        this.subTopics = model.subTopics;
+
+        superSubCounts = new int[numSuperTopics][numSubTopics];
+        superCounts = new int[numSuperTopics];
+        superWeights = new double[numSuperTopics];
+        subWeights = new double[numSubTopics];
+        superSubWeights = new double[numSuperTopics][numSubTopics];
+        cumulativeSuperWeights = new double[numSuperTopics];
+
+        typeSubTopicCounts = new int[numTypes][numSubTopics];
+        tokensPerSubTopic = new int[numSubTopics];
+        tokensPerSuperTopic = new int[numSuperTopics];
+        tokensPerSuperSubTopic = new int[numSuperTopics][numSubTopics];
+
+        int maxTokens = model.superTopicHistograms[0].length - 1;
+        superTopicHistograms = new int[numSuperTopics][maxTokens + 1];
+        subTopicHistograms = new int[numSuperTopics][numSubTopics][maxTokens + 1];
+    }
+
+    /**
+     * Sample with <code>threads</code> threads, each holding a copy
+     * of the counts, as described in {@link ShardedSampler}.
+     */
+    public void setNumThreads(int threads) {
+        this.numThreads = threads;
+    }
+
+    /**
+     * Send the throughput, phase times and per-thread busy and idle times
+     * of every iteration to <code>metrics</code>, or to nothing if it is null.
+     */
+    public void setTrainingMetrics(TrainingMetrics metrics) {
+        this.trainingMetrics = metrics;
+    }
+
     // Recommended to use mallet/bin/vectors2topics instead.
     public static void main(String[] args) throws IOException {
         InstanceList ilist = InstanceList.load(new File(args[0]));
@@ -191,51 +251,92 @@ public class PAM4L {
         superTopicHistograms = new int[numSuperTopics][maxTokens + 1];
         subTopicHistograms = new int[numSuperTopics][numSubTopics][maxTokens + 1];
 
+        ShardedSampler sampler = null;
+        ShardWorker[] workers = null;
+        if (numThreads > 1) {
+            int[] docLengths = new int[numDocs];
+            for (int di = 0; di < numDocs; di++) {
+                docLengths[di] = superTopics[di].length;
+            }
+            sampler = new ShardedSampler(docLengths, numThreads);
+            workers = new ShardWorker[sampler.getNumShards()];
+            for (int shard = 0; shard < workers.length; shard++) {
+                workers[shard] = new ShardWorker(new PAM4L(this), new Randoms(r.nextInt()));
+            }
+        }
+
         //		Finally, start the sampler!
 
-        for (int iterations = 0; iterations < numIterations; iterations++) {
-            long iterationStart = System.currentTimeMillis();
+        PhaseTimer phaseTimer = new PhaseTimer();
+        try {
+            for (int iterations = 0; iterations < numIterations; iterations++) {
+                long iterationStart = System.currentTimeMillis();
+                phaseTimer.startIteration();
+
+                clearHistograms();
+                numChanges = 0;
+                if (sampler != null) {
+                    sampler.sweep(workers);
+                    phaseTimer.record(PhaseTimer.Phase.SAMPLE);
+                    mergeWorkers(workers);
+                    phaseTimer.record(PhaseTimer.Phase.MERGE);
+                } else {
+                    sampleTopicsForAllDocs(r);
+                    phaseTimer.record(PhaseTimer.Phase.SAMPLE);
+                }
 
-            clearHistograms();
-            sampleTopicsForAllDocs(r);
+                long elapsedMillis = Math.max(1, System.currentTimeMillis() - iterationStart);
+                logger.info("<" + iterations + "> " + elapsedMillis + "ms, " +
+                        Math.round(numTokens * 1000.0 / elapsedMillis) + " tokens/sec, " +
+                        numChanges + " topics changed");
 
-            // There are a few things we do on round-numbered iterations
-            //  that don't make sense if this is the first iteration.
+                // There are a few things we do on round-numbered iterations
+                //  that don't make sense if this is the first iteration.
 
-            if (iterations > 0) {
-                if (showTopicsInterval != 0 && iterations % showTopicsInterval == 0) {
-                    System.out.println();
-                    printTopWords(5, false);
+                if (iterations > 0) {
+                    if (showTopicsInterval != 0 && iterations % showTopicsInterval == 0) {
+                        System.out.println();
+                        printTopWords(5, false);
+                    }
+                    if (outputModelInterval != 0 && iterations % outputModelInterval == 0) {
+                        //this.write (new File(outputModelFilename+'.'+iterations));
+                    }
+                    if (optimizeInterval != 0 && iterations % optimizeInterval == 0) {
+                        long optimizeTime = System.currentTimeMillis();
+                        phaseTimer.mark();
+                        for (superTopic = 0; superTopic < numSuperTopics; superTopic++) {
+                            learnParameters(subAlphas[superTopic],
+                                    subTopicHistograms[superTopic],
+                                    superTopicHistograms[superTopic]);
+                            subAlphaSums[superTopic] = 0.0;
+                            for (subTopic = 0; subTopic < numSubTopics; subTopic++) {
+                                subAlphaSums[superTopic] += subAlphas[superTopic][subTopic];
+                            }
+                        }
+                        phaseTimer.record(PhaseTimer.Phase.OPTIMIZE);
+                        logger.info("optimized in " + (System.currentTimeMillis() - optimizeTime) + "ms");
+                    }
                 }
-                if (outputModelInterval != 0 && iterations % outputModelInterval == 0) {
-                    //this.write (new File(outputModelFilename+'.'+iterations));
+
+                if (iterations > 1107) {
+                    printWordCounts();
                 }
-                if (optimizeInterval != 0 && iterations % optimizeInterval == 0) {
-                    long optimizeTime = System.currentTimeMillis();
-                    for (superTopic = 0; superTopic < numSuperTopics; superTopic++) {
-                        learnParameters(subAlphas[superTopic],
-                                subTopicHistograms[superTopic],
-                                superTopicHistograms[superTopic]);
-                        subAlphaSums[superTopic] = 0.0;
-                        for (subTopic = 0; subTopic < numSubTopics; subTopic++) {
-                            subAlphaSums[superTopic] += subAlphas[superTopic][subTopic];
-                        }
+
+                if (trainingMetrics != null) {
+                    IterationMetrics metrics = new IterationMetrics("PAM4L", iterations, numTokens,
+                            System.currentTimeMillis() - iterationStart);
+                    metrics.setPhaseTimes(phaseTimer);
+                    if (sampler != null) {
+                        metrics.setThreadTimes(sampler.getBusyNanos(), sampler.getSweepNanos());
                     }
-                    System.out.print("[o:" + (System.currentTimeMillis() - optimizeTime) + "]");
+                    metrics.setTopicCountDensity(IterationMetrics.nonZeroFraction(typeSubTopicCounts, numSubTopics));
+                    trainingMetrics.publish(metrics);
                 }
             }
-
-            if (iterations > 1107) {
-                printWordCounts();
+        } finally {
+            if (sampler != null) {
+                sampler.shutdown();
             }
-
-            if (iterations % 10 == 0)
-                System.out.println("<" + iterations + "> ");
-
-            System.out.print((System.currentTimeMillis() - iterationStart) + " ");
-
-            //else System.out.print (".");
-            System.out.flush();
         }
 
         long seconds = Math.round((System.currentTimeMillis() - startTime) / 1000.0);
@@ -268,6 +369,88 @@ public class PAM4L {
 
     }
 
+    /**
+     * Add each worker's changes to the counts, as in {@link ShardedSampler#mergeDeltas},
+     * and its histograms to the model's.
+     */
+    private void mergeWorkers(ShardWorker[] workers) {
+        int[][] rows = new int[workers.length][];
+
+        for (int type = 0; type < numTypes; type++) {
+            for (int w = 0; w < workers.length; w++) {
+                rows[w] = workers[w].sampler.typeSubTopicCounts[type];
+            }
+            ShardedSampler.mergeDeltas(typeSubTopicCounts[type], rows);
+        }
+        for (int superTopic = 0; superTopic < numSuperTopics; superTopic++) {
+            for (int w = 0; w < workers.length; w++) {
+                rows[w] = workers[w].sampler.tokensPerSuperSubTopic[superTopic];
+            }
+            ShardedSampler.mergeDeltas(tokensPerSuperSubTopic[superTopic], rows);
+        }
+        for (int w = 0; w < workers.length; w++) {
+            rows[w] = workers[w].sampler.tokensPerSubTopic;
+        }
+        ShardedSampler.mergeDeltas(tokensPerSubTopic, rows);
+        for (int w = 0; w < workers.length; w++) {
+            rows[w] = workers[w].sampler.tokensPerSuperTopic;
+        }
+        ShardedSampler.mergeDeltas(tokensPerSuperTopic, rows);
+
+        for (ShardWorker worker : workers) {
+            PAM4L copy = worker.sampler;
+            for (int superTopic = 0; superTopic < numSuperTopics; superTopic++) {
+                int[] histogram = superTopicHistograms[superTopic];
+                int[] workerHistogram = copy.superTopicHistograms[superTopic];
+                for (int i = 0; i < histogram.length; i++) {
+                    histogram[i] += workerHistogram[i];
+                }
+                for (int subTopic = 0; subTopic < numSubTopics; subTopic++) {
+                    histogram = subTopicHistograms[superTopic][subTopic];
+                    workerHistogram = copy.subTopicHistograms[superTopic][subTopic];
+                    for (int i = 0; i < histogram.length; i++) {
+                        histogram[i] += workerHistogram[i];
+                    }
+                }
+            }
+            numChanges += copy.numChanges;
+        }
+    }
+
+    /**
+     * Samples one shard with a copy of the model's counts.
+     */
+    private class ShardWorker extends ShardedSampler.Worker {
+        PAM4L sampler;
+        Randoms random;
+
+        ShardWorker(PAM4L sampler, Randoms random) {
+            this.sampler = sampler;
+            this.random = random;
+        }
+
+        public void copyCounts() {
+            for (int type = 0; type < numTypes; type++) {
+                System.arraycopy(typeSubTopicCounts[type], 0, sampler.typeSubTopicCounts[type], 0, numSubTopics);
+            }
+            for (int superTopic = 0; superTopic < numSuperTopics; superTopic++) {
+                System.arraycopy(tokensPerSuperSubTopic[superTopic], 0,
+                        sampler.tokensPerSuperSubTopic[superTopic], 0, numSubTopics);
+            }
+            System.arraycopy(tokensPerSubTopic, 0, sampler.tokensPerSubTopic, 0, numSubTopics);
+            System.arraycopy(tokensPerSuperTopic, 0, sampler.tokensPerSuperTopic, 0, numSuperTopics);
+            sampler.clearHistograms();
+            sampler.numChanges = 0;
+        }
+
+        public void sample(int startDoc, int endDoc) {
+            for (int di = startDoc; di < endDoc; di++) {
+                sampler.sampleTopicsForOneDoc((FeatureSequence) ilist.get(di).getData(),
+                        superTopics[di], subTopics[di], random);
+            }
+        }
+    }
+
     private void clearHistograms() {
         for (int superTopic = 0; superTopic < numSuperTopics; superTopic++) {
             Arrays.fill(superTopicHistograms[superTopic], 0);
@@ -518,6 +701,9 @@ public class PAM4L {
 
             // Save the choice into the Gibbs state
 
+            if (superTopic != superTopics[si] || subTopic != subTopics[si]) {
+                numChanges++;
+            }
             superTopics[si] = superTopic;
             subTopics[si] = subTopic;
 
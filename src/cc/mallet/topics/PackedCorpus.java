@@ -0,0 +1,171 @@
+/* Copyright (C) 2005 Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.  For further
+   information, see the file `LICENSE' included with this distribution. */
+
+package cc.mallet.topics;
+
+import cc.mallet.types.Alphabet;
+import cc.mallet.types.FeatureSequence;
+import cc.mallet.types.Instance;
+import cc.mallet.types.LabelAlphabet;
+import cc.mallet.types.LabelSequence;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * The training documents of a topic model in three flat arrays: the
+ * type of every token, the topic of every token, and the offset of each
+ * document's first token. Document <code>d</code> occupies positions
+ * <code>[getStart(d), getEnd(d))</code> of both token arrays.
+ * <p>
+ * A list of {@link TopicAssignment}s costs five objects per document
+ * (the assignment, the instance, two sequences and their arrays) on top
+ * of the tokens themselves. For corpora of many short documents those
+ * headers take more memory than the tokens, so this representation
+ * keeps only eight bytes per token and four (plus the name) per document.
+ * The samplers in {@link WorkerRunnable} work on the arrays directly.
+ */
+
+public class PackedCorpus {
+
+    Alphabet alphabet;
+    LabelAlphabet topicAlphabet;
+
+    int numDocs = 0;
+    int numTokens = 0;
+
+    // Document d covers [offsets[d], offsets[d+1])
+    int[] offsets;
+    int[] tokens;
+    int[] topics;
+    Object[] names;
+
+    /**
+     * @param docCapacity   The number of documents to allocate room for
+     * @param tokenCapacity The number of tokens to allocate room for.
+     *                      The arrays grow if more are added.
+     */
+    public PackedCorpus(Alphabet alphabet, LabelAlphabet topicAlphabet,
+                        int docCapacity, int tokenCapacity) {
+        this.alphabet = alphabet;
+        this.topicAlphabet = topicAlphabet;
+
+        offsets = new int[docCapacity + 1];
+        tokens = new int[tokenCapacity];
+        topics = new int[tokenCapacity];
+        names = new Object[docCapacity];
+    }
+
+    /**
+     * Append a document, with every token unassigned.
+     *
+     * @return the index of the new document
+     */
+    public int addDocument(FeatureSequence tokenSequence, Object name) {
+        int length = tokenSequence.getLength();
+
+        if ((long) numTokens + length > Integer.MAX_VALUE - 8) {
+            throw new IllegalStateException("A packed corpus can hold at most " +
+                    (Integer.MAX_VALUE - 8) + " tokens");
+        }
+
+        if (numDocs + 1 == offsets.length) {
+            int capacity = Math.max(16, 2 * numDocs);
+            offsets = Arrays.copyOf(offsets, capacity + 1);
+            names = Arrays.copyOf(names, capacity);
+        }
+        if (numTokens + length > tokens.length) {
+            int capacity = (int) Math.min(Integer.MAX_VALUE - 8,
+                    Math.max((long) numTokens + length, 2L * tokens.length));
+            tokens = Arrays.copyOf(tokens, capacity);
+            topics = Arrays.copyOf(topics, capacity);
+        }
+
+        System.arraycopy(tokenSequence.getFeatures(), 0, tokens, numTokens, length);
+        Arrays.fill(topics, numTokens, numTokens + length, ParallelTopicModel.UNASSIGNED_TOPIC);
+
+        names[numDocs] = name;
+        numTokens += length;
+        numDocs++;
+        offsets[numDocs] = numTokens;
+
+        return numDocs - 1;
+    }
+
+    public int size() {
+        return numDocs;
+    }
+
+    public int getNumTokens() {
+        return numTokens;
+    }
+
+    public int getStart(int doc) {
+        return offsets[doc];
+    }
+
+    public int getEnd(int doc) {
+        return offsets[doc + 1];
+    }
+
+    public int getLength(int doc) {
+        return offsets[doc + 1] - offsets[doc];
+    }
+
+    public Object getName(int doc) {
+        return names[doc];
+    }
+
+    /**
+     * The type of every token. Only the first <code>getNumTokens()</code> entries are used.
+     */
+    public int[] getTokens() {
+        return tokens;
+    }
+
+    /**
+     * The topic of every token. Only the first <code>getNumTokens()</code> entries are used.
+     */
+    public int[] getTopics() {
+        return topics;
+    }
+
+    public Alphabet getAlphabet() {
+        return alphabet;
+    }
+
+    /**
+     * The approximate number of bytes used by the arrays
+     */
+    public long getSizeInBytes() {
+        return 4L * (offsets.length + tokens.length + topics.length + names.length);
+    }
+
+    /**
+     * A copy of one document as a TopicAssignment. Changing its
+     * topics does not change the corpus.
+     */
+    public TopicAssignment getDocument(int doc) {
+        int start = offsets[doc];
+        int end = offsets[doc + 1];
+
+        FeatureSequence tokenSequence = new FeatureSequence(alphabet, Arrays.copyOfRange(tokens, start, end));
+        LabelSequence topicSequence = new LabelSequence(topicAlphabet, Arrays.copyOfRange(topics, start, end));
+        return new TopicAssignment(new Instance(tokenSequence, null, names[doc], null), topicSequence);
+    }
+
+    /**
+     * Copies of every document, for code that needs TopicAssignments.
+     */
+    public ArrayList<TopicAssignment> toTopicAssignments() {
+        ArrayList<TopicAssignment> documents = new ArrayList<TopicAssignment>(numDocs);
+        for (int doc = 0; doc < numDocs; doc++) {
+            documents.add(getDocument(doc));
+        }
+        return documents;
+    }
+}
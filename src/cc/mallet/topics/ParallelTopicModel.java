@@ -9,14 +9,19 @@ package cc.mallet.topics;
 
 import cc.mallet.types.*;
 import cc.mallet.util.MalletLogger;
+import cc.mallet.util.ParallelRanges;
 import cc.mallet.util.Randoms;
 import gnu.trove.map.hash.TObjectIntHashMap;
 
 import java.io.*;
 import java.text.NumberFormat;
 import java.util.*;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Logger;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
@@ -37,8 +42,29 @@ public class ParallelTopicModel implements Serializable {
     private static final long serialVersionUID = 1;
     private static final int CURRENT_SERIAL_VERSION = 0;
     private static final int NULL_INTEGER = -1;
+    // The number of locks guarding the shared type-topic counts
+    static final int SHARED_COUNT_LOCK_STRIPES = 4096;
+    // The number of shards per thread when threads claim work from a shared queue
+    private static final int WORK_STEALING_SHARDS_PER_THREAD = 16;
+    // The number of documents processed at once when streaming document topics
+    static final int EXPORT_BLOCK_SIZE = 4096;
+    // The smoothing of the document proportions in printTopicDocuments()
+    static final double TOPIC_DOCUMENT_SMOOTHING = 10.0;
     public static Logger logger = MalletLogger.getLogger(ParallelTopicModel.class.getName());
+
+    /**
+     * SPARSE is the SparseLDA sampler in WorkerRunnable, whose cost per token
+     * grows with the number of topics in use by the word and document.
+     * ALIAS is the alias table / Metropolis-Hastings sampler in AliasWorkerRunnable,
+     * whose cost per token is constant, and which is faster for thousands of topics.
+     */
+    public enum SamplerType {
+        SPARSE, ALIAS
+    }
+
     public ArrayList<TopicAssignment> data;  // the training instances and their topic assignments
+    // If non-null, the training documents are stored here instead, and data is empty
+    PackedCorpus corpus = null;
     public Alphabet alphabet; // the alphabet for the input data
     public LabelAlphabet topicAlphabet;  // the alphabet for the topics
     public int numTopics; // Number of topics to be fit
@@ -69,6 +95,9 @@ public class ParallelTopicModel implements Serializable {
     public String stateFilename = null;
     public int saveModelInterval = 0;
     public String modelFilename = null;
+    public boolean usingTextState = false;
+    public int checkpointInterval = 0;
+    public String checkpointFilename = null;
     public int randomSeed = -1;
     public NumberFormat formatter;
     public boolean printLogLikelihood = true;
@@ -77,6 +106,35 @@ public class ParallelTopicModel implements Serializable {
     // The max over typeTotals, used for beta optimization
     int maxTypeCount;
     int numThreads = 1;
+    // If true, all threads sample against a single copy of the
+    //  type-topic counts, guarded by striped locks, rather than
+    //  keeping one full copy per thread.
+    boolean usingSharedCounts = false;
+    // If true, threads claim small token-balanced shards of the
+    //  documents from a shared queue instead of one fixed range each.
+    boolean usingWorkStealing = false;
+    DocumentShards workQueue = null;
+    // If true, hyperparameters are learned on a background thread
+    //  during the sweep after each optimization iteration.
+    boolean usingOverlappedOptimization = false;
+    // If true, addInstances() stores the documents in a PackedCorpus
+    boolean usingPackedCorpus = false;
+    // Which per-token sampling algorithm the workers use
+    SamplerType samplerType = SamplerType.SPARSE;
+    int mhSteps = AliasWorkerRunnable.DEFAULT_MH_STEPS;
+    double denseTypeThreshold = 0.0;
+    // Per-phase wall clock times for estimate()
+    PhaseTimer phaseTimer = new PhaseTimer();
+    // If non-null, receives the measurements of every iteration of estimate()
+    TrainingMetrics trainingMetrics = null;
+    // The number of iterations of the current or most recent estimate(),
+    //  or restored by initializeFromCheckpoint()
+    int iterationsCompleted = 0;
+    // If true, the next estimate() continues after iterationsCompleted
+    boolean resumingFromCheckpoint = false;
+    // Created by the first top-words or top-documents query, and
+    //  updated whenever the counts change. Not serialized.
+    TopicQueryIndex queryIndex = null;
 
     public ParallelTopicModel(int numberOfTopics) {
         this(numberOfTopics, numberOfTopics, DEFAULT_BETA);
@@ -174,10 +232,25 @@ public class ParallelTopicModel implements Serializable {
         return numTopics;
     }
 
+    /**
+     * The training documents and their topics. With a packed corpus these
+     * are copies, built on each call, and changing them has no effect on the model.
+     */
     public ArrayList<TopicAssignment> getData() {
+        if (corpus != null) {
+            return corpus.toTopicAssignments();
+        }
         return data;
     }
 
+    /**
+     * The packed training documents, or null if <code>setPackedCorpus(true)</code>
+     * was not called before <code>addInstances()</code>.
+     */
+    public PackedCorpus getCorpus() {
+        return corpus;
+    }
+
     public int[][] getTypeTopicCounts() {
         return typeTopicCounts;
     }
@@ -228,6 +301,93 @@ public class ParallelTopicModel implements Serializable {
         this.numThreads = threads;
     }
 
+    public void setSampler(SamplerType samplerType) {
+        this.samplerType = samplerType;
+    }
+
+    /**
+     * The number of Metropolis-Hastings proposals per token, used by the ALIAS sampler.
+     */
+    public void setMetropolisHastingsSteps(int steps) {
+        if (steps < 1) {
+            throw new IllegalArgumentException("At least one Metropolis-Hastings step is needed, found " + steps);
+        }
+        this.mhSteps = steps;
+    }
+
+    /**
+     * Sample the tokens of types whose counts are non-zero for at least
+     * <code>fraction</code> of the topics, such as stop words, with a dense
+     * kernel rather than the sparse buckets, see
+     * {@link WorkerRunnable#setDenseTypeThreshold}. Used by the SPARSE
+     * sampler when the counts are not shared. 0, the default, turns it off;
+     * the ALIAS sampler then uses its own default threshold for count lookups.
+     */
+    public void setDenseTypeThreshold(double fraction) {
+        this.denseTypeThreshold = fraction;
+    }
+
+    /**
+     * Send the throughput, phase times, per-thread busy and idle times,
+     * heap use and count density of every iteration of <code>estimate()</code>
+     * to <code>metrics</code>, or to nothing if it is null.
+     */
+    public void setTrainingMetrics(TrainingMetrics metrics) {
+        this.trainingMetrics = metrics;
+    }
+
+    /**
+     * By default each thread samples one contiguous range of documents,
+     * chosen so that all ranges have about the same number of tokens.
+     * If <code>b</code> is true, the documents are instead split into many small
+     * token-balanced shards, and each thread repeatedly claims the next
+     * unprocessed shard until none remain. This keeps every thread busy
+     * to the end of the sweep when document lengths are very skewed.
+     */
+    public void setWorkStealing(boolean b) {
+        this.usingWorkStealing = b;
+    }
+
+    /**
+     * Hyperparameter optimization merges the workers' histograms and
+     * updates each topic's alpha in parallel, but by default the workers
+     * wait for it to finish. If <code>b</code> is true, only the histograms
+     * are merged before the next sweep; alpha and beta are then learned
+     * on a background thread during that sweep and take effect from the
+     * sweep after it. This applies only to more than one thread with
+     * copied (not shared) counts, where the sweep does not change the
+     * global counts until its merge phase.
+     */
+    public void setOverlappedOptimization(boolean b) {
+        this.usingOverlappedOptimization = b;
+    }
+
+    /**
+     * Choose between the default strategy, in which every thread samples
+     * against its own full copy of the type-topic counts and the copies are
+     * merged after each iteration, and a shared strategy, in which all threads
+     * update one copy of the type-topic counts in place. In the shared mode
+     * access to each type's count array is guarded by one of a fixed number of
+     * striped locks, so memory use does not grow with the number of threads
+     * and there is no serial merge of the type-topic counts. Only the
+     * (small) tokens-per-topic totals are reconciled between iterations.
+     */
+    public void setSharedCounts(boolean b) {
+        this.usingSharedCounts = b;
+    }
+
+    /**
+     * If true, <code>addInstances()</code> copies the documents into a
+     * {@link PackedCorpus}, three flat arrays of tokens, topics and document
+     * offsets, rather than keeping a TopicAssignment per document. This uses
+     * much less memory for corpora of many short documents. The instances
+     * themselves are not kept, only their names. Must be called before
+     * <code>addInstances()</code>.
+     */
+    public void setPackedCorpus(boolean b) {
+        this.usingPackedCorpus = b;
+    }
+
     /**
      * Define how often and where to save a text representation of the current state.
      * Files are GZipped.
@@ -240,6 +400,16 @@ public class ParallelTopicModel implements Serializable {
         this.stateFilename = filename;
     }
 
+    /**
+     * By default <code>printState(File)</code>, including the states saved every
+     * <code>setSaveState()</code> iterations, writes the compact binary format of
+     * {@link TopicStateFile}. If <code>b</code> is true it writes gzipped text instead,
+     * with one line per token.
+     */
+    public void setTextState(boolean b) {
+        this.usingTextState = b;
+    }
+
     /**
      * Define how often and where to save a serialized model.
      *
@@ -251,6 +421,19 @@ public class ParallelTopicModel implements Serializable {
         this.modelFilename = filename;
     }
 
+    /**
+     * Define how often and where to save a binary checkpoint of the sampling state
+     * (see {@link TopicStateFile}). The checkpoint is copied from the model between
+     * iterations and written on a background thread while sampling continues.
+     *
+     * @param interval Save a checkpoint every <code>interval</code> iterations.
+     * @param filename Save to this file, with the iteration number as a suffix
+     */
+    public void setSaveCheckpoint(int interval, String filename) {
+        this.checkpointInterval = interval;
+        this.checkpointFilename = filename;
+    }
+
     public void addInstances(InstanceList training) {
 
         alphabet = training.getDataAlphabet();
@@ -265,6 +448,32 @@ public class ParallelTopicModel implements Serializable {
             random = new Randoms(randomSeed);
         }
 
+        if (usingPackedCorpus) {
+            long numTokens = 0;
+            for (Instance instance : training) {
+                numTokens += ((FeatureSequence) instance.getData()).getLength();
+            }
+            if (numTokens > Integer.MAX_VALUE - 8) {
+                throw new IllegalArgumentException("Too many tokens for a packed corpus: " + numTokens);
+            }
+            corpus = new PackedCorpus(alphabet, topicAlphabet, training.size(), (int) numTokens);
+
+            int[] topics = corpus.getTopics();
+            for (Instance instance : training) {
+                int doc = corpus.addDocument((FeatureSequence) instance.getData(), instance.getName());
+                for (int position = corpus.getStart(doc); position < corpus.getEnd(doc); position++) {
+                    topics[position] = random.nextInt(numTopics);
+                }
+            }
+
+            logger.info("Packed " + corpus.size() + " documents and " + corpus.getNumTokens() +
+                    " tokens into " + (corpus.getSizeInBytes() >> 20) + "MB");
+
+            buildInitialTypeTopicCounts();
+            initializeHistograms();
+            return;
+        }
+
         for (Instance instance : training) {
             FeatureSequence tokens = (FeatureSequence) instance.getData();
             LabelSequence topicSequence =
@@ -286,7 +495,264 @@ public class ParallelTopicModel implements Serializable {
         initializeHistograms();
     }
 
+    /**
+     * Add documents to a model that has already been trained, without
+     * retraining from scratch. The new documents are appended to the
+     * training data and start with no topics. The alphabet and the
+     * type-topic counts grow to hold any new word types. Then
+     * <code>numSweeps</code> Gibbs sweeps run over the new documents and
+     * the <code>numRecentDocs</code> documents added just before them.
+     * The first sweep assigns the new documents' topics given the
+     * existing model. Older documents keep their topics and counts.
+     * A later call to <code>estimate()</code> samples all documents as usual.
+     *
+     * @param newInstances  Instances whose alphabet extends this model's alphabet
+     * @param numSweeps     The number of sweeps over the new and recent documents, at least 1
+     * @param numRecentDocs The number of existing documents to resample with the new ones
+     */
+    public void addInstancesIncrementally(InstanceList newInstances,
+                                          int numSweeps, int numRecentDocs) throws IOException {
+
+        // Until the first sweep, the new tokens have no topics
+        if (numSweeps < 1) {
+            throw new IllegalArgumentException("At least one sweep is needed to assign the new documents' topics, found " +
+                    numSweeps);
+        }
+
+        Alphabet newAlphabet = newInstances.getDataAlphabet();
+        if (newAlphabet != alphabet) {
+            if (newAlphabet.size() < numTypes) {
+                throw new IllegalArgumentException("New instances have a smaller alphabet than the model");
+            }
+            for (int type = 0; type < numTypes; type++) {
+                if (!newAlphabet.lookupObject(type).equals(alphabet.lookupObject(type))) {
+                    throw new IllegalArgumentException("New instances use a different alphabet: type " + type +
+                            " is " + newAlphabet.lookupObject(type) + ", not " + alphabet.lookupObject(type));
+                }
+            }
+            alphabet = newAlphabet;
+        }
+
+        if (typeTotals == null) {
+            // Not serialized, so recount for a model that was read from a file
+            computeTypeTotals();
+        }
+        growVocabulary(alphabet.size());
+
+        int firstNewDoc = numDocuments();
+        int[] newTypeCounts = new int[numTypes];
+
+        for (Instance instance : newInstances) {
+            FeatureSequence tokens = (FeatureSequence) instance.getData();
+
+            for (int position = 0; position < tokens.getLength(); position++) {
+                newTypeCounts[tokens.getIndexAtPosition(position)]++;
+            }
+
+            if (corpus != null) {
+                corpus.addDocument(tokens, instance.getName());
+            } else {
+                int[] topics = new int[tokens.getLength()];
+                Arrays.fill(topics, UNASSIGNED_TOPIC);
+                data.add(new TopicAssignment(instance, new LabelSequence(topicAlphabet, topics)));
+            }
+        }
+
+        for (int type = 0; type < numTypes; type++) {
+            if (newTypeCounts[type] > 0) {
+                addTypeOccurrences(type, newTypeCounts[type]);
+            }
+        }
+
+        initializeHistograms();
+
+        int firstDoc = Math.max(0, firstNewDoc - numRecentDocs);
+        logger.info("Sampling " + (numDocuments() - firstNewDoc) + " new and " +
+                (firstNewDoc - firstDoc) + " recent documents");
+
+        sampleDocumentRange(firstDoc, numDocuments(), numSweeps, newThreadRandoms());
+    }
+
+    /**
+     * One random number generator per thread, seeded from <code>randomSeed</code> if it is set.
+     */
+    Randoms[] newThreadRandoms() {
+        Randoms[] randoms = new Randoms[numThreads];
+        for (int thread = 0; thread < numThreads; thread++) {
+            randoms[thread] = randomSeed == -1 ? new Randoms() : new Randoms(randomSeed + thread);
+        }
+        return randoms;
+    }
+
+    // The tokens and topics of document doc are at positions
+    //  [documentStart(doc), documentEnd(doc)) of documentTokens(doc)
+    //  and documentTopics(doc), whether or not the corpus is packed.
+
+    int numDocuments() {
+        return corpus != null ? corpus.size() : data.size();
+    }
+
+    int[] documentTokens(int doc) {
+        if (corpus != null) {
+            return corpus.tokens;
+        }
+        return ((FeatureSequence) data.get(doc).instance.getData()).getFeatures();
+    }
+
+    int[] documentTopics(int doc) {
+        if (corpus != null) {
+            return corpus.topics;
+        }
+        return data.get(doc).topicSequence.getFeatures();
+    }
+
+    int documentStart(int doc) {
+        return corpus != null ? corpus.getStart(doc) : 0;
+    }
+
+    int documentEnd(int doc) {
+        return corpus != null ? corpus.getEnd(doc) : data.get(doc).topicSequence.getLength();
+    }
+
+    Object documentName(int doc) {
+        return corpus != null ? corpus.getName(doc) : data.get(doc).instance.getName();
+    }
+
+    DocumentShards tokenBalancedShards(int firstDoc, int endDoc, int numShards) {
+        if (corpus != null) {
+            return DocumentShards.tokenBalanced(corpus, firstDoc, endDoc, numShards);
+        }
+        return DocumentShards.tokenBalanced(data, firstDoc, endDoc, numShards);
+    }
+
+    /**
+     * Run Gibbs sweeps over the documents in <code>[firstDoc, endDoc)</code> only.
+     * The workers update the global type-topic counts directly, so the
+     * counts of documents outside the range are left as they are.
+     */
+    void sampleDocumentRange(int firstDoc, int endDoc, int numSweeps,
+                             Randoms[] randoms) throws IOException {
+
+        WorkerRunnable[] runnables = new WorkerRunnable[numThreads];
+
+        if (numThreads == 1) {
+            runnables[0] = newWorkerRunnable(randoms[0], typeTopicCounts, tokensPerTopic,
+                    firstDoc, endDoc - firstDoc);
+            runnables[0].makeOnlyThread();
+
+            for (int sweep = 0; sweep < numSweeps; sweep++) {
+                runnables[0].run();
+            }
+            updateQueryIndex();
+            return;
+        }
+
+        ReentrantLock[] typeLocks = new ReentrantLock[Math.max(1, Math.min(numTypes, SHARED_COUNT_LOCK_STRIPES))];
+        for (int i = 0; i < typeLocks.length; i++) {
+            typeLocks[i] = new ReentrantLock();
+        }
+
+        DocumentShards shards = tokenBalancedShards(firstDoc, endDoc, numThreads);
+
+        for (int thread = 0; thread < numThreads; thread++) {
+            int[] runnableTotals = new int[numTopics];
+            System.arraycopy(tokensPerTopic, 0, runnableTotals, 0, numTopics);
+
+            // There may be fewer documents than threads
+            int offset = endDoc;
+            int docsPerThread = 0;
+            if (thread < shards.size()) {
+                offset = shards.getStart(thread);
+                docsPerThread = shards.getEnd(thread) - offset;
+            }
+
+            runnables[thread] = newWorkerRunnable(randoms[thread], typeTopicCounts, runnableTotals,
+                    offset, docsPerThread);
+            runnables[thread].shareTypeTopicCounts(typeLocks);
+        }
+
+        // The merge phase only needs to combine the topic totals
+        boolean wasUsingSharedCounts = usingSharedCounts;
+        DocumentShards previousQueue = workQueue;
+        usingSharedCounts = true;
+        workQueue = null;
+
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        try {
+            for (int sweep = 0; sweep < numSweeps; sweep++) {
+                runSamplingPhase(executor, runnables, false);
+                runMergePhase(runnables);
+            }
+        } finally {
+            executor.shutdownNow();
+            usingSharedCounts = wasUsingSharedCounts;
+            workQueue = previousQueue;
+        }
+        updateQueryIndex();
+    }
+
+    /**
+     * Extend the type-topic counts to cover an alphabet that has grown.
+     * New types start with no counts.
+     */
+    void growVocabulary(int size) {
+        if (size <= numTypes) {
+            return;
+        }
+
+        int oldSize = numTypes;
+        typeTopicCounts = Arrays.copyOf(typeTopicCounts, size);
+        for (int type = oldSize; type < size; type++) {
+            typeTopicCounts[type] = new int[0];
+        }
+        typeTotals = Arrays.copyOf(typeTotals, size);
+
+        numTypes = size;
+        betaSum = beta * numTypes;
+    }
+
+    /**
+     * Record more occurrences of a type, and make sure its row of the
+     * type-topic counts is large enough for every topic they could take,
+     * as in <code>buildInitialTypeTopicCounts()</code>.
+     */
+    void addTypeOccurrences(int type, int numOccurrences) {
+        typeTotals[type] += numOccurrences;
+        if (typeTotals[type] > maxTypeCount) {
+            maxTypeCount = typeTotals[type];
+        }
+
+        int capacity = Math.min(numTopics, typeTotals[type]);
+        if (typeTopicCounts[type].length < capacity) {
+            typeTopicCounts[type] = Arrays.copyOf(typeTopicCounts[type], capacity);
+        }
+    }
+
+    private void computeTypeTotals() {
+        typeTotals = new int[numTypes];
+        maxTypeCount = 0;
+        for (int doc = 0; doc < numDocuments(); doc++) {
+            int[] tokens = documentTokens(doc);
+            for (int position = documentStart(doc); position < documentEnd(doc); position++) {
+                typeTotals[tokens[position]]++;
+            }
+        }
+        for (int type = 0; type < numTypes; type++) {
+            maxTypeCount = Math.max(maxTypeCount, typeTotals[type]);
+        }
+    }
+
+    /**
+     * Set the topics of the documents already added to the model from a state
+     * file written by <code>printState()</code>, in either the binary or the
+     * text format. The binary format also restores alpha and beta.
+     */
     public void initializeFromState(File stateFile) throws IOException {
+        if (TopicStateFile.isStateFile(stateFile)) {
+            readBinaryState(stateFile);
+            return;
+        }
+
         String line;
         String[] fields;
 
@@ -300,13 +766,12 @@ public class ParallelTopicModel implements Serializable {
 
         fields = line.split(" ");
 
-        for (TopicAssignment document : data) {
-            FeatureSequence tokens = (FeatureSequence) document.instance.getData();
-            FeatureSequence topicSequence = (FeatureSequence) document.topicSequence;
+        for (int doc = 0; doc < numDocuments(); doc++) {
+            int[] tokens = documentTokens(doc);
+            int[] topics = documentTopics(doc);
 
-            int[] topics = topicSequence.getFeatures();
-            for (int position = 0; position < tokens.size(); position++) {
-                int type = tokens.getIndexAtPosition(position);
+            for (int position = documentStart(doc); position < documentEnd(doc); position++) {
+                int type = tokens[position];
 
                 if (type == Integer.parseInt(fields[3])) {
                     topics[position] = Integer.parseInt(fields[5]);
@@ -326,6 +791,103 @@ public class ParallelTopicModel implements Serializable {
         initializeHistograms();
     }
 
+    /**
+     * Restore the topics and hyperparameters of a checkpoint written during an earlier
+     * run. The same documents must already have been added with <code>addInstances()</code>.
+     * The next call to <code>estimate()</code> continues from the iteration after the
+     * one at which the checkpoint was taken.
+     */
+    public void initializeFromCheckpoint(File checkpointFile) throws IOException {
+        readBinaryState(checkpointFile);
+        resumingFromCheckpoint = true;
+        logger.info("Restored checkpoint from iteration " + iterationsCompleted);
+    }
+
+    /**
+     * Read a binary state file straight into the documents' topic arrays,
+     * then rebuild the counts.
+     */
+    private void readBinaryState(File stateFile) throws IOException {
+        TopicStateFile.Reader reader = new TopicStateFile.Reader(stateFile);
+        try {
+            if (reader.getNumTopics() != numTopics) {
+                throw new IllegalArgumentException("State file has " + reader.getNumTopics() +
+                        " topics, but the model has " + numTopics);
+            }
+            if (reader.getNumTypes() != numTypes) {
+                throw new IllegalArgumentException("State file has " + reader.getNumTypes() +
+                        " word types, but the model has " + numTypes);
+            }
+            if (reader.getNumDocs() != numDocuments()) {
+                throw new IllegalArgumentException("State file has " + reader.getNumDocs() +
+                        " documents, but the model has " + numDocuments());
+            }
+
+            for (int doc = 0; doc < numDocuments(); doc++) {
+                reader.readDocument(documentTopics(doc), documentStart(doc), documentEnd(doc));
+            }
+
+            System.arraycopy(reader.getAlpha(), 0, alpha, 0, numTopics);
+            alphaSum = reader.getAlphaSum();
+            beta = reader.getBeta();
+            betaSum = reader.getBetaSum();
+            iterationsCompleted = reader.getIteration();
+        } finally {
+            reader.close();
+        }
+
+        buildInitialTypeTopicCounts();
+        initializeHistograms();
+    }
+
+    /**
+     * Write a binary checkpoint of the current sampling state.
+     */
+    public void writeCheckpoint(File checkpointFile) throws IOException {
+        TopicStateFile.snapshot(this, iterationsCompleted).write(checkpointFile);
+    }
+
+    /**
+     * Copy the current state and start writing it on <code>checkpointExecutor</code>.
+     * Only one checkpoint is written at a time, so wait for the previous one first.
+     */
+    private Future<?> startCheckpoint(ExecutorService checkpointExecutor, Future<?> previousCheckpoint,
+                                      int iteration) throws IOException {
+        if (previousCheckpoint != null && !previousCheckpoint.isDone()) {
+            logger.info("Waiting for the previous checkpoint");
+        }
+        finishCheckpoint(previousCheckpoint);
+
+        final TopicStateFile snapshot = TopicStateFile.snapshot(this, iteration);
+        final File file = new File(checkpointFilename + '.' + iteration);
+
+        return checkpointExecutor.submit(new Callable<Object>() {
+            public Object call() throws IOException {
+                long start = System.currentTimeMillis();
+                snapshot.write(file);
+                logger.fine("Wrote checkpoint " + file + " in " + (System.currentTimeMillis() - start) + "ms");
+                return null;
+            }
+        });
+    }
+
+    private void finishCheckpoint(Future<?> checkpoint) throws IOException {
+        if (checkpoint == null) {
+            return;
+        }
+        try {
+            checkpoint.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for a checkpoint");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IllegalStateException("checkpoint failed", e.getCause());
+        }
+    }
+
     public void buildInitialTypeTopicCounts() {
 
         typeTopicCounts = new int[numTypes][];
@@ -336,11 +898,11 @@ public class ParallelTopicModel implements Serializable {
         typeTotals = new int[numTypes];
 
         // Create the type-topic counts data structure
-        for (TopicAssignment document : data) {
+        for (int doc = 0; doc < numDocuments(); doc++) {
 
-            FeatureSequence tokens = (FeatureSequence) document.instance.getData();
-            for (int position = 0; position < tokens.getLength(); position++) {
-                int type = tokens.getIndexAtPosition(position);
+            int[] tokens = documentTokens(doc);
+            for (int position = documentStart(doc); position < documentEnd(doc); position++) {
+                int type = tokens[position];
                 typeTotals[type]++;
             }
         }
@@ -357,13 +919,12 @@ public class ParallelTopicModel implements Serializable {
             typeTopicCounts[type] = new int[Math.min(numTopics, typeTotals[type])];
         }
 
-        for (TopicAssignment document : data) {
+        for (int doc = 0; doc < numDocuments(); doc++) {
 
-            FeatureSequence tokens = (FeatureSequence) document.instance.getData();
-            FeatureSequence topicSequence = (FeatureSequence) document.topicSequence;
+            int[] tokens = documentTokens(doc);
+            int[] topics = documentTopics(doc);
 
-            int[] topics = topicSequence.getFeatures();
-            for (int position = 0; position < tokens.size(); position++) {
+            for (int position = documentStart(doc); position < documentEnd(doc); position++) {
 
                 int topic = topics[position];
 
@@ -380,7 +941,7 @@ public class ParallelTopicModel implements Serializable {
                 //  by the numeric value of the int guarantees that
                 //  higher counts will be before the lower counts.
 
-                int type = tokens.getIndexAtPosition(position);
+                int type = tokens[position];
                 int[] currentTypeTopicCounts = typeTopicCounts[type];
 
                 // Start by assuming that the array is either empty
@@ -426,6 +987,8 @@ public class ParallelTopicModel implements Serializable {
                 }
             }
         }
+
+        updateQueryIndex();
     }
 
     public void sumTypeTopicCounts(WorkerRunnable[] runnables) {
@@ -534,6 +1097,25 @@ public class ParallelTopicModel implements Serializable {
 		*/
     }
 
+    /**
+     * When threads share a single copy of the type-topic counts,
+     * only the tokens-per-topic totals need to be merged. Each thread
+     * started the iteration with a copy of the global totals, so
+     * the change in each thread's copy is that thread's contribution.
+     */
+    public void sumTokensPerTopic(WorkerRunnable[] runnables) {
+
+        int[] previousTotals = new int[numTopics];
+        System.arraycopy(tokensPerTopic, 0, previousTotals, 0, numTopics);
+
+        for (int thread = 0; thread < numThreads; thread++) {
+            int[] sourceTotals = runnables[thread].getTokensPerTopic();
+            for (int topic = 0; topic < numTopics; topic++) {
+                tokensPerTopic[topic] += sourceTotals[topic] - previousTotals[topic];
+            }
+        }
+    }
+
     /**
      * Gather statistics on the size of documents
      * and create histograms for use in Dirichlet hyperparameter
@@ -545,9 +1127,8 @@ public class ParallelTopicModel implements Serializable {
         totalTokens = 0;
         int seqLen;
 
-        for (int doc = 0; doc < data.size(); doc++) {
-            FeatureSequence fs = (FeatureSequence) data.get(doc).instance.getData();
-            seqLen = fs.getLength();
+        for (int doc = 0; doc < numDocuments(); doc++) {
+            seqLen = documentEnd(doc) - documentStart(doc);
             if (seqLen > maxTokens)
                 maxTokens = seqLen;
             totalTokens += seqLen;
@@ -561,17 +1142,37 @@ public class ParallelTopicModel implements Serializable {
     }
 
     public void optimizeAlpha(WorkerRunnable[] runnables) {
+        optimizeAlpha(runnables, null);
+    }
+
+    /**
+     * Optimize alpha, merging the histograms of different topics and
+     * computing the per-topic updates in parallel on <code>executor</code>,
+     * or on the calling thread if it is null.
+     */
+    void optimizeAlpha(WorkerRunnable[] runnables, ExecutorService executor) {
+        mergeAlphaHistograms(runnables, executor);
+        alphaSum = learnAlpha(alpha, executor);
+    }
+
+    /**
+     * Move the document length and document/topic histograms collected by
+     * the workers into <code>docLengthCounts</code> and <code>topicDocCounts</code>,
+     * clearing the workers' copies. Each task handles a range of topics.
+     */
+    void mergeAlphaHistograms(final WorkerRunnable[] runnables, ExecutorService executor) {
 
         // First clear the sufficient statistic histograms
 
         Arrays.fill(docLengthCounts, 0);
-        for (int topic = 0; topic < topicDocCounts.length; topic++) {
-            Arrays.fill(topicDocCounts[topic], 0);
+        if (usingSymmetricAlpha) {
+            for (int topic = 0; topic < topicDocCounts.length; topic++) {
+                Arrays.fill(topicDocCounts[topic], 0);
+            }
         }
 
         for (int thread = 0; thread < numThreads; thread++) {
             int[] sourceLengthCounts = runnables[thread].getDocLengthCounts();
-            int[][] sourceTopicCounts = runnables[thread].getTopicDocCounts();
 
             for (int count = 0; count < sourceLengthCounts.length; count++) {
                 if (sourceLengthCounts[count] > 0) {
@@ -579,56 +1180,83 @@ public class ParallelTopicModel implements Serializable {
                     sourceLengthCounts[count] = 0;
                 }
             }
+        }
 
-            for (int topic = 0; topic < numTopics; topic++) {
+        // For the symmetric version, we only need one count array,
+        //  which I'm putting in the same data structure, but for topic 0.
+        //  Each task sums its topics into its own array, and these
+        //  are added up at the end.
+        final int[][] symmetricCounts =
+                usingSymmetricAlpha ? new int[ParallelRanges.numRanges(executor, numTopics, numThreads)][] : null;
+
+        ParallelRanges.run(executor, numTopics, numThreads, new ParallelRanges.Body() {
+            public void run(int start, int end, int task) {
+                int[] targetCounts = null;
+                if (usingSymmetricAlpha) {
+                    targetCounts = new int[topicDocCounts[0].length];
+                    symmetricCounts[task] = targetCounts;
+                }
 
-                if (!usingSymmetricAlpha) {
-                    for (int count = 0; count < sourceTopicCounts[topic].length; count++) {
-                        if (sourceTopicCounts[topic][count] > 0) {
-                            topicDocCounts[topic][count] += sourceTopicCounts[topic][count];
-                            sourceTopicCounts[topic][count] = 0;
-                        }
+                for (int topic = start; topic < end; topic++) {
+                    if (!usingSymmetricAlpha) {
+                        targetCounts = topicDocCounts[topic];
+                        Arrays.fill(targetCounts, 0);
                     }
-                } else {
-                    // For the symmetric version, we only need one
-                    //  count array, which I'm putting in the same
-                    //  data structure, but for topic 0. All other
-                    //  topic histograms will be empty.
-                    // I'm duplicating this for loop, which
-                    //  isn't the best thing, but it means only checking
-                    //  whether we are symmetric or not numTopics times,
-                    //  instead of numTopics * longest document length.
-                    for (int count = 0; count < sourceTopicCounts[topic].length; count++) {
-                        if (sourceTopicCounts[topic][count] > 0) {
-                            topicDocCounts[0][count] += sourceTopicCounts[topic][count];
-                            //			 ^ the only change
-                            sourceTopicCounts[topic][count] = 0;
+
+                    for (int thread = 0; thread < numThreads; thread++) {
+                        int[] sourceCounts = runnables[thread].getTopicDocCounts()[topic];
+                        for (int count = 0; count < sourceCounts.length; count++) {
+                            if (sourceCounts[count] > 0) {
+                                targetCounts[count] += sourceCounts[count];
+                                sourceCounts[count] = 0;
+                            }
                         }
                     }
                 }
             }
+        });
+
+        if (usingSymmetricAlpha) {
+            for (int[] partialCounts : symmetricCounts) {
+                for (int count = 0; count < partialCounts.length; count++) {
+                    topicDocCounts[0][count] += partialCounts[count];
+                }
+            }
         }
+    }
+
+    /**
+     * Learn new values of alpha from the merged histograms, writing them
+     * into <code>newAlpha</code>, which starts with the current values.
+     *
+     * @return the new alphaSum
+     */
+    double learnAlpha(double[] newAlpha, ExecutorService executor) {
+        double newAlphaSum;
 
         if (usingSymmetricAlpha) {
-            alphaSum = Dirichlet.learnSymmetricConcentration(topicDocCounts[0],
+            newAlphaSum = Dirichlet.learnSymmetricConcentration(topicDocCounts[0],
                     docLengthCounts,
                     numTopics,
                     alphaSum);
             for (int topic = 0; topic < numTopics; topic++) {
-                alpha[topic] = alphaSum / numTopics;
+                newAlpha[topic] = newAlphaSum / numTopics;
             }
         } else {
             try {
-                alphaSum = Dirichlet.learnParameters(alpha, topicDocCounts, docLengthCounts, 1.001, 1.0, 1);
+                newAlphaSum = Dirichlet.learnParameters(newAlpha, topicDocCounts, docLengthCounts, 1.001, 1.0, 1,
+                        executor, numThreads);
             } catch (RuntimeException e) {
                 // Dirichlet optimization has become unstable. This is known to happen for very small corpora (~5 docs).
                 logger.warning("Dirichlet optimization has become unstable. Resetting to alpha_t = 1.0.");
-                alphaSum = numTopics;
+                newAlphaSum = numTopics;
                 for (int topic = 0; topic < numTopics; topic++) {
-                    alpha[topic] = 1.0;
+                    newAlpha[topic] = 1.0;
                 }
             }
         }
+
+        return newAlphaSum;
     }
 
     public void temperAlpha(WorkerRunnable[] runnables) {
@@ -667,23 +1295,74 @@ public class ParallelTopicModel implements Serializable {
     }
 
     public void optimizeBeta(WorkerRunnable[] runnables) {
+        optimizeBeta(runnables, null);
+    }
+
+    /**
+     * Optimize beta, building the histogram of type/topic counts from
+     * ranges of types in parallel on <code>executor</code>, or on the
+     * calling thread if it is null.
+     */
+    void optimizeBeta(WorkerRunnable[] runnables, ExecutorService executor) {
+        betaSum = learnBetaSum(executor);
+        beta = betaSum / numTypes;
+
+        logger.info("[beta: " + formatter.format(beta) + "] ");
+        // Now publish the new value
+        for (int thread = 0; thread < numThreads; thread++) {
+            runnables[thread].resetBeta(beta, betaSum);
+        }
+    }
+
+    /**
+     * Learn a new betaSum from the current type-topic counts.
+     */
+    double learnBetaSum(ExecutorService executor) {
+
+        // Count the number of type/topic pairs that have each number
+        //  of tokens. Each task builds a histogram for a range of types,
+        //  only as large as the largest count in its range.
+
+        final int[][] partialHistograms = new int[ParallelRanges.numRanges(executor, numTypes, numThreads)][];
+
+        ParallelRanges.run(executor, numTypes, numThreads, new ParallelRanges.Body() {
+            public void run(int start, int end, int task) {
+                int maxCount = 0;
+                for (int type = start; type < end; type++) {
+                    int[] counts = typeTopicCounts[type];
+                    int index = 0;
+                    while (index < counts.length &&
+                            counts[index] > 0) {
+                        maxCount = Math.max(maxCount, counts[index] >> topicBits);
+                        index++;
+                    }
+                }
+
+                int[] histogram = new int[maxCount + 1];
+                for (int type = start; type < end; type++) {
+                    int[] counts = typeTopicCounts[type];
+                    int index = 0;
+                    while (index < counts.length &&
+                            counts[index] > 0) {
+                        histogram[counts[index] >> topicBits]++;
+                        index++;
+                    }
+                }
+                partialHistograms[task] = histogram;
+            }
+        });
+
         // The histogram starts at count 0, so if all of the
         //  tokens of the most frequent type were assigned to one topic,
         //  we would need to store a maxTypeCount + 1 count.
-        int[] countHistogram = new int[maxTypeCount + 1];
-
-        // Now count the number of type/topic pairs that have
-        //  each number of tokens.
-
-        int index;
-        for (int type = 0; type < numTypes; type++) {
-            int[] counts = typeTopicCounts[type];
-            index = 0;
-            while (index < counts.length &&
-                    counts[index] > 0) {
-                int count = counts[index] >> topicBits;
-                countHistogram[count]++;
-                index++;
+        int histogramSize = maxTypeCount + 1;
+        for (int[] histogram : partialHistograms) {
+            histogramSize = Math.max(histogramSize, histogram.length);
+        }
+        int[] countHistogram = new int[histogramSize];
+        for (int[] histogram : partialHistograms) {
+            for (int count = 0; count < histogram.length; count++) {
+                countHistogram[count] += histogram[count];
             }
         }
 
@@ -702,46 +1381,102 @@ public class ParallelTopicModel implements Serializable {
             topicSizeHistogram[tokensPerTopic[topic]]++;
         }
 
-        betaSum = Dirichlet.learnSymmetricConcentration(countHistogram,
+        return Dirichlet.learnSymmetricConcentration(countHistogram,
                 topicSizeHistogram,
                 numTypes,
                 betaSum);
-        beta = betaSum / numTypes;
+    }
 
+    /**
+     * Hyperparameters learned on a background thread while the workers
+     * run the next sweep. Alpha's histograms have already been merged,
+     * and nothing it reads changes until the next merge phase, when the
+     * results are published.
+     */
+    private class HyperparameterOptimization implements Callable<Object> {
+        double[] newAlpha = alpha.clone();
+        double newAlphaSum;
+        double newBetaSum;
+
+        public Object call() {
+            newAlphaSum = learnAlpha(newAlpha, null);
+            newBetaSum = learnBetaSum(null);
+            return null;
+        }
+    }
+
+    /**
+     * Wait for a background optimization, then give its results to the workers.
+     */
+    private void publishOptimization(HyperparameterOptimization optimization, Future<?> future,
+                                     WorkerRunnable[] runnables) throws IOException {
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for hyperparameter optimization");
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("hyperparameter optimization failed", e.getCause());
+        }
+
+        // The workers share the alpha array
+        System.arraycopy(optimization.newAlpha, 0, alpha, 0, numTopics);
+        alphaSum = optimization.newAlphaSum;
+        betaSum = optimization.newBetaSum;
+        beta = betaSum / numTypes;
 
         logger.info("[beta: " + formatter.format(beta) + "] ");
-        // Now publish the new value
         for (int thread = 0; thread < numThreads; thread++) {
             runnables[thread].resetBeta(beta, betaSum);
         }
-
     }
 
     public void estimate() throws IOException {
 
         long startTime = System.currentTimeMillis();
+        phaseTimer.reset();
 
         WorkerRunnable[] runnables = new WorkerRunnable[numThreads];
 
-        int docsPerThread = data.size() / numThreads;
-        int offset = 0;
-
         if (numThreads > 1) {
 
+            DocumentShards threadShards = tokenBalancedShards(0, numDocuments(), numThreads);
+            workQueue = null;
+            if (usingWorkStealing) {
+                workQueue = tokenBalancedShards(0, numDocuments(), numThreads * WORK_STEALING_SHARDS_PER_THREAD);
+            }
+
+            ReentrantLock[] typeLocks = null;
+            if (usingSharedCounts) {
+                typeLocks = new ReentrantLock[Math.max(1, Math.min(numTypes, SHARED_COUNT_LOCK_STRIPES))];
+                for (int i = 0; i < typeLocks.length; i++) {
+                    typeLocks[i] = new ReentrantLock();
+                }
+            }
+
             for (int thread = 0; thread < numThreads; thread++) {
                 int[] runnableTotals = new int[numTopics];
                 System.arraycopy(tokensPerTopic, 0, runnableTotals, 0, numTopics);
 
-                int[][] runnableCounts = new int[numTypes][];
-                for (int type = 0; type < numTypes; type++) {
-                    int[] counts = new int[typeTopicCounts[type].length];
-                    System.arraycopy(typeTopicCounts[type], 0, counts, 0, counts.length);
-                    runnableCounts[type] = counts;
+                int[][] runnableCounts;
+                if (usingSharedCounts) {
+                    // Every thread works directly on the global counts
+                    runnableCounts = typeTopicCounts;
+                } else {
+                    runnableCounts = new int[numTypes][];
+                    for (int type = 0; type < numTypes; type++) {
+                        int[] counts = new int[typeTopicCounts[type].length];
+                        System.arraycopy(typeTopicCounts[type], 0, counts, 0, counts.length);
+                        runnableCounts[type] = counts;
+                    }
                 }
 
-                // some docs may be missing at the end due to integer division
-                if (thread == numThreads - 1) {
-                    docsPerThread = data.size() - offset;
+                // There may be fewer documents than threads
+                int offset = numDocuments();
+                int docsPerThread = 0;
+                if (thread < threadShards.size()) {
+                    offset = threadShards.getStart(thread);
+                    docsPerThread = threadShards.getEnd(thread) - offset;
                 }
 
                 Randoms random = null;
@@ -751,16 +1486,19 @@ public class ParallelTopicModel implements Serializable {
                     random = new Randoms(randomSeed);
                 }
 
-                runnables[thread] = new WorkerRunnable(numTopics,
-                        alpha, alphaSum, beta,
-                        random, data,
+                runnables[thread] = newWorkerRunnable(random,
                         runnableCounts, runnableTotals,
                         offset, docsPerThread);
 
                 runnables[thread].initializeAlphaStatistics(docLengthCounts.length);
 
-                offset += docsPerThread;
+                if (usingSharedCounts) {
+                    runnables[thread].shareTypeTopicCounts(typeLocks);
+                }
 
+                if (workQueue != null) {
+                    runnables[thread].setWorkQueue(workQueue);
+                }
             }
         } else {
 
@@ -774,11 +1512,9 @@ public class ParallelTopicModel implements Serializable {
                 random = new Randoms(randomSeed);
             }
 
-            runnables[0] = new WorkerRunnable(numTopics,
-                    alpha, alphaSum, beta,
-                    random, data,
+            runnables[0] = newWorkerRunnable(random,
                     typeTopicCounts, tokensPerTopic,
-                    offset, docsPerThread);
+                    0, numDocuments());
 
             runnables[0].initializeAlphaStatistics(docLengthCounts.length);
 
@@ -791,131 +1527,140 @@ public class ParallelTopicModel implements Serializable {
 
         ExecutorService executor = Executors.newFixedThreadPool(numThreads);
 
-        for (int iteration = 1; iteration <= numIterations; iteration++) {
-
-            long iterationStart = System.currentTimeMillis();
+        boolean overlappingOptimization = usingOverlappedOptimization &&
+                numThreads > 1 && !usingSharedCounts;
+        ExecutorService optimizationExecutor = null;
+        if (overlappingOptimization) {
+            optimizationExecutor = Executors.newSingleThreadExecutor();
+        }
+        HyperparameterOptimization pendingOptimization = null;
+        Future<?> pendingFuture = null;
 
-            if (showTopicsInterval != 0 && iteration != 0 && iteration % showTopicsInterval == 0) {
-                logger.info("\n" + displayTopWords(wordsPerTopic, false));
-            }
+        ExecutorService checkpointExecutor = null;
+        if (checkpointInterval != 0) {
+            checkpointExecutor = Executors.newSingleThreadExecutor();
+        }
+        Future<?> pendingCheckpoint = null;
 
-            if (saveStateInterval != 0 && iteration % saveStateInterval == 0) {
-                this.printState(new File(stateFilename + '.' + iteration));
-            }
+        int firstIteration = 1;
+        if (resumingFromCheckpoint) {
+            firstIteration = iterationsCompleted + 1;
+            resumingFromCheckpoint = false;
+            logger.info("Resuming at iteration " + firstIteration);
+        }
 
-            if (saveModelInterval != 0 && iteration % saveModelInterval == 0) {
-                this.write(new File(modelFilename + '.' + iteration));
-            }
+        // Stop the thread pools even if sampling fails
+        try {
+            for (int iteration = firstIteration; iteration <= numIterations; iteration++) {
 
-            if (numThreads > 1) {
+                long iterationStart = System.currentTimeMillis();
+                phaseTimer.startIteration();
 
-                // Submit runnables to thread pool
+                if (showTopicsInterval != 0 && iteration != 0 && iteration % showTopicsInterval == 0) {
+                    logger.info("\n" + displayTopWords(wordsPerTopic, false));
+                }
 
-                for (int thread = 0; thread < numThreads; thread++) {
-                    if (iteration > burninPeriod && optimizeInterval != 0 &&
-                            iteration % saveSampleInterval == 0) {
-                        runnables[thread].collectAlphaStatistics();
-                    }
+                if (saveStateInterval != 0 && iteration % saveStateInterval == 0) {
+                    this.printState(new File(stateFilename + '.' + iteration));
+                }
 
-                    logger.fine("submitting thread " + thread);
-                    executor.submit(runnables[thread]);
-                    //runnables[thread].run();
+                if (saveModelInterval != 0 && iteration % saveModelInterval == 0) {
+                    this.write(new File(modelFilename + '.' + iteration));
                 }
 
-                // I'm getting some problems that look like
-                //  a thread hasn't started yet when it is first
-                //  polled, so it appears to be finished.
-                // This only occurs in very short corpora.
-                try {
-                    Thread.sleep(20);
-                } catch (InterruptedException e) {
+                phaseTimer.record(PhaseTimer.Phase.SAVE);
 
-                }
+                boolean collectingStatistics = iteration > burninPeriod && optimizeInterval != 0 &&
+                        iteration % saveSampleInterval == 0;
 
-                boolean finished = false;
-                while (!finished) {
+                long samplingNanos;
+                if (numThreads > 1) {
 
-                    try {
-                        Thread.sleep(10);
-                    } catch (InterruptedException e) {
+                    runSamplingPhase(executor, runnables, collectingStatistics);
+                    samplingNanos = phaseTimer.record(PhaseTimer.Phase.SAMPLE);
 
+                    if (pendingOptimization != null) {
+                        publishOptimization(pendingOptimization, pendingFuture, runnables);
+                        pendingOptimization = null;
+                        phaseTimer.record(PhaseTimer.Phase.OPTIMIZE);
                     }
 
-                    finished = true;
+                    runMergePhase(runnables);
+                    phaseTimer.record(PhaseTimer.Phase.MERGE);
 
-                    // Are all the threads done?
-                    for (int thread = 0; thread < numThreads; thread++) {
-                        //logger.info("thread " + thread + " done? " + runnables[thread].isFinished);
-                        finished = finished && runnables[thread].isFinished;
+                } else {
+                    if (collectingStatistics) {
+                        runnables[0].collectAlphaStatistics();
                     }
-
+                    runnables[0].run();
+                    samplingNanos = phaseTimer.record(PhaseTimer.Phase.SAMPLE);
                 }
 
-                //System.out.print("[" + (System.currentTimeMillis() - iterationStart) + "] ");
-
-                sumTypeTopicCounts(runnables);
-
-                //System.out.print("[" + (System.currentTimeMillis() - iterationStart) + "] ");
-
-                for (int thread = 0; thread < numThreads; thread++) {
-                    int[] runnableTotals = runnables[thread].getTokensPerTopic();
-                    System.arraycopy(tokensPerTopic, 0, runnableTotals, 0, numTopics);
-
-                    int[][] runnableCounts = runnables[thread].getTypeTopicCounts();
-                    for (int type = 0; type < numTypes; type++) {
-                        int[] targetCounts = runnableCounts[type];
-                        int[] sourceCounts = typeTopicCounts[type];
+                long elapsedMillis = System.currentTimeMillis() - iterationStart;
+                if (elapsedMillis < 1000) {
+                    logger.fine(elapsedMillis + "ms ");
+                } else {
+                    logger.fine((elapsedMillis / 1000) + "s ");
+                }
 
-                        int index = 0;
-                        while (index < sourceCounts.length) {
+                if (iteration > burninPeriod && optimizeInterval != 0 &&
+                        iteration % optimizeInterval == 0) {
+
+                    if (overlappingOptimization) {
+                        mergeAlphaHistograms(runnables, executor);
+                        pendingOptimization = new HyperparameterOptimization();
+                        pendingFuture = optimizationExecutor.submit(pendingOptimization);
+                    } else {
+                        ExecutorService optimizeExecutor = numThreads > 1 ? executor : null;
+                        optimizeAlpha(runnables, optimizeExecutor);
+                        optimizeBeta(runnables, optimizeExecutor);
+                    }
 
-                            if (sourceCounts[index] != 0) {
-                                targetCounts[index] = sourceCounts[index];
-                            } else if (targetCounts[index] != 0) {
-                                targetCounts[index] = 0;
-                            } else {
-                                break;
-                            }
+                    phaseTimer.record(PhaseTimer.Phase.OPTIMIZE);
+                    logger.fine("[O " + (System.currentTimeMillis() - iterationStart) + "] ");
+                }
 
-                            index++;
-                        }
-                        //System.arraycopy(typeTopicCounts[type], 0, counts, 0, counts.length);
+                if (iteration % 10 == 0) {
+                    if (printLogLikelihood) {
+                        logger.info("<" + iteration + "> LL/token: " + formatter.format(modelLogLikelihood() / totalTokens));
+                    } else {
+                        logger.info("<" + iteration + ">");
                     }
+                    phaseTimer.record(PhaseTimer.Phase.LIKELIHOOD);
                 }
-            } else {
-                if (iteration > burninPeriod && optimizeInterval != 0 &&
-                        iteration % saveSampleInterval == 0) {
-                    runnables[0].collectAlphaStatistics();
-                }
-                runnables[0].run();
-            }
 
-            long elapsedMillis = System.currentTimeMillis() - iterationStart;
-            if (elapsedMillis < 1000) {
-                logger.fine(elapsedMillis + "ms ");
-            } else {
-                logger.fine((elapsedMillis / 1000) + "s ");
-            }
+                iterationsCompleted = iteration;
 
-            if (iteration > burninPeriod && optimizeInterval != 0 &&
-                    iteration % optimizeInterval == 0) {
+                if (checkpointInterval != 0 && iteration % checkpointInterval == 0) {
+                    pendingCheckpoint = startCheckpoint(checkpointExecutor, pendingCheckpoint, iteration);
+                    phaseTimer.record(PhaseTimer.Phase.SAVE);
+                }
 
-                optimizeAlpha(runnables);
-                optimizeBeta(runnables);
+                logger.fine("<" + iteration + "> " + phaseTimer.iterationSummary());
 
-                logger.fine("[O " + (System.currentTimeMillis() - iterationStart) + "] ");
+                if (trainingMetrics != null) {
+                    publishMetrics(iteration, System.currentTimeMillis() - iterationStart,
+                            runnables, samplingNanos);
+                }
             }
 
-            if (iteration % 10 == 0) {
-                if (printLogLikelihood) {
-                    logger.info("<" + iteration + "> LL/token: " + formatter.format(modelLogLikelihood() / totalTokens));
-                } else {
-                    logger.info("<" + iteration + ">");
-                }
+            if (pendingOptimization != null) {
+                publishOptimization(pendingOptimization, pendingFuture, runnables);
             }
+            if (checkpointExecutor != null) {
+                finishCheckpoint(pendingCheckpoint);
+            }
+        } finally {
+            if (optimizationExecutor != null) {
+                optimizationExecutor.shutdownNow();
+            }
+            if (checkpointExecutor != null) {
+                checkpointExecutor.shutdown();
+            }
+            executor.shutdownNow();
         }
 
-        executor.shutdownNow();
+        updateQueryIndex();
 
         long seconds = Math.round((System.currentTimeMillis() - startTime) / 1000.0);
         long minutes = seconds / 60;
@@ -943,6 +1688,145 @@ public class ParallelTopicModel implements Serializable {
         timeReport.append(" seconds");
 
         logger.info(timeReport.toString());
+        logger.info("Phase times: " + phaseTimer);
+    }
+
+    private void publishMetrics(int iteration, long elapsedMillis,
+                                WorkerRunnable[] runnables, long samplingNanos) {
+        IterationMetrics metrics = new IterationMetrics("ParallelTopicModel", iteration, totalTokens, elapsedMillis);
+        metrics.setPhaseTimes(phaseTimer);
+
+        long[] busyNanos = new long[runnables.length];
+        long[] threadTokens = new long[runnables.length];
+        for (int thread = 0; thread < runnables.length; thread++) {
+            busyNanos[thread] = runnables[thread].getBusyNanos();
+            threadTokens[thread] = runnables[thread].getTokensSampled();
+        }
+        metrics.setThreadTimes(busyNanos, samplingNanos);
+        metrics.setThreadTokens(threadTokens);
+
+        metrics.setTopicCountDensity(IterationMetrics.nonZeroFraction(typeTopicCounts, numTopics));
+        trainingMetrics.publish(metrics);
+    }
+
+    /**
+     * Create a worker for the configured sampler type.
+     */
+    WorkerRunnable newWorkerRunnable(Randoms random,
+                                     int[][] runnableCounts, int[] runnableTotals,
+                                     int startDoc, int numDocs) {
+        WorkerRunnable runnable;
+        if (samplerType == SamplerType.ALIAS) {
+            AliasWorkerRunnable aliasRunnable = new AliasWorkerRunnable(numTopics,
+                    alpha, alphaSum, beta,
+                    random, data,
+                    runnableCounts, runnableTotals,
+                    startDoc, numDocs);
+            aliasRunnable.setMetropolisHastingsSteps(mhSteps);
+            if (denseTypeThreshold > 0) {
+                aliasRunnable.setDenseTypeThreshold(denseTypeThreshold);
+            }
+            runnable = aliasRunnable;
+        } else {
+            runnable = new WorkerRunnable(numTopics,
+                    alpha, alphaSum, beta,
+                    random, data,
+                    runnableCounts, runnableTotals,
+                    startDoc, numDocs);
+            runnable.setDenseTypeThreshold(denseTypeThreshold);
+        }
+
+        if (corpus != null) {
+            runnable.setCorpus(corpus);
+        }
+        return runnable;
+    }
+
+    /**
+     * Run one sweep of every worker on the thread pool and
+     * wait until all of them have finished. Waiting on the
+     * futures (rather than polling) means the merge phase
+     * can start as soon as the slowest worker is done.
+     */
+    void runSamplingPhase(ExecutorService executor, WorkerRunnable[] runnables,
+                          boolean collectingStatistics) throws IOException {
+
+        if (workQueue != null) {
+            workQueue.reset();
+        }
+
+        List<Future<?>> futures = new ArrayList<Future<?>>(numThreads);
+
+        for (int thread = 0; thread < numThreads; thread++) {
+            if (collectingStatistics) {
+                runnables[thread].collectAlphaStatistics();
+            }
+
+            logger.fine("submitting thread " + thread);
+            futures.add(executor.submit(runnables[thread]));
+        }
+
+        try {
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for sampling threads");
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("sampling thread failed", e.getCause());
+        }
+    }
+
+    /**
+     * Combine the counts from each worker into the global counts,
+     * then send the new global counts back to every worker.
+     */
+    void runMergePhase(WorkerRunnable[] runnables) {
+
+        if (usingSharedCounts) {
+            sumTokensPerTopic(runnables);
+        } else {
+            sumTypeTopicCounts(runnables);
+        }
+
+        for (int thread = 0; thread < numThreads; thread++) {
+            int[] runnableTotals = runnables[thread].getTokensPerTopic();
+            System.arraycopy(tokensPerTopic, 0, runnableTotals, 0, numTopics);
+
+            if (usingSharedCounts) {
+                // The type-topic counts are already global
+                continue;
+            }
+
+            int[][] runnableCounts = runnables[thread].getTypeTopicCounts();
+            for (int type = 0; type < numTypes; type++) {
+                int[] targetCounts = runnableCounts[type];
+                int[] sourceCounts = typeTopicCounts[type];
+
+                int index = 0;
+                while (index < sourceCounts.length) {
+
+                    if (sourceCounts[index] != 0) {
+                        targetCounts[index] = sourceCounts[index];
+                    } else if (targetCounts[index] != 0) {
+                        targetCounts[index] = 0;
+                    } else {
+                        break;
+                    }
+
+                    index++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Time spent in each phase (sampling, merging, hyperparameter
+     * optimization, saving, likelihood) of the most recent call to <code>estimate()</code>.
+     */
+    public PhaseTimer getPhaseTimer() {
+        return phaseTimer;
     }
 
     /**
@@ -968,23 +1852,19 @@ public class ParallelTopicModel implements Serializable {
             totalChange = 0;
 
             // Loop over every document in the corpus
-            for (int doc = 0; doc < data.size(); doc++) {
-                FeatureSequence tokenSequence =
-                        (FeatureSequence) data.get(doc).instance.getData();
-                LabelSequence topicSequence =
-                        (LabelSequence) data.get(doc).topicSequence;
-
-                int[] oneDocTopics = topicSequence.getFeatures();
+            for (int doc = 0; doc < numDocuments(); doc++) {
+                int[] tokens = documentTokens(doc);
+                int[] oneDocTopics = documentTopics(doc);
+                int start = documentStart(doc);
+                int end = documentEnd(doc);
 
                 int[] currentTypeTopicCounts;
                 int type, oldTopic, newTopic;
 
-                int docLength = tokenSequence.getLength();
-
                 int[] localTopicCounts = new int[numTopics];
 
                 //populate topic counts
-                for (int position = 0; position < docLength; position++) {
+                for (int position = start; position < end; position++) {
                     localTopicCounts[oneDocTopics[position]]++;
                 }
 
@@ -1002,8 +1882,8 @@ public class ParallelTopicModel implements Serializable {
                 double[] topicTermScores = new double[numTopics];
 
                 //Iterate over the positions (words) in the document
-                for (int position = 0; position < docLength; position++) {
-                    type = tokenSequence.getIndexAtPosition(position);
+                for (int position = start; position < end; position++) {
+                    type = tokens[position];
                     oldTopic = oneDocTopics[position];
 
                     // Grab the relevant row from our two-dimensional array
@@ -1175,30 +2055,50 @@ public class ParallelTopicModel implements Serializable {
 
     public Object[][] getTopWords(int numWords) {
 
-        ArrayList<TreeSet<IDSorter>> topicSortedWords = getSortedWords();
+        TopicQueryIndex index = getQueryIndex(numWords, 0);
         Object[][] result = new Object[numTopics][];
 
         for (int topic = 0; topic < numTopics; topic++) {
 
-            TreeSet<IDSorter> sortedWords = topicSortedWords.get(topic);
+            // Some topics may have fewer than the requested number of words with non-zero weight.
+            int[] words = index.getTopWords(topic, numWords);
 
-            // How many words should we report? Some topics may have fewer than
-            //  the default number of words with non-zero weight.
-            int limit = numWords;
-            if (sortedWords.size() < numWords) {
-                limit = sortedWords.size();
+            result[topic] = new Object[words.length];
+            for (int i = 0; i < words.length; i++) {
+                result[topic][i] = alphabet.lookupObject(words[i]);
             }
+        }
 
-            result[topic] = new Object[limit];
+        return result;
+    }
 
-            Iterator<IDSorter> iterator = sortedWords.iterator();
-            for (int i = 0; i < limit; i++) {
-                IDSorter info = iterator.next();
-                result[topic][i] = alphabet.lookupObject(info.getID());
-            }
+    /**
+     * The model's query index, created on first use and kept up to date
+     * as the model is sampled. It is only rebuilt if it keeps fewer
+     * words or documents per topic than requested.
+     *
+     * @param numWords The number of words needed for each topic
+     * @param numDocs  The number of documents needed for each topic
+     */
+    public TopicQueryIndex getQueryIndex(int numWords, int numDocs) {
+        if (queryIndex == null) {
+            queryIndex = new TopicQueryIndex(this, numWords, numDocs, TOPIC_DOCUMENT_SMOOTHING);
+        } else if (queryIndex.maxWords < numWords || queryIndex.maxDocs < numDocs) {
+            queryIndex = new TopicQueryIndex(this,
+                    Math.max(numWords, queryIndex.maxWords),
+                    Math.max(numDocs, queryIndex.maxDocs),
+                    TOPIC_DOCUMENT_SMOOTHING);
         }
+        return queryIndex;
+    }
 
-        return result;
+    /**
+     * Bring the query index, if there is one, up to date with the counts.
+     */
+    private void updateQueryIndex() {
+        if (queryIndex != null) {
+            queryIndex.update();
+        }
     }
 
     public void printTopWords(File file, int numWords, boolean useNewLines) throws IOException {
@@ -1270,12 +2170,13 @@ public class ParallelTopicModel implements Serializable {
         int numTopics = this.getNumTopics();
         TObjectIntHashMap<String>[] phrases = new TObjectIntHashMap[numTopics];
         Alphabet alphabet = this.getAlphabet();
+        ArrayList<TopicAssignment> documents = this.getData();
 
         // Get counts of phrases
         for (int ti = 0; ti < numTopics; ti++)
             phrases[ti] = new TObjectIntHashMap<String>();
-        for (int di = 0; di < this.getData().size(); di++) {
-            TopicAssignment t = this.getData().get(di);
+        for (int di = 0; di < documents.size(); di++) {
+            TopicAssignment t = documents.get(di);
             Instance instance = t.instance;
             FeatureSequence fvs = (FeatureSequence) instance.getData();
             boolean withBigrams = false;
@@ -1288,7 +2189,7 @@ public class ParallelTopicModel implements Serializable {
             int doclen = fvs.size();
             for (int pi = 0; pi < doclen; pi++) {
                 feature = fvs.getIndexAtPosition(pi);
-                topic = this.getData().get(di).topicSequence.getIndexAtPosition(pi);
+                topic = t.topicSequence.getIndexAtPosition(pi);
                 if (topic == prevtopic && (!withBigrams || ((FeatureSequenceWithBigrams) fvs).getBiIndexAtPosition(pi) != -1)) {
                     if (sb == null)
                         sb = new StringBuffer(alphabet.lookupObject(prevfeature).toString() + " " + alphabet.lookupObject(feature));
@@ -1434,41 +2335,23 @@ public class ParallelTopicModel implements Serializable {
      * Print an unnormalized weight for every word in every topic.
      * Most of these will be equal to the smoothing parameter beta.
      */
-    public void printTopicWordWeights(PrintWriter out) throws IOException {
-        // Probably not the most efficient way to do this...
-
-        for (int topic = 0; topic < numTopics; topic++) {
-            for (int type = 0; type < numTypes; type++) {
-
-                int[] topicCounts = typeTopicCounts[type];
-
-                double weight = beta;
-
-                int index = 0;
-                while (index < topicCounts.length &&
-                        topicCounts[index] > 0) {
-
-                    int currentTopic = topicCounts[index] & topicMask;
-
-
-                    if (currentTopic == topic) {
-                        weight += topicCounts[index] >> topicBits;
-                        break;
-                    }
-
-                    index++;
+    public void printTopicWordWeights(final PrintWriter out) throws IOException {
+        getTopicWords(false, true, new SparseRowConsumer() {
+            public void consume(int topic, int[] types, double[] weights, int size) {
+                for (int i = 0; i < size; i++) {
+                    out.println(topic + "\t" + alphabet.lookupObject(types[i]) + "\t" + weights[i]);
                 }
-
-                out.println(topic + "\t" + alphabet.lookupObject(type) + "\t" + weight);
-
             }
-        }
+        });
     }
 
     /**
      * Get the smoothed distribution over topics for a training instance.
      */
     public double[] getTopicProbabilities(int instanceID) {
+        if (corpus != null) {
+            return getTopicProbabilities(corpus.getDocument(instanceID).topicSequence);
+        }
         LabelSequence topics = data.get(instanceID).topicSequence;
         return getTopicProbabilities(topics);
     }
@@ -1503,7 +2386,7 @@ public class ParallelTopicModel implements Serializable {
     }
 
     public void printDocumentTopics(File file) throws IOException {
-        PrintWriter out = new PrintWriter(new FileWriter(file));
+        PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(file)));
         printDocumentTopics(out);
         out.close();
     }
@@ -1511,25 +2394,26 @@ public class ParallelTopicModel implements Serializable {
     public void printDenseDocumentTopics(PrintWriter out) {
         int docLen;
         int[] topicCounts = new int[numTopics];
-        for (int doc = 0; doc < data.size(); doc++) {
-            LabelSequence topicSequence = (LabelSequence) data.get(doc).topicSequence;
-            int[] currentDocTopics = topicSequence.getFeatures();
+        for (int doc = 0; doc < numDocuments(); doc++) {
+            int[] currentDocTopics = documentTopics(doc);
+            int start = documentStart(doc);
+            int end = documentEnd(doc);
 
             StringBuilder builder = new StringBuilder();
 
             builder.append(doc);
             builder.append("\t");
 
-            if (data.get(doc).instance.getName() != null) {
-                builder.append(data.get(doc).instance.getName());
+            if (documentName(doc) != null) {
+                builder.append(documentName(doc));
             } else {
                 builder.append("no-name");
             }
 
-            docLen = currentDocTopics.length;
+            docLen = end - start;
 
             // Count up the tokens
-            for (int token = 0; token < docLen; token++) {
+            for (int token = start; token < end; token++) {
                 topicCounts[currentDocTopics[token]]++;
             }
 
@@ -1548,79 +2432,165 @@ public class ParallelTopicModel implements Serializable {
     }
 
     /**
+     * Print the topics of each document in decreasing order of proportion.
+     * Blocks of <code>EXPORT_BLOCK_SIZE</code> documents are formatted on
+     * <code>numThreads</code> threads and then written in order, so memory
+     * use does not grow with the number of documents.
+     *
      * @param out       A print writer
      * @param threshold Only print topics with proportion greater than this number
      * @param max       Print no more than this many topics
      */
-    public void printDocumentTopics(PrintWriter out, double threshold, int max) {
+    public void printDocumentTopics(PrintWriter out, final double threshold, int max) {
         out.print("#doc name topic proportion ...\n");
-        int docLen;
-        int[] topicCounts = new int[numTopics];
-
-        IDSorter[] sortedTopics = new IDSorter[numTopics];
-        for (int topic = 0; topic < numTopics; topic++) {
-            // Initialize the sorters with dummy values
-            sortedTopics[topic] = new IDSorter(topic, topic);
-        }
 
         if (max < 0 || max > numTopics) {
             max = numTopics;
         }
+        final int maxTopics = max;
 
-        for (int doc = 0; doc < data.size(); doc++) {
-            LabelSequence topicSequence = (LabelSequence) data.get(doc).topicSequence;
-            int[] currentDocTopics = topicSequence.getFeatures();
+        // Topics a document doesn't use have proportion alpha[topic] / (docLen + alphaSum),
+        //  so they always come in the order of their alphas
+        IDSorter[] sortedAlphas = new IDSorter[numTopics];
+        for (int topic = 0; topic < numTopics; topic++) {
+            sortedAlphas[topic] = new IDSorter(topic, alpha[topic]);
+        }
+        Arrays.sort(sortedAlphas);
+        final int[] alphaOrder = new int[numTopics];
+        for (int i = 0; i < numTopics; i++) {
+            alphaOrder[i] = sortedAlphas[i].getID();
+        }
 
-            StringBuilder builder = new StringBuilder();
+        final String[] lines = new String[EXPORT_BLOCK_SIZE];
+        ExecutorService executor = numThreads > 1 ? Executors.newFixedThreadPool(numThreads) : null;
+        try {
+            for (int blockStart = 0; blockStart < numDocuments(); blockStart += EXPORT_BLOCK_SIZE) {
+                final int firstDoc = blockStart;
+                int blockSize = Math.min(EXPORT_BLOCK_SIZE, numDocuments() - blockStart);
+
+                ParallelRanges.run(executor, blockSize, numThreads, new ParallelRanges.Body() {
+                    public void run(int start, int end, int task) {
+                        int[] topicCounts = new int[numTopics];
+                        int[] usedTopics = new int[numTopics];
+                        IDSorter[] sortedTopics = new IDSorter[numTopics];
+                        for (int topic = 0; topic < numTopics; topic++) {
+                            sortedTopics[topic] = new IDSorter(topic, topic);
+                        }
 
-            builder.append(doc);
-            builder.append("\t");
+                        for (int i = start; i < end; i++) {
+                            lines[i] = formatDocumentTopics(firstDoc + i, threshold, maxTopics, alphaOrder,
+                                    topicCounts, usedTopics, sortedTopics);
+                        }
+                    }
+                });
 
-            if (data.get(doc).instance.getName() != null) {
-                builder.append(data.get(doc).instance.getName());
-            } else {
-                builder.append("no-name");
+                for (int i = 0; i < blockSize; i++) {
+                    out.println(lines[i]);
+                    lines[i] = null;
+                }
             }
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+        }
+    }
 
-            builder.append("\t");
-            docLen = currentDocTopics.length;
+    /**
+     * One line of <code>printDocumentTopics()</code>. The topics the
+     * document uses are sorted, then merged with the unused topics in
+     * <code>alphaOrder</code>, rather than sorting every topic.
+     */
+    private String formatDocumentTopics(int doc, double threshold, int max, int[] alphaOrder,
+                                        int[] topicCounts, int[] usedTopics, IDSorter[] sortedTopics) {
+        int[] currentDocTopics = documentTopics(doc);
+        int start = documentStart(doc);
+        int end = documentEnd(doc);
 
-            // Count up the tokens
-            for (int token = 0; token < docLen; token++) {
-                topicCounts[currentDocTopics[token]]++;
-            }
+        StringBuilder builder = new StringBuilder();
 
-            // And normalize
-            for (int topic = 0; topic < numTopics; topic++) {
-                sortedTopics[topic].set(topic, (alpha[topic] + topicCounts[topic]) / (docLen + alphaSum));
+        builder.append(doc);
+        builder.append("\t");
+
+        if (documentName(doc) != null) {
+            builder.append(documentName(doc));
+        } else {
+            builder.append("no-name");
+        }
+
+        builder.append("\t");
+        int docLen = end - start;
+
+        // Count up the tokens
+        int numUsed = 0;
+        for (int token = start; token < end; token++) {
+            int topic = currentDocTopics[token];
+            if (topicCounts[topic] == 0) {
+                usedTopics[numUsed++] = topic;
             }
+            topicCounts[topic]++;
+        }
+
+        // And normalize
+        for (int i = 0; i < numUsed; i++) {
+            int topic = usedTopics[i];
+            sortedTopics[i].set(topic, (alpha[topic] + topicCounts[topic]) / (docLen + alphaSum));
+        }
+        Arrays.sort(sortedTopics, 0, numUsed);
 
-            Arrays.sort(sortedTopics);
+        int used = 0;
+        int unused = 0;
+        for (int i = 0; i < max; i++) {
+            while (unused < numTopics && topicCounts[alphaOrder[unused]] > 0) {
+                unused++;
+            }
 
-            for (int i = 0; i < max; i++) {
-                if (sortedTopics[i].getWeight() < threshold) {
-                    break;
+            int topic;
+            double weight;
+            if (unused == numTopics) {
+                topic = sortedTopics[used].getID();
+                weight = sortedTopics[used].getWeight();
+                used++;
+            } else {
+                int unusedTopic = alphaOrder[unused];
+                double unusedWeight = alpha[unusedTopic] / (docLen + alphaSum);
+                if (used < numUsed &&
+                        (sortedTopics[used].getWeight() > unusedWeight ||
+                                (sortedTopics[used].getWeight() == unusedWeight &&
+                                        sortedTopics[used].getID() > unusedTopic))) {
+                    topic = sortedTopics[used].getID();
+                    weight = sortedTopics[used].getWeight();
+                    used++;
+                } else {
+                    topic = unusedTopic;
+                    weight = unusedWeight;
+                    unused++;
                 }
+            }
 
-                builder.append(sortedTopics[i].getID() + "\t" +
-                        sortedTopics[i].getWeight() + "\t");
+            if (weight < threshold) {
+                break;
             }
-            out.println(builder);
 
-            Arrays.fill(topicCounts, 0);
+            builder.append(topic + "\t" + weight + "\t");
+        }
+
+        for (int i = 0; i < numUsed; i++) {
+            topicCounts[usedTopics[i]] = 0;
         }
 
+        return builder.toString();
     }
 
     public double[][] getSubCorpusTopicWords(boolean[] documentMask, boolean normalized, boolean smoothed) {
         double[][] result = new double[numTopics][numTypes];
         int[] subCorpusTokensPerTopic = new int[numTopics];
 
-        for (int doc = 0; doc < data.size(); doc++) {
+        for (int doc = 0; doc < numDocuments(); doc++) {
             if (documentMask[doc]) {
-                int[] words = ((FeatureSequence) data.get(doc).instance.getData()).getFeatures();
-                int[] topics = data.get(doc).topicSequence.getFeatures();
-                for (int position = 0; position < topics.length; position++) {
+                int[] words = documentTokens(doc);
+                int[] topics = documentTopics(doc);
+                for (int position = documentStart(doc); position < documentEnd(doc); position++) {
                     result[topics[position]][words[position]]++;
                     subCorpusTokensPerTopic[topics[position]]++;
                 }
@@ -1707,11 +2677,11 @@ public class ParallelTopicModel implements Serializable {
     }
 
     public double[][] getDocumentTopics(boolean normalized, boolean smoothed) {
-        double[][] result = new double[data.size()][numTopics];
+        double[][] result = new double[numDocuments()][numTopics];
 
-        for (int doc = 0; doc < data.size(); doc++) {
-            int[] topics = data.get(doc).topicSequence.getFeatures();
-            for (int position = 0; position < topics.length; position++) {
+        for (int doc = 0; doc < numDocuments(); doc++) {
+            int[] topics = documentTopics(doc);
+            for (int position = documentStart(doc); position < documentEnd(doc); position++) {
                 result[doc][topics[position]]++;
             }
 
@@ -1736,6 +2706,197 @@ public class ParallelTopicModel implements Serializable {
         return result;
     }
 
+    /**
+     * Stream the words of each topic to <code>consumer</code>, topic by
+     * topic, with the same values as <code>getTopicWords()</code> but
+     * without a dense numTopics x numTypes array. Without smoothing each
+     * row only has the words assigned to the topic; with smoothing every
+     * word has a value.
+     * <p>
+     * The counts are first regrouped by topic, which takes two ints per
+     * non-zero count.
+     */
+    public void getTopicWords(boolean normalized, boolean smoothed, SparseRowConsumer consumer) throws IOException {
+
+        // Regroup the packed counts of each type by topic
+        int[] topicOffsets = new int[numTopics + 1];
+        for (int type = 0; type < numTypes; type++) {
+            int[] topicCounts = typeTopicCounts[type];
+            for (int index = 0; index < topicCounts.length && topicCounts[index] > 0; index++) {
+                topicOffsets[(topicCounts[index] & topicMask) + 1]++;
+            }
+        }
+        for (int topic = 0; topic < numTopics; topic++) {
+            topicOffsets[topic + 1] += topicOffsets[topic];
+        }
+
+        int[] positions = Arrays.copyOf(topicOffsets, numTopics);
+        int[] topicTypes = new int[topicOffsets[numTopics]];
+        int[] topicTypeCounts = new int[topicOffsets[numTopics]];
+        for (int type = 0; type < numTypes; type++) {
+            int[] topicCounts = typeTopicCounts[type];
+            for (int index = 0; index < topicCounts.length && topicCounts[index] > 0; index++) {
+                int position = positions[topicCounts[index] & topicMask]++;
+                topicTypes[position] = type;
+                topicTypeCounts[position] = topicCounts[index] >> topicBits;
+            }
+        }
+
+        int[] rowTypes = new int[smoothed ? numTypes : 0];
+        double[] rowValues = new double[smoothed ? numTypes : 0];
+        for (int type = 0; type < rowTypes.length; type++) {
+            rowTypes[type] = type;
+        }
+
+        for (int topic = 0; topic < numTopics; topic++) {
+            int start = topicOffsets[topic];
+            int size = topicOffsets[topic + 1] - start;
+
+            double normalizer = 1.0;
+            if (normalized) {
+                normalizer = smoothed ? 1.0 / (tokensPerTopic[topic] + numTypes * beta) : 1.0 / tokensPerTopic[topic];
+            }
+
+            if (smoothed) {
+                Arrays.fill(rowValues, 0.0);
+                for (int i = start; i < start + size; i++) {
+                    rowValues[topicTypes[i]] = topicTypeCounts[i];
+                }
+                for (int type = 0; type < numTypes; type++) {
+                    rowValues[type] += beta;
+                    if (normalized) {
+                        rowValues[type] *= normalizer;
+                    }
+                }
+                consumer.consume(topic, rowTypes, rowValues, numTypes);
+            } else {
+                if (rowValues.length < size) {
+                    rowTypes = new int[size];
+                    rowValues = new double[size];
+                }
+                for (int i = 0; i < size; i++) {
+                    rowTypes[i] = topicTypes[start + i];
+                    rowValues[i] = topicTypeCounts[start + i];
+                    if (normalized) {
+                        rowValues[i] *= normalizer;
+                    }
+                }
+                consumer.consume(topic, rowTypes, rowValues, size);
+            }
+        }
+    }
+
+    /**
+     * Stream the topics of each document to <code>consumer</code>, in
+     * document order, with the same values as <code>getDocumentTopics()</code>
+     * but without a dense numDocs x numTopics array. Without smoothing
+     * each row only has the topics used in the document; with smoothing
+     * every topic has a value.
+     * <p>
+     * Blocks of <code>EXPORT_BLOCK_SIZE</code> documents are counted on
+     * <code>numThreads</code> threads, and then passed to the consumer on
+     * the calling thread.
+     */
+    public void getDocumentTopics(final boolean normalized, final boolean smoothed,
+                                  SparseRowConsumer consumer) throws IOException {
+
+        final int[] rowOffsets = new int[EXPORT_BLOCK_SIZE + 1];
+        final int[] rowSizes = new int[EXPORT_BLOCK_SIZE];
+        int[] rowTopics = new int[0];
+        double[] rowValues = new double[0];
+
+        ExecutorService executor = numThreads > 1 ? Executors.newFixedThreadPool(numThreads) : null;
+        try {
+            for (int blockStart = 0; blockStart < numDocuments(); blockStart += EXPORT_BLOCK_SIZE) {
+                final int firstDoc = blockStart;
+                int blockSize = Math.min(EXPORT_BLOCK_SIZE, numDocuments() - blockStart);
+
+                // A document uses at most as many topics as it has tokens
+                for (int i = 0; i < blockSize; i++) {
+                    int doc = firstDoc + i;
+                    int capacity = smoothed ? numTopics :
+                            Math.min(numTopics, documentEnd(doc) - documentStart(doc));
+                    rowOffsets[i + 1] = rowOffsets[i] + capacity;
+                }
+                if (rowTopics.length < rowOffsets[blockSize]) {
+                    rowTopics = new int[rowOffsets[blockSize]];
+                    rowValues = new double[rowOffsets[blockSize]];
+                }
+                final int[] blockTopics = rowTopics;
+                final double[] blockValues = rowValues;
+
+                ParallelRanges.run(executor, blockSize, numThreads, new ParallelRanges.Body() {
+                    public void run(int start, int end, int task) {
+                        int[] topicCounts = new int[numTopics];
+                        for (int i = start; i < end; i++) {
+                            rowSizes[i] = documentTopicRow(firstDoc + i, normalized, smoothed, topicCounts,
+                                    blockTopics, blockValues, rowOffsets[i]);
+                        }
+                    }
+                });
+
+                int[] topics = new int[numTopics];
+                double[] values = new double[numTopics];
+                for (int i = 0; i < blockSize; i++) {
+                    System.arraycopy(blockTopics, rowOffsets[i], topics, 0, rowSizes[i]);
+                    System.arraycopy(blockValues, rowOffsets[i], values, 0, rowSizes[i]);
+                    consumer.consume(firstDoc + i, topics, values, rowSizes[i]);
+                }
+            }
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * Write one row of <code>getDocumentTopics()</code> into <code>topics</code>
+     * and <code>values</code> at <code>offset</code>.
+     *
+     * @return the number of topics written
+     */
+    private int documentTopicRow(int doc, boolean normalized, boolean smoothed, int[] topicCounts,
+                                 int[] topics, double[] values, int offset) {
+        int[] docTopics = documentTopics(doc);
+        int size = 0;
+        for (int position = documentStart(doc); position < documentEnd(doc); position++) {
+            if (topicCounts[docTopics[position]] == 0) {
+                topics[offset + size++] = docTopics[position];
+            }
+            topicCounts[docTopics[position]]++;
+        }
+
+        if (smoothed) {
+            size = numTopics;
+            for (int topic = 0; topic < numTopics; topic++) {
+                topics[offset + topic] = topic;
+                values[offset + topic] = topicCounts[topic] + alpha[topic];
+                topicCounts[topic] = 0;
+            }
+        } else {
+            Arrays.sort(topics, offset, offset + size);
+            for (int i = 0; i < size; i++) {
+                int topic = topics[offset + i];
+                values[offset + i] = topicCounts[topic];
+                topicCounts[topic] = 0;
+            }
+        }
+
+        if (normalized) {
+            double sum = 0.0;
+            for (int i = offset; i < offset + size; i++) {
+                sum += values[i];
+            }
+            double normalizer = 1.0 / sum;
+            for (int i = offset; i < offset + size; i++) {
+                values[i] *= normalizer;
+            }
+        }
+
+        return size;
+    }
+
     public ArrayList<TreeSet<IDSorter>> getTopicDocuments(double smoothing) {
         ArrayList<TreeSet<IDSorter>> topicSortedDocuments = new ArrayList<TreeSet<IDSorter>>(numTopics);
 
@@ -1746,14 +2907,15 @@ public class ParallelTopicModel implements Serializable {
 
         int[] topicCounts = new int[numTopics];
 
-        for (int doc = 0; doc < data.size(); doc++) {
-            int[] topics = data.get(doc).topicSequence.getFeatures();
-            for (int position = 0; position < topics.length; position++) {
+        for (int doc = 0; doc < numDocuments(); doc++) {
+            int[] topics = documentTopics(doc);
+            int docLength = documentEnd(doc) - documentStart(doc);
+            for (int position = documentStart(doc); position < documentEnd(doc); position++) {
                 topicCounts[topics[position]]++;
             }
 
             for (int topic = 0; topic < numTopics; topic++) {
-                topicSortedDocuments.get(topic).add(new IDSorter(doc, (topicCounts[topic] + smoothing) / (topics.length + numTopics * smoothing)));
+                topicSortedDocuments.get(topic).add(new IDSorter(doc, (topicCounts[topic] + smoothing) / (docLength + numTopics * smoothing)));
                 topicCounts[topic] = 0;
             }
         }
@@ -1772,33 +2934,53 @@ public class ParallelTopicModel implements Serializable {
     public void printTopicDocuments(PrintWriter out, int max) {
         out.println("#topic doc name proportion ...");
 
-        ArrayList<TreeSet<IDSorter>> topicSortedDocuments = getTopicDocuments(10.0);
+        TopicQueryIndex index = getQueryIndex(0, Math.min(max, numDocuments()));
 
         for (int topic = 0; topic < numTopics; topic++) {
-            TreeSet<IDSorter> sortedDocuments = topicSortedDocuments.get(topic);
-
-            int i = 0;
-            for (IDSorter sorter : sortedDocuments) {
-                if (i == max) {
-                    break;
-                }
+            int[] docs = index.getTopDocuments(topic, max);
+            double[] proportions = index.getTopDocumentWeights(topic, max);
 
-                int doc = sorter.getID();
-                double proportion = sorter.getWeight();
-                String name = (String) data.get(doc).instance.getName();
+            for (int i = 0; i < docs.length; i++) {
+                String name = (String) documentName(docs[i]);
                 if (name == null) {
                     name = "no-name";
                 }
-                out.format("%d %d %s %f\n", topic, doc, name, proportion);
-
-                i++;
+                out.format("%d %d %s %f\n", topic, docs[i], name, proportions[i]);
             }
         }
     }
 
     // Serialization
 
+    /**
+     * Write the Gibbs sampling state: a binary {@link TopicStateFile}, or
+     * the gzipped text of <code>printTextState()</code> if <code>setTextState(true)</code>
+     * has been called. Either can be read by <code>initializeFromState()</code>.
+     */
     public void printState(File f) throws IOException {
+        if (usingTextState) {
+            printTextState(f);
+            return;
+        }
+
+        TopicStateFile.Writer writer = new TopicStateFile.Writer(f, numTopics, numTypes, iterationsCompleted,
+                alpha, alphaSum, beta, betaSum, numDocuments());
+        try {
+            for (int doc = 0; doc < numDocuments(); doc++) {
+                writer.writeDocument(documentTopics(doc), documentStart(doc), documentEnd(doc));
+            }
+        } catch (IOException e) {
+            writer.abort();
+            throw e;
+        }
+        writer.close();
+    }
+
+    /**
+     * Write the Gibbs sampling state as gzipped text, one line per token with its
+     * document, source, position, type index, word and topic.
+     */
+    public void printTextState(File f) throws IOException {
         PrintStream out =
                 new PrintStream(new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(f))));
         printState(out);
@@ -1815,20 +2997,22 @@ public class ParallelTopicModel implements Serializable {
         out.println();
         out.println("#beta : " + beta);
 
-        for (int doc = 0; doc < data.size(); doc++) {
-            FeatureSequence tokenSequence = (FeatureSequence) data.get(doc).instance.getData();
-            LabelSequence topicSequence = (LabelSequence) data.get(doc).topicSequence;
+        for (int doc = 0; doc < numDocuments(); doc++) {
+            int[] tokens = documentTokens(doc);
+            int[] topics = documentTopics(doc);
+            int start = documentStart(doc);
 
+            // A packed corpus does not keep the sources
             String source = "NA";
-            if (data.get(doc).instance.getSource() != null) {
+            if (corpus == null && data.get(doc).instance.getSource() != null) {
                 source = data.get(doc).instance.getSource().toString();
             }
 
             Formatter output = new Formatter(new StringBuilder(), Locale.US);
 
-            for (int pi = 0; pi < topicSequence.getLength(); pi++) {
-                int type = tokenSequence.getIndexAtPosition(pi);
-                int topic = topicSequence.getIndexAtPosition(pi);
+            for (int pi = 0; pi < documentEnd(doc) - start; pi++) {
+                int type = tokens[start + pi];
+                int topic = topics[start + pi];
 
                 output.format("%d %s %d %d %s %d\n", doc, source, pi, type, alphabet.lookupObject(type), topic);
 
@@ -1873,12 +3057,10 @@ public class ParallelTopicModel implements Serializable {
             topicLogGammas[topic] = Dirichlet.logGammaStirling(alpha[topic]);
         }
 
-        for (int doc = 0; doc < data.size(); doc++) {
-            LabelSequence topicSequence = (LabelSequence) data.get(doc).topicSequence;
+        for (int doc = 0; doc < numDocuments(); doc++) {
+            docTopics = documentTopics(doc);
 
-            docTopics = topicSequence.getFeatures();
-
-            for (int token = 0; token < docTopics.length; token++) {
+            for (int token = documentStart(doc); token < documentEnd(doc); token++) {
                 topicCounts[docTopics[token]]++;
             }
 
@@ -1890,13 +3072,13 @@ public class ParallelTopicModel implements Serializable {
             }
 
             // subtract the (count + parameter) sum term
-            logLikelihood -= Dirichlet.logGammaStirling(alphaSum + docTopics.length);
+            logLikelihood -= Dirichlet.logGammaStirling(alphaSum + documentEnd(doc) - documentStart(doc));
 
             Arrays.fill(topicCounts, 0);
         }
 
         // add the parameter sum term
-        logLikelihood += data.size() * Dirichlet.logGammaStirling(alphaSum);
+        logLikelihood += numDocuments() * Dirichlet.logGammaStirling(alphaSum);
 
         // And the topics
 
@@ -1967,10 +3149,42 @@ public class ParallelTopicModel implements Serializable {
      */
     public TopicInferencer getInferencer() {
         return new TopicInferencer(typeTopicCounts, tokensPerTopic,
-                data.get(0).instance.getDataAlphabet(),
+                alphabet,
                 alpha, beta, betaSum);
     }
 
+    /**
+     * Copy the type-topic counts into one slab, see {@link TypeTopicCountStore}.
+     *
+     * @param denseThreshold The number of non-zero topics at which a row is
+     *                       stored densely, or 0 to keep every row sparse
+     * @param offHeap        Whether to allocate the slab outside the Java heap
+     */
+    public TypeTopicCountStore getTypeTopicCountStore(int denseThreshold, boolean offHeap) {
+        return TypeTopicCountStore.fromRows(typeTopicCounts, numTopics, denseThreshold, offHeap);
+    }
+
+    /**
+     * Return a tool for estimating topic distributions for new documents
+     * that holds its own copy of the type-topic counts in one slab, so
+     * that the model's rows can be released.
+     */
+    public TopicInferencer getInferencer(int denseThreshold, boolean offHeap) {
+        return new TopicInferencer(getTypeTopicCountStore(denseThreshold, offHeap),
+                tokensPerTopic, alphabet, alpha, beta, betaSum);
+    }
+
+    /**
+     * Write the trained parameters (alphabet, alpha, beta and type-topic counts)
+     * in the binary format of {@link TopicModelFile}. Unlike the serialized model,
+     * this does not include the training documents, and it is read back with
+     * {@link TopicInferencer#read}, which memory-maps it.
+     */
+    public void writeModelFile(File modelFile) throws IOException {
+        TopicModelFile.write(modelFile, alphabet, alpha, beta, betaSum,
+                tokensPerTopic, typeTopicCounts);
+    }
+
     /**
      * Return a tool for evaluating the marginal probability of new documents
      * under this model
@@ -1983,7 +3197,9 @@ public class ParallelTopicModel implements Serializable {
     private void writeObject(ObjectOutputStream out) throws IOException {
         out.writeInt(CURRENT_SERIAL_VERSION);
 
-        out.writeObject(data);
+        // A packed corpus is written as TopicAssignments, so that
+        //  there is only one model file format
+        out.writeObject(getData());
         out.writeObject(alphabet);
         out.writeObject(topicAlphabet);
 
@@ -2069,6 +3285,11 @@ public class ParallelTopicModel implements Serializable {
         printLogLikelihood = in.readBoolean();
 
         numThreads = in.readInt();
+
+        // Fields that are not serialized skip their initializers
+        phaseTimer = new PhaseTimer();
+        samplerType = SamplerType.SPARSE;
+        mhSteps = AliasWorkerRunnable.DEFAULT_MH_STEPS;
     }
 
     public void write(File serializedModelFile) {
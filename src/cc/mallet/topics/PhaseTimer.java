@@ -0,0 +1,93 @@
+/* Copyright (C) 2005 Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.  For further
+   information, see the file `LICENSE' included with this distribution. */
+
+package cc.mallet.topics;
+
+import java.util.Arrays;
+
+/**
+ * Accumulates wall-clock time spent in each phase of a training iteration.
+ * Phases are measured back to back: <code>mark()</code> starts the clock,
+ * and each call to <code>record(phase)</code> charges the time since the
+ * previous mark or record to that phase.
+ */
+
+public class PhaseTimer {
+
+    public enum Phase {
+        SAMPLE, MERGE, OPTIMIZE, SAVE, LIKELIHOOD
+    }
+
+    private long[] totalNanos = new long[Phase.values().length];
+    private long[] lastNanos = new long[Phase.values().length];
+    private long markNanos = System.nanoTime();
+
+    /**
+     * Start timing a new sequence of phases.
+     */
+    public void mark() {
+        markNanos = System.nanoTime();
+    }
+
+    /**
+     * Charge the time since the last mark to <code>phase</code>, and restart the clock.
+     *
+     * @return the number of nanoseconds charged
+     */
+    public long record(Phase phase) {
+        long now = System.nanoTime();
+        long elapsed = now - markNanos;
+        totalNanos[phase.ordinal()] += elapsed;
+        lastNanos[phase.ordinal()] += elapsed;
+        markNanos = now;
+        return elapsed;
+    }
+
+    /**
+     * Forget the per-iteration times, but keep the running totals.
+     */
+    public void startIteration() {
+        Arrays.fill(lastNanos, 0);
+        mark();
+    }
+
+    /**
+     * Milliseconds spent in <code>phase</code> over all iterations
+     */
+    public long getTotalMillis(Phase phase) {
+        return totalNanos[phase.ordinal()] / 1000000;
+    }
+
+    /**
+     * Milliseconds spent in <code>phase</code> since the last call to <code>startIteration()</code>
+     */
+    public long getIterationMillis(Phase phase) {
+        return lastNanos[phase.ordinal()] / 1000000;
+    }
+
+    public void reset() {
+        Arrays.fill(totalNanos, 0);
+        Arrays.fill(lastNanos, 0);
+        mark();
+    }
+
+    public String iterationSummary() {
+        StringBuilder out = new StringBuilder();
+        for (Phase phase : Phase.values()) {
+            out.append(phase.name().toLowerCase() + ": " + getIterationMillis(phase) + "ms ");
+        }
+        return out.toString().trim();
+    }
+
+    public String toString() {
+        StringBuilder out = new StringBuilder();
+        for (Phase phase : Phase.values()) {
+            out.append(phase.name().toLowerCase() + ": " + getTotalMillis(phase) + "ms ");
+        }
+        return out.toString().trim();
+    }
+}
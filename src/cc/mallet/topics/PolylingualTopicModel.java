@@ -106,6 +106,9 @@ public class PolylingualTopicModel implements Serializable {
     static CommandOption.Double betaOption = new CommandOption.Double
             (PolylingualTopicModel.class, "beta", "DECIMAL", true, 0.01,
                     "Beta parameter: smoothing over unigram distribution.", null);
+    static CommandOption.Integer numThreadsOption = new CommandOption.Integer
+            (PolylingualTopicModel.class, "num-threads", "INTEGER", true, 1,
+                    "The number of threads for parallel training.", null);
     public int numIterations = 1000;
     public int burninPeriod = 5;
     public int saveSampleInterval = 5; // was 10;
@@ -147,6 +150,8 @@ public class PolylingualTopicModel implements Serializable {
     protected NumberFormat formatter;
     protected boolean printLogLikelihood = false;
     int numLanguages = 1;
+    int numThreads = 1;
+    TrainingMetrics trainingMetrics = null;
     HashSet<String> testingIDs = null;
     int topicTermCount = 0;
     int betaTopicCount = 0;
@@ -192,6 +197,41 @@ public class PolylingualTopicModel implements Serializable {
                 Integer.toBinaryString(topicMask) + " topic mask");
     }
 
+    /**
+     * A sampler for one thread of <code>model</code>, sharing its documents
+     * and priors but with its own counts, cached values and histograms.
+     */
+    private PolylingualTopicModel(PolylingualTopicModel model, Randoms random) {
+        this.data = model.data;
+        this.topicAlphabet = model.topicAlphabet;
+        this.numTopics = model.numTopics;
+        this.topicMask = model.topicMask;
+        this.topicBits = model.topicBits;
+        this.numLanguages = model.numLanguages;
+        this.alphabets = model.alphabets;
+        this.vocabularySizes = model.vocabularySizes;
+        this.alpha = model.alpha;
+        this.betas = model.betas;
+        this.betaSums = model.betaSums;
+        this.random = random;
+        this.formatter = model.formatter;
+
+        languageTypeTopicCounts = new int[numLanguages][][];
+        for (int language = 0; language < numLanguages; language++) {
+            int[][] typeTopicCounts = model.languageTypeTopicCounts[language];
+            languageTypeTopicCounts[language] = new int[typeTopicCounts.length][];
+            for (int type = 0; type < typeTopicCounts.length; type++) {
+                languageTypeTopicCounts[language][type] = new int[typeTopicCounts[type].length];
+            }
+        }
+        languageTokensPerTopic = new int[numLanguages][numTopics];
+        languageSmoothingOnlyMasses = new double[numLanguages];
+        languageCachedCoefficients = new double[numLanguages][numTopics];
+
+        docLengthCounts = new int[model.docLengthCounts.length];
+        topicDocCounts = new int[numTopics][model.docLengthCounts.length];
+    }
+
     private static LabelAlphabet newLabelAlphabet(int numTopics) {
         LabelAlphabet ret = new LabelAlphabet();
         for (int i = 0; i < numTopics; i++)
@@ -270,6 +310,7 @@ public class PolylingualTopicModel implements Serializable {
         topicModel.setNumIterations(numIterationsOption.value);
         topicModel.setOptimizeInterval(optimizeIntervalOption.value);
         topicModel.setBurninPeriod(optimizeBurnInOption.value);
+        topicModel.setNumThreads(numThreadsOption.value);
 
         if (outputStateIntervalOption.value != 0) {
             topicModel.setSaveState(outputStateIntervalOption.value, stateFile.value);
@@ -364,6 +405,21 @@ public class PolylingualTopicModel implements Serializable {
         this.optimizeInterval = interval;
     }
 
+    /**
+     * Sample with <code>threads</code> threads, as described in {@link ShardedSampler}.
+     */
+    public void setNumThreads(int threads) {
+        this.numThreads = threads;
+    }
+
+    /**
+     * Send the throughput, phase times and per-thread busy and idle times
+     * of every iteration to <code>metrics</code>, or to nothing if it is null.
+     */
+    public void setTrainingMetrics(TrainingMetrics metrics) {
+        this.trainingMetrics = metrics;
+    }
+
     public void setModelOutput(int interval, String filename) {
         this.saveModelInterval = interval;
         this.modelFilename = filename;
@@ -626,13 +682,50 @@ public class PolylingualTopicModel implements Serializable {
 
     public void estimate(int iterationsThisRound) throws IOException {
 
+        ShardedSampler sampler = null;
+        ShardWorker[] workers = null;
+        if (numThreads > 1) {
+            int[] docLengths = new int[data.size()];
+            for (int doc = 0; doc < data.size(); doc++) {
+                for (LabelSequence sequence : data.get(doc).topicSequences) {
+                    docLengths[doc] += sequence.getLength();
+                }
+            }
+            sampler = new ShardedSampler(docLengths, numThreads);
+            workers = new ShardWorker[sampler.getNumShards()];
+            for (int shard = 0; shard < workers.length; shard++) {
+                workers[shard] = new ShardWorker(new PolylingualTopicModel(this, new Randoms(random.nextInt())));
+            }
+        }
+
+        try {
+            sampleIterations(iterationsThisRound, sampler, workers);
+        } finally {
+            if (sampler != null) {
+                sampler.shutdown();
+            }
+        }
+    }
+
+    private void sampleIterations(int iterationsThisRound, ShardedSampler sampler,
+                                  ShardWorker[] workers) throws IOException {
+
         long startTime = System.currentTimeMillis();
         int maxIteration = iterationsSoFar + iterationsThisRound;
 
         long totalTime = 0;
 
+        long numTokens = 0;
+        for (TopicAssignment document : data) {
+            for (LabelSequence sequence : document.topicSequences) {
+                numTokens += sequence.getLength();
+            }
+        }
+        PhaseTimer phaseTimer = new PhaseTimer();
+
         for (; iterationsSoFar <= maxIteration; iterationsSoFar++) {
             long iterationStart = System.currentTimeMillis();
+            phaseTimer.startIteration();
 
             if (showTopicsInterval != 0 && iterationsSoFar != 0 && iterationsSoFar % showTopicsInterval == 0) {
                 System.out.println();
@@ -655,20 +748,35 @@ public class PolylingualTopicModel implements Serializable {
             if (iterationsSoFar > burninPeriod && optimizeInterval != 0 &&
                     iterationsSoFar % optimizeInterval == 0) {
 
+                phaseTimer.mark();
                 alphaSum = Dirichlet.learnParameters(alpha, topicDocCounts, docLengthCounts);
                 optimizeBetas();
                 clearHistograms();
                 cacheValues();
+                phaseTimer.record(PhaseTimer.Phase.OPTIMIZE);
             }
 
             // Loop over every document in the corpus
             topicTermCount = betaTopicCount = smoothingOnlyCount = 0;
 
-            for (int doc = 0; doc < data.size(); doc++) {
+            boolean shouldSaveState = iterationsSoFar >= burninPeriod &&
+                    iterationsSoFar % saveSampleInterval == 0;
 
-                sampleTopicsForOneDoc(data.get(doc),
-                        (iterationsSoFar >= burninPeriod &&
-                                iterationsSoFar % saveSampleInterval == 0));
+            phaseTimer.mark();
+            if (sampler != null) {
+                for (ShardWorker worker : workers) {
+                    worker.shouldSaveState = shouldSaveState;
+                }
+                sampler.sweep(workers);
+                phaseTimer.record(PhaseTimer.Phase.SAMPLE);
+                mergeHistograms(workers);
+                rebuildCounts();
+                phaseTimer.record(PhaseTimer.Phase.MERGE);
+            } else {
+                for (int doc = 0; doc < data.size(); doc++) {
+                    sampleTopicsForOneDoc(data.get(doc), shouldSaveState);
+                }
+                phaseTimer.record(PhaseTimer.Phase.SAMPLE);
             }
 
             long elapsedMillis = System.currentTimeMillis() - iterationStart;
@@ -682,6 +790,16 @@ public class PolylingualTopicModel implements Serializable {
             } else {
                 System.out.print(elapsedMillis + " ");
             }
+
+            if (trainingMetrics != null) {
+                IterationMetrics metrics = new IterationMetrics("PolylingualTopicModel", iterationsSoFar, numTokens,
+                        System.currentTimeMillis() - iterationStart);
+                metrics.setPhaseTimes(phaseTimer);
+                if (sampler != null) {
+                    metrics.setThreadTimes(sampler.getBusyNanos(), sampler.getSweepNanos());
+                }
+                trainingMetrics.publish(metrics);
+            }
         }
 
 		/*
@@ -697,6 +815,90 @@ public class PolylingualTopicModel implements Serializable {
 		*/
     }
 
+    /**
+     * Add the workers' document/topic histograms to the model's, and clear them.
+     */
+    private void mergeHistograms(ShardWorker[] workers) {
+        for (ShardWorker worker : workers) {
+            PolylingualTopicModel other = worker.sampler;
+            for (int length = 0; length < docLengthCounts.length; length++) {
+                docLengthCounts[length] += other.docLengthCounts[length];
+            }
+            for (int topic = 0; topic < numTopics; topic++) {
+                for (int count = 0; count < docLengthCounts.length; count++) {
+                    topicDocCounts[topic][count] += other.topicDocCounts[topic][count];
+                }
+            }
+            other.clearHistograms();
+        }
+    }
+
+    /**
+     * Recount the type-topic counts and topic totals of every language
+     * from the topic assignments, and recompute the cached values.
+     */
+    private void rebuildCounts() {
+        for (int language = 0; language < numLanguages; language++) {
+            int[][] typeTopicCounts = languageTypeTopicCounts[language];
+            int[] tokensPerTopic = languageTokensPerTopic[language];
+
+            for (int[] counts : typeTopicCounts) {
+                Arrays.fill(counts, 0);
+            }
+            Arrays.fill(tokensPerTopic, 0);
+
+            for (TopicAssignment document : data) {
+                FeatureSequence tokens = (FeatureSequence) document.instances[language].getData();
+                int[] topics = document.topicSequences[language].getFeatures();
+                for (int position = 0; position < tokens.getLength(); position++) {
+                    int topic = topics[position];
+                    if (topic == -1) {
+                        continue;
+                    }
+                    TopicModelCoordinator.addToTypeTopicCount(typeTopicCounts[tokens.getIndexAtPosition(position)],
+                            topic, 1, topicBits, topicMask);
+                    tokensPerTopic[topic]++;
+                }
+            }
+        }
+
+        cacheValues();
+    }
+
+    /**
+     * Samples one shard with a copy of the model's counts.
+     */
+    private class ShardWorker extends ShardedSampler.Worker {
+        PolylingualTopicModel sampler;
+        boolean shouldSaveState;
+
+        ShardWorker(PolylingualTopicModel sampler) {
+            this.sampler = sampler;
+        }
+
+        public void copyCounts() {
+            for (int language = 0; language < numLanguages; language++) {
+                int[][] typeTopicCounts = languageTypeTopicCounts[language];
+                for (int type = 0; type < typeTopicCounts.length; type++) {
+                    System.arraycopy(typeTopicCounts[type], 0,
+                            sampler.languageTypeTopicCounts[language][type], 0, typeTopicCounts[type].length);
+                }
+                System.arraycopy(languageTokensPerTopic[language], 0,
+                        sampler.languageTokensPerTopic[language], 0, numTopics);
+                System.arraycopy(languageCachedCoefficients[language], 0,
+                        sampler.languageCachedCoefficients[language], 0, numTopics);
+            }
+            System.arraycopy(languageSmoothingOnlyMasses, 0, sampler.languageSmoothingOnlyMasses, 0, numLanguages);
+            sampler.alphaSum = alphaSum;
+        }
+
+        public void sample(int startDoc, int endDoc) {
+            for (int doc = startDoc; doc < endDoc; doc++) {
+                sampler.sampleTopicsForOneDoc(data.get(doc), shouldSaveState);
+            }
+        }
+    }
+
     public void optimizeBetas() {
 
         for (int language = 0; language < numLanguages; language++) {
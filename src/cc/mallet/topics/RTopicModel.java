@@ -118,7 +118,7 @@ public class RTopicModel extends ParallelTopicModel {
 
     public void writeState(String filename) {
         try {
-            printState(new File(filename));
+            printTextState(new File(filename));
         } catch (Exception e) {
             System.err.println(e);
         }
@@ -0,0 +1,148 @@
+/* Copyright (C) 2005 Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.  For further
+   information, see the file `LICENSE' included with this distribution. */
+
+package cc.mallet.topics;
+
+import cc.mallet.util.ParallelRanges;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs Gibbs sweeps over shards of a topic model's documents on a
+ * thread pool. Used by the models whose single-document samplers update
+ * their count arrays in place, such as {@link PolylingualTopicModel},
+ * {@link LabeledLDA} and {@link DMRTopicModel}.
+ * <p>
+ * The documents are split into one contiguous, token-balanced shard per
+ * thread. At the start of a sweep each {@link Worker} copies the model's
+ * counts into its own arrays and then samples its shard against that
+ * copy, with the model's usual sampler, as the threads of
+ * ParallelTopicModel do between merges. After the sweep the model
+ * rebuilds its counts from the topic assignments, so that they match the
+ * assignments exactly again, or adds up each worker's changes to the
+ * counts with <code>mergeDeltas()</code>.
+ */
+
+public class ShardedSampler {
+
+    /**
+     * The sampling state of one thread.
+     */
+    public static abstract class Worker {
+
+        /**
+         * Copy the model's current counts, and any values cached from
+         * them, into this worker's own arrays.
+         */
+        public abstract void copyCounts();
+
+        /**
+         * Sample the topics of the documents in <code>[startDoc, endDoc)</code>
+         * against this worker's counts.
+         */
+        public abstract void sample(int startDoc, int endDoc);
+    }
+
+    DocumentShards shards;
+    ExecutorService executor;
+
+    // The time each shard and the whole of the last sweep took, for IterationMetrics
+    long[] busyNanos;
+    long sweepNanos = 0;
+
+    /**
+     * @param docLengths The number of tokens in each document
+     * @param numThreads The number of shards and threads to use
+     */
+    public ShardedSampler(int[] docLengths, int numThreads) {
+        shards = DocumentShards.tokenBalanced(docLengths, 0, docLengths.length, numThreads);
+        executor = Executors.newFixedThreadPool(shards.size());
+        busyNanos = new long[shards.size()];
+    }
+
+    /**
+     * The number of workers <code>sweep()</code> expects
+     */
+    public int getNumShards() {
+        return shards.size();
+    }
+
+    public int getStart(int shard) {
+        return shards.getStart(shard);
+    }
+
+    public int getEnd(int shard) {
+        return shards.getEnd(shard);
+    }
+
+    /**
+     * The thread pool, for other work that can be split into ranges,
+     * such as hyperparameter optimization.
+     */
+    public ExecutorService getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Have every worker copy the counts and sample its shard, and wait
+     * until all are done. The caller must then rebuild or merge the model's counts.
+     */
+    public void sweep(final Worker[] workers) {
+        if (workers.length != shards.size()) {
+            throw new IllegalArgumentException("Expected " + shards.size() + " workers, found " + workers.length);
+        }
+
+        long sweepStart = System.nanoTime();
+        ParallelRanges.run(executor, shards.size(), shards.size(), new ParallelRanges.Body() {
+            public void run(int start, int end, int task) {
+                for (int shard = start; shard < end; shard++) {
+                    long shardStart = System.nanoTime();
+                    workers[shard].copyCounts();
+                    workers[shard].sample(shards.getStart(shard), shards.getEnd(shard));
+                    busyNanos[shard] = System.nanoTime() - shardStart;
+                }
+            }
+        });
+        sweepNanos = System.nanoTime() - sweepStart;
+    }
+
+    /**
+     * The time each worker spent copying counts and sampling in the last sweep
+     */
+    public long[] getBusyNanos() {
+        return busyNanos;
+    }
+
+    /**
+     * The wall-clock time of the last sweep
+     */
+    public long getSweepNanos() {
+        return sweepNanos;
+    }
+
+    /**
+     * Add the changes each worker made to its copy of a row of counts.
+     * <code>counts</code> must still hold the values the workers copied
+     * at the start of the sweep. Afterwards it holds those values plus the
+     * sum over workers of <code>workerCounts[w][i] - counts[i]</code>.
+     */
+    public static void mergeDeltas(int[] counts, int[][] workerCounts) {
+        for (int i = 0; i < counts.length; i++) {
+            int count = counts[i];
+            int sum = count;
+            for (int[] copy : workerCounts) {
+                sum += copy[i] - count;
+            }
+            counts[i] = sum;
+        }
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
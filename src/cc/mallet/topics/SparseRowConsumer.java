@@ -0,0 +1,30 @@
+/* Copyright (C) 2005 Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.  For further
+   information, see the file `LICENSE' included with this distribution. */
+
+package cc.mallet.topics;
+
+import java.io.IOException;
+
+/**
+ * Receives the rows of a sparse matrix one at a time, in order, such as
+ * the topics of each document from <code>ParallelTopicModel.getDocumentTopics()</code>
+ * or the words of each topic from <code>getTopicWords()</code>.
+ */
+
+public interface SparseRowConsumer {
+
+    /**
+     * @param row     The index of the row, such as a document or a topic
+     * @param indices The columns of the row's non-zero values, in increasing
+     *                order, in positions <code>[0, size)</code>
+     * @param values  The value of each of those columns
+     * @param size    The number of non-zero values
+     *                <p>
+     *                The arrays are reused for the next row, so copy anything that is kept.
+     */
+    public void consume(int row, int[] indices, double[] values, int size) throws IOException;
+}
@@ -2,9 +2,16 @@ package cc.mallet.topics;
 
 import cc.mallet.types.*;
 import cc.mallet.util.Randoms;
+import gnu.trove.map.hash.TIntObjectHashMap;
 
 import java.io.*;
 import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class TopicInferencer implements Serializable {
 
@@ -27,6 +34,21 @@ public class TopicInferencer implements Serializable {
     double smoothingOnlyMass = 0.0;
     double[] cachedCoefficients;
 
+    // If non-null, typeTopicCounts and alphabet are null, and the
+    //  counts are read from this memory-mapped file instead.
+    TopicModelFile modelFile = null;
+
+    // If non-null, typeTopicCounts is null, and the counts are
+    //  read from this store instead.
+    TypeTopicCountStore countStore = null;
+    // The dense rows of the store, packed and sorted once rather than on every token
+    TIntObjectHashMap<int[]> sortedDenseRows = null;
+
+    // Used by getSampledDistribution(), created on demand
+    Sampler defaultSampler = null;
+
+    int numThreads = 1;
+
     public TopicInferencer(int[][] typeTopicCounts, int[] tokensPerTopic, Alphabet alphabet,
                            double[] alpha, double beta, double betaSum) {
 
@@ -38,6 +60,57 @@ public class TopicInferencer implements Serializable {
         numTopics = tokensPerTopic.length;
         numTypes = typeTopicCounts.length;
 
+        initialize(alpha, beta, betaSum);
+    }
+
+    /**
+     * Create an inferencer that reads the type-topic counts from
+     * a memory-mapped model file, rather than from the heap.
+     */
+    public TopicInferencer(TopicModelFile modelFile) {
+
+        this.modelFile = modelFile;
+        this.tokensPerTopic = modelFile.getTokensPerTopic();
+
+        numTopics = modelFile.getNumTopics();
+        numTypes = modelFile.getNumTypes();
+
+        initialize(modelFile.getAlpha(), modelFile.getBeta(), modelFile.getBetaSum());
+    }
+
+    /**
+     * Create an inferencer that reads the type-topic counts from one
+     * slab, which may be off the heap, rather than from one array per type.
+     * The rows the store keeps densely are copied into sorted arrays here,
+     * so the store should not change while the inferencer is in use.
+     */
+    public TopicInferencer(TypeTopicCountStore countStore, int[] tokensPerTopic, Alphabet alphabet,
+                           double[] alpha, double beta, double betaSum) {
+
+        this.countStore = countStore;
+        this.tokensPerTopic = tokensPerTopic;
+
+        this.alphabet = alphabet;
+
+        numTopics = tokensPerTopic.length;
+        numTypes = countStore.getNumTypes();
+
+        sortedDenseRows = new TIntObjectHashMap<int[]>();
+        int[] row = new int[numTopics];
+        for (int type = 0; type < numTypes; type++) {
+            if (countStore.isDense(type)) {
+                int length = countStore.copyRow(type, row);
+                if (length > 0) {
+                    sortedDenseRows.put(type, Arrays.copyOf(row, length));
+                }
+            }
+        }
+
+        initialize(alpha, beta, betaSum);
+    }
+
+    private void initialize(double[] alpha, double beta, double betaSum) {
+
         if (Integer.bitCount(numTopics) == 1) {
             // exact power of 2
             topicMask = numTopics - 1;
@@ -64,8 +137,16 @@ public class TopicInferencer implements Serializable {
 
     // Serialization
 
+    /**
+     * Read an inferencer, either serialized or in the binary format
+     * of {@link TopicModelFile}, which is memory-mapped.
+     */
     public static TopicInferencer read(File f) throws Exception {
 
+        if (TopicModelFile.isModelFile(f)) {
+            return readMapped(f);
+        }
+
         TopicInferencer inferencer = null;
 
         ObjectInputStream ois = new ObjectInputStream(new FileInputStream(f));
@@ -75,8 +156,47 @@ public class TopicInferencer implements Serializable {
         return inferencer;
     }
 
-    public void setRandomSeed(int seed) {
+    /**
+     * Open an inferencer over a model file written by
+     * {@link #writeModelFile} or {@link ParallelTopicModel#writeModelFile}.
+     */
+    public static TopicInferencer readMapped(File f) throws IOException {
+        return new TopicInferencer(TopicModelFile.open(f));
+    }
+
+    /**
+     * Write the model in the binary format of {@link TopicModelFile}.
+     */
+    public void writeModelFile(File f) throws IOException {
+        TopicModelFile.write(f, getAlphabet(), alpha, beta, betaSum,
+                tokensPerTopic, getTypeTopicCounts());
+    }
+
+    public Alphabet getAlphabet() {
+        return modelFile == null ? alphabet : modelFile.getAlphabet();
+    }
+
+    /**
+     * The type-topic counts, read onto the heap if this inferencer is memory-mapped.
+     */
+    public int[][] getTypeTopicCounts() {
+        if (modelFile != null) {
+            return modelFile.readTypeTopicCounts();
+        }
+        return countStore != null ? countStore.toRows() : typeTopicCounts;
+    }
+
+    public synchronized void setRandomSeed(int seed) {
         random = new Randoms(seed);
+        defaultSampler = null;
+    }
+
+    /**
+     * Set the number of threads used by {@link #getSampledDistributions}
+     * and {@link #writeInferredDistributions}.
+     */
+    public void setNumThreads(int threads) {
+        this.numThreads = threads;
     }
 
     /**
@@ -85,442 +205,721 @@ public class TopicInferencer implements Serializable {
      * for each token. Using zero iterations returns exactly this
      * initial topic distribution.<p/>
      * This code does not adjust type-topic counts: P(w|t) is clamped.
+     * <p/>
+     * Calls are serialized on this inferencer. To infer many documents
+     * concurrently, use {@link #getSampledDistributions} or give each
+     * thread its own {@link Sampler}.
      */
-    public double[] getSampledDistribution(Instance instance, int numIterations,
-                                           int thinning, int burnIn) {
-
-        FeatureSequence tokens = (FeatureSequence) instance.getData();
-        int docLength = tokens.size();
-        int[] topics = new int[docLength];
-
-        int[] localTopicCounts = new int[numTopics];
-        int[] localTopicIndex = new int[numTopics];
+    public synchronized double[] getSampledDistribution(Instance instance, int numIterations,
+                                                        int thinning, int burnIn) {
+        if (defaultSampler == null) {
+            defaultSampler = new Sampler(random);
+        }
+        return defaultSampler.getSampledDistribution(instance, numIterations, thinning, burnIn);
+    }
 
-        int type;
-        int[] currentTypeTopicCounts;
+    /**
+     * Create a sampler with its own random number generator and working
+     * space. A sampler may only be used by one thread at a time, but any
+     * number of samplers can run at once against the same inferencer.
+     */
+    public Sampler newSampler(int seed) {
+        return new Sampler(new Randoms(seed));
+    }
 
-        // Initialize all positions to the most common topic
-        //  for that type.
+    /**
+     * Receives distributions from {@link TopicInferencer#inferDistributions}.
+     * Calls come from the sampling threads, but never more than one
+     * at a time, in the order in which documents are finished.
+     */
+    public interface DistributionListener {
+        public void distributionInferred(int doc, Instance instance, double[] topicDistribution);
+    }
 
-        for (int position = 0; position < docLength; position++) {
-            type = tokens.getIndexAtPosition(position);
+    /**
+     * Infer topic distributions for a stream of instances, using
+     * <code>numThreads</code> threads with a sampler each. Threads take
+     * the next instance from the iterator whenever they are free, so
+     * only about <code>numThreads</code> documents are held at once.<p/>
+     *
+     * Document <code>i</code> of the stream is sampled with a seed made
+     * from this inferencer's random number generator and <code>i</code>,
+     * so the results do not depend on the number of threads.
+     * Several calls may run against the same inferencer at once.
+     *
+     * @param listener Receives each document's distribution as soon as it is finished
+     */
+    public void inferDistributions(Iterator<Instance> instances,
+                                   int numIterations, int thinning, int burnIn,
+                                   int numThreads, DistributionListener listener) {
 
-            // Ignore out of vocabulary terms
-            if (type < numTypes && typeTopicCounts[type].length != 0) {
+        long seed;
+        synchronized (this) {
+            seed = random.nextLong();
+        }
 
-                currentTypeTopicCounts = typeTopicCounts[type];
+        InstanceStream stream = new InstanceStream(instances);
 
-                // This value should be a topic such that
-                //  no other topic has more tokens of this type
-                //  assigned to it. If for some reason there were
-                //  no tokens of this type in the training data, it
-                //  will default to topic 0, which is no worse than
-                //  random initialization.
-                topics[position] =
-                        currentTypeTopicCounts[0] & topicMask;
+        if (numThreads <= 1) {
+            new InferenceRunnable(stream, seed, numIterations, thinning, burnIn, listener).run();
+            return;
+        }
 
-                localTopicCounts[topics[position]]++;
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        try {
+            Future<?>[] futures = new Future<?>[numThreads];
+            for (int thread = 0; thread < numThreads; thread++) {
+                futures[thread] = executor.submit(new InferenceRunnable(stream, seed,
+                        numIterations, thinning, burnIn, listener));
+            }
+            for (Future<?> future : futures) {
+                future.get();
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while inferring topics", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Topic inference failed", e.getCause());
+        } finally {
+            executor.shutdownNow();
         }
+    }
+
+    /**
+     * Infer topic distributions for a batch of instances in parallel,
+     * using the number of threads set by {@link #setNumThreads}.
+     *
+     * @return one distribution per instance, in the order of <code>instances</code>
+     */
+    public double[][] getSampledDistributions(List<Instance> instances,
+                                              int numIterations, int thinning, int burnIn) {
+
+        final double[][] distributions = new double[instances.size()][];
+
+        inferDistributions(instances.iterator(), numIterations, thinning, burnIn, numThreads,
+                new DistributionListener() {
+                    public void distributionInferred(int doc, Instance instance, double[] topicDistribution) {
+                        distributions[doc] = topicDistribution;
+                    }
+                });
+
+        return distributions;
+    }
+
+    /**
+     * Infer topics for the provided instances and
+     * write distributions to the provided file.
+     *
+     * @param instances
+     * @param distributionsFile
+     * @param numIterations     The total number of iterations of sampling per document
+     * @param thinning          The number of iterations between saved samples
+     * @param burnIn            The number of iterations before the first saved sample
+     * @param threshold         The minimum proportion of a given topic that will be written
+     * @param max               The total number of topics to report per document]
+     */
+    public void writeInferredDistributions(InstanceList instances,
+                                           File distributionsFile,
+                                           int numIterations, int thinning, int burnIn,
+                                           double threshold, int max) throws IOException {
+        writeInferredDistributions(instances.iterator(), distributionsFile,
+                numIterations, thinning, burnIn, threshold, max, false);
+    }
+
+    /**
+     * Infer topics for a stream of instances and write distributions
+     * to the provided file, as in {@link #inferDistributions}.
+     *
+     * @param streaming If true, write each document as soon as it is finished,
+     *                  so lines may be out of order (the first column is the document's
+     *                  position in the input). Otherwise lines are in input order,
+     *                  and only documents that finish ahead of an earlier one are held back.
+     */
+    public void writeInferredDistributions(Iterator<Instance> instances,
+                                           File distributionsFile,
+                                           int numIterations, int thinning, int burnIn,
+                                           final double threshold, int max,
+                                           boolean streaming) throws IOException {
+
+        final PrintWriter out = new PrintWriter(distributionsFile);
+
+        out.print("#doc name topic proportion ...\n");
 
-        // Build an array that densely lists the topics that
-        //  have non-zero counts.
-        int denseIndex = 0;
+        final IDSorter[] sortedTopics = new IDSorter[numTopics];
         for (int topic = 0; topic < numTopics; topic++) {
-            if (localTopicCounts[topic] != 0) {
-                localTopicIndex[denseIndex] = topic;
-                denseIndex++;
-            }
+            // Initialize the sorters with dummy values
+            sortedTopics[topic] = new IDSorter(topic, topic);
         }
 
-        // Record the total number of non-zero topics
-        int nonZeroTopics = denseIndex;
+        if (max < 0 || max > numTopics) {
+            max = numTopics;
+        }
+        final int maxTopics = max;
 
-        //	  Initialize the topic count/beta sampling bucket
-        double topicBetaMass = 0.0;
+        DistributionListener writer;
 
-        // Initialize cached coefficients and the topic/beta
-        //  normalizing constant.
+        if (streaming) {
+            writer = new DistributionListener() {
+                public void distributionInferred(int doc, Instance instance, double[] topicDistribution) {
+                    out.println(formatDistribution(doc, instance, topicDistribution,
+                            threshold, maxTopics, sortedTopics));
+                }
+            };
+        } else {
+            writer = new DistributionListener() {
+                TIntObjectHashMap<String> pendingLines = new TIntObjectHashMap<String>();
+                int nextDoc = 0;
+
+                public void distributionInferred(int doc, Instance instance, double[] topicDistribution) {
+                    pendingLines.put(doc, formatDistribution(doc, instance, topicDistribution,
+                            threshold, maxTopics, sortedTopics));
+                    while (pendingLines.containsKey(nextDoc)) {
+                        out.println(pendingLines.remove(nextDoc));
+                        nextDoc++;
+                    }
+                }
+            };
+        }
+
+        try {
+            inferDistributions(instances, numIterations, thinning, burnIn, numThreads, writer);
+        } finally {
+            out.close();
+        }
+    }
+
+    private String formatDistribution(int doc, Instance instance, double[] topicDistribution,
+                                      double threshold, int max, IDSorter[] sortedTopics) {
 
-        for (denseIndex = 0; denseIndex < nonZeroTopics; denseIndex++) {
-            int topic = localTopicIndex[denseIndex];
-            int n = localTopicCounts[topic];
+        StringBuilder builder = new StringBuilder();
 
-            //  initialize the normalization constant for the (B * n_{t|d}) term
-            topicBetaMass += beta * n / (tokensPerTopic[topic] + betaSum);
+        builder.append(doc);
+        builder.append("\t");
 
-            //  update the coefficients for the non-zero topics
-            cachedCoefficients[topic] = (alpha[topic] + n) / (tokensPerTopic[topic] + betaSum);
+        if (instance.getName() != null) {
+            builder.append(instance.getName());
+        } else {
+            builder.append("no-name");
         }
 
-        double topicTermMass = 0.0;
-        double[] topicTermScores = new double[numTopics];
-        int[] topicTermIndices;
-        int[] topicTermValues;
-        int i;
-        double score;
+        if (threshold > 0.0) {
+            for (int topic = 0; topic < numTopics; topic++) {
+                sortedTopics[topic].set(topic, topicDistribution[topic]);
+            }
+            Arrays.sort(sortedTopics);
+
+            for (int i = 0; i < max; i++) {
+                if (sortedTopics[i].getWeight() < threshold) {
+                    break;
+                }
+
+                builder.append("\t" + sortedTopics[i].getID() +
+                        "\t" + sortedTopics[i].getWeight());
+            }
+        } else {
+            for (int topic = 0; topic < numTopics; topic++) {
+                builder.append("\t" + topicDistribution[topic]);
+            }
+        }
 
-        int oldTopic, newTopic;
+        return builder.toString();
+    }
 
-        double[] result = new double[numTopics];
-        double sum = 0.0;
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.writeInt(CURRENT_SERIAL_VERSION);
 
-        for (int iteration = 1; iteration <= numIterations; iteration++) {
+        out.writeObject(getAlphabet());
 
-            //  Iterate over the positions (words) in the document
-            for (int position = 0; position < docLength; position++) {
-                type = tokens.getIndexAtPosition(position);
+        out.writeInt(numTopics);
 
-                // ignore out-of-vocabulary terms
-                if (type >= numTypes || typeTopicCounts[type].length == 0) {
-                    continue;
-                }
+        out.writeInt(topicMask);
+        out.writeInt(topicBits);
 
-                oldTopic = topics[position];
-                currentTypeTopicCounts = typeTopicCounts[type];
+        out.writeInt(numTypes);
 
-                // Prepare to sample by adjusting existing counts.
-                // Note that we do not need to change the smoothing-only
-                //  mass since the denominator is clamped.
+        out.writeObject(alpha);
+        out.writeDouble(beta);
+        out.writeDouble(betaSum);
 
-                topicBetaMass -= beta * localTopicCounts[oldTopic] /
-                        (tokensPerTopic[oldTopic] + betaSum);
+        out.writeObject(getTypeTopicCounts());
+        out.writeObject(tokensPerTopic);
 
-                // Decrement the local doc/topic counts
+        out.writeObject(random);
 
-                localTopicCounts[oldTopic]--;
-                //assert(localTopicCounts[oldTopic] >= 0);
+        out.writeDouble(smoothingOnlyMass);
+        out.writeObject(cachedCoefficients);
+    }
 
-                // Maintain the dense index, if we are deleting
-                //  the old topic
-                if (localTopicCounts[oldTopic] == 0) {
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
 
-                    // First get to the dense location associated with
-                    //  the old topic.
+        int version = in.readInt();
 
-                    denseIndex = 0;
+        alphabet = (Alphabet) in.readObject();
 
-                    // We know it's in there somewhere, so we don't
-                    //  need bounds checking.
-                    while (localTopicIndex[denseIndex] != oldTopic) {
-                        denseIndex++;
-                    }
+        numTopics = in.readInt();
 
-                    // shift all remaining dense indices to the left.
-                    while (denseIndex < nonZeroTopics) {
-                        if (denseIndex < localTopicIndex.length - 1) {
-                            localTopicIndex[denseIndex] =
-                                    localTopicIndex[denseIndex + 1];
-                        }
-                        denseIndex++;
-                    }
+        topicMask = in.readInt();
+        topicBits = in.readInt();
 
-                    nonZeroTopics--;
-                } // finished maintaining local topic index
+        numTypes = in.readInt();
 
-                topicBetaMass += beta * localTopicCounts[oldTopic] /
-                        (tokensPerTopic[oldTopic] + betaSum);
+        alpha = (double[]) in.readObject();
+        beta = in.readDouble();
+        betaSum = in.readDouble();
 
-                // Reset the cached coefficient for this topic
-                cachedCoefficients[oldTopic] =
-                        (alpha[oldTopic] + localTopicCounts[oldTopic]) /
-                                (tokensPerTopic[oldTopic] + betaSum);
-                if (cachedCoefficients[oldTopic] <= 0) {
-                    System.out.println("zero or less coefficient: " + oldTopic + " = (" + alpha[oldTopic] + " + " + localTopicCounts[oldTopic] + ") / ( " + tokensPerTopic[oldTopic] + " + " + betaSum + " );");
+        typeTopicCounts = (int[][]) in.readObject();
+        tokensPerTopic = (int[]) in.readObject();
+
+        random = (Randoms) in.readObject();
+
+        smoothingOnlyMass = in.readDouble();
+        cachedCoefficients = (double[]) in.readObject();
+
+        numThreads = 1;
+    }
+
+    /**
+     * Hands out instances to the sampling threads, numbering
+     * them in the order they are read.
+     */
+    private static class InstanceStream {
+        Iterator<Instance> instances;
+        int numRead = 0;
+
+        InstanceStream(Iterator<Instance> instances) {
+            this.instances = instances;
+        }
+    }
+
+    private class InferenceRunnable implements Runnable {
+
+        InstanceStream stream;
+        long seed;
+        int numIterations, thinning, burnIn;
+        DistributionListener listener;
+        Sampler sampler;
+
+        InferenceRunnable(InstanceStream stream, long seed,
+                          int numIterations, int thinning, int burnIn,
+                          DistributionListener listener) {
+            this.stream = stream;
+            this.seed = seed;
+            this.numIterations = numIterations;
+            this.thinning = thinning;
+            this.burnIn = burnIn;
+            this.listener = listener;
+
+            sampler = new Sampler(new Randoms());
+        }
+
+        public void run() {
+            while (!Thread.currentThread().isInterrupted()) {
+                Instance instance;
+                int doc;
+
+                synchronized (stream) {
+                    if (!stream.instances.hasNext()) {
+                        return;
+                    }
+                    instance = stream.instances.next();
+                    doc = stream.numRead++;
+                }
+
+                sampler.setRandomSeed(seed + doc);
+                double[] topicDistribution =
+                        sampler.getSampledDistribution(instance, numIterations, thinning, burnIn);
+
+                synchronized (listener) {
+                    listener.distributionInferred(doc, instance, topicDistribution);
                 }
+            }
+        }
+    }
 
+    /**
+     * Per-thread sampling state: the random number generator, the
+     * coefficient cache and per-document scratch space. The trained
+     * counts are shared with the inferencer and are only read.
+     */
+    public class Sampler {
 
-                int index = 0;
-                int currentTopic, currentValue;
+        Randoms random;
+        double[] cachedCoefficients;
 
-                boolean alreadyDecremented = false;
+        // Per-document scratch space, reused from one document to the next.
+        //  localTopicCounts is all zeros between documents, and docTopics
+        //  grows to fit the longest document seen so far.
+        int[] docTopics;
+        int[] localTopicCounts;
+        int[] localTopicIndex;
+        double[] topicTermScores;
+        // A copy of the current row, when the counts are memory-mapped
+        int[] typeRow;
 
-                topicTermMass = 0.0;
+        Sampler(Randoms random) {
+            this.random = random;
 
-                while (index < currentTypeTopicCounts.length &&
-                        currentTypeTopicCounts[index] > 0) {
-                    currentTopic = currentTypeTopicCounts[index] & topicMask;
-                    currentValue = currentTypeTopicCounts[index] >> topicBits;
+            cachedCoefficients = new double[numTopics];
+            for (int topic = 0; topic < numTopics; topic++) {
+                cachedCoefficients[topic] = alpha[topic] / (tokensPerTopic[topic] + betaSum);
+            }
 
-                    score =
-                            cachedCoefficients[currentTopic] * currentValue;
-                    topicTermMass += score;
-                    topicTermScores[index] = score;
+            docTopics = new int[0];
+            localTopicCounts = new int[numTopics];
+            localTopicIndex = new int[numTopics];
+            topicTermScores = new double[numTopics];
+            typeRow = new int[numTopics];
+        }
 
-                    index++;
+        /**
+         * The sparse counts of a type, or null if the type is out of vocabulary.
+         */
+        int[] getTypeTopicCounts(int type) {
+            if (type >= numTypes) {
+                return null;
+            }
+            if (modelFile != null) {
+                return modelFile.copyRow(type, typeRow) != 0 ? typeRow : null;
+            }
+            if (countStore != null) {
+                if (countStore.isDense(type)) {
+                    return sortedDenseRows.get(type);
                 }
+                return countStore.copyRow(type, typeRow) != 0 ? typeRow : null;
+            }
+            return typeTopicCounts[type].length != 0 ? typeTopicCounts[type] : null;
+        }
 
-                double sample = random.nextUniform() * (smoothingOnlyMass + topicBetaMass + topicTermMass);
-                double origSample = sample;
+        public void setRandomSeed(long seed) {
+            random.setSeed(seed);
+        }
 
-                //  Make sure it actually gets set
-                newTopic = -1;
+        /**
+         * Infer a topic distribution, as in {@link TopicInferencer#getSampledDistribution}.
+         */
+        public double[] getSampledDistribution(Instance instance, int numIterations,
+                                               int thinning, int burnIn) {
 
-                if (sample < topicTermMass) {
-                    //topicTermCount++;
+            FeatureSequence tokens = (FeatureSequence) instance.getData();
+            int docLength = tokens.size();
+            if (docTopics.length < docLength) {
+                docTopics = new int[docLength];
+            }
+            int[] topics = docTopics;
 
-                    i = -1;
-                    while (sample > 0) {
-                        i++;
-                        sample -= topicTermScores[i];
-                    }
+            int type;
+            int tokensInVocabulary = 0;
+            int[] currentTypeTopicCounts;
 
-                    newTopic = currentTypeTopicCounts[i] & topicMask;
-                } else {
-                    sample -= topicTermMass;
+            // Initialize all positions to the most common topic
+            //  for that type, and build an array that densely lists
+            //  the topics that have non-zero counts.
 
-                    if (sample < topicBetaMass) {
-                        //betaTopicCount++;
+            int denseIndex = 0;
+            for (int position = 0; position < docLength; position++) {
+                type = tokens.getIndexAtPosition(position);
+                topics[position] = 0;
 
-                        sample /= beta;
+                currentTypeTopicCounts = getTypeTopicCounts(type);
 
-                        for (denseIndex = 0; denseIndex < nonZeroTopics; denseIndex++) {
-                            int topic = localTopicIndex[denseIndex];
+                // Ignore out of vocabulary terms
+                if (currentTypeTopicCounts != null) {
 
-                            sample -= localTopicCounts[topic] /
-                                    (tokensPerTopic[topic] + betaSum);
+                    // This value should be a topic such that
+                    //  no other topic has more tokens of this type
+                    //  assigned to it. If for some reason there were
+                    //  no tokens of this type in the training data, it
+                    //  will default to topic 0, which is no worse than
+                    //  random initialization.
+                    topics[position] =
+                            currentTypeTopicCounts[0] & topicMask;
 
-                            if (sample <= 0.0) {
-                                newTopic = topic;
-                                break;
-                            }
-                        }
+                    if (localTopicCounts[topics[position]] == 0) {
+                        localTopicIndex[denseIndex] = topics[position];
+                        denseIndex++;
+                    }
+                    localTopicCounts[topics[position]]++;
+                    tokensInVocabulary++;
+                }
+            }
+            Arrays.sort(localTopicIndex, 0, denseIndex);
 
-                    } else {
-                        sample -= topicBetaMass;
+            // Record the total number of non-zero topics
+            int nonZeroTopics = denseIndex;
 
-                        sample /= beta;
+            //	  Initialize the topic count/beta sampling bucket
+            double topicBetaMass = 0.0;
 
-                        newTopic = 0;
-                        sample -= alpha[newTopic] /
-                                (tokensPerTopic[newTopic] + betaSum);
+            // Initialize cached coefficients and the topic/beta
+            //  normalizing constant.
 
-                        while (sample > 0.0) {
-                            newTopic++;
+            for (denseIndex = 0; denseIndex < nonZeroTopics; denseIndex++) {
+                int topic = localTopicIndex[denseIndex];
+                int n = localTopicCounts[topic];
 
-                            if (newTopic >= numTopics) {
-                                index = 0;
+                //  initialize the normalization constant for the (B * n_{t|d}) term
+                topicBetaMass += beta * n / (tokensPerTopic[topic] + betaSum);
 
-                                while (index < currentTypeTopicCounts.length &&
-                                        currentTypeTopicCounts[index] > 0) {
-                                    currentTopic = currentTypeTopicCounts[index] & topicMask;
-                                    currentValue = currentTypeTopicCounts[index] >> topicBits;
+                //  update the coefficients for the non-zero topics
+                cachedCoefficients[topic] = (alpha[topic] + n) / (tokensPerTopic[topic] + betaSum);
+            }
 
-                                    System.out.println(currentTopic + "\t" + currentValue + "\t" + topicTermScores[index] +
-                                            "\t" + cachedCoefficients[currentTopic]);
-                                    index++;
-                                }
-                            }
+            double topicTermMass = 0.0;
+            int[] topicTermIndices;
+            int[] topicTermValues;
+            int i;
+            double score;
 
-                            sample -= alpha[newTopic] /
-                                    (tokensPerTopic[newTopic] + betaSum);
-                        }
+            int oldTopic, newTopic;
+
+            double[] result = new double[numTopics];
+            int numSamples = 0;
 
+            for (int iteration = 1; iteration <= numIterations; iteration++) {
+
+                //  Iterate over the positions (words) in the document
+                for (int position = 0; position < docLength; position++) {
+                    type = tokens.getIndexAtPosition(position);
+
+                    currentTypeTopicCounts = getTypeTopicCounts(type);
+
+                    // ignore out-of-vocabulary terms
+                    if (currentTypeTopicCounts == null) {
+                        continue;
                     }
 
-                }
+                    oldTopic = topics[position];
+
+                    // Prepare to sample by adjusting existing counts.
+                    // Note that we do not need to change the smoothing-only
+                    //  mass since the denominator is clamped.
 
-                topics[position] = newTopic;
+                    topicBetaMass -= beta * localTopicCounts[oldTopic] /
+                            (tokensPerTopic[oldTopic] + betaSum);
 
-                topicBetaMass -= beta * localTopicCounts[newTopic] /
-                        (tokensPerTopic[newTopic] + betaSum);
+                    // Decrement the local doc/topic counts
 
-                localTopicCounts[newTopic]++;
+                    localTopicCounts[oldTopic]--;
+                    //assert(localTopicCounts[oldTopic] >= 0);
 
-                // If this is a new topic for this document,
-                //  add the topic to the dense index.
-                if (localTopicCounts[newTopic] == 1) {
+                    // Maintain the dense index, if we are deleting
+                    //  the old topic
+                    if (localTopicCounts[oldTopic] == 0) {
 
-                    // First find the point where we
-                    //  should insert the new topic by going to
-                    //  the end (which is the only reason we're keeping
-                    //  track of the number of non-zero
-                    //  topics) and working backwards
+                        // First get to the dense location associated with
+                        //  the old topic.
+
+                        denseIndex = 0;
+
+                        // We know it's in there somewhere, so we don't
+                        //  need bounds checking.
+                        while (localTopicIndex[denseIndex] != oldTopic) {
+                            denseIndex++;
+                        }
+
+                        // shift all remaining dense indices to the left.
+                        while (denseIndex < nonZeroTopics) {
+                            if (denseIndex < localTopicIndex.length - 1) {
+                                localTopicIndex[denseIndex] =
+                                        localTopicIndex[denseIndex + 1];
+                            }
+                            denseIndex++;
+                        }
 
-                    denseIndex = nonZeroTopics;
+                        nonZeroTopics--;
+                    } // finished maintaining local topic index
 
-                    while (denseIndex > 0 &&
-                            localTopicIndex[denseIndex - 1] > newTopic) {
+                    topicBetaMass += beta * localTopicCounts[oldTopic] /
+                            (tokensPerTopic[oldTopic] + betaSum);
 
-                        localTopicIndex[denseIndex] =
-                                localTopicIndex[denseIndex - 1];
-                        denseIndex--;
+                    // Reset the cached coefficient for this topic
+                    cachedCoefficients[oldTopic] =
+                            (alpha[oldTopic] + localTopicCounts[oldTopic]) /
+                                    (tokensPerTopic[oldTopic] + betaSum);
+                    if (cachedCoefficients[oldTopic] <= 0) {
+                        System.out.println("zero or less coefficient: " + oldTopic + " = (" + alpha[oldTopic] + " + " + localTopicCounts[oldTopic] + ") / ( " + tokensPerTopic[oldTopic] + " + " + betaSum + " );");
                     }
 
-                    localTopicIndex[denseIndex] = newTopic;
-                    nonZeroTopics++;
-                }
 
-                //  update the coefficients for the non-zero topics
-                cachedCoefficients[newTopic] =
-                        (alpha[newTopic] + localTopicCounts[newTopic]) /
-                                (tokensPerTopic[newTopic] + betaSum);
+                    int index = 0;
+                    int currentTopic, currentValue;
 
-                topicBetaMass += beta * localTopicCounts[newTopic] /
-                        (tokensPerTopic[newTopic] + betaSum);
+                    boolean alreadyDecremented = false;
 
-            }
+                    topicTermMass = 0.0;
 
-            if (iteration > burnIn &&
-                    (iteration - burnIn) % thinning == 0) {
+                    while (index < currentTypeTopicCounts.length &&
+                            currentTypeTopicCounts[index] > 0) {
+                        currentTopic = currentTypeTopicCounts[index] & topicMask;
+                        currentValue = currentTypeTopicCounts[index] >> topicBits;
 
-                // Save a sample
-                for (int topic = 0; topic < numTopics; topic++) {
-                    result[topic] += alpha[topic] + localTopicCounts[topic];
-                    sum += alpha[topic] + localTopicCounts[topic];
-                }
-            }
-        }
+                        score =
+                                cachedCoefficients[currentTopic] * currentValue;
+                        topicTermMass += score;
+                        topicTermScores[index] = score;
 
-        //  Clean up our mess: reset the coefficients to values with only
-        //  smoothing. The next doc will update its own non-zero topics...
-        for (denseIndex = 0; denseIndex < nonZeroTopics; denseIndex++) {
-            int topic = localTopicIndex[denseIndex];
+                        index++;
+                    }
 
-            cachedCoefficients[topic] =
-                    alpha[topic] / (tokensPerTopic[topic] + betaSum);
-        }
+                    double sample = random.nextUniform() * (smoothingOnlyMass + topicBetaMass + topicTermMass);
+                    double origSample = sample;
 
-        if (sum == 0.0) {
-            // Save at least one sample
-            for (int topic = 0; topic < numTopics; topic++) {
-                result[topic] = alpha[topic] + localTopicCounts[topic];
-                sum += result[topic];
-            }
-        }
+                    //  Make sure it actually gets set
+                    newTopic = -1;
 
-        // Normalize
-        for (int topic = 0; topic < numTopics; topic++) {
-            result[topic] /= sum;
-        }
+                    if (sample < topicTermMass) {
+                        //topicTermCount++;
 
-        return result;
-    }
+                        i = -1;
+                        while (sample > 0) {
+                            i++;
+                            sample -= topicTermScores[i];
+                        }
 
-    /**
-     * Infer topics for the provided instances and
-     * write distributions to the provided file.
-     *
-     * @param instances
-     * @param distributionsFile
-     * @param numIterations     The total number of iterations of sampling per document
-     * @param thinning          The number of iterations between saved samples
-     * @param burnIn            The number of iterations before the first saved sample
-     * @param threshold         The minimum proportion of a given topic that will be written
-     * @param max               The total number of topics to report per document]
-     */
-    public void writeInferredDistributions(InstanceList instances,
-                                           File distributionsFile,
-                                           int numIterations, int thinning, int burnIn,
-                                           double threshold, int max) throws IOException {
+                        newTopic = currentTypeTopicCounts[i] & topicMask;
+                    } else {
+                        sample -= topicTermMass;
 
-        PrintWriter out = new PrintWriter(distributionsFile);
+                        if (sample < topicBetaMass) {
+                            //betaTopicCount++;
 
-        out.print("#doc name topic proportion ...\n");
+                            sample /= beta;
 
-        IDSorter[] sortedTopics = new IDSorter[numTopics];
-        for (int topic = 0; topic < numTopics; topic++) {
-            // Initialize the sorters with dummy values
-            sortedTopics[topic] = new IDSorter(topic, topic);
-        }
+                            for (denseIndex = 0; denseIndex < nonZeroTopics; denseIndex++) {
+                                int topic = localTopicIndex[denseIndex];
 
-        if (max < 0 || max > numTopics) {
-            max = numTopics;
-        }
+                                sample -= localTopicCounts[topic] /
+                                        (tokensPerTopic[topic] + betaSum);
+
+                                if (sample <= 0.0) {
+                                    newTopic = topic;
+                                    break;
+                                }
+                            }
 
-        int doc = 0;
+                        } else {
+                            sample -= topicBetaMass;
 
-        for (Instance instance : instances) {
+                            sample /= beta;
 
-            StringBuilder builder = new StringBuilder();
+                            newTopic = 0;
+                            sample -= alpha[newTopic] /
+                                    (tokensPerTopic[newTopic] + betaSum);
 
-            double[] topicDistribution =
-                    getSampledDistribution(instance, numIterations,
-                            thinning, burnIn);
-            builder.append(doc);
-            builder.append("\t");
+                            while (sample > 0.0) {
+                                newTopic++;
 
-            if (instance.getName() != null) {
-                builder.append(instance.getName());
-            } else {
-                builder.append("no-name");
-            }
+                                if (newTopic >= numTopics) {
+                                    index = 0;
 
-            if (threshold > 0.0) {
-                for (int topic = 0; topic < numTopics; topic++) {
-                    sortedTopics[topic].set(topic, topicDistribution[topic]);
-                }
-                Arrays.sort(sortedTopics);
+                                    while (index < currentTypeTopicCounts.length &&
+                                            currentTypeTopicCounts[index] > 0) {
+                                        currentTopic = currentTypeTopicCounts[index] & topicMask;
+                                        currentValue = currentTypeTopicCounts[index] >> topicBits;
+
+                                        System.out.println(currentTopic + "\t" + currentValue + "\t" + topicTermScores[index] +
+                                                "\t" + cachedCoefficients[currentTopic]);
+                                        index++;
+                                    }
+                                }
+
+                                sample -= alpha[newTopic] /
+                                        (tokensPerTopic[newTopic] + betaSum);
+                            }
+
+                        }
 
-                for (int i = 0; i < max; i++) {
-                    if (sortedTopics[i].getWeight() < threshold) {
-                        break;
                     }
 
-                    builder.append("\t" + sortedTopics[i].getID() +
-                            "\t" + sortedTopics[i].getWeight());
-                }
-            } else {
-                for (int topic = 0; topic < numTopics; topic++) {
-                    builder.append("\t" + topicDistribution[topic]);
-                }
-            }
-            out.println(builder);
-            doc++;
-        }
+                    topics[position] = newTopic;
 
-        out.close();
-    }
+                    topicBetaMass -= beta * localTopicCounts[newTopic] /
+                            (tokensPerTopic[newTopic] + betaSum);
 
-    private void writeObject(ObjectOutputStream out) throws IOException {
-        out.writeInt(CURRENT_SERIAL_VERSION);
+                    localTopicCounts[newTopic]++;
 
-        out.writeObject(alphabet);
+                    // If this is a new topic for this document,
+                    //  add the topic to the dense index.
+                    if (localTopicCounts[newTopic] == 1) {
 
-        out.writeInt(numTopics);
+                        // First find the point where we
+                        //  should insert the new topic by going to
+                        //  the end (which is the only reason we're keeping
+                        //  track of the number of non-zero
+                        //  topics) and working backwards
 
-        out.writeInt(topicMask);
-        out.writeInt(topicBits);
+                        denseIndex = nonZeroTopics;
 
-        out.writeInt(numTypes);
+                        while (denseIndex > 0 &&
+                                localTopicIndex[denseIndex - 1] > newTopic) {
 
-        out.writeObject(alpha);
-        out.writeDouble(beta);
-        out.writeDouble(betaSum);
+                            localTopicIndex[denseIndex] =
+                                    localTopicIndex[denseIndex - 1];
+                            denseIndex--;
+                        }
 
-        out.writeObject(typeTopicCounts);
-        out.writeObject(tokensPerTopic);
+                        localTopicIndex[denseIndex] = newTopic;
+                        nonZeroTopics++;
+                    }
 
-        out.writeObject(random);
+                    //  update the coefficients for the non-zero topics
+                    cachedCoefficients[newTopic] =
+                            (alpha[newTopic] + localTopicCounts[newTopic]) /
+                                    (tokensPerTopic[newTopic] + betaSum);
 
-        out.writeDouble(smoothingOnlyMass);
-        out.writeObject(cachedCoefficients);
-    }
+                    topicBetaMass += beta * localTopicCounts[newTopic] /
+                            (tokensPerTopic[newTopic] + betaSum);
 
-    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+                }
 
-        int version = in.readInt();
+                if (iteration > burnIn &&
+                        (iteration - burnIn) % thinning == 0) {
 
-        alphabet = (Alphabet) in.readObject();
+                    // Save a sample. Only the non-zero topics change from
+                    //  sample to sample; the alpha terms are added once below.
+                    for (denseIndex = 0; denseIndex < nonZeroTopics; denseIndex++) {
+                        int topic = localTopicIndex[denseIndex];
+                        result[topic] += localTopicCounts[topic];
+                    }
+                    numSamples++;
+                }
+            }
 
-        numTopics = in.readInt();
+            if (numSamples == 0) {
+                // Save at least one sample
+                for (denseIndex = 0; denseIndex < nonZeroTopics; denseIndex++) {
+                    int topic = localTopicIndex[denseIndex];
+                    result[topic] += localTopicCounts[topic];
+                }
+                numSamples = 1;
+            }
 
-        topicMask = in.readInt();
-        topicBits = in.readInt();
+            //  Clean up our mess: reset the coefficients to values with only
+            //  smoothing, and clear the local counts. The next doc will
+            //  update its own non-zero topics...
+            for (denseIndex = 0; denseIndex < nonZeroTopics; denseIndex++) {
+                int topic = localTopicIndex[denseIndex];
 
-        numTypes = in.readInt();
+                cachedCoefficients[topic] =
+                        alpha[topic] / (tokensPerTopic[topic] + betaSum);
+                localTopicCounts[topic] = 0;
+            }
 
-        alpha = (double[]) in.readObject();
-        beta = in.readDouble();
-        betaSum = in.readDouble();
+            // Add the smoothing terms and normalize
+            double sum = 0.0;
+            for (int topic = 0; topic < numTopics; topic++) {
+                result[topic] += numSamples * alpha[topic];
+                sum += alpha[topic];
+            }
+            sum = numSamples * (sum + tokensInVocabulary);
 
-        typeTopicCounts = (int[][]) in.readObject();
-        tokensPerTopic = (int[]) in.readObject();
+            for (int topic = 0; topic < numTopics; topic++) {
+                result[topic] /= sum;
+            }
 
-        random = (Randoms) in.readObject();
+            return result;
+        }
 
-        smoothingOnlyMass = in.readDouble();
-        cachedCoefficients = (double[]) in.readObject();
     }
 
 }
\ No newline at end of file
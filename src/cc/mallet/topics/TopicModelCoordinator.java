@@ -0,0 +1,346 @@
+/* Copyright (C) 2005 Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.  For further
+   information, see the file `LICENSE' included with this distribution. */
+
+package cc.mallet.topics;
+
+import cc.mallet.util.MalletLogger;
+import gnu.trove.iterator.TLongIntIterator;
+import gnu.trove.map.hash.TLongIntHashMap;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.logging.Logger;
+
+/**
+ * The coordinator of a multi-process training run. Each worker process
+ * runs a {@link DistributedTopicModel} over its own shard of the
+ * documents, and connects to the coordinator over a plain TCP socket.
+ * <p>
+ * Training proceeds in rounds. In each round every worker sends the
+ * changes in its type-topic counts since the previous round, the
+ * coordinator adds them up, applies the sum to its copy of the global
+ * counts and sends the sum back to every worker. As with
+ * <code>sumTypeTopicCounts()</code> for threads, the global counts are
+ * then the sum of the counts of every worker's own documents.
+ * <p>
+ * To train with several local processes, start the coordinator
+ * <pre>
+ * java cc.mallet.topics.TopicModelCoordinator 9123 3
+ * </pre>
+ * then three workers, each with the same options and its own shard,
+ * for example with <code>--coordinator localhost:9123</code>
+ * in <code>cc.mallet.topics.tui.Vectors2Topics</code>. Every shard must
+ * be imported with the same alphabet (using <code>--use-pipe-from</code>).
+ */
+
+public class TopicModelCoordinator {
+
+    public static Logger logger = MalletLogger.getLogger(TopicModelCoordinator.class.getName());
+
+    static final int MAGIC = 0x4d544443; // "MTDC"
+
+    // Messages from workers
+    static final int DELTAS = 1;
+    static final int FINISHED = 2;
+
+    ServerSocket serverSocket;
+    int numWorkers;
+
+    int numTopics;
+    int numTypes;
+    int topicMask;
+    int topicBits;
+    long alphabetChecksum;
+
+    int[][] typeTopicCounts;
+    int[] tokensPerTopic;
+    int[] typeTotals;
+
+    int numRounds = 0;
+
+    /**
+     * Listen on all interfaces.
+     *
+     * @param port       The port to listen on, or 0 for any free port
+     * @param numWorkers The number of workers that will connect
+     */
+    public TopicModelCoordinator(int port, int numWorkers) throws IOException {
+        this(null, port, numWorkers);
+    }
+
+    /**
+     * @param bindAddress The address to listen on, for example
+     *                    <code>InetAddress.getLoopbackAddress()</code>, or null for all interfaces
+     */
+    public TopicModelCoordinator(InetAddress bindAddress, int port, int numWorkers) throws IOException {
+        this.numWorkers = numWorkers;
+        serverSocket = new ServerSocket(port, numWorkers, bindAddress);
+    }
+
+    /**
+     * The port the coordinator listens on, useful if it was created with port 0.
+     */
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    public int[][] getTypeTopicCounts() {
+        return typeTopicCounts;
+    }
+
+    public int[] getTokensPerTopic() {
+        return tokensPerTopic;
+    }
+
+    public int getNumRounds() {
+        return numRounds;
+    }
+
+    /**
+     * Wait for every worker to connect, then coordinate rounds until every
+     * worker has finished.
+     */
+    public void run() throws IOException {
+
+        Socket[] sockets = new Socket[numWorkers];
+        DataInputStream[] in = new DataInputStream[numWorkers];
+        DataOutputStream[] out = new DataOutputStream[numWorkers];
+
+        try {
+            for (int worker = 0; worker < numWorkers; worker++) {
+                sockets[worker] = serverSocket.accept();
+                sockets[worker].setTcpNoDelay(true);
+                in[worker] = new DataInputStream(new BufferedInputStream(sockets[worker].getInputStream(), 1 << 16));
+                out[worker] = new DataOutputStream(new BufferedOutputStream(sockets[worker].getOutputStream(), 1 << 16));
+
+                readWorkerHeader(worker, in[worker]);
+                logger.info("Worker " + worker + " connected from " + sockets[worker].getRemoteSocketAddress());
+            }
+            serverSocket.close();
+
+            // Every worker needs the total count of each type to size its rows
+            for (int worker = 0; worker < numWorkers; worker++) {
+                out[worker].writeInt(worker);
+                out[worker].writeInt(numWorkers);
+                for (int type = 0; type < numTypes; type++) {
+                    out[worker].writeInt(typeTotals[type]);
+                }
+                out[worker].flush();
+            }
+
+            typeTopicCounts = new int[numTypes][];
+            for (int type = 0; type < numTypes; type++) {
+                typeTopicCounts[type] = new int[Math.min(numTopics, typeTotals[type])];
+            }
+            tokensPerTopic = new int[numTopics];
+
+            boolean[] finished = new boolean[numWorkers];
+            int numActive = numWorkers;
+            TLongIntHashMap deltas = new TLongIntHashMap();
+
+            while (numActive > 0) {
+                long roundStart = System.currentTimeMillis();
+
+                deltas.clear();
+                for (int worker = 0; worker < numWorkers; worker++) {
+                    if (finished[worker]) {
+                        continue;
+                    }
+                    int message = in[worker].readInt();
+                    if (message == FINISHED) {
+                        finished[worker] = true;
+                        numActive--;
+                        logger.info("Worker " + worker + " finished");
+                    } else if (message == DELTAS) {
+                        readDeltas(in[worker], deltas);
+                    } else {
+                        throw new IOException("Unexpected message " + message + " from worker " + worker);
+                    }
+                }
+
+                if (numActive == 0) {
+                    break;
+                }
+
+                applyDeltas(deltas);
+
+                for (int worker = 0; worker < numWorkers; worker++) {
+                    if (!finished[worker]) {
+                        writeDeltas(out[worker], deltas, numTopics);
+                        out[worker].flush();
+                    }
+                }
+
+                numRounds++;
+                logger.fine("<round " + numRounds + "> " + deltas.size() + " changed counts from " +
+                        numActive + " workers in " + (System.currentTimeMillis() - roundStart) + "ms");
+            }
+
+            logger.info("Finished after " + numRounds + " rounds");
+
+        } finally {
+            for (int worker = 0; worker < numWorkers; worker++) {
+                if (sockets[worker] != null) {
+                    sockets[worker].close();
+                }
+            }
+            if (!serverSocket.isClosed()) {
+                serverSocket.close();
+            }
+        }
+    }
+
+    private void readWorkerHeader(int worker, DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Worker " + worker + " is not a topic model worker");
+        }
+        int workerTopics = in.readInt();
+        int workerTypes = in.readInt();
+        long workerChecksum = in.readLong();
+
+        if (worker == 0) {
+            numTopics = workerTopics;
+            numTypes = workerTypes;
+            alphabetChecksum = workerChecksum;
+            typeTotals = new int[numTypes];
+
+            if (Integer.bitCount(numTopics) == 1) {
+                topicMask = numTopics - 1;
+            } else {
+                topicMask = Integer.highestOneBit(numTopics) * 2 - 1;
+            }
+            topicBits = Integer.bitCount(topicMask);
+        } else if (workerTopics != numTopics || workerTypes != numTypes || workerChecksum != alphabetChecksum) {
+            throw new IOException("Worker " + worker + " has " + workerTopics + " topics and " +
+                    workerTypes + " types, expected " + numTopics + " topics and " + numTypes +
+                    " types with the same alphabet");
+        }
+
+        int numEntries = in.readInt();
+        for (int i = 0; i < numEntries; i++) {
+            int type = in.readInt();
+            typeTotals[type] += in.readInt();
+        }
+    }
+
+    /**
+     * Add a round of deltas to the global counts.
+     */
+    void applyDeltas(TLongIntHashMap deltas) {
+        TLongIntIterator iterator = deltas.iterator();
+        while (iterator.hasNext()) {
+            iterator.advance();
+            int delta = iterator.value();
+            if (delta == 0) {
+                continue;
+            }
+            int type = (int) (iterator.key() / numTopics);
+            int topic = (int) (iterator.key() % numTopics);
+
+            addToTypeTopicCount(typeTopicCounts[type], topic, delta, topicBits, topicMask);
+            tokensPerTopic[topic] += delta;
+        }
+    }
+
+    /**
+     * Change the count of one topic in a sorted, packed row of the
+     * type-topic counts by <code>delta</code>, which may be negative.
+     * The changed entry is bubbled up or down past its neighbours, as in
+     * the samplers, and a count that drops to zero is removed.
+     */
+    static void addToTypeTopicCount(int[] currentTypeTopicCounts, int topic, int delta,
+                                    int topicBits, int topicMask) {
+
+        int index = 0;
+        while (index < currentTypeTopicCounts.length &&
+                currentTypeTopicCounts[index] > 0 &&
+                (currentTypeTopicCounts[index] & topicMask) != topic) {
+            index++;
+        }
+        if (index == currentTypeTopicCounts.length) {
+            throw new IllegalStateException("No room for topic " + topic + " in a row of length " +
+                    currentTypeTopicCounts.length);
+        }
+
+        int count = (currentTypeTopicCounts[index] >> topicBits) + delta;
+        if (count < 0) {
+            throw new IllegalStateException("Negative count for topic " + topic);
+        }
+
+        if (count == 0) {
+            // Shift the rest of the row down over this entry
+            while (index + 1 < currentTypeTopicCounts.length &&
+                    currentTypeTopicCounts[index + 1] > 0) {
+                currentTypeTopicCounts[index] = currentTypeTopicCounts[index + 1];
+                index++;
+            }
+            currentTypeTopicCounts[index] = 0;
+            return;
+        }
+
+        currentTypeTopicCounts[index] = (count << topicBits) + topic;
+
+        // Bubble the value up or down to keep the row sorted
+        while (index > 0 &&
+                currentTypeTopicCounts[index] > currentTypeTopicCounts[index - 1]) {
+            int temp = currentTypeTopicCounts[index];
+            currentTypeTopicCounts[index] = currentTypeTopicCounts[index - 1];
+            currentTypeTopicCounts[index - 1] = temp;
+            index--;
+        }
+        while (index + 1 < currentTypeTopicCounts.length &&
+                currentTypeTopicCounts[index + 1] > currentTypeTopicCounts[index]) {
+            int temp = currentTypeTopicCounts[index];
+            currentTypeTopicCounts[index] = currentTypeTopicCounts[index + 1];
+            currentTypeTopicCounts[index + 1] = temp;
+            index++;
+        }
+    }
+
+    /**
+     * Write deltas keyed by <code>type * numTopics + topic</code> as
+     * (type, topic, delta) triples. Zero deltas are written too, so that a
+     * worker sees every key it sent.
+     */
+    static void writeDeltas(DataOutputStream out, TLongIntHashMap deltas, int numTopics) throws IOException {
+        out.writeInt(deltas.size());
+        TLongIntIterator iterator = deltas.iterator();
+        while (iterator.hasNext()) {
+            iterator.advance();
+            out.writeInt((int) (iterator.key() / numTopics));
+            out.writeInt((int) (iterator.key() % numTopics));
+            out.writeInt(iterator.value());
+        }
+    }
+
+    private void readDeltas(DataInputStream in, TLongIntHashMap deltas) throws IOException {
+        int numEntries = in.readInt();
+        for (int i = 0; i < numEntries; i++) {
+            int type = in.readInt();
+            int topic = in.readInt();
+            int delta = in.readInt();
+            if (type < 0 || type >= numTypes || topic < 0 || topic >= numTopics) {
+                throw new IOException("Delta for type " + type + " and topic " + topic + " is out of range");
+            }
+            deltas.adjustOrPutValue((long) type * numTopics + topic, delta, delta);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Usage: TopicModelCoordinator port numWorkers");
+            System.exit(1);
+        }
+
+        TopicModelCoordinator coordinator =
+                new TopicModelCoordinator(Integer.parseInt(args[0]), Integer.parseInt(args[1]));
+        logger.info("Waiting for " + args[1] + " workers on port " + coordinator.getPort());
+        coordinator.run();
+    }
+}
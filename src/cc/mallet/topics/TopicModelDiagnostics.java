@@ -1,14 +1,29 @@
 package cc.mallet.topics;
 
 import cc.mallet.types.Alphabet;
-import cc.mallet.types.FeatureSequence;
 import cc.mallet.types.IDSorter;
 import cc.mallet.types.InstanceList;
+import cc.mallet.util.ParallelRanges;
 import gnu.trove.set.hash.TIntHashSet;
 
 import java.io.File;
 import java.io.PrintWriter;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Scores that help to spot low-quality topics, such as coherence,
+ * the effective number of words and the distance from the corpus distribution.
+ * <p>
+ * Most scores need statistics gathered in one pass over every document:
+ * co-document counts of each topic's top words, and how much of each document
+ * each topic takes. The pass runs the first time a score needs it, split
+ * into token-balanced shards on <code>numThreads</code> threads whose
+ * counts are added up at the end. Scores that depend only on the
+ * topic-word counts, such as <code>getEffectiveNumberOfWords()</code>,
+ * never need the pass.
+ */
 
 public class TopicModelDiagnostics {
 
@@ -27,6 +42,7 @@ public class TopicModelDiagnostics {
      */
     String[][] topicTopWords;
 
+    // The default set of scores, built on first use
     ArrayList<TopicScores> diagnostics;
 
     ParallelTopicModel model;
@@ -44,9 +60,23 @@ public class TopicModelDiagnostics {
     int[] wordTypeCounts;
     int numTokens = 0;
 
+    int numThreads;
+    boolean collectedDocumentStatistics = false;
+
+    /**
+     * Use as many threads as the model was trained with.
+     */
     public TopicModelDiagnostics(ParallelTopicModel model, int numTopWords) {
+        this(model, numTopWords, model.numThreads);
+    }
+
+    /**
+     * @param numThreads The number of threads for the pass over the documents
+     */
+    public TopicModelDiagnostics(ParallelTopicModel model, int numTopWords, int numThreads) {
         numTopics = model.getNumTopics();
         this.numTopWords = numTopWords;
+        this.numThreads = Math.max(1, numThreads);
 
         this.model = model;
 
@@ -55,13 +85,6 @@ public class TopicModelDiagnostics {
 
         topicTopWords = new String[numTopics][numTopWords];
 
-        numRank1Documents = new int[numTopics];
-        numNonZeroDocuments = new int[numTopics];
-        numDocumentsAtProportions = new int[numTopics][DEFAULT_DOC_PROPORTIONS.length];
-        sumCountTimesLogCount = new double[numTopics];
-
-        diagnostics = new ArrayList<TopicScores>();
-
         for (int topic = 0; topic < numTopics; topic++) {
 
             int position = 0;
@@ -81,9 +104,17 @@ public class TopicModelDiagnostics {
             }
 
         }
+    }
 
-        collectDocumentStatistics();
+    /**
+     * The default set of scores reported by <code>toString()</code> and <code>toXML()</code>
+     */
+    public ArrayList<TopicScores> getDiagnostics() {
+        if (diagnostics != null) {
+            return diagnostics;
+        }
 
+        diagnostics = new ArrayList<TopicScores>();
         diagnostics.add(getTokensPerTopic(model.tokensPerTopic));
         diagnostics.add(getDocumentEntropy(model.tokensPerTopic));
         diagnostics.add(getWordLengthScores());
@@ -95,6 +126,7 @@ public class TopicModelDiagnostics {
         diagnostics.add(getRank1Percent());
         diagnostics.add(getDocumentPercentRatio(FIFTY_PERCENT_INDEX, TWO_PERCENT_INDEX));
         diagnostics.add(getDocumentPercent(5));
+        return diagnostics;
     }
 
     public static void main(String[] args) throws Exception {
@@ -115,123 +147,215 @@ public class TopicModelDiagnostics {
         }
     }
 
+    /**
+     * Run the pass over the documents if it has not run yet.
+     */
+    private void ensureDocumentStatistics() {
+        if (!collectedDocumentStatistics) {
+            collectDocumentStatistics();
+        }
+    }
+
+    /**
+     * Gather the document statistics, in parallel over token-balanced
+     * shards of the documents, each with its own counts.
+     */
     public void collectDocumentStatistics() {
 
         topicCodocumentMatrices = new int[numTopics][numTopWords][numTopWords];
         wordTypeCounts = new int[alphabet.size()];
         numTokens = 0;
-
-        // This is an array of hash sets containing the words-of-interest for each topic,
-        //  used for checking if the word at some position is one of those words.
-        TIntHashSet[] topicTopWordIndices = new TIntHashSet[numTopics];
+        numRank1Documents = new int[numTopics];
+        numNonZeroDocuments = new int[numTopics];
+        numDocumentsAtProportions = new int[numTopics][DEFAULT_DOC_PROPORTIONS.length];
+        sumCountTimesLogCount = new double[numTopics];
 
         // The same as the topic top words, but with int indices instead of strings,
         //  used for iterating over positions.
-        int[][] topicWordIndicesInOrder = new int[numTopics][numTopWords];
-
-        // This is an array of hash sets that will hold the words-of-interest present in a document,
-        //  which will be cleared after every document.
-        TIntHashSet[] docTopicWordIndices = new TIntHashSet[numTopics];
-
-        int numDocs = model.getData().size();
-
-        // The count of each topic, again cleared after every document.
-        int[] topicCounts = new int[numTopics];
+        final int[][] topicWordIndicesInOrder = new int[numTopics][numTopWords];
 
         for (int topic = 0; topic < numTopics; topic++) {
-            TIntHashSet wordIndices = new TIntHashSet();
-
             for (int i = 0; i < numTopWords; i++) {
                 if (topicTopWords[topic][i] != null) {
-                    int type = alphabet.lookupIndex(topicTopWords[topic][i]);
-                    topicWordIndicesInOrder[topic][i] = type;
-                    wordIndices.add(type);
+                    topicWordIndicesInOrder[topic][i] = alphabet.lookupIndex(topicTopWords[topic][i]);
+                }
+            }
+        }
+
+        final DocumentShards shards = model.tokenBalancedShards(0, model.numDocuments(), numThreads);
+        final DocumentStatistics[] shardStatistics = new DocumentStatistics[shards.size()];
+
+        ExecutorService executor = null;
+        if (numThreads > 1) {
+            executor = Executors.newFixedThreadPool(numThreads);
+        }
+        try {
+            ParallelRanges.run(executor, shards.size(), shards.size(), new ParallelRanges.Body() {
+                public void run(int start, int end, int task) {
+                    for (int shard = start; shard < end; shard++) {
+                        shardStatistics[shard] = new DocumentStatistics(topicWordIndicesInOrder);
+                        shardStatistics[shard].collect(shards.getStart(shard), shards.getEnd(shard));
+                    }
                 }
+            });
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
             }
+        }
 
-            topicTopWordIndices[topic] = wordIndices;
-            docTopicWordIndices[topic] = new TIntHashSet();
+        // Add up the shards in order, so the result does not depend on the threads
+        for (DocumentStatistics statistics : shardStatistics) {
+            statistics.addTo(this);
         }
 
-        int doc = 0;
+        collectedDocumentStatistics = true;
+    }
 
-        for (TopicAssignment document : model.getData()) {
+    /**
+     * The document statistics of one range of documents
+     */
+    private class DocumentStatistics {
 
-            FeatureSequence tokens = (FeatureSequence) document.instance.getData();
-            FeatureSequence topics = (FeatureSequence) document.topicSequence;
+        int[][] topicWordIndicesInOrder;
 
-            for (int position = 0; position < tokens.size(); position++) {
-                int type = tokens.getIndexAtPosition(position);
-                int topic = topics.getIndexAtPosition(position);
+        int[][][] topicCodocumentMatrices = new int[numTopics][numTopWords][numTopWords];
+        int[] wordTypeCounts = new int[alphabet.size()];
+        int numTokens = 0;
+        int[] numRank1Documents = new int[numTopics];
+        int[] numNonZeroDocuments = new int[numTopics];
+        int[][] numDocumentsAtProportions = new int[numTopics][DEFAULT_DOC_PROPORTIONS.length];
+        double[] sumCountTimesLogCount = new double[numTopics];
 
-                numTokens++;
-                wordTypeCounts[type]++;
+        DocumentStatistics(int[][] topicWordIndicesInOrder) {
+            this.topicWordIndicesInOrder = topicWordIndicesInOrder;
+        }
 
-                topicCounts[topic]++;
+        void collect(int firstDoc, int endDoc) {
 
-                if (topicTopWordIndices[topic].contains(type)) {
-                    docTopicWordIndices[topic].add(type);
+            // This is an array of hash sets containing the words-of-interest for each topic,
+            //  used for checking if the word at some position is one of those words.
+            TIntHashSet[] topicTopWordIndices = new TIntHashSet[numTopics];
+
+            // This is an array of hash sets that will hold the words-of-interest present in a document,
+            //  which will be cleared after every document.
+            TIntHashSet[] docTopicWordIndices = new TIntHashSet[numTopics];
+
+            // The count of each topic, again cleared after every document.
+            int[] topicCounts = new int[numTopics];
+
+            for (int topic = 0; topic < numTopics; topic++) {
+                TIntHashSet wordIndices = new TIntHashSet();
+
+                for (int i = 0; i < numTopWords; i++) {
+                    if (topicTopWords[topic][i] != null) {
+                        wordIndices.add(topicWordIndicesInOrder[topic][i]);
+                    }
                 }
+
+                topicTopWordIndices[topic] = wordIndices;
+                docTopicWordIndices[topic] = new TIntHashSet();
             }
 
-            int docLength = tokens.size();
+            for (int doc = firstDoc; doc < endDoc; doc++) {
 
-            if (docLength > 0) {
-                int maxTopic = -1;
-                int maxCount = -1;
+                int[] tokens = model.documentTokens(doc);
+                int[] topics = model.documentTopics(doc);
+                int start = model.documentStart(doc);
+                int end = model.documentEnd(doc);
 
-                for (int topic = 0; topic < numTopics; topic++) {
+                for (int position = start; position < end; position++) {
+                    int type = tokens[position];
+                    int topic = topics[position];
 
-                    if (topicCounts[topic] > 0) {
-                        numNonZeroDocuments[topic]++;
+                    numTokens++;
+                    wordTypeCounts[type]++;
 
-                        if (topicCounts[topic] > maxCount) {
-                            maxTopic = topic;
-                            maxCount = topicCounts[topic];
-                        }
+                    topicCounts[topic]++;
 
-                        sumCountTimesLogCount[topic] += topicCounts[topic] * Math.log(topicCounts[topic]);
+                    if (topicTopWordIndices[topic].contains(type)) {
+                        docTopicWordIndices[topic].add(type);
+                    }
+                }
 
-                        double proportion = (model.alpha[topic] + topicCounts[topic]) / (model.alphaSum + docLength);
-                        for (int i = 0; i < DEFAULT_DOC_PROPORTIONS.length; i++) {
-                            if (proportion < DEFAULT_DOC_PROPORTIONS[i]) {
-                                break;
+                int docLength = end - start;
+
+                if (docLength > 0) {
+                    int maxTopic = -1;
+                    int maxCount = -1;
+
+                    for (int topic = 0; topic < numTopics; topic++) {
+
+                        if (topicCounts[topic] > 0) {
+                            numNonZeroDocuments[topic]++;
+
+                            if (topicCounts[topic] > maxCount) {
+                                maxTopic = topic;
+                                maxCount = topicCounts[topic];
+                            }
+
+                            sumCountTimesLogCount[topic] += topicCounts[topic] * Math.log(topicCounts[topic]);
+
+                            double proportion = (model.alpha[topic] + topicCounts[topic]) / (model.alphaSum + docLength);
+                            for (int i = 0; i < DEFAULT_DOC_PROPORTIONS.length; i++) {
+                                if (proportion < DEFAULT_DOC_PROPORTIONS[i]) {
+                                    break;
+                                }
+                                numDocumentsAtProportions[topic][i]++;
                             }
-                            numDocumentsAtProportions[topic][i]++;
-                        }
 
-                        TIntHashSet supportedWords = docTopicWordIndices[topic];
-                        int[] indices = topicWordIndicesInOrder[topic];
-
-                        for (int i = 0; i < numTopWords; i++) {
-                            if (supportedWords.contains(indices[i])) {
-                                for (int j = i; j < numTopWords; j++) {
-                                    if (i == j) {
-                                        // Diagonals are total number of documents with word W in topic T
-                                        topicCodocumentMatrices[topic][i][i]++;
-                                    } else if (supportedWords.contains(indices[j])) {
-                                        topicCodocumentMatrices[topic][i][j]++;
-                                        topicCodocumentMatrices[topic][j][i]++;
+                            TIntHashSet supportedWords = docTopicWordIndices[topic];
+                            int[] indices = topicWordIndicesInOrder[topic];
+
+                            for (int i = 0; i < numTopWords; i++) {
+                                if (supportedWords.contains(indices[i])) {
+                                    for (int j = i; j < numTopWords; j++) {
+                                        if (i == j) {
+                                            // Diagonals are total number of documents with word W in topic T
+                                            topicCodocumentMatrices[topic][i][i]++;
+                                        } else if (supportedWords.contains(indices[j])) {
+                                            topicCodocumentMatrices[topic][i][j]++;
+                                            topicCodocumentMatrices[topic][j][i]++;
+                                        }
                                     }
                                 }
                             }
+
+                            docTopicWordIndices[topic].clear();
+                            topicCounts[topic] = 0;
                         }
+                    }
 
-                        docTopicWordIndices[topic].clear();
-                        topicCounts[topic] = 0;
+                    if (maxTopic > -1) {
+                        numRank1Documents[maxTopic]++;
                     }
                 }
+            }
+        }
 
-                if (maxTopic > -1) {
-                    numRank1Documents[maxTopic]++;
+        void addTo(TopicModelDiagnostics total) {
+            total.numTokens += numTokens;
+            for (int type = 0; type < wordTypeCounts.length; type++) {
+                total.wordTypeCounts[type] += wordTypeCounts[type];
+            }
+            for (int topic = 0; topic < numTopics; topic++) {
+                total.numRank1Documents[topic] += numRank1Documents[topic];
+                total.numNonZeroDocuments[topic] += numNonZeroDocuments[topic];
+                total.sumCountTimesLogCount[topic] += sumCountTimesLogCount[topic];
+                for (int i = 0; i < DEFAULT_DOC_PROPORTIONS.length; i++) {
+                    total.numDocumentsAtProportions[topic][i] += numDocumentsAtProportions[topic][i];
+                }
+                for (int i = 0; i < numTopWords; i++) {
+                    for (int j = 0; j < numTopWords; j++) {
+                        total.topicCodocumentMatrices[topic][i][j] += topicCodocumentMatrices[topic][i][j];
+                    }
                 }
             }
-
-            doc++;
         }
     }
 
     public int[][] getCodocumentMatrix(int topic) {
+        ensureDocumentStatistics();
         return topicCodocumentMatrices[topic];
     }
 
@@ -246,6 +370,7 @@ public class TopicModelDiagnostics {
     }
 
     public TopicScores getDocumentEntropy(int[] tokensPerTopic) {
+        ensureDocumentStatistics();
         TopicScores scores = new TopicScores("document_entropy", numTopics, numTopWords);
 
         for (int topic = 0; topic < numTopics; topic++) {
@@ -319,6 +444,7 @@ public class TopicModelDiagnostics {
      * Low-quality topics may be very similar to the global distribution.
      */
     public TopicScores getDistanceFromCorpus() {
+        ensureDocumentStatistics();
 
         int[] tokensPerTopic = model.tokensPerTopic;
 
@@ -357,6 +483,7 @@ public class TopicModelDiagnostics {
     }
 
     public TopicScores getTokenDocumentDiscrepancies() {
+        ensureDocumentStatistics();
         TopicScores scores = new TopicScores("token-doc-diff", numTopics, numTopWords);
         scores.wordScoresDefined = true;
 
@@ -498,6 +625,7 @@ public class TopicModelDiagnostics {
     }
 
     public TopicScores getCoherence() {
+        ensureDocumentStatistics();
         TopicScores scores = new TopicScores("coherence", numTopics, numTopWords);
         scores.wordScoresDefined = true;
 
@@ -527,6 +655,7 @@ public class TopicModelDiagnostics {
     }
 
     public TopicScores getRank1Percent() {
+        ensureDocumentStatistics();
         TopicScores scores = new TopicScores("rank_1_docs", numTopics, numTopWords);
 
         for (int topic = 0; topic < numTopics; topic++) {
@@ -537,6 +666,7 @@ public class TopicModelDiagnostics {
     }
 
     public TopicScores getDocumentPercentRatio(int numeratorIndex, int denominatorIndex) {
+        ensureDocumentStatistics();
         TopicScores scores = new TopicScores("allocation_ratio", numTopics, numTopWords);
 
         if (numeratorIndex > numDocumentsAtProportions[0].length || denominatorIndex > numDocumentsAtProportions[0].length) {
@@ -554,6 +684,7 @@ public class TopicModelDiagnostics {
     }
 
     public TopicScores getDocumentPercent(int i) {
+        ensureDocumentStatistics();
         TopicScores scores = new TopicScores("allocation_count", numTopics, numTopWords);
 
         if (i > numDocumentsAtProportions[0].length) {
@@ -570,6 +701,8 @@ public class TopicModelDiagnostics {
 
     public String toString() {
 
+        ArrayList<TopicScores> diagnostics = getDiagnostics();
+
         StringBuilder out = new StringBuilder();
         Formatter formatter = new Formatter(out, Locale.US);
 
@@ -603,6 +736,7 @@ public class TopicModelDiagnostics {
     public String toXML() {
 
         int[] tokensPerTopic = model.tokensPerTopic;
+        ArrayList<TopicScores> diagnostics = getDiagnostics();
 
         StringBuilder out = new StringBuilder();
         Formatter formatter = new Formatter(out, Locale.US);
@@ -0,0 +1,402 @@
+/* Copyright (C) 2005 Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.  For further
+   information, see the file `LICENSE' included with this distribution. */
+
+package cc.mallet.topics;
+
+import cc.mallet.types.Alphabet;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * A compact binary file holding the parameters of a trained topic model
+ * (the word alphabet, alpha, beta and the type-topic counts), laid out
+ * in columns so that it can be memory-mapped rather than deserialized.
+ * <p>
+ * Opening a file reads only the header and the per-topic arrays. The
+ * sparse type-topic counts and the alphabet stay in the mapped file and
+ * are read on demand, so a large model opens in constant time, takes
+ * almost no heap, and processes that map the same file share its pages.
+ * <p>
+ * Layout, big-endian:
+ * <pre>
+ * header     magic, version, numTopics, numTypes, segmentBits, 0, beta, betaSum,
+ *            alphabet position, counts position, number of count entries
+ * alpha      double[numTopics]
+ * totals     int[numTopics], tokens per topic
+ * rows       long[numTypes + 1], start of each type's counts, in ints
+ * alphabet   int[numTypes + 1] byte offsets, then the UTF-8 bytes of each word
+ * counts     int[], the non-zero (count &lt;&lt; topicBits) + topic entries of each type
+ * </pre>
+ * The counts are mapped in segments of 2^segmentBits ints, and rows are
+ * padded with zeros so that no row crosses a segment boundary. Rows hold
+ * no zero entries, so a row ends at the next row's start or at the first
+ * zero, whichever comes first.
+ */
+
+public class TopicModelFile {
+
+    public static final int MAGIC = 0x4d544d31; // "MTM1"
+    static final int CURRENT_VERSION = 0;
+
+    static final int HEADER_BYTES = 64;
+
+    // By default each mapped segment of the counts holds 2^28 ints (1GB),
+    //  the most a single mapping of at most 2GB can hold in whole segments
+    public static final int DEFAULT_SEGMENT_BITS = 28;
+
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    int numTopics;
+    int numTypes;
+    double[] alpha;
+    double beta;
+    double betaSum;
+    int[] tokensPerTopic;
+
+    int segmentBits;
+    long segmentMask;
+    LongBuffer rowStarts;
+    IntBuffer[] segments;
+
+    IntBuffer wordOffsets;
+    ByteBuffer wordBytes;
+    Alphabet alphabet = null;
+
+    /**
+     * Write a model. Trailing zeros of each row of <code>typeTopicCounts</code> are dropped.
+     */
+    public static void write(File file, Alphabet alphabet,
+                             double[] alpha, double beta, double betaSum,
+                             int[] tokensPerTopic, int[][] typeTopicCounts) throws IOException {
+        write(file, alphabet, alpha, beta, betaSum, tokensPerTopic, typeTopicCounts, DEFAULT_SEGMENT_BITS);
+    }
+
+    /**
+     * Write a model with segments of 2^<code>segmentBits</code> ints. Smaller
+     * segments are only useful for testing the padding between segments.
+     */
+    public static void write(File file, Alphabet alphabet,
+                             double[] alpha, double beta, double betaSum,
+                             int[] tokensPerTopic, int[][] typeTopicCounts,
+                             int segmentBits) throws IOException {
+
+        int numTopics = tokensPerTopic.length;
+        int numTypes = typeTopicCounts.length;
+
+        if (segmentBits < 1 || segmentBits > DEFAULT_SEGMENT_BITS || (1L << segmentBits) < numTopics) {
+            throw new IllegalArgumentException("Segments of 2^" + segmentBits + " ints cannot hold rows of " +
+                    numTopics + " topics");
+        }
+
+        // Lay out the rows, padding wherever a row would cross a segment
+        long[] rowStarts = new long[numTypes + 1];
+        long position = 0;
+        for (int type = 0; type < numTypes; type++) {
+            int length = rowLength(typeTopicCounts[type]);
+            if (length > 0 && (position >>> segmentBits) != ((position + length - 1) >>> segmentBits)) {
+                position = ((position >>> segmentBits) + 1) << segmentBits;
+            }
+            rowStarts[type] = position;
+            position += length;
+        }
+        rowStarts[numTypes] = position;
+        long numEntries = position;
+
+        byte[][] words = new byte[numTypes][];
+        long numWordBytes = 0;
+        for (int type = 0; type < numTypes; type++) {
+            Object entry = alphabet.lookupObject(type);
+            if (!(entry instanceof String)) {
+                throw new IllegalArgumentException("Alphabet entry " + type + " is not a String: " + entry);
+            }
+            words[type] = ((String) entry).getBytes(UTF8);
+            numWordBytes += words[type].length;
+        }
+        if (numWordBytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Alphabet is too large: " + numWordBytes + " bytes");
+        }
+
+        long rowsEnd = HEADER_BYTES + 12L * numTopics + 8L * (numTypes + 1);
+        long alphabetStart = align(rowsEnd);
+        long wordsEnd = alphabetStart + 4L * (numTypes + 1) + numWordBytes;
+        long countsStart = align(wordsEnd);
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(CURRENT_VERSION);
+            out.writeInt(numTopics);
+            out.writeInt(numTypes);
+            out.writeInt(segmentBits);
+            out.writeInt(0);
+            out.writeDouble(beta);
+            out.writeDouble(betaSum);
+            out.writeLong(alphabetStart);
+            out.writeLong(countsStart);
+            out.writeLong(numEntries);
+
+            for (int topic = 0; topic < numTopics; topic++) {
+                out.writeDouble(alpha[topic]);
+            }
+            for (int topic = 0; topic < numTopics; topic++) {
+                out.writeInt(tokensPerTopic[topic]);
+            }
+            for (int type = 0; type <= numTypes; type++) {
+                out.writeLong(rowStarts[type]);
+            }
+            pad(out, alphabetStart - rowsEnd);
+
+            int offset = 0;
+            out.writeInt(offset);
+            for (int type = 0; type < numTypes; type++) {
+                offset += words[type].length;
+                out.writeInt(offset);
+            }
+            for (int type = 0; type < numTypes; type++) {
+                out.write(words[type]);
+            }
+            pad(out, countsStart - wordsEnd);
+
+            position = 0;
+            for (int type = 0; type < numTypes; type++) {
+                while (position < rowStarts[type]) {
+                    out.writeInt(0);
+                    position++;
+                }
+                int[] row = typeTopicCounts[type];
+                int length = rowLength(row);
+                for (int i = 0; i < length; i++) {
+                    out.writeInt(row[i]);
+                }
+                position += length;
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static int rowLength(int[] row) {
+        int length = 0;
+        while (length < row.length && row[length] > 0) {
+            length++;
+        }
+        return length;
+    }
+
+    private static long align(long position) {
+        return (position + 7) & ~7L;
+    }
+
+    private static void pad(DataOutputStream out, long numBytes) throws IOException {
+        for (long i = 0; i < numBytes; i++) {
+            out.writeByte(0);
+        }
+    }
+
+    /**
+     * Returns true if the file starts with the magic number of this format.
+     */
+    public static boolean isModelFile(File file) throws IOException {
+        if (file.length() < HEADER_BYTES) {
+            return false;
+        }
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            return in.readInt() == MAGIC;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Map a model file into memory.
+     */
+    public static TopicModelFile open(File file) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            return new TopicModelFile(randomAccessFile.getChannel());
+        } finally {
+            // Mappings stay valid after the channel is closed
+            randomAccessFile.close();
+        }
+    }
+
+    private TopicModelFile(FileChannel channel) throws IOException {
+        MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES);
+        if (header.getInt() != MAGIC) {
+            throw new IOException("Not a topic model file");
+        }
+        int version = header.getInt();
+        if (version > CURRENT_VERSION) {
+            throw new IOException("Unknown topic model file version " + version);
+        }
+
+        numTopics = header.getInt();
+        numTypes = header.getInt();
+        segmentBits = header.getInt();
+        if (segmentBits < 1 || segmentBits > DEFAULT_SEGMENT_BITS) {
+            throw new IOException("Bad segment size 2^" + segmentBits + " in topic model file");
+        }
+        segmentMask = (1L << segmentBits) - 1;
+        header.getInt();
+        beta = header.getDouble();
+        betaSum = header.getDouble();
+        long alphabetStart = header.getLong();
+        long countsStart = header.getLong();
+        long numEntries = header.getLong();
+
+        MappedByteBuffer topics = channel.map(FileChannel.MapMode.READ_ONLY,
+                HEADER_BYTES, 12L * numTopics + 8L * (numTypes + 1));
+        alpha = new double[numTopics];
+        topics.asDoubleBuffer().get(alpha);
+        topics.position(8 * numTopics);
+        tokensPerTopic = new int[numTopics];
+        topics.asIntBuffer().get(tokensPerTopic);
+        topics.position(12 * numTopics);
+        rowStarts = topics.asLongBuffer();
+
+        ByteBuffer words = channel.map(FileChannel.MapMode.READ_ONLY,
+                alphabetStart, countsStart - alphabetStart);
+        wordOffsets = words.asIntBuffer();
+        words.position(4 * (numTypes + 1));
+        wordBytes = words.slice();
+
+        int numSegments = (int) ((numEntries + segmentMask) >>> segmentBits);
+        segments = new IntBuffer[numSegments];
+        for (int segment = 0; segment < numSegments; segment++) {
+            long first = (long) segment << segmentBits;
+            long size = Math.min(numEntries - first, 1L << segmentBits);
+            segments[segment] = channel.map(FileChannel.MapMode.READ_ONLY,
+                    countsStart + 4 * first, 4 * size).asIntBuffer();
+        }
+    }
+
+    public int getNumTopics() {
+        return numTopics;
+    }
+
+    public int getNumTypes() {
+        return numTypes;
+    }
+
+    public double[] getAlpha() {
+        return alpha;
+    }
+
+    public double getBeta() {
+        return beta;
+    }
+
+    public double getBetaSum() {
+        return betaSum;
+    }
+
+    public int[] getTokensPerTopic() {
+        return tokensPerTopic;
+    }
+
+    /**
+     * The number of non-zero topic entries for this type
+     */
+    public int getRowLength(int type) {
+        long start = rowStarts.get(type);
+        int maxLength = maxRowLength(type, start);
+        if (maxLength == 0) {
+            return 0;
+        }
+
+        IntBuffer segment = segments[(int) (start >>> segmentBits)];
+        int offset = (int) (start & segmentMask);
+        int length = 0;
+        while (length < maxLength && segment.get(offset + length) != 0) {
+            length++;
+        }
+        return length;
+    }
+
+    /**
+     * The distance to the next row's start, which includes any padding
+     * before the next segment, but no more than the number of topics.
+     */
+    private int maxRowLength(int type, long start) {
+        return (int) Math.min(rowStarts.get(type + 1) - start, numTopics);
+    }
+
+    /**
+     * Copy the sparse counts of a type into <code>row</code>, which must
+     * have room for every topic. If the row is shorter than
+     * <code>row</code>, the entry after it is set to zero, so that the
+     * result can be scanned like a row of <code>typeTopicCounts</code>.
+     * Safe to call from several threads at once.
+     *
+     * @return the number of entries copied
+     */
+    public int copyRow(int type, int[] row) {
+        long start = rowStarts.get(type);
+        int maxLength = maxRowLength(type, start);
+        int length = 0;
+        if (maxLength > 0) {
+            IntBuffer segment = segments[(int) (start >>> segmentBits)];
+            int offset = (int) (start & segmentMask);
+            // Stop at the padding, if the next row starts in a later segment
+            while (length < maxLength) {
+                int entry = segment.get(offset + length);
+                if (entry == 0) {
+                    break;
+                }
+                row[length] = entry;
+                length++;
+            }
+        }
+        if (length < row.length) {
+            row[length] = 0;
+        }
+        return length;
+    }
+
+    /**
+     * Read all the counts onto the heap, one exactly-sized row per type.
+     */
+    public int[][] readTypeTopicCounts() {
+        int[][] typeTopicCounts = new int[numTypes][];
+        int[] row = new int[numTopics];
+        for (int type = 0; type < numTypes; type++) {
+            int length = copyRow(type, row);
+            typeTopicCounts[type] = new int[length];
+            System.arraycopy(row, 0, typeTopicCounts[type], 0, length);
+        }
+        return typeTopicCounts;
+    }
+
+    public String getWord(int type) {
+        int start = wordOffsets.get(type);
+        byte[] bytes = new byte[wordOffsets.get(type + 1) - start];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = wordBytes.get(start + i);
+        }
+        return new String(bytes, UTF8);
+    }
+
+    /**
+     * The word alphabet, built on the heap the first time it is requested.
+     */
+    public synchronized Alphabet getAlphabet() {
+        if (alphabet == null) {
+            alphabet = new Alphabet(numTypes);
+            for (int type = 0; type < numTypes; type++) {
+                alphabet.lookupIndex(getWord(type));
+            }
+        }
+        return alphabet;
+    }
+}
@@ -0,0 +1,472 @@
+/* Copyright (C) 2005 Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.  For further
+   information, see the file `LICENSE' included with this distribution. */
+
+package cc.mallet.topics;
+
+import java.util.Arrays;
+
+/**
+ * Answers top-k queries on a trained {@link ParallelTopicModel}: the most
+ * frequent words of a topic, the most frequent topics of a word and the
+ * documents with the largest proportion of a topic. The answers are kept
+ * in primitive arrays, so a query copies at most k values, rather than
+ * sorting the vocabulary or the corpus into <code>IDSorter</code>s as
+ * <code>getSortedWords()</code> and <code>getTopicDocuments()</code> do.
+ * <p>
+ * The index keeps a copy of the type-topic counts and of the topic counts
+ * of each document. <code>update()</code> compares them with the model's
+ * current counts and only adjusts the lists of the topics whose counts
+ * changed. A topic's list is only rebuilt from scratch if one of its
+ * members may have fallen below a word or document outside the list.
+ * <p>
+ * Like IDSorter, lists are ordered by decreasing weight and then by
+ * decreasing ID. Queries may run on several threads at once, but not
+ * while <code>update()</code> runs, and <code>update()</code> must not
+ * run while the model is sampling.
+ */
+
+public class TopicQueryIndex {
+
+    ParallelTopicModel model;
+    int numTopics;
+    int topicMask;
+    int topicBits;
+
+    int maxWords;
+    int maxDocs;
+    double docSmoothing;
+
+    // The type-topic counts and document-topic counts as of the last update,
+    //  packed as (count << topicBits) + topic like the model's counts
+    int[][] typeTopicCounts = new int[0][];
+    int[][] docTopicCounts = new int[0][];
+    int[] docLengths = new int[0];
+
+    TopList[] topicWords;
+    TopList[] topicDocs;
+
+    // Scratch space for comparing packed counts
+    int[] oldCounts;
+    int[] newCounts;
+    int[] changedTopics;
+    int[] changedCounts;
+
+    /**
+     * @param maxWords     The number of words to keep for each topic
+     * @param maxDocs      The number of documents to keep for each topic, or 0 for none
+     * @param docSmoothing Added to each topic count when computing document
+     *                     proportions, as in <code>getTopicDocuments()</code>
+     */
+    public TopicQueryIndex(ParallelTopicModel model, int maxWords, int maxDocs, double docSmoothing) {
+        this.model = model;
+        this.numTopics = model.numTopics;
+        this.topicMask = model.topicMask;
+        this.topicBits = model.topicBits;
+        this.maxWords = maxWords;
+        this.maxDocs = maxDocs;
+        this.docSmoothing = docSmoothing;
+
+        topicWords = new TopList[numTopics];
+        topicDocs = new TopList[numTopics];
+        for (int topic = 0; topic < numTopics; topic++) {
+            topicWords[topic] = new TopList(maxWords);
+            topicDocs[topic] = new TopList(maxDocs);
+        }
+
+        oldCounts = new int[numTopics];
+        newCounts = new int[numTopics];
+        changedTopics = new int[numTopics];
+        changedCounts = new int[numTopics];
+
+        update();
+    }
+
+    /**
+     * Bring the index up to date with the model's counts.
+     */
+    public void update() {
+        updateWords();
+        if (maxDocs > 0) {
+            updateDocuments();
+        }
+    }
+
+    private void updateWords() {
+        int[][] modelCounts = model.typeTopicCounts;
+        if (modelCounts.length > typeTopicCounts.length) {
+            int oldNumTypes = typeTopicCounts.length;
+            typeTopicCounts = Arrays.copyOf(typeTopicCounts, modelCounts.length);
+            for (int type = oldNumTypes; type < typeTopicCounts.length; type++) {
+                typeTopicCounts[type] = new int[0];
+            }
+        }
+
+        for (int type = 0; type < modelCounts.length; type++) {
+            int[] row = modelCounts[type];
+            if (Arrays.equals(row, typeTopicCounts[type])) {
+                continue;
+            }
+
+            int numChanged = diffCounts(typeTopicCounts[type], row);
+            for (int i = 0; i < numChanged; i++) {
+                topicWords[changedTopics[i]].change(type, changedCounts[i]);
+            }
+            typeTopicCounts[type] = row.clone();
+        }
+
+        // Rebuild the lists that may have lost a member, in one pass over the counts
+        boolean anyDirty = false;
+        for (int topic = 0; topic < numTopics; topic++) {
+            if (topicWords[topic].dirty) {
+                topicWords[topic].clear();
+                anyDirty = true;
+            }
+        }
+        if (!anyDirty) {
+            return;
+        }
+
+        for (int type = 0; type < typeTopicCounts.length; type++) {
+            int[] row = typeTopicCounts[type];
+            for (int index = 0; index < row.length && row[index] > 0; index++) {
+                TopList list = topicWords[row[index] & topicMask];
+                if (list.dirty) {
+                    list.offer(type, row[index] >> topicBits);
+                }
+            }
+        }
+
+        for (int topic = 0; topic < numTopics; topic++) {
+            topicWords[topic].dirty = false;
+        }
+    }
+
+    private void updateDocuments() {
+        int numDocs = model.numDocuments();
+        int oldNumDocs = docTopicCounts.length;
+        if (numDocs > oldNumDocs) {
+            docTopicCounts = Arrays.copyOf(docTopicCounts, numDocs);
+            docLengths = Arrays.copyOf(docLengths, numDocs);
+        }
+
+        for (int doc = 0; doc < numDocs; doc++) {
+            int[] topics = model.documentTopics(doc);
+            int start = model.documentStart(doc);
+            int end = model.documentEnd(doc);
+
+            int numUsed = 0;
+            for (int position = start; position < end; position++) {
+                int topic = topics[position];
+                if (topic == ParallelTopicModel.UNASSIGNED_TOPIC) {
+                    continue;
+                }
+                if (newCounts[topic] == 0) {
+                    changedTopics[numUsed++] = topic;
+                }
+                newCounts[topic]++;
+            }
+            int[] packed = new int[numUsed];
+            for (int i = 0; i < numUsed; i++) {
+                int topic = changedTopics[i];
+                packed[i] = (newCounts[topic] << topicBits) + topic;
+                newCounts[topic] = 0;
+            }
+
+            if (doc >= oldNumDocs) {
+                // Every topic has a weight in a new document, even with no tokens
+                docLengths[doc] = end - start;
+                docTopicCounts[doc] = packed;
+                for (int entry : packed) {
+                    oldCounts[entry & topicMask] = entry >> topicBits;
+                }
+                for (int topic = 0; topic < numTopics; topic++) {
+                    topicDocs[topic].change(doc, docWeight(oldCounts[topic], docLengths[doc]));
+                    oldCounts[topic] = 0;
+                }
+                continue;
+            }
+
+            if (Arrays.equals(packed, docTopicCounts[doc])) {
+                continue;
+            }
+
+            int numChanged = diffCounts(docTopicCounts[doc], packed);
+            for (int i = 0; i < numChanged; i++) {
+                topicDocs[changedTopics[i]].change(doc, docWeight(changedCounts[i], docLengths[doc]));
+            }
+            docTopicCounts[doc] = packed;
+        }
+
+        boolean anyDirty = false;
+        for (int topic = 0; topic < numTopics; topic++) {
+            if (topicDocs[topic].dirty) {
+                topicDocs[topic].clear();
+                anyDirty = true;
+            }
+        }
+        if (!anyDirty) {
+            return;
+        }
+
+        for (int doc = 0; doc < docTopicCounts.length; doc++) {
+            for (int entry : docTopicCounts[doc]) {
+                oldCounts[entry & topicMask] = entry >> topicBits;
+            }
+            for (int topic = 0; topic < numTopics; topic++) {
+                if (topicDocs[topic].dirty) {
+                    topicDocs[topic].offer(doc, docWeight(oldCounts[topic], docLengths[doc]));
+                }
+            }
+            for (int entry : docTopicCounts[doc]) {
+                oldCounts[entry & topicMask] = 0;
+            }
+        }
+
+        for (int topic = 0; topic < numTopics; topic++) {
+            topicDocs[topic].dirty = false;
+        }
+    }
+
+    private double docWeight(int count, int docLength) {
+        return (count + docSmoothing) / (docLength + numTopics * docSmoothing);
+    }
+
+    /**
+     * Find the topics whose counts differ between two packed count arrays,
+     * storing them and their new counts in <code>changedTopics</code> and
+     * <code>changedCounts</code>.
+     *
+     * @return the number of changed topics
+     */
+    private int diffCounts(int[] oldRow, int[] newRow) {
+        for (int index = 0; index < oldRow.length && oldRow[index] > 0; index++) {
+            oldCounts[oldRow[index] & topicMask] = oldRow[index] >> topicBits;
+        }
+        for (int index = 0; index < newRow.length && newRow[index] > 0; index++) {
+            newCounts[newRow[index] & topicMask] = newRow[index] >> topicBits;
+        }
+
+        int numChanged = 0;
+        for (int index = 0; index < oldRow.length && oldRow[index] > 0; index++) {
+            int topic = oldRow[index] & topicMask;
+            if (newCounts[topic] != oldCounts[topic]) {
+                changedTopics[numChanged] = topic;
+                changedCounts[numChanged] = newCounts[topic];
+                numChanged++;
+            }
+        }
+        for (int index = 0; index < newRow.length && newRow[index] > 0; index++) {
+            int topic = newRow[index] & topicMask;
+            if (oldCounts[topic] == 0) {
+                changedTopics[numChanged] = topic;
+                changedCounts[numChanged] = newCounts[topic];
+                numChanged++;
+            }
+        }
+
+        for (int index = 0; index < oldRow.length && oldRow[index] > 0; index++) {
+            oldCounts[oldRow[index] & topicMask] = 0;
+        }
+        for (int index = 0; index < newRow.length && newRow[index] > 0; index++) {
+            newCounts[newRow[index] & topicMask] = 0;
+        }
+
+        return numChanged;
+    }
+
+    public int getNumTopics() {
+        return numTopics;
+    }
+
+    /**
+     * The most frequent words of a topic, most frequent first.
+     *
+     * @param n The maximum number of words, at most the <code>maxWords</code> of the index
+     */
+    public int[] getTopWords(int topic, int n) {
+        return topicWords[topic].getIDs(n);
+    }
+
+    /**
+     * The counts of the words returned by <code>getTopWords()</code>
+     */
+    public int[] getTopWordCounts(int topic, int n) {
+        TopList list = topicWords[topic];
+        int[] counts = new int[Math.min(n, list.size)];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = (int) list.weights[i];
+        }
+        return counts;
+    }
+
+    /**
+     * The topics a word is most often assigned to, most frequent first.
+     */
+    public int[] getTopTopics(int type, int n) {
+        int[] row = typeTopicCounts[type];
+        int size = 0;
+        while (size < row.length && size < n && row[size] > 0) {
+            size++;
+        }
+        int[] topics = new int[size];
+        for (int i = 0; i < size; i++) {
+            topics[i] = row[i] & topicMask;
+        }
+        return topics;
+    }
+
+    /**
+     * The counts of the topics returned by <code>getTopTopics()</code>
+     */
+    public int[] getTopTopicCounts(int type, int n) {
+        int[] row = typeTopicCounts[type];
+        int size = 0;
+        while (size < row.length && size < n && row[size] > 0) {
+            size++;
+        }
+        int[] counts = new int[size];
+        for (int i = 0; i < size; i++) {
+            counts[i] = row[i] >> topicBits;
+        }
+        return counts;
+    }
+
+    /**
+     * The documents with the largest smoothed proportion of a topic, largest first.
+     *
+     * @param n The maximum number of documents, at most the <code>maxDocs</code> of the index
+     */
+    public int[] getTopDocuments(int topic, int n) {
+        return topicDocs[topic].getIDs(n);
+    }
+
+    /**
+     * The proportions of the documents returned by <code>getTopDocuments()</code>
+     */
+    public double[] getTopDocumentWeights(int topic, int n) {
+        TopList list = topicDocs[topic];
+        return Arrays.copyOf(list.weights, Math.min(n, list.size));
+    }
+
+    /**
+     * The <code>capacity</code> IDs with the largest positive weights, in
+     * decreasing order of weight and then ID.
+     * <p>
+     * <code>floor</code> bounds the weight of every ID outside a full
+     * list. A member whose weight falls to the floor or below might no
+     * longer belong in the list, so the list is marked dirty and must be
+     * rebuilt by offering every ID again.
+     */
+    static class TopList {
+        int capacity;
+        int size = 0;
+        int[] ids;
+        double[] weights;
+        double floor = 0.0;
+        boolean dirty = true;
+
+        TopList(int capacity) {
+            this.capacity = capacity;
+            ids = new int[capacity];
+            weights = new double[capacity];
+        }
+
+        void clear() {
+            size = 0;
+            floor = 0.0;
+        }
+
+        int[] getIDs(int n) {
+            return Arrays.copyOf(ids, Math.min(n, size));
+        }
+
+        /**
+         * Add an ID that is not in the list, while rebuilding it.
+         */
+        void offer(int id, double weight) {
+            if (weight <= 0.0) {
+                return;
+            }
+            if (size < capacity) {
+                ids[size] = id;
+                weights[size] = weight;
+                size++;
+                moveUp(size - 1);
+            } else if (capacity > 0 && before(id, weight, size - 1)) {
+                floor = Math.max(floor, weights[size - 1]);
+                ids[size - 1] = id;
+                weights[size - 1] = weight;
+                moveUp(size - 1);
+            } else {
+                floor = Math.max(floor, weight);
+            }
+        }
+
+        /**
+         * Record a new weight for an ID that may or may not be in the list.
+         */
+        void change(int id, double weight) {
+            if (dirty) {
+                return;
+            }
+
+            int index = 0;
+            while (index < size && ids[index] != id) {
+                index++;
+            }
+            if (index == size) {
+                offer(id, weight);
+                return;
+            }
+
+            if (weight <= 0.0) {
+                if (size == capacity && floor > 0.0) {
+                    dirty = true;
+                    return;
+                }
+                System.arraycopy(ids, index + 1, ids, index, size - index - 1);
+                System.arraycopy(weights, index + 1, weights, index, size - index - 1);
+                size--;
+            } else if (weight >= weights[index]) {
+                weights[index] = weight;
+                moveUp(index);
+            } else if (size == capacity && weight <= floor) {
+                dirty = true;
+            } else {
+                weights[index] = weight;
+                moveDown(index);
+            }
+        }
+
+        private boolean before(int id, double weight, int index) {
+            return weight > weights[index] || (weight == weights[index] && id > ids[index]);
+        }
+
+        private void moveUp(int index) {
+            while (index > 0 && before(ids[index], weights[index], index - 1)) {
+                swap(index, index - 1);
+                index--;
+            }
+        }
+
+        private void moveDown(int index) {
+            while (index + 1 < size && before(ids[index + 1], weights[index + 1], index)) {
+                swap(index, index + 1);
+                index++;
+            }
+        }
+
+        private void swap(int i, int j) {
+            int id = ids[i];
+            ids[i] = ids[j];
+            ids[j] = id;
+            double weight = weights[i];
+            weights[i] = weights[j];
+            weights[j] = weight;
+        }
+    }
+}
@@ -0,0 +1,445 @@
+/* Copyright (C) 2005 Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.  For further
+   information, see the file `LICENSE' included with this distribution. */
+
+package cc.mallet.topics;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * The Gibbs sampling state of a ParallelTopicModel: the topic of every
+ * token, the hyperparameters and the number of completed iterations, in
+ * a compact binary file. The type-topic counts are not stored, since
+ * they are determined by the topics and the documents.
+ * <p>
+ * Unlike the text state of <code>printTextState()</code>, the words are
+ * not stored either, so the same documents must be added to the model
+ * before it is initialized from this file. With fewer than 128 topics
+ * each token takes one byte, rather than a text line of 20 or more.
+ * <p>
+ * {@link Writer} and {@link Reader} stream one document at a time
+ * through a direct buffer, so neither side needs a copy of the whole
+ * state. <code>snapshot()</code>, <code>write()</code> and <code>read()</code>
+ * hold the whole state in memory, for checkpoints that are written
+ * while the model keeps changing.
+ * <p>
+ * Layout, big-endian:
+ * <pre>
+ * header     magic, version, numTopics, numTypes, iteration, numDocs
+ * priors     alphaSum, double[numTopics] alpha, beta, betaSum
+ * documents  for each document, its length and then the topic of each token
+ * </pre>
+ * The lengths and topics are unsigned varints (seven bits per byte, low
+ * bits first, high bit set on all but the last byte).
+ */
+
+public class TopicStateFile {
+
+    public static final int MAGIC = 0x4d545331; // "MTS1"
+    static final int CURRENT_VERSION = 1;
+
+    static final int BUFFER_SIZE = 1 << 20;
+
+    int numTopics;
+    int numTypes;
+    int iteration;
+    double[] alpha;
+    double alphaSum;
+    double beta;
+    double betaSum;
+    int[][] topics;
+
+    public TopicStateFile(int numTopics, int numTypes, int iteration,
+                          double[] alpha, double alphaSum, double beta, double betaSum,
+                          int[][] topics) {
+        this.numTopics = numTopics;
+        this.numTypes = numTypes;
+        this.iteration = iteration;
+        this.alpha = alpha;
+        this.alphaSum = alphaSum;
+        this.beta = beta;
+        this.betaSum = betaSum;
+        this.topics = topics;
+    }
+
+    /**
+     * Copy the current state of a model, so that it can be written while
+     * the model continues to change. The model must not be sampling.
+     */
+    public static TopicStateFile snapshot(ParallelTopicModel model, int iteration) {
+        int[][] topics = new int[model.numDocuments()][];
+        for (int doc = 0; doc < topics.length; doc++) {
+            topics[doc] = Arrays.copyOfRange(model.documentTopics(doc),
+                    model.documentStart(doc), model.documentEnd(doc));
+        }
+        return new TopicStateFile(model.numTopics, model.numTypes, iteration,
+                model.alpha.clone(), model.alphaSum, model.beta, model.betaSum,
+                topics);
+    }
+
+    public int getNumTopics() {
+        return numTopics;
+    }
+
+    public int getNumTypes() {
+        return numTypes;
+    }
+
+    /**
+     * The number of sampling iterations completed when the snapshot was taken
+     */
+    public int getIteration() {
+        return iteration;
+    }
+
+    public double[] getAlpha() {
+        return alpha;
+    }
+
+    public double getAlphaSum() {
+        return alphaSum;
+    }
+
+    public double getBeta() {
+        return beta;
+    }
+
+    public double getBetaSum() {
+        return betaSum;
+    }
+
+    /**
+     * The topic of each token, indexed by <code>[document][position]</code>
+     */
+    public int[][] getTopics() {
+        return topics;
+    }
+
+    /**
+     * Write the snapshot to a temporary file next to <code>file</code> and
+     * then rename it, so that an interrupted write never leaves a partial
+     * file under the final name.
+     */
+    public void write(File file) throws IOException {
+        Writer writer = new Writer(file, numTopics, numTypes, iteration,
+                alpha, alphaSum, beta, betaSum, topics.length);
+        try {
+            for (int[] documentTopics : topics) {
+                writer.writeDocument(documentTopics);
+            }
+        } catch (IOException e) {
+            writer.abort();
+            throw e;
+        }
+        writer.close();
+    }
+
+    /**
+     * Returns true if the file starts with the magic number of this format.
+     */
+    public static boolean isStateFile(File file) throws IOException {
+        if (file.length() < 8) {
+            return false;
+        }
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            return in.readInt() == MAGIC;
+        } finally {
+            in.close();
+        }
+    }
+
+    public static TopicStateFile read(File file) throws IOException {
+        Reader reader = new Reader(file);
+        try {
+            int[][] topics = new int[reader.getNumDocs()][];
+            for (int doc = 0; doc < topics.length; doc++) {
+                topics[doc] = reader.readDocument();
+            }
+            return new TopicStateFile(reader.getNumTopics(), reader.getNumTypes(), reader.getIteration(),
+                    reader.getAlpha(), reader.getAlphaSum(), reader.getBeta(), reader.getBetaSum(),
+                    topics);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Writes a state file one document at a time. The file is written
+     * under a temporary name, and renamed when it is closed.
+     */
+    public static class Writer implements Closeable {
+
+        File file;
+        File temporaryFile;
+        FileChannel channel;
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+        int numDocs;
+        int docsWritten = 0;
+
+        public Writer(File file, int numTopics, int numTypes, int iteration,
+                      double[] alpha, double alphaSum, double beta, double betaSum,
+                      int numDocs) throws IOException {
+            this.file = file;
+            this.numDocs = numDocs;
+            temporaryFile = new File(file.getPath() + ".tmp");
+            channel = new FileOutputStream(temporaryFile).getChannel();
+
+            buffer.putInt(MAGIC);
+            buffer.putInt(CURRENT_VERSION);
+            buffer.putInt(numTopics);
+            buffer.putInt(numTypes);
+            buffer.putInt(iteration);
+            buffer.putInt(numDocs);
+
+            ensureSpace(8);
+            buffer.putDouble(alphaSum);
+            for (int topic = 0; topic < numTopics; topic++) {
+                ensureSpace(8);
+                buffer.putDouble(alpha[topic]);
+            }
+            ensureSpace(16);
+            buffer.putDouble(beta);
+            buffer.putDouble(betaSum);
+        }
+
+        public void writeDocument(int[] topics) throws IOException {
+            writeDocument(topics, 0, topics.length);
+        }
+
+        /**
+         * Write the topics at positions <code>[start, end)</code> of <code>topics</code> as the next document.
+         */
+        public void writeDocument(int[] topics, int start, int end) throws IOException {
+            if (docsWritten == numDocs) {
+                throw new IllegalStateException("All " + numDocs + " documents have been written");
+            }
+            writeVarint(end - start);
+            for (int position = start; position < end; position++) {
+                writeVarint(topics[position]);
+            }
+            docsWritten++;
+        }
+
+        private void writeVarint(int value) throws IOException {
+            ensureSpace(5);
+            while ((value & ~0x7f) != 0) {
+                buffer.put((byte) ((value & 0x7f) | 0x80));
+                value >>>= 7;
+            }
+            buffer.put((byte) value);
+        }
+
+        private void ensureSpace(int numBytes) throws IOException {
+            if (buffer.remaining() < numBytes) {
+                flush();
+            }
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        /**
+         * Finish the file and give it its final name.
+         */
+        public void close() throws IOException {
+            if (docsWritten != numDocs) {
+                abort();
+                throw new IllegalStateException("Only " + docsWritten + " of " + numDocs + " documents were written");
+            }
+            flush();
+            channel.close();
+
+            if (file.exists() && !file.delete()) {
+                throw new IOException("Couldn't replace " + file);
+            }
+            if (!temporaryFile.renameTo(file)) {
+                throw new IOException("Couldn't rename " + temporaryFile + " to " + file);
+            }
+        }
+
+        /**
+         * Give up on the file, deleting what has been written.
+         */
+        public void abort() throws IOException {
+            channel.close();
+            temporaryFile.delete();
+        }
+    }
+
+    /**
+     * Reads a state file one document at a time.
+     */
+    public static class Reader implements Closeable {
+
+        FileChannel channel;
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        boolean endOfFile = false;
+
+        int numTopics;
+        int numTypes;
+        int iteration;
+        int numDocs;
+        double[] alpha;
+        double alphaSum;
+        double beta;
+        double betaSum;
+
+        int docsRead = 0;
+
+        public Reader(File file) throws IOException {
+            channel = new FileInputStream(file).getChannel();
+            buffer.limit(0);
+
+            try {
+                ensureAvailable(24);
+                if (buffer.getInt() != MAGIC) {
+                    throw new IOException(file + " is not a topic state file");
+                }
+                int version = buffer.getInt();
+                if (version != CURRENT_VERSION) {
+                    throw new IOException("Unknown topic state file version " + version);
+                }
+
+                numTopics = buffer.getInt();
+                numTypes = buffer.getInt();
+                iteration = buffer.getInt();
+                numDocs = buffer.getInt();
+
+                ensureAvailable(8);
+                alphaSum = buffer.getDouble();
+                alpha = new double[numTopics];
+                for (int topic = 0; topic < numTopics; topic++) {
+                    ensureAvailable(8);
+                    alpha[topic] = buffer.getDouble();
+                }
+                ensureAvailable(16);
+                beta = buffer.getDouble();
+                betaSum = buffer.getDouble();
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+        }
+
+        public int getNumTopics() {
+            return numTopics;
+        }
+
+        public int getNumTypes() {
+            return numTypes;
+        }
+
+        public int getIteration() {
+            return iteration;
+        }
+
+        public int getNumDocs() {
+            return numDocs;
+        }
+
+        public double[] getAlpha() {
+            return alpha;
+        }
+
+        public double getAlphaSum() {
+            return alphaSum;
+        }
+
+        public double getBeta() {
+            return beta;
+        }
+
+        public double getBetaSum() {
+            return betaSum;
+        }
+
+        /**
+         * Read the topics of the next document into a new array.
+         */
+        public int[] readDocument() throws IOException {
+            int[] topics = new int[readLength()];
+            readTopics(topics, 0, topics.length);
+            return topics;
+        }
+
+        /**
+         * Read the topics of the next document into positions
+         * <code>[start, end)</code> of <code>topics</code>. The
+         * document must have exactly <code>end - start</code> tokens.
+         */
+        public void readDocument(int[] topics, int start, int end) throws IOException {
+            int fileLength = readLength();
+            if (fileLength != end - start) {
+                throw new IOException("Document " + (docsRead - 1) + " has " + fileLength +
+                        " tokens in the state file, but " + (end - start) + " were expected");
+            }
+            readTopics(topics, start, end);
+        }
+
+        private int readLength() throws IOException {
+            if (docsRead == numDocs) {
+                throw new EOFException("All " + numDocs + " documents have been read");
+            }
+            docsRead++;
+            return readValue();
+        }
+
+        private void readTopics(int[] topics, int start, int end) throws IOException {
+            for (int position = start; position < end; position++) {
+                int topic = readValue();
+                if (topic < 0 || topic >= numTopics) {
+                    throw new IOException("Topic " + topic + " out of range in document " + (docsRead - 1));
+                }
+                topics[position] = topic;
+            }
+        }
+
+        private int readValue() throws IOException {
+            int value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                if (!buffer.hasRemaining()) {
+                    ensureAvailable(1);
+                }
+                b = buffer.get();
+                value |= (b & 0x7f) << shift;
+                shift += 7;
+            } while (b < 0);
+            return value;
+        }
+
+        private void ensureAvailable(int numBytes) throws IOException {
+            if (buffer.remaining() >= numBytes) {
+                return;
+            }
+            buffer.compact();
+            while (buffer.position() < numBytes && !endOfFile) {
+                if (channel.read(buffer) == -1) {
+                    endOfFile = true;
+                }
+            }
+            buffer.flip();
+            if (buffer.remaining() < numBytes) {
+                throw new EOFException("Topic state file is truncated");
+            }
+        }
+
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
@@ -9,10 +9,12 @@ package cc.mallet.topics;
 
 
 import cc.mallet.types.*;
+import cc.mallet.util.MalletLogger;
 import cc.mallet.util.Randoms;
 
 import java.io.*;
 import java.util.Arrays;
+import java.util.logging.Logger;
 
 /**
  * Like Latent Dirichlet Allocation, but with integrated phrase discovery.
@@ -26,6 +28,7 @@ public class TopicalNGrams {
     private static final long serialVersionUID = 1;
     private static final int CURRENT_SERIAL_VERSION = 0;
     private static final int NULL_INTEGER = -1;
+    protected static Logger logger = MalletLogger.getLogger(TopicalNGrams.class.getName());
     int numTopics;
     Alphabet uniAlphabet;
     Alphabet biAlphabet;
@@ -49,6 +52,9 @@ public class TopicalNGrams {
     int[] tokensPerTopic; // indexed by <topic index>
     // "sumNgramWords"
     int[][] bitokensPerTopic; // indexed by <feature index, topic index>, where the later is the conditioned word
+    int numThreads = 1;
+    int numChanges; // number of tokens whose topic changed in the current iteration
+    TrainingMetrics trainingMetrics = null;
 
     public TopicalNGrams(int numberOfTopics) {
         this(numberOfTopics, 50.0, 0.01, 0.01, 0.03, 0.2, 1000);
@@ -72,6 +78,37 @@ public class TopicalNGrams {
         System.out.println("delta2 :" + delta2);
     }
 
+    /**
+     * A sampler for one thread of <code>model</code>, sharing its
+     * documents, assignments and parameters but with its own counts.
+     */
+    private TopicalNGrams(TopicalNGrams model) {
+        this.numTopics = model.numTopics;
+        this.uniAlphabet = model.uniAlphabet;
+        this.biAlphabet = model.biAlphabet;
+        this.alpha = model.alpha;
+        this.beta = model.beta;
+        this.gamma = model.gamma;
+        this.delta = model.delta;
+        this.delta1 = model.delta1;
+        this.delta2 = model.delta2;
+        this.tAlpha = model.tAlpha;
+        this.vBeta = model.vBeta;
+        this.vGamma = model.vGamma;
+        this.ilist = model.ilist;
+        this.topics = model.topics;
+        this.grams = model.grams;
+        this.docTopicCounts = model.docTopicCounts;
+        this.numTypes = model.numTypes;
+        this.numBitypes = model.numBitypes;
+
+        typeNgramTopicCounts = new int[numTypes][2][numTopics];
+        unitypeTopicCounts = new int[numTypes][numTopics];
+        bitypeTopicCounts = new int[numBitypes][numTopics];
+        tokensPerTopic = new int[numTopics];
+        bitokensPerTopic = new int[numTypes][numTopics];
+    }
+
     // Just for testing.  Recommend instead is mallet/bin/vectors2topics
     public static void main(String[] args) {
         InstanceList ilist = InstanceList.load(new File(args[0]));
@@ -83,6 +120,22 @@ public class TopicalNGrams {
         tng.printTopWords(60, true);
     }
 
+    /**
+     * Sample with <code>threads</code> threads, each holding a copy
+     * of the counts, as described in {@link ShardedSampler}.
+     */
+    public void setNumThreads(int threads) {
+        this.numThreads = threads;
+    }
+
+    /**
+     * Send the throughput, phase times and per-thread busy and idle times
+     * of every iteration to <code>metrics</code>, or to nothing if it is null.
+     */
+    public void setTrainingMetrics(TrainingMetrics metrics) {
+        this.trainingMetrics = metrics;
+    }
+
     public void estimate(InstanceList documents, int numIterations, int showTopicsInterval,
                          int outputModelInterval, String outputModelFilename,
                          Randoms r) {
@@ -141,17 +194,66 @@ public class TopicalNGrams {
             }
         }
 
-        for (int iterations = 0; iterations < numIterations; iterations++) {
-            sampleTopicsForAllDocs(r);
-            if (iterations % 10 == 0) System.out.print(iterations);
-            else System.out.print(".");
-            System.out.flush();
-            if (showTopicsInterval != 0 && iterations % showTopicsInterval == 0 && iterations > 0) {
-                System.out.println();
-                printTopWords(5, false);
+        ShardedSampler sampler = null;
+        ShardWorker[] workers = null;
+        if (numThreads > 1) {
+            int[] docLengths = new int[numDocs];
+            for (int di = 0; di < numDocs; di++) {
+                docLengths[di] = topics[di].length;
+            }
+            sampler = new ShardedSampler(docLengths, numThreads);
+            workers = new ShardWorker[sampler.getNumShards()];
+            for (int shard = 0; shard < workers.length; shard++) {
+                workers[shard] = new ShardWorker(new TopicalNGrams(this), new Randoms(r.nextInt()));
             }
-            if (outputModelInterval != 0 && iterations % outputModelInterval == 0 && iterations > 0) {
-                this.write(new File(outputModelFilename + '.' + iterations));
+        }
+
+        PhaseTimer phaseTimer = new PhaseTimer();
+        try {
+            for (int iterations = 0; iterations < numIterations; iterations++) {
+                long iterationStart = System.currentTimeMillis();
+                phaseTimer.startIteration();
+                numChanges = 0;
+
+                if (sampler != null) {
+                    sampler.sweep(workers);
+                    phaseTimer.record(PhaseTimer.Phase.SAMPLE);
+                    mergeWorkers(workers);
+                    phaseTimer.record(PhaseTimer.Phase.MERGE);
+                } else {
+                    sampleTopicsForAllDocs(r);
+                    phaseTimer.record(PhaseTimer.Phase.SAMPLE);
+                }
+
+                long elapsedMillis = Math.max(1, System.currentTimeMillis() - iterationStart);
+                logger.info("<" + iterations + "> " + elapsedMillis + "ms, " +
+                        Math.round(numTokens * 1000.0 / elapsedMillis) + " tokens/sec, " +
+                        numChanges + " topics changed, " + biTokens + " bigram tokens");
+
+                if (showTopicsInterval != 0 && iterations % showTopicsInterval == 0 && iterations > 0) {
+                    System.out.println();
+                    printTopWords(5, false);
+                }
+                if (outputModelInterval != 0 && iterations % outputModelInterval == 0 && iterations > 0) {
+                    phaseTimer.mark();
+                    this.write(new File(outputModelFilename + '.' + iterations));
+                    phaseTimer.record(PhaseTimer.Phase.SAVE);
+                }
+
+                if (trainingMetrics != null) {
+                    IterationMetrics metrics = new IterationMetrics("TopicalNGrams", iterations, numTokens,
+                            System.currentTimeMillis() - iterationStart);
+                    metrics.setPhaseTimes(phaseTimer);
+                    if (sampler != null) {
+                        metrics.setThreadTimes(sampler.getBusyNanos(), sampler.getSweepNanos());
+                    }
+                    metrics.setTopicCountDensity(IterationMetrics.nonZeroFraction(unitypeTopicCounts, numTopics));
+                    trainingMetrics.publish(metrics);
+                }
+            }
+        } finally {
+            if (sampler != null) {
+                sampler.shutdown();
             }
         }
 
@@ -171,6 +273,88 @@ public class TopicalNGrams {
         }
     }
 
+    /**
+     * Add each worker's changes to the counts, as in {@link ShardedSampler#mergeDeltas}.
+     */
+    private void mergeWorkers(ShardWorker[] workers) {
+        int[][] rows = new int[workers.length][];
+
+        for (int type = 0; type < numTypes; type++) {
+            for (int gram = 0; gram < 2; gram++) {
+                for (int w = 0; w < workers.length; w++) {
+                    rows[w] = workers[w].sampler.typeNgramTopicCounts[type][gram];
+                }
+                ShardedSampler.mergeDeltas(typeNgramTopicCounts[type][gram], rows);
+            }
+            for (int w = 0; w < workers.length; w++) {
+                rows[w] = workers[w].sampler.unitypeTopicCounts[type];
+            }
+            ShardedSampler.mergeDeltas(unitypeTopicCounts[type], rows);
+            for (int w = 0; w < workers.length; w++) {
+                rows[w] = workers[w].sampler.bitokensPerTopic[type];
+            }
+            ShardedSampler.mergeDeltas(bitokensPerTopic[type], rows);
+        }
+
+        for (int bitype = 0; bitype < numBitypes; bitype++) {
+            for (int w = 0; w < workers.length; w++) {
+                rows[w] = workers[w].sampler.bitypeTopicCounts[bitype];
+            }
+            ShardedSampler.mergeDeltas(bitypeTopicCounts[bitype], rows);
+        }
+
+        for (int w = 0; w < workers.length; w++) {
+            rows[w] = workers[w].sampler.tokensPerTopic;
+        }
+        ShardedSampler.mergeDeltas(tokensPerTopic, rows);
+
+        int totalBiTokens = biTokens;
+        for (ShardWorker worker : workers) {
+            totalBiTokens += worker.sampler.biTokens - biTokens;
+            numChanges += worker.sampler.numChanges;
+        }
+        biTokens = totalBiTokens;
+    }
+
+    /**
+     * Samples one shard with a copy of the model's counts.
+     */
+    private class ShardWorker extends ShardedSampler.Worker {
+        TopicalNGrams sampler;
+        Randoms random;
+        double[] uniTopicWeights = new double[numTopics];
+        double[] biTopicWeights = new double[numTopics * 2];
+
+        ShardWorker(TopicalNGrams sampler, Randoms random) {
+            this.sampler = sampler;
+            this.random = random;
+        }
+
+        public void copyCounts() {
+            for (int type = 0; type < numTypes; type++) {
+                System.arraycopy(typeNgramTopicCounts[type][0], 0, sampler.typeNgramTopicCounts[type][0], 0, numTopics);
+                System.arraycopy(typeNgramTopicCounts[type][1], 0, sampler.typeNgramTopicCounts[type][1], 0, numTopics);
+                System.arraycopy(unitypeTopicCounts[type], 0, sampler.unitypeTopicCounts[type], 0, numTopics);
+                System.arraycopy(bitokensPerTopic[type], 0, sampler.bitokensPerTopic[type], 0, numTopics);
+            }
+            for (int bitype = 0; bitype < numBitypes; bitype++) {
+                System.arraycopy(bitypeTopicCounts[bitype], 0, sampler.bitypeTopicCounts[bitype], 0, numTopics);
+            }
+            System.arraycopy(tokensPerTopic, 0, sampler.tokensPerTopic, 0, numTopics);
+            sampler.biTokens = biTokens;
+            sampler.numChanges = 0;
+        }
+
+        public void sample(int startDoc, int endDoc) {
+            for (int di = startDoc; di < endDoc; di++) {
+                sampler.sampleTopicsForOneDoc((FeatureSequenceWithBigrams) ilist.get(di).getData(),
+                        topics[di], grams[di], docTopicCounts[di],
+                        uniTopicWeights, biTopicWeights,
+                        random);
+            }
+        }
+    }
+
     private void sampleTopicsForOneDoc(FeatureSequenceWithBigrams oneDocTokens,
                                        int[] oneDocTopics, int[] oneDocGrams,
                                        int[] oneDocTopicCounts, // indexed by topic index
@@ -219,6 +403,7 @@ public class TopicalNGrams {
                 }
                 // Sample a topic assignment from this distribution
                 newTopic = r.nextDiscrete(uniTopicWeights, topicWeightsSum);
+                if (newTopic != oldTopic) numChanges++;
                 // Put that new topic into the counts
                 oneDocTopics[si] = newTopic;
                 oneDocTopicCounts[newTopic]++;
@@ -280,6 +465,7 @@ public class TopicalNGrams {
                 // Put that new topic into the counts
                 newGram = newTopic % 2;
                 newTopic /= 2;
+                if (newTopic != oldTopic) numChanges++;
                 // Put that new topic into the counts
                 oneDocTopics[si] = newTopic;
                 oneDocGrams[si] = newGram;
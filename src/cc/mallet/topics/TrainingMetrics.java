@@ -0,0 +1,24 @@
+/* Copyright (C) 2005 Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.  For further
+   information, see the file `LICENSE' included with this distribution. */
+
+package cc.mallet.topics;
+
+/**
+ * Receives the measurements of each training iteration from a topic
+ * model, such as ParallelTopicModel or the models that sample with a
+ * {@link ShardedSampler}, through their <code>setTrainingMetrics()</code>.
+ * See {@link TrainingMetricsFile} and {@link JmxTrainingMetrics}.
+ */
+
+public interface TrainingMetrics {
+
+    /**
+     * Called on the training thread at the end of every iteration.
+     * Implementations should return quickly, since training waits for them.
+     */
+    public void publish(IterationMetrics metrics);
+}
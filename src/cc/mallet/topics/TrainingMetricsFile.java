@@ -0,0 +1,89 @@
+/* Copyright (C) 2005 Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.  For further
+   information, see the file `LICENSE' included with this distribution. */
+
+package cc.mallet.topics;
+
+import java.io.*;
+
+/**
+ * Appends one tab-separated line per training iteration to a file, so
+ * that runs can be compared later. The first line of a new file names
+ * the columns. The per-thread busy, idle and token columns hold one
+ * comma-separated value per thread, or are empty.
+ */
+
+public class TrainingMetricsFile implements TrainingMetrics, Closeable {
+
+    public static final String HEADER = "#timestamp\ttrainer\titeration\ttokens\tms\ttokens/sec\t" +
+            "sample-ms\tmerge-ms\toptimize-ms\tsave-ms\tlikelihood-ms\t" +
+            "busy-ms\tidle-ms\tthread-tokens\theap-used\theap-max\tdensity";
+
+    PrintWriter out;
+
+    public TrainingMetricsFile(File file) throws IOException {
+        boolean isNew = !file.exists() || file.length() == 0;
+        out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8")));
+        if (isNew) {
+            out.println(HEADER);
+            out.flush();
+        }
+    }
+
+    public synchronized void publish(IterationMetrics metrics) {
+        StringBuilder line = new StringBuilder();
+        line.append(metrics.getTimestamp()).append('\t');
+        line.append(metrics.getTrainer()).append('\t');
+        line.append(metrics.getIteration()).append('\t');
+        line.append(metrics.getTokens()).append('\t');
+        line.append(metrics.getElapsedMillis()).append('\t');
+        line.append(Math.round(metrics.getTokensPerSecond())).append('\t');
+        line.append(metrics.getPhaseMillis(PhaseTimer.Phase.SAMPLE)).append('\t');
+        line.append(metrics.getPhaseMillis(PhaseTimer.Phase.MERGE)).append('\t');
+        line.append(metrics.getPhaseMillis(PhaseTimer.Phase.OPTIMIZE)).append('\t');
+        line.append(metrics.getPhaseMillis(PhaseTimer.Phase.SAVE)).append('\t');
+        line.append(metrics.getPhaseMillis(PhaseTimer.Phase.LIKELIHOOD)).append('\t');
+
+        int numThreads = metrics.getNumThreads();
+        for (int thread = 0; thread < numThreads; thread++) {
+            if (thread > 0) {
+                line.append(',');
+            }
+            line.append(metrics.getBusyMillis(thread));
+        }
+        line.append('\t');
+        for (int thread = 0; thread < numThreads; thread++) {
+            if (thread > 0) {
+                line.append(',');
+            }
+            line.append(metrics.getIdleMillis(thread));
+        }
+        line.append('\t');
+        if (numThreads > 0 && metrics.getThreadTokens(0) != -1) {
+            for (int thread = 0; thread < numThreads; thread++) {
+                if (thread > 0) {
+                    line.append(',');
+                }
+                line.append(metrics.getThreadTokens(thread));
+            }
+        }
+        line.append('\t');
+
+        line.append(metrics.getHeapUsedBytes()).append('\t');
+        line.append(metrics.getHeapMaxBytes()).append('\t');
+        if (!Double.isNaN(metrics.getTopicCountDensity())) {
+            line.append(metrics.getTopicCountDensity());
+        }
+
+        out.println(line);
+        // Flush every line, so a run that dies still leaves its history
+        out.flush();
+    }
+
+    public synchronized void close() {
+        out.close();
+    }
+}
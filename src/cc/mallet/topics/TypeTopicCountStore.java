@@ -0,0 +1,491 @@
+/* Copyright (C) 2005 Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.  For further
+   information, see the file `LICENSE' included with this distribution. */
+
+package cc.mallet.topics;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * The type-topic counts of a model held in one slab of ints, rather than
+ * one array per type. With a vocabulary of millions of types this
+ * replaces millions of small heap objects with a single buffer, two int
+ * arrays indexing it and a bit set. The slab can be allocated off the heap.
+ * <p>
+ * Each type owns a row of the slab, starting at <code>offsets[type]</code>
+ * with room for <code>capacities[type]</code> entries. A sparse row is laid
+ * out like a row of <code>ParallelTopicModel.typeTopicCounts</code>:
+ * <code>(count &lt;&lt; topicBits) + topic</code> entries, sorted in
+ * descending order and followed by zeros. A dense row has one count per
+ * topic, indexed by topic, so updates do not have to keep it sorted.
+ * A sparse row becomes dense when it has <code>denseThreshold</code>
+ * non-zero topics.
+ * <p>
+ * Rows grow in place when they are at the end of the slab, and are
+ * otherwise moved to the end, leaving a gap that <code>compact()</code>
+ * reclaims. Reads may run on several threads at once; changes may not.
+ * <p>
+ * The store holds the counts of a trained model for inference, see
+ * <code>ParallelTopicModel.getInferencer(int, boolean)</code>. The training
+ * samplers still keep one array per type.
+ */
+
+public class TypeTopicCountStore {
+
+    // A direct buffer is addressed in bytes, so it can hold at most 2^29 ints
+    static final int MAX_DIRECT_INTS = Integer.MAX_VALUE / 4;
+
+    int numTopics;
+    int topicBits;
+    int topicMask;
+    int numTypes;
+
+    int denseThreshold;
+    boolean offHeap;
+
+    IntBuffer slab;
+    int slabUsed = 0;
+
+    int[] offsets;
+    int[] capacities;
+    BitSet denseRows = new BitSet();
+
+    /**
+     * Create a store with no counts, reserving for each type as many
+     * entries as it could need: the smaller of the number of topics and
+     * the number of times the type occurs, as in
+     * <code>ParallelTopicModel.buildInitialTypeTopicCounts()</code>.
+     *
+     * @param typeTotals     The number of occurrences of each type
+     * @param denseThreshold The number of non-zero topics at which a row
+     *                       becomes dense, or 0 to keep every row sparse
+     * @param offHeap        Whether to allocate the slab outside the Java heap
+     */
+    public TypeTopicCountStore(int numTopics, int[] typeTotals, int denseThreshold, boolean offHeap) {
+        this(numTopics, typeTotals.length, denseThreshold, offHeap);
+
+        long size = 0;
+        for (int type = 0; type < numTypes; type++) {
+            capacities[type] = Math.min(numTopics, typeTotals[type]);
+            size += capacities[type];
+        }
+        allocateRows(size);
+    }
+
+    private TypeTopicCountStore(int numTopics, int numTypes, int denseThreshold, boolean offHeap) {
+        this.numTopics = numTopics;
+        this.numTypes = numTypes;
+        this.denseThreshold = denseThreshold;
+        this.offHeap = offHeap;
+
+        if (Integer.bitCount(numTopics) == 1) {
+            // exact power of 2
+            topicMask = numTopics - 1;
+            topicBits = Integer.bitCount(topicMask);
+        } else {
+            // otherwise add an extra bit
+            topicMask = Integer.highestOneBit(numTopics) * 2 - 1;
+            topicBits = Integer.bitCount(topicMask);
+        }
+
+        offsets = new int[numTypes];
+        capacities = new int[numTypes];
+    }
+
+    /**
+     * Copy rows in the format of <code>ParallelTopicModel.typeTopicCounts</code>.
+     * Each sparse row keeps its length as its capacity.
+     */
+    public static TypeTopicCountStore fromRows(int[][] typeTopicCounts, int numTopics,
+                                               int denseThreshold, boolean offHeap) {
+        TypeTopicCountStore store =
+                new TypeTopicCountStore(numTopics, typeTopicCounts.length, denseThreshold, offHeap);
+
+        long size = 0;
+        for (int type = 0; type < store.numTypes; type++) {
+            int[] row = typeTopicCounts[type];
+            int length = 0;
+            while (length < row.length && row[length] > 0) {
+                length++;
+            }
+            if (store.isDenseLength(length)) {
+                store.denseRows.set(type);
+                store.capacities[type] = numTopics;
+            } else {
+                store.capacities[type] = row.length;
+            }
+            size += store.capacities[type];
+        }
+        store.allocateRows(size);
+
+        int topicBits = store.topicBits;
+        int topicMask = store.topicMask;
+        for (int type = 0; type < store.numTypes; type++) {
+            int[] row = typeTopicCounts[type];
+            int offset = store.offsets[type];
+            boolean dense = store.denseRows.get(type);
+            for (int i = 0; i < row.length && row[i] > 0; i++) {
+                if (dense) {
+                    store.slab.put(offset + (row[i] & topicMask), row[i] >> topicBits);
+                } else {
+                    store.slab.put(offset + i, row[i]);
+                }
+            }
+        }
+
+        return store;
+    }
+
+    private void allocateRows(long size) {
+        slab = allocate(checkSize(size));
+        for (int type = 0; type < numTypes; type++) {
+            offsets[type] = slabUsed;
+            slabUsed += capacities[type];
+        }
+    }
+
+    private int checkSize(long size) {
+        long limit = offHeap ? MAX_DIRECT_INTS : Integer.MAX_VALUE;
+        if (size > limit) {
+            throw new IllegalStateException(size + " type-topic entries do not fit in one slab of at most " + limit);
+        }
+        return (int) size;
+    }
+
+    private IntBuffer allocate(int size) {
+        if (offHeap) {
+            return ByteBuffer.allocateDirect(size * 4).asIntBuffer();
+        }
+        return IntBuffer.allocate(size);
+    }
+
+    private boolean isDenseLength(int length) {
+        return denseThreshold > 0 && length >= denseThreshold;
+    }
+
+    public int getNumTopics() {
+        return numTopics;
+    }
+
+    public int getNumTypes() {
+        return numTypes;
+    }
+
+    public int getTopicBits() {
+        return topicBits;
+    }
+
+    public int getTopicMask() {
+        return topicMask;
+    }
+
+    public boolean isOffHeap() {
+        return offHeap;
+    }
+
+    public boolean isDense(int type) {
+        return denseRows.get(type);
+    }
+
+    /**
+     * The number of entries reserved for a type
+     */
+    public int getCapacity(int type) {
+        return capacities[type];
+    }
+
+    /**
+     * The number of ints of the slab in use, including gaps left by rows that moved
+     */
+    public int getSlabUsed() {
+        return slabUsed;
+    }
+
+    /**
+     * The number of ints the rows need, without gaps
+     */
+    public long getRowsSize() {
+        long size = 0;
+        for (int type = 0; type < numTypes; type++) {
+            size += capacities[type];
+        }
+        return size;
+    }
+
+    public int getCount(int type, int topic) {
+        int offset = offsets[type];
+        if (denseRows.get(type)) {
+            return slab.get(offset + topic);
+        }
+
+        int end = offset + capacities[type];
+        for (int index = offset; index < end; index++) {
+            int entry = slab.get(index);
+            if (entry == 0) {
+                break;
+            }
+            if ((entry & topicMask) == topic) {
+                return entry >> topicBits;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * The number of non-zero topics of a type
+     */
+    public int getRowLength(int type) {
+        int offset = offsets[type];
+        int length = 0;
+        if (denseRows.get(type)) {
+            for (int topic = 0; topic < numTopics; topic++) {
+                if (slab.get(offset + topic) > 0) {
+                    length++;
+                }
+            }
+            return length;
+        }
+
+        while (length < capacities[type] && slab.get(offset + length) > 0) {
+            length++;
+        }
+        return length;
+    }
+
+    /**
+     * Copy the counts of a type into <code>row</code>, which must have room
+     * for every topic, as sorted <code>(count &lt;&lt; topicBits) + topic</code>
+     * entries. If the row is shorter than <code>row</code>, the entry after
+     * it is set to zero, so that the result can be scanned like a row of
+     * <code>typeTopicCounts</code>, as with <code>TopicModelFile.copyRow()</code>.
+     * Dense rows are sorted as they are copied, which takes time in the
+     * number of topics, so callers that read a dense row often should keep a copy.
+     *
+     * @return the number of entries copied
+     */
+    public int copyRow(int type, int[] row) {
+        int offset = offsets[type];
+        int length = 0;
+
+        if (denseRows.get(type)) {
+            for (int topic = 0; topic < numTopics; topic++) {
+                int count = slab.get(offset + topic);
+                if (count > 0) {
+                    row[length] = (count << topicBits) + topic;
+                    length++;
+                }
+            }
+            // Sort in descending order
+            Arrays.sort(row, 0, length);
+            for (int i = 0, j = length - 1; i < j; i++, j--) {
+                int temp = row[i];
+                row[i] = row[j];
+                row[j] = temp;
+            }
+        } else {
+            while (length < capacities[type]) {
+                int entry = slab.get(offset + length);
+                if (entry == 0) {
+                    break;
+                }
+                row[length] = entry;
+                length++;
+            }
+        }
+
+        if (length < row.length) {
+            row[length] = 0;
+        }
+        return length;
+    }
+
+    /**
+     * Copy the counts onto the heap in the format of
+     * <code>ParallelTopicModel.typeTopicCounts</code>, one row per type of
+     * length equal to its capacity.
+     */
+    public int[][] toRows() {
+        int[][] typeTopicCounts = new int[numTypes][];
+        int[] row = new int[numTopics];
+        for (int type = 0; type < numTypes; type++) {
+            int length = copyRow(type, row);
+            typeTopicCounts[type] = new int[capacities[type]];
+            System.arraycopy(row, 0, typeTopicCounts[type], 0, length);
+        }
+        return typeTopicCounts;
+    }
+
+    /**
+     * Add <code>delta</code> to the count of a topic for a type. A sparse
+     * row must have room for the topic, as with
+     * <code>ensureCapacity()</code>, and is kept sorted.
+     */
+    public void adjustCount(int type, int topic, int delta) {
+        int offset = offsets[type];
+
+        if (denseRows.get(type)) {
+            int count = slab.get(offset + topic) + delta;
+            if (count < 0) {
+                throw new IllegalStateException("Negative count for topic " + topic);
+            }
+            slab.put(offset + topic, count);
+            return;
+        }
+
+        int end = offset + capacities[type];
+        int index = offset;
+        while (index < end &&
+                slab.get(index) > 0 &&
+                (slab.get(index) & topicMask) != topic) {
+            index++;
+        }
+        if (index == end) {
+            throw new IllegalStateException("No room for topic " + topic + " in a row of length " +
+                    capacities[type]);
+        }
+
+        boolean isNew = slab.get(index) == 0;
+        int count = (slab.get(index) >> topicBits) + delta;
+        if (count < 0) {
+            throw new IllegalStateException("Negative count for topic " + topic);
+        }
+
+        if (count == 0) {
+            // Shift the rest of the row down over this entry
+            while (index + 1 < end && slab.get(index + 1) > 0) {
+                slab.put(index, slab.get(index + 1));
+                index++;
+            }
+            slab.put(index, 0);
+            return;
+        }
+
+        slab.put(index, (count << topicBits) + topic);
+
+        // Bubble the value up or down to keep the row sorted
+        while (index > offset && slab.get(index) > slab.get(index - 1)) {
+            swap(index, index - 1);
+            index--;
+        }
+        while (index + 1 < end && slab.get(index + 1) > slab.get(index)) {
+            swap(index, index + 1);
+            index++;
+        }
+
+        if (isNew && isDenseLength(getRowLength(type))) {
+            makeDense(type);
+        }
+    }
+
+    private void swap(int i, int j) {
+        int temp = slab.get(i);
+        slab.put(i, slab.get(j));
+        slab.put(j, temp);
+    }
+
+    /**
+     * Make sure a type has room for <code>capacity</code> topics, or for
+     * every topic if that is fewer.
+     */
+    public void ensureCapacity(int type, int capacity) {
+        capacity = Math.min(capacity, numTopics);
+        int oldCapacity = capacities[type];
+        if (oldCapacity >= capacity) {
+            return;
+        }
+
+        int offset = offsets[type];
+        if (offset + oldCapacity == slabUsed) {
+            // The last row can grow in place
+            reserve(capacity - oldCapacity);
+            slabUsed += capacity - oldCapacity;
+        } else {
+            reserve(capacity);
+            for (int i = 0; i < oldCapacity; i++) {
+                slab.put(slabUsed + i, slab.get(offset + i));
+            }
+            offsets[type] = slabUsed;
+            slabUsed += capacity;
+        }
+        capacities[type] = capacity;
+    }
+
+    /**
+     * Make sure the slab has room for <code>size</code> more ints, doubling it if not.
+     */
+    private void reserve(int size) {
+        long needed = (long) slabUsed + size;
+        if (needed <= slab.capacity()) {
+            return;
+        }
+
+        int newSize = checkSize(Math.max(needed, Math.min(2L * slab.capacity(),
+                offHeap ? MAX_DIRECT_INTS : Integer.MAX_VALUE)));
+        IntBuffer newSlab = allocate(newSize);
+        for (int i = 0; i < slabUsed; i++) {
+            newSlab.put(i, slab.get(i));
+        }
+        slab = newSlab;
+    }
+
+    /**
+     * Store a type's counts as one count per topic.
+     */
+    public void makeDense(int type) {
+        if (denseRows.get(type)) {
+            return;
+        }
+        ensureCapacity(type, numTopics);
+
+        int offset = offsets[type];
+        int[] row = new int[numTopics];
+        int length = copyRow(type, row);
+        for (int topic = 0; topic < numTopics; topic++) {
+            slab.put(offset + topic, 0);
+        }
+        for (int i = 0; i < length; i++) {
+            slab.put(offset + (row[i] & topicMask), row[i] >> topicBits);
+        }
+        denseRows.set(type);
+    }
+
+    /**
+     * Add types with no counts, for an alphabet that has grown.
+     */
+    public void addTypes(int newNumTypes) {
+        if (newNumTypes <= numTypes) {
+            return;
+        }
+        offsets = Arrays.copyOf(offsets, newNumTypes);
+        capacities = Arrays.copyOf(capacities, newNumTypes);
+        for (int type = numTypes; type < newNumTypes; type++) {
+            offsets[type] = slabUsed;
+        }
+        numTypes = newNumTypes;
+    }
+
+    /**
+     * Move the rows together into a slab of exactly the size they need,
+     * dropping the gaps left by rows that grew.
+     */
+    public void compact() {
+        IntBuffer newSlab = allocate(checkSize(getRowsSize()));
+        int position = 0;
+        for (int type = 0; type < numTypes; type++) {
+            int offset = offsets[type];
+            for (int i = 0; i < capacities[type]; i++) {
+                newSlab.put(position + i, slab.get(offset + i));
+            }
+            offsets[type] = position;
+            position += capacities[type];
+        }
+        slab = newSlab;
+        slabUsed = position;
+    }
+}
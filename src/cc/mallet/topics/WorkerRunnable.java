@@ -13,6 +13,7 @@ import cc.mallet.util.Randoms;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * A parallel topic model runnable task.
@@ -40,12 +41,40 @@ public class WorkerRunnable implements Runnable {
     // for dirichlet estimation
     protected int[] docLengthCounts; // histogram of document sizes
     protected int[][] topicDocCounts; // histogram of document/topic counts, indexed by <topic index, sequence position index>
+    // Per-document scratch space, allocated once and reused for every document.
+    //  localTopicCounts is all zeros between documents.
+    protected int[] localTopicCounts;
+    protected int[] localTopicIndex;
+    protected double[] topicTermScores;
     protected Randoms random;
+    // If non-null, typeTopicCounts is shared with other threads, and
+    //  the count array for a type may only be touched while holding
+    //  the lock typeLocks[type % typeLocks.length].
+    protected ReentrantLock[] typeLocks = null;
     boolean isFinished = true;
     ArrayList<TopicAssignment> data;
+    // If non-null, the documents are sampled from this packed corpus instead of data
+    PackedCorpus corpus = null;
     int startDoc, numDocs;
     boolean shouldSaveState = false;
     boolean shouldBuildLocalCounts = true;
+    // If non-null, documents are claimed from this shared queue of
+    //  small shards rather than taken from [startDoc, startDoc + numDocs).
+    DocumentShards workQueue = null;
+    int[] claimedShards;
+    int numClaimedShards = 0;
+    // If positive, types with non-zero counts for at least this fraction
+    //  of the topics are sampled from dense rows during a sweep, see setDenseTypeThreshold()
+    double denseTypeThreshold = 0.0;
+    int[][] denseTypeTopicCounts = null;
+    // The dense row of each type that was dense in the last sweep, kept
+    //  between sweeps so that it is only allocated when a type becomes dense
+    int[][] denseRowCache = null;
+    int[] denseTypes;
+    int numDenseTypes = 0;
+    // Measurements of the last call to run(), for IterationMetrics
+    long busyNanos = 0;
+    long tokensSampled = 0;
 
     public WorkerRunnable(int numTopics,
                           double[] alpha, double alphaSum,
@@ -84,6 +113,10 @@ public class WorkerRunnable implements Runnable {
 
         cachedCoefficients = new double[numTopics];
 
+        localTopicCounts = new int[numTopics];
+        localTopicIndex = new int[numTopics];
+        topicTermScores = new double[numTopics];
+
         //System.err.println("WorkerRunnable Thread: " + numTopics + " topics, " + topicBits + " topic bits, " +
         //				   Integer.toBinaryString(topicMask) + " topic mask");
 
@@ -99,6 +132,57 @@ public class WorkerRunnable implements Runnable {
         shouldBuildLocalCounts = false;
     }
 
+    /**
+     * Ask this worker to update a type-topic count structure that is
+     * shared with other workers, rather than a private copy. Access to
+     * each type's counts is serialized by the provided striped locks.
+     * Local counts are never rebuilt, since that would wipe the shared counts.
+     */
+    public void shareTypeTopicCounts(ReentrantLock[] typeLocks) {
+        this.typeLocks = typeLocks;
+        shouldBuildLocalCounts = false;
+    }
+
+    /**
+     * Instead of sampling a fixed range of documents, repeatedly claim
+     * the next unprocessed shard from a queue shared by all workers.
+     * Fast workers keep taking shards while slow ones are still busy,
+     * so no thread sits idle waiting for one long document range.
+     * The queue must be reset before each sweep.
+     */
+    public void setWorkQueue(DocumentShards workQueue) {
+        this.workQueue = workQueue;
+        claimedShards = new int[workQueue.size()];
+    }
+
+    /**
+     * Sample the tokens of common types, whose counts are non-zero for at
+     * least <code>fraction</code> of the topics, with a dense kernel. At the
+     * start of each sweep the rows of those types are unpacked into one count
+     * per topic. Their tokens are then sampled from the full conditional in
+     * one straight pass over all the topics and a binary search of the
+     * cumulative weights, rather than by walking the packed, sorted row and
+     * the three SparseLDA buckets. The rows are packed again at the end of the
+     * sweep. Dense rows are not used when the counts are shared between threads.
+     *
+     * @param fraction A fraction of the number of topics, or 0 to always use the sparse sampler
+     */
+    public void setDenseTypeThreshold(double fraction) {
+        this.denseTypeThreshold = fraction;
+    }
+
+    /**
+     * Sample the documents of a packed corpus, rather than the list of
+     * TopicAssignments passed to the constructor.
+     */
+    public void setCorpus(PackedCorpus corpus) {
+        this.corpus = corpus;
+    }
+
+    private int numDocuments() {
+        return corpus != null ? corpus.size() : data.size();
+    }
+
     public int[] getTokensPerTopic() {
         return tokensPerTopic;
     }
@@ -111,6 +195,21 @@ public class WorkerRunnable implements Runnable {
         return docLengthCounts;
     }
 
+    /**
+     * The time the last call to <code>run()</code> spent sampling and
+     * building local counts
+     */
+    public long getBusyNanos() {
+        return busyNanos;
+    }
+
+    /**
+     * The number of tokens sampled by the last call to <code>run()</code>
+     */
+    public long getTokensSampled() {
+        return tokensSampled;
+    }
+
     public int[][] getTopicDocCounts() {
         return topicDocCounts;
     }
@@ -155,77 +254,99 @@ public class WorkerRunnable implements Runnable {
             }
         }
 
-        for (int doc = startDoc;
-             doc < data.size() && doc < startDoc + numDocs;
-             doc++) {
+        if (workQueue == null) {
+            for (int doc = startDoc;
+                 doc < numDocuments() && doc < startDoc + numDocs;
+                 doc++) {
+                addToLocalTypeTopicCounts(doc);
+            }
+        } else {
+            for (int i = 0; i < numClaimedShards; i++) {
+                int shard = claimedShards[i];
+                for (int doc = workQueue.getStart(shard); doc < workQueue.getEnd(shard); doc++) {
+                    addToLocalTypeTopicCounts(doc);
+                }
+            }
+        }
 
-            TopicAssignment document = data.get(doc);
+    }
 
-            FeatureSequence tokens = (FeatureSequence) document.instance.getData();
-            FeatureSequence topicSequence = (FeatureSequence) document.topicSequence;
+    private void addToLocalTypeTopicCounts(int doc) {
 
-            int[] topics = topicSequence.getFeatures();
-            for (int position = 0; position < tokens.size(); position++) {
+        int[] tokens, topics;
+        int start, end;
+        if (corpus != null) {
+            tokens = corpus.tokens;
+            topics = corpus.topics;
+            start = corpus.getStart(doc);
+            end = corpus.getEnd(doc);
+        } else {
+            tokens = ((FeatureSequence) data.get(doc).instance.getData()).getFeatures();
+            topics = data.get(doc).topicSequence.getFeatures();
+            start = 0;
+            end = data.get(doc).topicSequence.getLength();
+        }
 
-                int topic = topics[position];
+        for (int position = start; position < end; position++) {
 
-                if (topic == ParallelTopicModel.UNASSIGNED_TOPIC) {
-                    continue;
-                }
+            int topic = topics[position];
 
-                tokensPerTopic[topic]++;
+            if (topic == ParallelTopicModel.UNASSIGNED_TOPIC) {
+                continue;
+            }
 
-                // The format for these arrays is
-                //  the topic in the rightmost bits
-                //  the count in the remaining (left) bits.
-                // Since the count is in the high bits, sorting (desc)
-                //  by the numeric value of the int guarantees that
-                //  higher counts will be before the lower counts.
+            tokensPerTopic[topic]++;
 
-                int type = tokens.getIndexAtPosition(position);
+            // The format for these arrays is
+            //  the topic in the rightmost bits
+            //  the count in the remaining (left) bits.
+            // Since the count is in the high bits, sorting (desc)
+            //  by the numeric value of the int guarantees that
+            //  higher counts will be before the lower counts.
 
-                int[] currentTypeTopicCounts = typeTopicCounts[type];
+            int type = tokens[position];
 
-                // Start by assuming that the array is either empty
-                //  or is in sorted (descending) order.
+            int[] currentTypeTopicCounts = typeTopicCounts[type];
 
-                // Here we are only adding counts, so if we find
-                //  an existing location with the topic, we only need
-                //  to ensure that it is not larger than its left neighbor.
+            // Start by assuming that the array is either empty
+            //  or is in sorted (descending) order.
 
-                int index = 0;
-                int currentTopic = currentTypeTopicCounts[index] & topicMask;
-                int currentValue;
+            // Here we are only adding counts, so if we find
+            //  an existing location with the topic, we only need
+            //  to ensure that it is not larger than its left neighbor.
 
-                while (currentTypeTopicCounts[index] > 0 && currentTopic != topic) {
-                    index++;
-                    if (index == currentTypeTopicCounts.length) {
-                        System.out.println("overflow on type " + type);
-                    }
-                    currentTopic = currentTypeTopicCounts[index] & topicMask;
+            int index = 0;
+            int currentTopic = currentTypeTopicCounts[index] & topicMask;
+            int currentValue;
+
+            while (currentTypeTopicCounts[index] > 0 && currentTopic != topic) {
+                index++;
+                if (index == currentTypeTopicCounts.length) {
+                    System.out.println("overflow on type " + type);
                 }
-                currentValue = currentTypeTopicCounts[index] >> topicBits;
-
-                if (currentValue == 0) {
-                    // new value is 1, so we don't have to worry about sorting
-                    //  (except by topic suffix, which doesn't matter)
-
-                    currentTypeTopicCounts[index] =
-                            (1 << topicBits) + topic;
-                } else {
-                    currentTypeTopicCounts[index] =
-                            ((currentValue + 1) << topicBits) + topic;
-
-                    // Now ensure that the array is still sorted by
-                    //  bubbling this value up.
-                    while (index > 0 &&
-                            currentTypeTopicCounts[index] > currentTypeTopicCounts[index - 1]) {
-                        int temp = currentTypeTopicCounts[index];
-                        currentTypeTopicCounts[index] = currentTypeTopicCounts[index - 1];
-                        currentTypeTopicCounts[index - 1] = temp;
-
-                        index--;
-                    }
+                currentTopic = currentTypeTopicCounts[index] & topicMask;
+            }
+            currentValue = currentTypeTopicCounts[index] >> topicBits;
+
+            if (currentValue == 0) {
+                // new value is 1, so we don't have to worry about sorting
+                //  (except by topic suffix, which doesn't matter)
+
+                currentTypeTopicCounts[index] =
+                        (1 << topicBits) + topic;
+            } else {
+                currentTypeTopicCounts[index] =
+                        ((currentValue + 1) << topicBits) + topic;
+
+                // Now ensure that the array is still sorted by
+                //  bubbling this value up.
+                while (index > 0 &&
+                        currentTypeTopicCounts[index] > currentTypeTopicCounts[index - 1]) {
+                    int temp = currentTypeTopicCounts[index];
+                    currentTypeTopicCounts[index] = currentTypeTopicCounts[index - 1];
+                    currentTypeTopicCounts[index - 1] = temp;
+
+                    index--;
                 }
             }
         }
@@ -235,14 +356,17 @@ public class WorkerRunnable implements Runnable {
 
     public void run() {
 
-        try {
+        if (!isFinished) {
+            System.out.println("already running!");
+            return;
+        }
 
-            if (!isFinished) {
-                System.out.println("already running!");
-                return;
-            }
+        isFinished = false;
+
+        try {
 
-            isFinished = false;
+            long runStart = System.nanoTime();
+            tokensSampled = 0;
 
             // Initialize the smoothing-only sampling bucket
             smoothingOnlyMass = 0;
@@ -256,68 +380,204 @@ public class WorkerRunnable implements Runnable {
                 cachedCoefficients[topic] = alpha[topic] / (tokensPerTopic[topic] + betaSum);
             }
 
-            for (int doc = startDoc;
-                 doc < data.size() && doc < startDoc + numDocs;
-                 doc++) {
-
-				/*
-				  if (doc % 10000 == 0) {
-				  System.out.println("processing doc " + doc);
-				  }
-				*/
-
-                FeatureSequence tokenSequence =
-                        (FeatureSequence) data.get(doc).instance.getData();
-                LabelSequence topicSequence =
-                        (LabelSequence) data.get(doc).topicSequence;
+            if (denseTypeThreshold > 0 && typeLocks == null) {
+                unpackDenseRows();
+            }
 
-                sampleTopicsForOneDoc(tokenSequence, topicSequence,
-                        true);
+            if (workQueue == null) {
+                sampleDocuments(startDoc, Math.min(numDocuments(), startDoc + numDocs));
+            } else {
+                numClaimedShards = 0;
+                int shard;
+                while ((shard = workQueue.claim()) != -1) {
+                    claimedShards[numClaimedShards++] = shard;
+                    sampleDocuments(workQueue.getStart(shard), workQueue.getEnd(shard));
+                }
             }
 
+            packDenseRows();
+
             if (shouldBuildLocalCounts) {
                 buildLocalTypeTopicCounts();
             }
 
             shouldSaveState = false;
-            isFinished = true;
+            busyNanos = System.nanoTime() - runStart;
 
         } catch (Exception e) {
-            e.printStackTrace();
+            // Fail the future, so that the caller stops with the cause
+            throw new RuntimeException("topic sampling failed", e);
+        } finally {
+            isFinished = true;
+        }
+    }
+
+    /**
+     * Copy the rows of the types that are dense enough into one count per topic.
+     * The packed rows are left as they are, and are stale until <code>packDenseRows()</code>.
+     */
+    private void unpackDenseRows() {
+        if (denseTypeTopicCounts == null) {
+            denseTypeTopicCounts = new int[numTypes][];
+            denseRowCache = new int[numTypes][];
+            denseTypes = new int[numTypes];
+        }
+
+        int minNonZero = Math.max(1, (int) Math.ceil(denseTypeThreshold * numTopics));
+        numDenseTypes = 0;
+
+        for (int type = 0; type < numTypes; type++) {
+            int[] topicCounts = typeTopicCounts[type];
+            if (topicCounts.length < minNonZero) {
+                denseRowCache[type] = null;
+                continue;
+            }
+
+            int length = 0;
+            while (length < topicCounts.length && topicCounts[length] > 0) {
+                length++;
+            }
+            if (length < minNonZero) {
+                denseRowCache[type] = null;
+                continue;
+            }
+
+            int[] denseCounts = denseRowCache[type];
+            if (denseCounts == null) {
+                denseCounts = new int[numTopics];
+                denseRowCache[type] = denseCounts;
+            } else {
+                Arrays.fill(denseCounts, 0);
+            }
+            for (int i = 0; i < length; i++) {
+                denseCounts[topicCounts[i] & topicMask] = topicCounts[i] >> topicBits;
+            }
+            denseTypeTopicCounts[type] = denseCounts;
+            denseTypes[numDenseTypes++] = type;
+        }
+    }
+
+    /**
+     * Write the dense rows back into the packed rows, sorted, and stop using
+     * them. The rows themselves stay in <code>denseRowCache</code> for the next sweep.
+     */
+    private void packDenseRows() {
+        for (int i = 0; i < numDenseTypes; i++) {
+            int type = denseTypes[i];
+            int[] denseCounts = denseTypeTopicCounts[type];
+            int[] topicCounts = typeTopicCounts[type];
+
+            int length = 0;
+            for (int topic = 0; topic < numTopics; topic++) {
+                if (denseCounts[topic] > 0) {
+                    topicCounts[length++] = (denseCounts[topic] << topicBits) + topic;
+                }
+            }
+            Arrays.fill(topicCounts, length, topicCounts.length, 0);
+
+            // Sort in descending order
+            Arrays.sort(topicCounts, 0, length);
+            for (int left = 0, right = length - 1; left < right; left++, right--) {
+                int temp = topicCounts[left];
+                topicCounts[left] = topicCounts[right];
+                topicCounts[right] = temp;
+            }
+
+            denseTypeTopicCounts[type] = null;
+        }
+        numDenseTypes = 0;
+    }
+
+    /**
+     * Sample a topic for a token from the dense counts of its type, which
+     * must not include the token. The weight of each topic is
+     * (alpha_t + n_t|d) (beta + n_w|t) / (n_t + betaSum), the sum of the three
+     * SparseLDA buckets, which is <code>cachedCoefficients[topic] * (beta + count)</code>.
+     * The cumulative weights are built in one pass without branches, and
+     * searched in O(log numTopics).
+     */
+    protected int sampleDenseTopic(int[] denseCounts) {
+        double[] weights = topicTermScores;
+
+        double sum = 0.0;
+        for (int topic = 0; topic < numTopics; topic++) {
+            sum += cachedCoefficients[topic] * (beta + denseCounts[topic]);
+            weights[topic] = sum;
+        }
+
+        // The first topic whose cumulative weight exceeds the sample
+        double sample = random.nextUniform() * sum;
+        int low = 0;
+        int high = numTopics - 1;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (weights[middle] > sample) {
+                high = middle;
+            } else {
+                low = middle + 1;
+            }
+        }
+        return low;
+    }
+
+    protected void sampleDocuments(int firstDoc, int endDoc) {
+        if (corpus != null) {
+            for (int doc = firstDoc; doc < endDoc; doc++) {
+                sampleTopicsForOneDoc(corpus.tokens, corpus.topics,
+                        corpus.getStart(doc), corpus.getEnd(doc));
+            }
+            tokensSampled += corpus.getStart(endDoc) - corpus.getStart(firstDoc);
+            return;
+        }
+
+        for (int doc = firstDoc; doc < endDoc; doc++) {
+            FeatureSequence tokenSequence =
+                    (FeatureSequence) data.get(doc).instance.getData();
+            LabelSequence topicSequence =
+                    (LabelSequence) data.get(doc).topicSequence;
+
+            sampleTopicsForOneDoc(tokenSequence, topicSequence,
+                    true);
+            tokensSampled += tokenSequence.getLength();
         }
     }
 
     protected void sampleTopicsForOneDoc(FeatureSequence tokenSequence,
                                          FeatureSequence topicSequence,
                                          boolean readjustTopicsAndStats /* currently ignored */) {
+        sampleTopicsForOneDoc(tokenSequence.getFeatures(), topicSequence.getFeatures(),
+                0, tokenSequence.getLength());
+    }
 
-        int[] oneDocTopics = topicSequence.getFeatures();
+    /**
+     * Sample the topics of the tokens at positions <code>[start, end)</code>,
+     * which make up one document.
+     */
+    protected void sampleTopicsForOneDoc(int[] tokens, int[] oneDocTopics, int start, int end) {
 
         int[] currentTypeTopicCounts;
         int type, oldTopic, newTopic;
         double topicWeightsSum;
-        int docLength = tokenSequence.getLength();
+        int docLength = end - start;
 
-        int[] localTopicCounts = new int[numTopics];
-        int[] localTopicIndex = new int[numTopics];
-
-        //		populate topic counts
-        for (int position = 0; position < docLength; position++) {
-            if (oneDocTopics[position] == ParallelTopicModel.UNASSIGNED_TOPIC) {
+        //		populate topic counts, and build an array that densely
+        //		lists the topics that have non-zero counts. Documents are
+        //		usually much shorter than the number of topics, so collect
+        //		the topics from the document and sort them, rather than
+        //		scanning every topic.
+        int denseIndex = 0;
+        for (int position = start; position < end; position++) {
+            int topic = oneDocTopics[position];
+            if (topic == ParallelTopicModel.UNASSIGNED_TOPIC) {
                 continue;
             }
-            localTopicCounts[oneDocTopics[position]]++;
-        }
-
-        // Build an array that densely lists the topics that
-        //  have non-zero counts.
-        int denseIndex = 0;
-        for (int topic = 0; topic < numTopics; topic++) {
-            if (localTopicCounts[topic] != 0) {
+            if (localTopicCounts[topic] == 0) {
                 localTopicIndex[denseIndex] = topic;
                 denseIndex++;
             }
+            localTopicCounts[topic]++;
         }
+        Arrays.sort(localTopicIndex, 0, denseIndex);
 
         // Record the total number of non-zero topics
         int nonZeroTopics = denseIndex;
@@ -341,15 +601,14 @@ public class WorkerRunnable implements Runnable {
 
         double topicTermMass = 0.0;
 
-        double[] topicTermScores = new double[numTopics];
         int[] topicTermIndices;
         int[] topicTermValues;
         int i;
         double score;
 
         //	Iterate over the positions (words) in the document
-        for (int position = 0; position < docLength; position++) {
-            type = tokenSequence.getIndexAtPosition(position);
+        for (int position = start; position < end; position++) {
+            type = tokens[position];
             oldTopic = oneDocTopics[position];
 
             currentTypeTopicCounts = typeTopicCounts[type];
@@ -414,171 +673,197 @@ public class WorkerRunnable implements Runnable {
             }
 
 
-            // Now go over the type/topic counts, decrementing
-            //  where appropriate, and calculating the score
-            //  for each topic at the same time.
+            int[] denseCounts = numDenseTypes == 0 ? null : denseTypeTopicCounts[type];
+            double sample = 0.0, origSample = 0.0;
 
-            int index = 0;
-            int currentTopic, currentValue;
+            if (denseCounts != null) {
+                if (oldTopic != ParallelTopicModel.UNASSIGNED_TOPIC) {
+                    denseCounts[oldTopic]--;
+                }
+                newTopic = sampleDenseTopic(denseCounts);
+                denseCounts[newTopic]++;
+            } else {
+                ReentrantLock typeLock = null;
+                if (typeLocks != null) {
+                    typeLock = typeLocks[type % typeLocks.length];
+                    typeLock.lock();
+                }
 
-            boolean alreadyDecremented = (oldTopic == ParallelTopicModel.UNASSIGNED_TOPIC);
+                try {
 
-            topicTermMass = 0.0;
+                    // Now go over the type/topic counts, decrementing
+                    //  where appropriate, and calculating the score
+                    //  for each topic at the same time.
 
-            while (index < currentTypeTopicCounts.length &&
-                    currentTypeTopicCounts[index] > 0) {
-                currentTopic = currentTypeTopicCounts[index] & topicMask;
-                currentValue = currentTypeTopicCounts[index] >> topicBits;
+                    int index = 0;
+                    int currentTopic, currentValue;
 
-                if (!alreadyDecremented &&
-                        currentTopic == oldTopic) {
+                    boolean alreadyDecremented = (oldTopic == ParallelTopicModel.UNASSIGNED_TOPIC);
 
-                    // We're decrementing and adding up the
-                    //  sampling weights at the same time, but
-                    //  decrementing may require us to reorder
-                    //  the topics, so after we're done here,
-                    //  look at this cell in the array again.
+                    topicTermMass = 0.0;
 
-                    currentValue--;
-                    if (currentValue == 0) {
-                        currentTypeTopicCounts[index] = 0;
-                    } else {
-                        currentTypeTopicCounts[index] =
-                                (currentValue << topicBits) + oldTopic;
-                    }
+                    while (index < currentTypeTopicCounts.length &&
+                            currentTypeTopicCounts[index] > 0) {
+                        currentTopic = currentTypeTopicCounts[index] & topicMask;
+                        currentValue = currentTypeTopicCounts[index] >> topicBits;
 
-                    // Shift the reduced value to the right, if necessary.
+                        if (!alreadyDecremented &&
+                                currentTopic == oldTopic) {
 
-                    int subIndex = index;
-                    while (subIndex < currentTypeTopicCounts.length - 1 &&
-                            currentTypeTopicCounts[subIndex] < currentTypeTopicCounts[subIndex + 1]) {
-                        int temp = currentTypeTopicCounts[subIndex];
-                        currentTypeTopicCounts[subIndex] = currentTypeTopicCounts[subIndex + 1];
-                        currentTypeTopicCounts[subIndex + 1] = temp;
+                            // We're decrementing and adding up the
+                            //  sampling weights at the same time, but
+                            //  decrementing may require us to reorder
+                            //  the topics, so after we're done here,
+                            //  look at this cell in the array again.
 
-                        subIndex++;
-                    }
+                            currentValue--;
+                            if (currentValue == 0) {
+                                currentTypeTopicCounts[index] = 0;
+                            } else {
+                                currentTypeTopicCounts[index] =
+                                        (currentValue << topicBits) + oldTopic;
+                            }
 
-                    alreadyDecremented = true;
-                } else {
-                    score =
-                            cachedCoefficients[currentTopic] * currentValue;
-                    topicTermMass += score;
-                    topicTermScores[index] = score;
+                            // Shift the reduced value to the right, if necessary.
 
-                    index++;
-                }
-            }
+                            int subIndex = index;
+                            while (subIndex < currentTypeTopicCounts.length - 1 &&
+                                    currentTypeTopicCounts[subIndex] < currentTypeTopicCounts[subIndex + 1]) {
+                                int temp = currentTypeTopicCounts[subIndex];
+                                currentTypeTopicCounts[subIndex] = currentTypeTopicCounts[subIndex + 1];
+                                currentTypeTopicCounts[subIndex + 1] = temp;
 
-            double sample = random.nextUniform() * (smoothingOnlyMass + topicBetaMass + topicTermMass);
-            double origSample = sample;
+                                subIndex++;
+                            }
 
-            //	Make sure it actually gets set
-            newTopic = -1;
+                            alreadyDecremented = true;
+                        } else {
+                            score =
+                                    cachedCoefficients[currentTopic] * currentValue;
+                            topicTermMass += score;
+                            topicTermScores[index] = score;
 
-            if (sample < topicTermMass) {
-                //topicTermCount++;
+                            index++;
+                        }
+                    }
 
-                i = -1;
-                while (sample > 0) {
-                    i++;
-                    sample -= topicTermScores[i];
-                }
+                    sample = random.nextUniform() * (smoothingOnlyMass + topicBetaMass + topicTermMass);
+                    origSample = sample;
 
-                newTopic = currentTypeTopicCounts[i] & topicMask;
-                currentValue = currentTypeTopicCounts[i] >> topicBits;
+                    //	Make sure it actually gets set
+                    newTopic = -1;
 
-                currentTypeTopicCounts[i] = ((currentValue + 1) << topicBits) + newTopic;
+                    if (sample < topicTermMass) {
+                        //topicTermCount++;
 
-                // Bubble the new value up, if necessary
+                        i = -1;
+                        while (sample > 0) {
+                            i++;
+                            sample -= topicTermScores[i];
+                        }
 
-                while (i > 0 &&
-                        currentTypeTopicCounts[i] > currentTypeTopicCounts[i - 1]) {
-                    int temp = currentTypeTopicCounts[i];
-                    currentTypeTopicCounts[i] = currentTypeTopicCounts[i - 1];
-                    currentTypeTopicCounts[i - 1] = temp;
+                        newTopic = currentTypeTopicCounts[i] & topicMask;
+                        currentValue = currentTypeTopicCounts[i] >> topicBits;
 
-                    i--;
-                }
+                        currentTypeTopicCounts[i] = ((currentValue + 1) << topicBits) + newTopic;
 
-            } else {
-                sample -= topicTermMass;
+                        // Bubble the new value up, if necessary
 
-                if (sample < topicBetaMass) {
-                    //betaTopicCount++;
+                        while (i > 0 &&
+                                currentTypeTopicCounts[i] > currentTypeTopicCounts[i - 1]) {
+                            int temp = currentTypeTopicCounts[i];
+                            currentTypeTopicCounts[i] = currentTypeTopicCounts[i - 1];
+                            currentTypeTopicCounts[i - 1] = temp;
 
-                    sample /= beta;
+                            i--;
+                        }
 
-                    for (denseIndex = 0; denseIndex < nonZeroTopics; denseIndex++) {
-                        int topic = localTopicIndex[denseIndex];
+                    } else {
+                        sample -= topicTermMass;
 
-                        sample -= localTopicCounts[topic] /
-                                (tokensPerTopic[topic] + betaSum);
+                        if (sample < topicBetaMass) {
+                            //betaTopicCount++;
 
-                        if (sample <= 0.0) {
-                            newTopic = topic;
-                            break;
-                        }
-                    }
+                            sample /= beta;
 
-                } else {
-                    //smoothingOnlyCount++;
+                            for (denseIndex = 0; denseIndex < nonZeroTopics; denseIndex++) {
+                                int topic = localTopicIndex[denseIndex];
 
-                    sample -= topicBetaMass;
+                                sample -= localTopicCounts[topic] /
+                                        (tokensPerTopic[topic] + betaSum);
 
-                    sample /= beta;
+                                if (sample <= 0.0) {
+                                    newTopic = topic;
+                                    break;
+                                }
+                            }
 
-                    newTopic = 0;
-                    sample -= alpha[newTopic] /
-                            (tokensPerTopic[newTopic] + betaSum);
+                        } else {
+                            //smoothingOnlyCount++;
 
-                    while (sample > 0.0) {
-                        newTopic++;
-                        sample -= alpha[newTopic] /
-                                (tokensPerTopic[newTopic] + betaSum);
-                    }
+                            sample -= topicBetaMass;
 
-                }
+                            sample /= beta;
+
+                            newTopic = 0;
+                            sample -= alpha[newTopic] /
+                                    (tokensPerTopic[newTopic] + betaSum);
+
+                            while (sample > 0.0) {
+                                newTopic++;
+                                sample -= alpha[newTopic] /
+                                        (tokensPerTopic[newTopic] + betaSum);
+                            }
 
-                // Move to the position for the new topic,
-                //  which may be the first empty position if this
-                //  is a new topic for this word.
-
-                index = 0;
-                while (currentTypeTopicCounts[index] > 0 &&
-                        (currentTypeTopicCounts[index] & topicMask) != newTopic) {
-                    index++;
-                    if (index == currentTypeTopicCounts.length) {
-                        System.err.println("type: " + type + " new topic: " + newTopic);
-                        for (int k = 0; k < currentTypeTopicCounts.length; k++) {
-                            System.err.print((currentTypeTopicCounts[k] & topicMask) + ":" +
-                                    (currentTypeTopicCounts[k] >> topicBits) + " ");
                         }
-                        System.err.println();
 
-                    }
-                }
+                        // Move to the position for the new topic,
+                        //  which may be the first empty position if this
+                        //  is a new topic for this word.
+
+                        index = 0;
+                        while (currentTypeTopicCounts[index] > 0 &&
+                                (currentTypeTopicCounts[index] & topicMask) != newTopic) {
+                            index++;
+                            if (index == currentTypeTopicCounts.length) {
+                                System.err.println("type: " + type + " new topic: " + newTopic);
+                                for (int k = 0; k < currentTypeTopicCounts.length; k++) {
+                                    System.err.print((currentTypeTopicCounts[k] & topicMask) + ":" +
+                                            (currentTypeTopicCounts[k] >> topicBits) + " ");
+                                }
+                                System.err.println();
+
+                            }
+                        }
 
 
-                // index should now be set to the position of the new topic,
-                //  which may be an empty cell at the end of the list.
+                        // index should now be set to the position of the new topic,
+                        //  which may be an empty cell at the end of the list.
 
-                if (currentTypeTopicCounts[index] == 0) {
-                    // inserting a new topic, guaranteed to be in
-                    //  order w.r.t. count, if not topic.
-                    currentTypeTopicCounts[index] = (1 << topicBits) + newTopic;
-                } else {
-                    currentValue = currentTypeTopicCounts[index] >> topicBits;
-                    currentTypeTopicCounts[index] = ((currentValue + 1) << topicBits) + newTopic;
+                        if (currentTypeTopicCounts[index] == 0) {
+                            // inserting a new topic, guaranteed to be in
+                            //  order w.r.t. count, if not topic.
+                            currentTypeTopicCounts[index] = (1 << topicBits) + newTopic;
+                        } else {
+                            currentValue = currentTypeTopicCounts[index] >> topicBits;
+                            currentTypeTopicCounts[index] = ((currentValue + 1) << topicBits) + newTopic;
 
-                    // Bubble the increased value left, if necessary
-                    while (index > 0 &&
-                            currentTypeTopicCounts[index] > currentTypeTopicCounts[index - 1]) {
-                        int temp = currentTypeTopicCounts[index];
-                        currentTypeTopicCounts[index] = currentTypeTopicCounts[index - 1];
-                        currentTypeTopicCounts[index - 1] = temp;
+                            // Bubble the increased value left, if necessary
+                            while (index > 0 &&
+                                    currentTypeTopicCounts[index] > currentTypeTopicCounts[index - 1]) {
+                                int temp = currentTypeTopicCounts[index];
+                                currentTypeTopicCounts[index] = currentTypeTopicCounts[index - 1];
+                                currentTypeTopicCounts[index - 1] = temp;
+
+                                index--;
+                            }
+                        }
+
+                    }
 
-                        index--;
+                } finally {
+                    if (typeLock != null) {
+                        typeLock.unlock();
                     }
                 }
 
@@ -660,6 +945,7 @@ public class WorkerRunnable implements Runnable {
 
             cachedCoefficients[topic] =
                     alpha[topic] / (tokensPerTopic[topic] + betaSum);
+            localTopicCounts[topic] = 0;
         }
 
     }
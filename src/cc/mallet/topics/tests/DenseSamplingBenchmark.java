@@ -0,0 +1,155 @@
+/* Copyright (C) 2005 Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.  For further
+   information, see the file `LICENSE' included with this distribution. */
+
+package cc.mallet.topics.tests;
+
+import cc.mallet.topics.ParallelTopicModel;
+import cc.mallet.topics.TopicAssignment;
+import cc.mallet.topics.WorkerRunnable;
+import cc.mallet.types.Alphabet;
+import cc.mallet.types.FeatureSequence;
+import cc.mallet.types.Instance;
+import cc.mallet.types.InstanceList;
+import cc.mallet.util.Randoms;
+
+import java.util.logging.Level;
+
+/**
+ * Compares the time per token of WorkerRunnable sweeps with the sparse
+ * sampler alone and with the dense kernel for common types
+ * (<code>setDenseTypeThreshold()</code>), at several numbers of topics.
+ * Each document of the corpus draws most of its words from one of many
+ * groups, and the rest from a few stop words that every group shares,
+ * so that the stop words end up with counts in most topics.
+ * <pre>
+ * java cc.mallet.topics.tests.DenseSamplingBenchmark [threshold] [docsPerTopic] [docLength] [numTopics...]
+ * </pre>
+ */
+
+public class DenseSamplingBenchmark {
+
+    static final int BURN_IN_SWEEPS = 20;
+    static final int WARMUP_ROUNDS = 15;
+    static final int MEASURED_ROUNDS = 5;
+
+    static final int NUM_STOP_WORDS = 20;
+    static final double STOP_WORD_FRACTION = 0.3;
+    static final int WORDS_PER_GROUP = 20;
+
+    public static InstanceList stopWordDocuments(int numDocs, int docLength, int numGroups,
+                                                 int wordsPerGroup, int seed) {
+        Randoms random = new Randoms(seed);
+        Alphabet alphabet = new Alphabet();
+        int numTypes = NUM_STOP_WORDS + numGroups * wordsPerGroup;
+        for (int type = 0; type < numTypes; type++) {
+            alphabet.lookupIndex("w" + type);
+        }
+
+        InstanceList instances = new InstanceList(alphabet, null);
+        for (int doc = 0; doc < numDocs; doc++) {
+            int group = random.nextInt(numGroups);
+            FeatureSequence tokens = new FeatureSequence(alphabet, docLength);
+            for (int position = 0; position < docLength; position++) {
+                if (random.nextUniform() < STOP_WORD_FRACTION) {
+                    tokens.add(random.nextInt(NUM_STOP_WORDS));
+                } else {
+                    tokens.add(NUM_STOP_WORDS + group * wordsPerGroup + random.nextInt(wordsPerGroup));
+                }
+            }
+            instances.add(new Instance(tokens, null, "doc" + doc, null));
+        }
+        return instances;
+    }
+
+    private static long timeSweeps(WorkerRunnable runnable) {
+        long nanos = 0;
+        for (int round = 0; round < WARMUP_ROUNDS + MEASURED_ROUNDS; round++) {
+            long startNanos = System.nanoTime();
+            runnable.run();
+            if (round >= WARMUP_ROUNDS) {
+                nanos += System.nanoTime() - startNanos;
+            }
+        }
+        return nanos;
+    }
+
+    /**
+     * The fraction of tokens whose types would be sampled densely
+     */
+    private static double denseTokenFraction(ParallelTopicModel model, double threshold) {
+        int numTopics = model.getNumTopics();
+        int minNonZero = Math.max(1, (int) Math.ceil(threshold * numTopics));
+        int[][] typeTopicCounts = model.getTypeTopicCounts();
+
+        long denseTokens = 0;
+        long totalTokens = 0;
+        for (TopicAssignment document : model.getData()) {
+            FeatureSequence tokens = (FeatureSequence) document.instance.getData();
+            for (int position = 0; position < tokens.getLength(); position++) {
+                int[] counts = typeTopicCounts[tokens.getIndexAtPosition(position)];
+                int length = 0;
+                while (length < counts.length && counts[length] > 0) {
+                    length++;
+                }
+                if (length >= minNonZero) {
+                    denseTokens++;
+                }
+                totalTokens++;
+            }
+        }
+        return (double) denseTokens / totalTokens;
+    }
+
+    public static void main(String[] args) throws Exception {
+        double threshold = args.length > 0 ? Double.parseDouble(args[0]) : 0.5;
+        int docsPerTopic = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+        int docLength = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+        int[] topicCounts = {50, 200, 1000};
+        if (args.length > 3) {
+            topicCounts = new int[args.length - 3];
+            for (int i = 3; i < args.length; i++) {
+                topicCounts[i - 3] = Integer.parseInt(args[i]);
+            }
+        }
+
+        ParallelTopicModel.logger.setLevel(Level.WARNING);
+
+        System.out.println(docsPerTopic + " documents of " + docLength + " tokens per topic, dense threshold " + threshold);
+
+        for (int numTopics : topicCounts) {
+            // Enough documents per topic that the stop words spread over most topics
+            int numDocs = docsPerTopic * numTopics;
+            long numTokens = (long) numDocs * docLength;
+            InstanceList training = stopWordDocuments(numDocs, docLength, numTopics, WORDS_PER_GROUP, 1);
+            ParallelTopicModel model = new ParallelTopicModel(numTopics, numTopics / 10.0, 0.01);
+            model.setRandomSeed(1);
+            model.addInstances(training);
+
+            WorkerRunnable runnable = new WorkerRunnable(numTopics,
+                    model.alpha, model.alphaSum, model.beta,
+                    new Randoms(1), model.getData(),
+                    model.getTypeTopicCounts(), model.getTokensPerTopic(),
+                    0, numDocs);
+            runnable.makeOnlyThread();
+
+            // Let the counts settle, so that only common words are dense
+            for (int sweep = 0; sweep < BURN_IN_SWEEPS; sweep++) {
+                runnable.run();
+            }
+
+            runnable.setDenseTypeThreshold(0.0);
+            long sparseNanos = timeSweeps(runnable);
+            runnable.setDenseTypeThreshold(threshold);
+            long hybridNanos = timeSweeps(runnable);
+
+            System.out.println(String.format("%5d topics: %5.1f%% dense tokens, sparse %7.3f us/token, hybrid %7.3f us/token",
+                    numTopics, 100 * denseTokenFraction(model, threshold),
+                    sparseNanos / 1000.0 / (numTokens * MEASURED_ROUNDS),
+                    hybridNanos / 1000.0 / (numTokens * MEASURED_ROUNDS)));
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/* Copyright (C) 2005 Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.  For further
+   information, see the file `LICENSE' included with this distribution. */
+
+package cc.mallet.topics.tests;
+
+import cc.mallet.topics.MarginalProbEstimator;
+import cc.mallet.topics.ParallelTopicModel;
+import cc.mallet.topics.TopicInferencer;
+import cc.mallet.topics.WorkerRunnable;
+import cc.mallet.types.Alphabet;
+import cc.mallet.types.FeatureSequence;
+import cc.mallet.types.Instance;
+import cc.mallet.types.InstanceList;
+import cc.mallet.util.Randoms;
+
+import java.lang.management.ManagementFactory;
+import java.util.logging.Level;
+
+/**
+ * Measures heap allocation and time per document for the per-document
+ * samplers in WorkerRunnable, TopicInferencer and MarginalProbEstimator
+ * on a corpus of many short documents (tweets, titles).
+ * <p>
+ * Allocation is read from the HotSpot per-thread allocation counter,
+ * so run it on a HotSpot JVM:
+ * <pre>
+ * java cc.mallet.topics.tests.SamplingAllocationBenchmark [numTopics] [numDocs] [docLength]
+ * </pre>
+ */
+
+public class SamplingAllocationBenchmark {
+
+    static final int WARMUP_ROUNDS = 3;
+    static final int MEASURED_ROUNDS = 5;
+
+    static com.sun.management.ThreadMXBean threadBean =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    public static InstanceList shortDocuments(int numDocs, int docLength, int numTypes, int seed) {
+        Randoms random = new Randoms(seed);
+        Alphabet alphabet = new Alphabet();
+        for (int type = 0; type < numTypes; type++) {
+            alphabet.lookupIndex("w" + type);
+        }
+
+        InstanceList instances = new InstanceList(alphabet, null);
+        for (int doc = 0; doc < numDocs; doc++) {
+            FeatureSequence tokens = new FeatureSequence(alphabet, docLength);
+            for (int position = 0; position < docLength; position++) {
+                // Roughly Zipfian word frequencies
+                tokens.add((int) Math.min(numTypes - 1, Math.exp(random.nextUniform() * Math.log(numTypes))));
+            }
+            instances.add(new Instance(tokens, null, "doc" + doc, null));
+        }
+        return instances;
+    }
+
+    private static long allocatedBytes() {
+        return threadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static void report(String name, long bytes, long nanos, int numDocs) {
+        System.out.println(String.format("%-36s %10.1f bytes/doc %10.2f us/doc",
+                name, (double) bytes / numDocs, nanos / 1000.0 / numDocs));
+    }
+
+    public static void main(String[] args) throws Exception {
+        int numTopics = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        int numDocs = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+        int docLength = args.length > 2 ? Integer.parseInt(args[2]) : 12;
+
+        ParallelTopicModel.logger.setLevel(Level.WARNING);
+
+        InstanceList training = shortDocuments(numDocs, docLength, 5000, 1);
+        InstanceList testing = shortDocuments(numDocs / 10, docLength, 5000, 2);
+
+        ParallelTopicModel model = new ParallelTopicModel(numTopics, numTopics / 10.0, 0.01);
+        model.setRandomSeed(1);
+        model.addInstances(training);
+
+        System.out.println(numTopics + " topics, " + numDocs + " documents of " + docLength + " tokens");
+
+        // Gibbs sampling sweeps, as in a single-threaded estimate()
+        WorkerRunnable runnable = new WorkerRunnable(numTopics,
+                model.alpha, model.alphaSum, model.beta,
+                new Randoms(1), model.getData(),
+                model.getTypeTopicCounts(), model.getTokensPerTopic(),
+                0, numDocs);
+        runnable.initializeAlphaStatistics(docLength + 1);
+        runnable.makeOnlyThread();
+
+        long bytes = 0, nanos = 0;
+        for (int round = 0; round < WARMUP_ROUNDS + MEASURED_ROUNDS; round++) {
+            long startBytes = allocatedBytes();
+            long startNanos = System.nanoTime();
+            runnable.run();
+            if (round >= WARMUP_ROUNDS) {
+                nanos += System.nanoTime() - startNanos;
+                bytes += allocatedBytes() - startBytes;
+            }
+        }
+        report("WorkerRunnable sweep", bytes, nanos, numDocs * MEASURED_ROUNDS);
+
+        TopicInferencer inferencer = model.getInferencer();
+        inferencer.setRandomSeed(1);
+        bytes = 0;
+        nanos = 0;
+        for (int round = 0; round < WARMUP_ROUNDS + MEASURED_ROUNDS; round++) {
+            long startBytes = allocatedBytes();
+            long startNanos = System.nanoTime();
+            for (Instance instance : testing) {
+                inferencer.getSampledDistribution(instance, 10, 1, 5);
+            }
+            if (round >= WARMUP_ROUNDS) {
+                nanos += System.nanoTime() - startNanos;
+                bytes += allocatedBytes() - startBytes;
+            }
+        }
+        report("TopicInferencer (10 iterations)", bytes, nanos, testing.size() * MEASURED_ROUNDS);
+
+        MarginalProbEstimator estimator = model.getProbEstimator();
+        bytes = 0;
+        nanos = 0;
+        for (int round = 0; round < WARMUP_ROUNDS + MEASURED_ROUNDS; round++) {
+            long startBytes = allocatedBytes();
+            long startNanos = System.nanoTime();
+            estimator.evaluateLeftToRight(testing, 5, false, null);
+            if (round >= WARMUP_ROUNDS) {
+                nanos += System.nanoTime() - startNanos;
+                bytes += allocatedBytes() - startBytes;
+            }
+        }
+        report("MarginalProbEstimator (5 particles)", bytes, nanos, testing.size() * MEASURED_ROUNDS);
+    }
+}
@@ -0,0 +1,1336 @@
+/* Copyright (C) 2005 Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.  For further
+   information, see the file `LICENSE' included with this distribution. */
+
+package cc.mallet.topics.tests;
+
+import cc.mallet.pipe.Noop;
+import cc.mallet.topics.AliasTable;
+import cc.mallet.topics.DMROptimizable;
+import cc.mallet.topics.DMRTopicModel;
+import cc.mallet.topics.DistributedTopicModel;
+import cc.mallet.topics.DocumentShards;
+import cc.mallet.topics.HierarchicalLDA;
+import cc.mallet.topics.HierarchicalPAM;
+import cc.mallet.topics.IterationMetrics;
+import cc.mallet.topics.JmxTrainingMetrics;
+import cc.mallet.topics.LDAHyper;
+import cc.mallet.topics.LabeledLDA;
+import cc.mallet.topics.OnlineTopicModel;
+import cc.mallet.topics.PAM4L;
+import cc.mallet.topics.ParallelTopicModel;
+import cc.mallet.topics.ShardedSampler;
+import cc.mallet.topics.SparseRowConsumer;
+import cc.mallet.topics.TopicAssignment;
+import cc.mallet.topics.TopicInferencer;
+import cc.mallet.topics.TopicModelCoordinator;
+import cc.mallet.topics.TopicModelDiagnostics;
+import cc.mallet.topics.TopicQueryIndex;
+import cc.mallet.topics.TopicStateFile;
+import cc.mallet.topics.TopicalNGrams;
+import cc.mallet.topics.TrainingMetrics;
+import cc.mallet.topics.TrainingMetricsFile;
+import cc.mallet.topics.TypeTopicCountStore;
+import cc.mallet.types.Alphabet;
+import cc.mallet.types.Dirichlet;
+import cc.mallet.types.FeatureSequence;
+import cc.mallet.types.FeatureSequenceWithBigrams;
+import cc.mallet.types.FeatureVector;
+import cc.mallet.types.IDSorter;
+import cc.mallet.types.Instance;
+import cc.mallet.types.InstanceList;
+import cc.mallet.types.LabelAlphabet;
+import cc.mallet.types.TokenSequence;
+import cc.mallet.util.Randoms;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import javax.management.ObjectName;
+
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class TestParallelTopicModel extends TestCase {
+
+    public TestParallelTopicModel(String name) {
+        super(name);
+    }
+
+    public static Test suite() {
+        return new TestSuite(TestParallelTopicModel.class);
+    }
+
+    public static void main(String[] args) {
+        junit.textui.TestRunner.run(suite());
+    }
+
+    /**
+     * Build a small corpus with skewed document lengths, drawn from
+     * a few disjoint groups of words so there is something to find.
+     */
+    public static InstanceList syntheticCorpus(int numDocs, int seed) {
+        Randoms random = new Randoms(seed);
+        Alphabet alphabet = new Alphabet();
+        for (int i = 0; i < 200; i++) {
+            alphabet.lookupIndex("w" + i);
+        }
+
+        InstanceList instances = new InstanceList(alphabet, null);
+        for (int doc = 0; doc < numDocs; doc++) {
+            int length = 5 + random.nextInt(doc % 10 == 0 ? 300 : 40);
+            int group = random.nextInt(4);
+            FeatureSequence tokens = new FeatureSequence(alphabet, length);
+            for (int position = 0; position < length; position++) {
+                if (random.nextUniform() < 0.8) {
+                    tokens.add(group * 50 + random.nextInt(50));
+                } else {
+                    tokens.add(random.nextInt(200));
+                }
+            }
+            instances.add(new Instance(tokens, null, "doc" + doc, null));
+        }
+        return instances;
+    }
+
+    /**
+     * Recount the type-topic counts from the topic assignments and
+     * compare them to the model's sparse count arrays.
+     */
+    public static void assertCountsConsistent(ParallelTopicModel model) {
+        int numTopics = model.getNumTopics();
+        int numTypes = model.getAlphabet().size();
+        int[][] expected = new int[numTypes][numTopics];
+        int[] expectedTotals = new int[numTopics];
+
+        for (TopicAssignment document : model.getData()) {
+            FeatureSequence tokens = (FeatureSequence) document.instance.getData();
+            int[] topics = document.topicSequence.getFeatures();
+            for (int position = 0; position < tokens.getLength(); position++) {
+                expected[tokens.getIndexAtPosition(position)][topics[position]]++;
+                expectedTotals[topics[position]]++;
+            }
+        }
+
+        int[][] typeTopicCounts = model.getTypeTopicCounts();
+        for (int type = 0; type < numTypes; type++) {
+            int[] found = new int[numTopics];
+            int[] counts = typeTopicCounts[type];
+            for (int index = 0; index < counts.length && counts[index] > 0; index++) {
+                found[counts[index] & model.topicMask] += counts[index] >> model.topicBits;
+            }
+            for (int topic = 0; topic < numTopics; topic++) {
+                assertEquals("type " + type + " topic " + topic, expected[type][topic], found[topic]);
+            }
+        }
+
+        for (int topic = 0; topic < numTopics; topic++) {
+            assertEquals("topic total " + topic, expectedTotals[topic], model.getTokensPerTopic()[topic]);
+        }
+    }
+
+    private ParallelTopicModel newModel(InstanceList instances, int numThreads) {
+        ParallelTopicModel model = new ParallelTopicModel(8, 1.0, 0.01);
+        model.setRandomSeed(1);
+        model.setTopicDisplay(0, 5);
+        model.printLogLikelihood = false;
+        model.setNumIterations(30);
+        model.setOptimizeInterval(10);
+        model.setBurninPeriod(10);
+        model.addInstances(instances);
+        model.setNumThreads(numThreads);
+        return model;
+    }
+
+    public void testSingleThread() throws Exception {
+        ParallelTopicModel model = newModel(syntheticCorpus(100, 1), 1);
+        model.estimate();
+        assertCountsConsistent(model);
+    }
+
+    public void testCopiedCounts() throws Exception {
+        ParallelTopicModel model = newModel(syntheticCorpus(100, 2), 3);
+        model.estimate();
+        assertCountsConsistent(model);
+    }
+
+    public void testSharedCounts() throws Exception {
+        ParallelTopicModel model = newModel(syntheticCorpus(100, 3), 4);
+        model.setSharedCounts(true);
+        model.estimate();
+        assertCountsConsistent(model);
+    }
+
+    public void testSamplingFailureStopsTraining() throws Exception {
+        for (int numThreads : new int[]{1, 3}) {
+            ParallelTopicModel model = newModel(syntheticCorpus(100, 2), numThreads);
+            // A topic out of range makes the worker sampling this document fail
+            model.getData().get(0).topicSequence.getFeatures()[0] = 1000;
+            try {
+                model.estimate();
+                fail("sampling should have failed with " + numThreads + " threads");
+            } catch (RuntimeException e) {
+                Throwable cause = e;
+                while (cause.getCause() != null) {
+                    cause = cause.getCause();
+                }
+                assertTrue(cause instanceof ArrayIndexOutOfBoundsException);
+            }
+        }
+    }
+
+    public void testWorkStealing() throws Exception {
+        ParallelTopicModel model = newModel(syntheticCorpus(100, 4), 3);
+        model.setWorkStealing(true);
+        model.estimate();
+        assertCountsConsistent(model);
+
+        model = newModel(syntheticCorpus(100, 5), 3);
+        model.setWorkStealing(true);
+        model.setSharedCounts(true);
+        model.estimate();
+        assertCountsConsistent(model);
+    }
+
+    public void testDenseTypeKernel() throws Exception {
+        ParallelTopicModel sparse = newModel(syntheticCorpus(100, 6), 1);
+        sparse.estimate();
+
+        for (int numThreads : new int[]{1, 3}) {
+            ParallelTopicModel model = newModel(syntheticCorpus(100, 6), numThreads);
+            model.setDenseTypeThreshold(0.5);
+            model.estimate();
+            assertCountsConsistent(model);
+
+            for (int[] counts : model.getTypeTopicCounts()) {
+                for (int index = 1; index < counts.length && counts[index] > 0; index++) {
+                    assertTrue(counts[index - 1] >> model.topicBits >= counts[index] >> model.topicBits);
+                }
+            }
+
+            // Same model, different draws
+            double expected = sparse.modelLogLikelihood();
+            assertEquals(expected, model.modelLogLikelihood(), 0.05 * Math.abs(expected));
+        }
+    }
+
+    public void testParallelOptimization() throws Exception {
+        // The parallel fixed-point updates match the serial ones exactly
+        Randoms random = new Randoms(11);
+        int[][] topicDocCounts = new int[50][40];
+        int[] docLengthCounts = new int[40];
+        for (int doc = 0; doc < 500; doc++) {
+            int length = 1 + random.nextInt(39);
+            docLengthCounts[length]++;
+            for (int position = 0; position < length; position++) {
+                topicDocCounts[random.nextInt(50)][1 + random.nextInt(length)]++;
+            }
+        }
+        double[] serial = new double[50];
+        double[] parallel = new double[50];
+        Arrays.fill(serial, 0.1);
+        Arrays.fill(parallel, 0.1);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            double serialSum = Dirichlet.learnParameters(serial, topicDocCounts, docLengthCounts, 1.001, 1.0, 5);
+            double parallelSum = Dirichlet.learnParameters(parallel, topicDocCounts, docLengthCounts, 1.001, 1.0, 5,
+                    executor, 7);
+            assertEquals(serialSum, parallelSum, 0.0);
+            for (int topic = 0; topic < 50; topic++) {
+                assertEquals(serial[topic], parallel[topic], 0.0);
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        for (boolean overlapped : new boolean[]{false, true}) {
+            ParallelTopicModel model = newModel(syntheticCorpus(100, 12), 3);
+            model.setOverlappedOptimization(overlapped);
+            model.estimate();
+            assertCountsConsistent(model);
+
+            double sum = 0.0;
+            for (int topic = 0; topic < model.getNumTopics(); topic++) {
+                assertTrue(model.alpha[topic] > 0.0);
+                sum += model.alpha[topic];
+            }
+            assertEquals(model.alphaSum, sum, 1e-9);
+            assertTrue(model.beta != 0.01);
+            assertEquals(model.beta * model.getAlphabet().size(), model.betaSum, 1e-9);
+        }
+    }
+
+    public void testCheckpointResume() throws Exception {
+        InstanceList instances = syntheticCorpus(100, 13);
+        File directory = File.createTempFile("checkpoints", "");
+        directory.delete();
+        directory.mkdir();
+        String prefix = new File(directory, "checkpoint").getPath();
+
+        ParallelTopicModel model = newModel(instances, 2);
+        model.setSaveCheckpoint(10, prefix);
+        model.estimate();
+
+        for (int iteration = 10; iteration <= 30; iteration += 10) {
+            File file = new File(prefix + "." + iteration);
+            assertTrue(TopicStateFile.isStateFile(file));
+            assertFalse(new File(file.getPath() + ".tmp").exists());
+        }
+
+        // The last checkpoint holds the final state
+        TopicStateFile state = TopicStateFile.read(new File(prefix + ".30"));
+        assertEquals(30, state.getIteration());
+        for (int doc = 0; doc < instances.size(); doc++) {
+            assertTrue(Arrays.equals(model.getData().get(doc).topicSequence.getFeatures(),
+                    state.getTopics()[doc]));
+        }
+        assertEquals(model.beta, state.getBeta(), 0.0);
+
+        ParallelTopicModel resumed = newModel(instances, 2);
+        resumed.initializeFromCheckpoint(new File(prefix + ".20"));
+        assertCountsConsistent(resumed);
+        state = TopicStateFile.read(new File(prefix + ".20"));
+        assertEquals(state.getAlphaSum(), resumed.alphaSum, 0.0);
+        resumed.estimate();
+        assertCountsConsistent(resumed);
+
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    public void testStateFormats() throws Exception {
+        InstanceList instances = syntheticCorpus(100, 14);
+        ParallelTopicModel model = newModel(instances, 1);
+        model.estimate();
+
+        File binary = File.createTempFile("state", ".bin");
+        File text = File.createTempFile("state", ".gz");
+        binary.deleteOnExit();
+        text.deleteOnExit();
+
+        model.printState(binary);
+        model.printTextState(text);
+        assertTrue(TopicStateFile.isStateFile(binary));
+        assertFalse(TopicStateFile.isStateFile(text));
+        assertTrue(binary.length() < text.length());
+
+        for (File file : new File[]{binary, text}) {
+            ParallelTopicModel restored = newModel(instances, 1);
+            restored.initializeFromState(file);
+            for (int doc = 0; doc < instances.size(); doc++) {
+                assertTrue(Arrays.equals(model.getData().get(doc).topicSequence.getFeatures(),
+                        restored.getData().get(doc).topicSequence.getFeatures()));
+            }
+            assertCountsConsistent(restored);
+        }
+
+        // Files of any other version are rejected
+        File otherVersion = File.createTempFile("state", ".bin");
+        otherVersion.deleteOnExit();
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(otherVersion));
+        out.writeInt(TopicStateFile.MAGIC);
+        out.writeInt(2);
+        for (int i = 0; i < 4; i++) {
+            out.writeInt(0);
+        }
+        out.close();
+        try {
+            TopicStateFile.read(otherVersion);
+            fail("a file of version 2 should not be read");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    public void testPackedCorpus() throws Exception {
+        InstanceList instances = syntheticCorpus(100, 15);
+
+        // With one thread the packed model makes exactly the same draws
+        ParallelTopicModel model = newModel(instances, 1);
+        model.estimate();
+
+        ParallelTopicModel packed = new ParallelTopicModel(8, 1.0, 0.01);
+        packed.setRandomSeed(1);
+        packed.setTopicDisplay(0, 5);
+        packed.printLogLikelihood = false;
+        packed.setNumIterations(30);
+        packed.setOptimizeInterval(10);
+        packed.setBurninPeriod(10);
+        packed.setPackedCorpus(true);
+        packed.addInstances(instances);
+        packed.estimate();
+
+        assertNotNull(packed.getCorpus());
+        assertEquals(0, packed.data.size());
+        assertEquals(instances.size(), packed.getData().size());
+        for (int doc = 0; doc < instances.size(); doc++) {
+            assertTrue(Arrays.equals(model.getData().get(doc).topicSequence.getFeatures(),
+                    packed.getData().get(doc).topicSequence.getFeatures()));
+            assertEquals(instances.get(doc).getName(), packed.getData().get(doc).instance.getName());
+        }
+        assertEquals(model.modelLogLikelihood(), packed.modelLogLikelihood(), 1e-9);
+        assertTrue(Arrays.deepEquals(model.getDocumentTopics(true, true), packed.getDocumentTopics(true, true)));
+        assertCountsConsistent(packed);
+
+        // A packed state can be read into an unpacked model
+        File state = File.createTempFile("state", ".bin");
+        state.deleteOnExit();
+        packed.printState(state);
+        ParallelTopicModel restored = newModel(instances, 1);
+        restored.initializeFromState(state);
+        for (int doc = 0; doc < instances.size(); doc++) {
+            assertTrue(Arrays.equals(packed.getData().get(doc).topicSequence.getFeatures(),
+                    restored.getData().get(doc).topicSequence.getFeatures()));
+        }
+
+        // Threads and incremental updates work on the packed arrays too
+        packed.setNumThreads(3);
+        packed.setSharedCounts(true);
+        packed.estimate();
+        assertCountsConsistent(packed);
+
+        packed.addInstancesIncrementally(syntheticCorpus(20, 16), 3, 10);
+        assertEquals(120, packed.getCorpus().size());
+        assertCountsConsistent(packed);
+    }
+
+    public void testParallelDiagnostics() throws Exception {
+        ParallelTopicModel model = newModel(syntheticCorpus(100, 17), 1);
+        model.estimate();
+
+        TopicModelDiagnostics serial = new TopicModelDiagnostics(model, 10, 1);
+        TopicModelDiagnostics parallel = new TopicModelDiagnostics(model, 10, 3);
+
+        ArrayList<TopicModelDiagnostics.TopicScores> expected = serial.getDiagnostics();
+        ArrayList<TopicModelDiagnostics.TopicScores> found = parallel.getDiagnostics();
+        assertEquals(expected.size(), found.size());
+        for (int i = 0; i < expected.size(); i++) {
+            for (int topic = 0; topic < model.getNumTopics(); topic++) {
+                assertEquals(expected.get(i).name, expected.get(i).scores[topic], found.get(i).scores[topic], 1e-9);
+            }
+        }
+        for (int topic = 0; topic < model.getNumTopics(); topic++) {
+            assertTrue(Arrays.deepEquals(serial.getCodocumentMatrix(topic), parallel.getCodocumentMatrix(topic)));
+        }
+        assertEquals(serial.toXML(), parallel.toXML());
+    }
+
+    public void testParallelHierarchicalLDA() throws Exception {
+        InstanceList instances = syntheticCorpus(150, 21);
+        InstanceList testing = syntheticCorpus(20, 22);
+
+        HierarchicalLDA hlda = new HierarchicalLDA();
+        hlda.setProgressDisplay(false);
+        hlda.setTopicDisplay(1000, 5);
+        hlda.setNumThreads(3);
+        hlda.initialize(instances, testing, 3, new Randoms(1));
+        hlda.estimate(20);
+
+        // One line per token: a path of three node IDs, the type, the word and the level
+        StringWriter state = new StringWriter();
+        PrintWriter out = new PrintWriter(state);
+        hlda.printState(out);
+        out.flush();
+
+        String[] lines = state.toString().split("\n");
+        int numTokens = 0;
+        for (int doc = 0; doc < instances.size(); doc++) {
+            numTokens += ((FeatureSequence) instances.get(doc).getData()).getLength();
+        }
+        assertEquals(numTokens, lines.length);
+        for (String line : lines) {
+            String[] fields = line.trim().split(" ");
+            assertEquals(6, fields.length);
+            int level = Integer.parseInt(fields[5]);
+            assertTrue(level >= 0 && level < 3);
+        }
+
+        double likelihood = hlda.empiricalLikelihood(50, testing);
+        assertFalse(Double.isNaN(likelihood) || Double.isInfinite(likelihood));
+    }
+
+    /**
+     * The synthetic corpus, with two of four labels on each document as a
+     * feature vector target, for LabeledLDA and DMR.
+     */
+    private static InstanceList labeledCorpus(int numDocs, int seed) {
+        InstanceList instances = syntheticCorpus(numDocs, seed);
+        Alphabet labels = new Alphabet();
+        for (int label = 0; label < 4; label++) {
+            labels.lookupIndex("label" + label);
+        }
+
+        InstanceList labeled = new InstanceList(instances.getDataAlphabet(), labels);
+        for (int doc = 0; doc < instances.size(); doc++) {
+            Instance instance = instances.get(doc);
+            int[] indices = {doc % 4, (doc / 4 + 1 + doc) % 4};
+            if (indices[0] == indices[1]) {
+                indices = new int[]{indices[0]};
+            }
+            labeled.add(new Instance(instance.getData(), new FeatureVector(labels, indices),
+                    instance.getName(), null));
+        }
+        return labeled;
+    }
+
+    public void testShardedSamplers() throws Exception {
+        InstanceList instances = labeledCorpus(120, 23);
+        int numTypes = instances.getDataAlphabet().size();
+
+        LabeledLDA labeledLDA = new LabeledLDA(0.1, 0.01);
+        labeledLDA.setRandomSeed(1);
+        labeledLDA.setTopicDisplay(0, 5);
+        labeledLDA.setNumIterations(20);
+        labeledLDA.setNumThreads(3);
+        labeledLDA.addInstances(instances);
+        labeledLDA.estimate();
+
+        int[][] expected = new int[numTypes][4];
+        for (TopicAssignment document : labeledLDA.getData()) {
+            FeatureSequence tokens = (FeatureSequence) document.instance.getData();
+            FeatureVector labels = (FeatureVector) document.instance.getTarget();
+            int[] topics = document.topicSequence.getFeatures();
+            for (int position = 0; position < tokens.getLength(); position++) {
+                // Every token stays in one of its document's labels
+                assertTrue(labels.location(topics[position]) >= 0);
+                expected[tokens.getIndexAtPosition(position)][topics[position]]++;
+            }
+        }
+        int[] topicTotals = new int[4];
+        for (int type = 0; type < numTypes; type++) {
+            for (int topic = 0; topic < 4; topic++) {
+                assertEquals(expected[type][topic], labeledLDA.getTypeTopicCounts()[type][topic]);
+                topicTotals[topic] += expected[type][topic];
+            }
+        }
+        assertTrue(Arrays.equals(topicTotals, labeledLDA.getTopicTotals()));
+
+        DMRTopicModel dmr = new DMRTopicModel(4);
+        dmr.setRandomSeed(1);
+        dmr.setTopicDisplay(0, 5);
+        dmr.setNumIterations(20);
+        dmr.setOptimizeInterval(5);
+        dmr.setBurninPeriod(5);
+        dmr.setNumThreads(3);
+        dmr.addInstances(instances);
+        dmr.estimate();
+
+        expected = new int[numTypes][4];
+        for (LDAHyper.Topication document : dmr.getData()) {
+            FeatureSequence tokens = (FeatureSequence) document.instance.getData();
+            int[] topics = document.topicSequence.getFeatures();
+            for (int position = 0; position < tokens.getLength(); position++) {
+                expected[tokens.getIndexAtPosition(position)][topics[position]]++;
+            }
+        }
+        Arrays.fill(topicTotals, 0);
+        for (int type = 0; type < numTypes; type++) {
+            for (int topic = 0; topic < 4; topic++) {
+                assertEquals(expected[type][topic], dmr.getCountFeatureTopic(type, topic));
+                topicTotals[topic] += expected[type][topic];
+            }
+        }
+        for (int topic = 0; topic < 4; topic++) {
+            assertEquals(topicTotals[topic], dmr.getCountTokensPerTopic(topic));
+        }
+        double likelihood = dmr.modelLogLikelihood();
+        assertFalse(Double.isNaN(likelihood) || Double.isInfinite(likelihood));
+    }
+
+    public void testDMRLikelihood() throws Exception {
+        Alphabet features = new Alphabet();
+        features.lookupIndex("feature");
+        LabelAlphabet topics = new LabelAlphabet();
+        for (int topic = 0; topic < 3; topic++) {
+            topics.lookupLabel("topic" + topic);
+        }
+
+        InstanceList instances = new InstanceList(new Noop(features, topics));
+        double[][] counts = {{2, 0, 5}, {1, 1, 0}, {0, 7, 3}, {4, 4, 4}};
+        double expected = 0.0;
+        for (int doc = 0; doc < counts.length; doc++) {
+            instances.add(new Instance(new FeatureVector(features, new int[]{0}, new double[]{1.0}),
+                    new FeatureVector(topics, counts[doc]), "doc" + doc, null));
+
+            // With all parameters at zero every topic has a score of 1,
+            //  so each document is a Dirichlet-multinomial with alpha = 1
+            double length = 0.0;
+            for (int topic = 0; topic < 3; topic++) {
+                expected += Dirichlet.logGammaStirling(1 + counts[doc][topic]) - Dirichlet.logGammaStirling(1);
+                length += counts[doc][topic];
+            }
+            expected -= Dirichlet.logGammaStirling(3 + length) - Dirichlet.logGammaStirling(3);
+        }
+
+        // Each document counts once, however many come before it
+        DMROptimizable optimizable = new DMROptimizable(instances, null);
+        assertEquals(expected, optimizable.getValue(), 1e-9);
+
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            optimizable = new DMROptimizable(instances, null);
+            optimizable.setExecutor(executor, 3);
+            assertEquals(expected, optimizable.getValue(), 1e-9);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    public void testShardedPachinkoAndNGrams() throws Exception {
+        int[] counts = {5, 3, 0};
+        ShardedSampler.mergeDeltas(counts, new int[][]{{6, 3, 1}, {4, 2, 0}, {5, 3, 2}});
+        assertTrue(Arrays.equals(new int[]{5, 2, 3}, counts));
+
+        InstanceList instances = syntheticCorpus(100, 24);
+        int numSuperTopics = 3;
+
+        HierarchicalPAM hierarchicalPAM = new HierarchicalPAM(numSuperTopics, 4, 1.0, 1.0);
+        hierarchicalPAM.setNumThreads(3);
+        hierarchicalPAM.estimate(instances, null, 12, 0, 0, 0, null, new Randoms(1));
+
+        // Recount the tokens and documents of each super-topic (and the root) from the state
+        int[] superTopicTokens = new int[numSuperTopics + 1];
+        int[] superTopicDocuments = new int[numSuperTopics + 1];
+        StringWriter state = new StringWriter();
+        hierarchicalPAM.printState(new PrintWriter(state));
+        String[] lines = state.toString().split("\n");
+        int previousDoc = -1;
+        boolean[] seen = new boolean[numSuperTopics + 1];
+        for (int line = 1; line < lines.length; line++) {
+            String[] fields = lines[line].split(" ");
+            int doc = Integer.parseInt(fields[0]);
+            int superTopic = Integer.parseInt(fields[4]);
+            if (doc != previousDoc) {
+                Arrays.fill(seen, false);
+                previousDoc = doc;
+            }
+            superTopicTokens[superTopic]++;
+            if (!seen[superTopic]) {
+                superTopicDocuments[superTopic]++;
+                seen[superTopic] = true;
+            }
+        }
+
+        String topWords = hierarchicalPAM.printTopWords(3, false);
+        assertTrue(topWords.startsWith("Root: [" + superTopicTokens[numSuperTopics] + "/" +
+                superTopicDocuments[numSuperTopics] + "]"));
+        for (int superTopic = 0; superTopic < numSuperTopics; superTopic++) {
+            assertTrue(topWords.contains("Super-topic " + superTopic + " [" +
+                    superTopicTokens[superTopic] + "/" + superTopicDocuments[superTopic] + " "));
+        }
+        double likelihood = hierarchicalPAM.modelLogLikelihood();
+        assertFalse(Double.isNaN(likelihood) || Double.isInfinite(likelihood));
+
+        PAM4L pam = new PAM4L(numSuperTopics, 4);
+        pam.setNumThreads(3);
+        pam.estimate(instances, 12, 5, 0, 0, null, new Randoms(2));
+        state = new StringWriter();
+        pam.printState(new PrintWriter(state));
+        lines = state.toString().split("\n");
+        int numTokens = 0;
+        for (int line = 1; line < lines.length; line++) {
+            String[] fields = lines[line].split(" ");
+            assertTrue(Integer.parseInt(fields[4]) < numSuperTopics);
+            assertTrue(Integer.parseInt(fields[5]) < 4);
+            numTokens++;
+        }
+        int expectedTokens = 0;
+        for (Instance instance : instances) {
+            expectedTokens += ((FeatureSequence) instance.getData()).getLength();
+        }
+        assertEquals(expectedTokens, numTokens);
+
+        // Topical n-grams need bigram features
+        Alphabet alphabet = new Alphabet();
+        Alphabet bigramAlphabet = new Alphabet();
+        InstanceList bigramInstances = new InstanceList(alphabet, null);
+        for (Instance instance : instances) {
+            FeatureSequence tokens = (FeatureSequence) instance.getData();
+            TokenSequence tokenSequence = new TokenSequence(tokens.getLength());
+            for (int position = 0; position < tokens.getLength(); position++) {
+                tokenSequence.add((String) tokens.getObjectAtPosition(position));
+            }
+            bigramInstances.add(new Instance(new FeatureSequenceWithBigrams(alphabet, bigramAlphabet, tokenSequence),
+                    null, instance.getName(), null));
+        }
+
+        TopicalNGrams tng = new TopicalNGrams(4);
+        tng.setNumThreads(3);
+        tng.estimate(bigramInstances, 12, 0, 0, null, new Randoms(3));
+        state = new StringWriter();
+        tng.printState(new PrintWriter(state));
+        lines = state.toString().split("\n");
+        assertEquals(expectedTokens + 1, lines.length);
+        for (int line = 1; line < lines.length; line++) {
+            String[] fields = lines[line].split(" ");
+            // A token can only be part of a bigram if its bigram exists
+            assertTrue(fields[4].equals("1") || fields[6].equals("0"));
+            assertTrue(Integer.parseInt(fields[5]) < 4);
+        }
+    }
+
+    public void testTrainingMetrics() throws Exception {
+        final ArrayList<IterationMetrics> published = new ArrayList<IterationMetrics>();
+        File file = File.createTempFile("metrics", ".txt");
+        file.deleteOnExit();
+        final TrainingMetricsFile fileMetrics = new TrainingMetricsFile(file);
+        final JmxTrainingMetrics jmxMetrics = new JmxTrainingMetrics();
+        jmxMetrics.register("TestParallelTopicModel");
+        ObjectName objectName = jmxMetrics.getObjectName();
+
+        try {
+            ParallelTopicModel model = newModel(syntheticCorpus(100, 25), 3);
+            model.setTrainingMetrics(new TrainingMetrics() {
+                public void publish(IterationMetrics metrics) {
+                    published.add(metrics);
+                    fileMetrics.publish(metrics);
+                    jmxMetrics.publish(metrics);
+                }
+            });
+            model.estimate();
+
+            assertEquals(30, published.size());
+            for (int i = 0; i < published.size(); i++) {
+                IterationMetrics metrics = published.get(i);
+                assertEquals(i + 1, metrics.getIteration());
+                assertEquals(model.totalTokens, metrics.getTokens());
+                assertEquals(3, metrics.getNumThreads());
+                long threadTokens = 0;
+                for (int thread = 0; thread < 3; thread++) {
+                    threadTokens += metrics.getThreadTokens(thread);
+                    assertTrue(metrics.getIdleMillis(thread) >= 0);
+                }
+                assertEquals(model.totalTokens, threadTokens);
+                assertTrue(metrics.getTopicCountDensity() > 0.0 && metrics.getTopicCountDensity() <= 1.0);
+                assertTrue(metrics.getHeapUsedBytes() > 0);
+            }
+            assertEquals(IterationMetrics.nonZeroFraction(model.getTypeTopicCounts(), 8),
+                    published.get(29).getTopicCountDensity(), 1e-12);
+
+            assertEquals(30, ManagementFactory.getPlatformMBeanServer()
+                    .getAttribute(jmxMetrics.getObjectName(), "Iteration"));
+            assertEquals((long) model.totalTokens * 30, jmxMetrics.getTotalTokens());
+        } finally {
+            fileMetrics.close();
+            jmxMetrics.close();
+        }
+        // Closing the bean unregisters it
+        assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(objectName));
+
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        assertEquals(TrainingMetricsFile.HEADER, reader.readLine());
+        int numLines = 0;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            String[] fields = line.split("\t", -1);
+            assertEquals(TrainingMetricsFile.HEADER.split("\t").length, fields.length);
+            assertEquals("ParallelTopicModel", fields[1]);
+            assertEquals(3, fields[11].split(",").length);
+            numLines++;
+        }
+        reader.close();
+        assertEquals(30, numLines);
+
+        // The sharded samplers report each worker's time
+        published.clear();
+        PAM4L pam = new PAM4L(3, 4);
+        pam.setNumThreads(2);
+        pam.setTrainingMetrics(new TrainingMetrics() {
+            public void publish(IterationMetrics metrics) {
+                published.add(metrics);
+            }
+        });
+        pam.estimate(syntheticCorpus(50, 26), 5, 0, 0, 0, null, new Randoms(1));
+        assertEquals(5, published.size());
+        assertEquals(2, published.get(4).getNumThreads());
+        assertEquals("PAM4L", published.get(4).getTrainer());
+    }
+
+    /**
+     * Compare the lists of a query index with the sorted sets of the model.
+     */
+    private static void assertIndexMatches(ParallelTopicModel model, TopicQueryIndex index,
+                                           int numWords, int numDocs) {
+        ArrayList<TreeSet<IDSorter>> sortedWords = model.getSortedWords();
+        ArrayList<TreeSet<IDSorter>> sortedDocuments = model.getTopicDocuments(1.0);
+
+        for (int topic = 0; topic < model.getNumTopics(); topic++) {
+            int[] words = index.getTopWords(topic, numWords);
+            int[] counts = index.getTopWordCounts(topic, numWords);
+            assertEquals(Math.min(numWords, sortedWords.get(topic).size()), words.length);
+            Iterator<IDSorter> iterator = sortedWords.get(topic).iterator();
+            for (int i = 0; i < words.length; i++) {
+                IDSorter sorter = iterator.next();
+                assertEquals(sorter.getID(), words[i]);
+                assertEquals((int) sorter.getWeight(), counts[i]);
+            }
+
+            int[] docs = index.getTopDocuments(topic, numDocs);
+            double[] weights = index.getTopDocumentWeights(topic, numDocs);
+            assertEquals(numDocs, docs.length);
+            iterator = sortedDocuments.get(topic).iterator();
+            for (int i = 0; i < docs.length; i++) {
+                IDSorter sorter = iterator.next();
+                assertEquals(sorter.getID(), docs[i]);
+                assertEquals(sorter.getWeight(), weights[i], 1e-12);
+            }
+        }
+
+        int[][] typeTopicCounts = model.getTypeTopicCounts();
+        for (int type = 0; type < typeTopicCounts.length; type++) {
+            int[] topics = index.getTopTopics(type, 3);
+            int[] counts = index.getTopTopicCounts(type, 3);
+            for (int i = 0; i < topics.length; i++) {
+                assertEquals(typeTopicCounts[type][i] & model.topicMask, topics[i]);
+                assertEquals(typeTopicCounts[type][i] >> model.topicBits, counts[i]);
+            }
+        }
+    }
+
+    public void testQueryIndex() throws Exception {
+        ParallelTopicModel model = newModel(syntheticCorpus(100, 24), 1);
+        model.setNumIterations(10);
+        model.estimate();
+
+        TopicQueryIndex index = new TopicQueryIndex(model, 10, 5, 1.0);
+        assertIndexMatches(model, index, 10, 5);
+
+        // More sampling changes most counts, which the index picks up incrementally
+        for (int round = 0; round < 3; round++) {
+            model.estimate();
+            index.update();
+            assertIndexMatches(model, index, 10, 5);
+        }
+    }
+
+    private static void assertTopWordsMatch(ParallelTopicModel model, int numWords) {
+        ArrayList<TreeSet<IDSorter>> sortedWords = model.getSortedWords();
+        Object[][] topWords = model.getTopWords(numWords);
+        for (int topic = 0; topic < model.getNumTopics(); topic++) {
+            Iterator<IDSorter> iterator = sortedWords.get(topic).iterator();
+            for (int i = 0; i < topWords[topic].length; i++) {
+                assertEquals(model.getAlphabet().lookupObject(iterator.next().getID()), topWords[topic][i]);
+            }
+        }
+    }
+
+    public void testModelKeepsQueryIndex() throws Exception {
+        ParallelTopicModel model = newModel(syntheticCorpus(100, 24), 1);
+        model.setNumIterations(10);
+        model.estimate();
+
+        model.printTopicDocuments(new PrintWriter(new StringWriter()), 5);
+        assertTopWordsMatch(model, 5);
+        TopicQueryIndex index = model.getQueryIndex(0, 0);
+
+        // Later queries and sampling reuse the same index
+        model.printTopicDocuments(new PrintWriter(new StringWriter()), 5);
+        assertSame(index, model.getQueryIndex(5, 5));
+        model.estimate();
+        assertTopWordsMatch(model, 3);
+        assertSame(index, model.getQueryIndex(0, 0));
+
+        // Asking for more words than it keeps builds a larger one
+        assertTopWordsMatch(model, 8);
+        assertNotSame(index, model.getQueryIndex(0, 0));
+        assertSame(model.getQueryIndex(0, 0), model.getQueryIndex(8, 5));
+    }
+
+    /**
+     * Check that streamed rows match a dense matrix, and that every
+     * non-zero value of an unsmoothed matrix is streamed.
+     */
+    private static class DenseMatch implements SparseRowConsumer {
+        double[][] expected;
+        boolean smoothed;
+        int nextRow = 0;
+
+        DenseMatch(double[][] expected, boolean smoothed) {
+            this.expected = expected;
+            this.smoothed = smoothed;
+        }
+
+        public void consume(int row, int[] indices, double[] values, int size) {
+            assertEquals(nextRow++, row);
+            int numNonZero = 0;
+            for (double value : expected[row]) {
+                if (value != 0.0) {
+                    numNonZero++;
+                }
+            }
+            assertEquals(smoothed ? expected[row].length : numNonZero, size);
+            for (int i = 0; i < size; i++) {
+                assertTrue(i == 0 || indices[i] > indices[i - 1]);
+                assertEquals(expected[row][indices[i]], values[i], 0.0);
+            }
+        }
+    }
+
+    public void testSparseExport() throws Exception {
+        ParallelTopicModel model = newModel(syntheticCorpus(100, 25), 3);
+        model.setNumIterations(10);
+        model.estimate();
+
+        for (int variant = 0; variant < 4; variant++) {
+            boolean normalized = (variant & 1) != 0;
+            boolean smoothed = (variant & 2) != 0;
+
+            DenseMatch documents = new DenseMatch(model.getDocumentTopics(normalized, smoothed), smoothed);
+            model.getDocumentTopics(normalized, smoothed, documents);
+            assertEquals(model.getData().size(), documents.nextRow);
+
+            DenseMatch topics = new DenseMatch(model.getTopicWords(normalized, smoothed), smoothed);
+            model.getTopicWords(normalized, smoothed, topics);
+            assertEquals(model.getNumTopics(), topics.nextRow);
+        }
+
+        // Each line holds the largest proportions, in decreasing order
+        StringWriter output = new StringWriter();
+        PrintWriter out = new PrintWriter(output);
+        model.printDocumentTopics(out, 0.05, 3);
+        out.flush();
+
+        double[][] proportions = model.getDocumentTopics(true, true);
+        String[] lines = output.toString().split("\n");
+        assertEquals(model.getData().size() + 1, lines.length);
+        for (int doc = 0; doc < proportions.length; doc++) {
+            String[] fields = lines[doc + 1].split("\t");
+            assertEquals(Integer.toString(doc), fields[0]);
+
+            double[] sorted = proportions[doc].clone();
+            Arrays.sort(sorted);
+            int numPrinted = (fields.length - 2) / 2;
+            for (int i = 0; i < 3; i++) {
+                double expected = sorted[sorted.length - 1 - i];
+                if (expected < 0.05 - 1e-9) {
+                    break;
+                }
+                assertTrue(i < numPrinted);
+                int topic = Integer.parseInt(fields[2 + 2 * i]);
+                double printed = Double.parseDouble(fields[3 + 2 * i]);
+                assertEquals(expected, printed, 1e-9);
+                assertEquals(proportions[doc][topic], printed, 1e-9);
+            }
+        }
+    }
+
+    public void testTypeTopicCountStore() throws Exception {
+        ParallelTopicModel model = newModel(syntheticCorpus(150, 3), 1);
+        model.estimate();
+        int numTopics = model.getNumTopics();
+        int[][] rows = model.getTypeTopicCounts();
+
+        for (boolean offHeap : new boolean[]{false, true}) {
+            TypeTopicCountStore store = model.getTypeTopicCountStore(4, offHeap);
+
+            int[][] expected = new int[rows.length][numTopics];
+            int[] row = new int[numTopics];
+            int numDense = 0;
+            for (int type = 0; type < rows.length; type++) {
+                for (int i = 0; i < rows[type].length && rows[type][i] > 0; i++) {
+                    expected[type][rows[type][i] & model.topicMask] = rows[type][i] >> model.topicBits;
+                }
+                int length = store.copyRow(type, row);
+                assertEquals(length, store.getRowLength(type));
+                for (int i = 0; i < length; i++) {
+                    assertEquals(expected[type][row[i] & model.topicMask], row[i] >> model.topicBits);
+                    if (!store.isDense(type)) {
+                        assertEquals(rows[type][i], row[i]);
+                    }
+                }
+                if (store.isDense(type)) {
+                    numDense++;
+                }
+            }
+            assertTrue(numDense > 0);
+            assertTrue(numDense < rows.length);
+
+            // Random changes, growing rows past their capacity
+            Randoms random = new Randoms(5);
+            for (int i = 0; i < 2000; i++) {
+                int type = random.nextInt(rows.length);
+                int topic = random.nextInt(numTopics);
+                int delta = expected[type][topic] > 0 && random.nextBoolean() ? -1 : 1;
+                store.ensureCapacity(type, store.getRowLength(type) + 1);
+                store.adjustCount(type, topic, delta);
+                expected[type][topic] += delta;
+            }
+            store.addTypes(rows.length + 2);
+            store.ensureCapacity(rows.length + 1, 3);
+            store.adjustCount(rows.length + 1, 2, 7);
+            assertTrue(store.getSlabUsed() > store.getRowsSize());
+            store.compact();
+            assertEquals(store.getRowsSize(), store.getSlabUsed());
+
+            for (int type = 0; type < rows.length; type++) {
+                int length = store.copyRow(type, row);
+                for (int i = 1; i < length; i++) {
+                    assertTrue(row[i - 1] > row[i]);
+                }
+                for (int topic = 0; topic < numTopics; topic++) {
+                    assertEquals(expected[type][topic], store.getCount(type, topic));
+                }
+            }
+            assertEquals(7, store.getCount(rows.length + 1, 2));
+            assertEquals(0, store.getCount(rows.length, 2));
+        }
+
+        // Inference from sparse or dense rows in a slab matches inference from the model's rows
+        InstanceList testing = syntheticCorpus(20, 4);
+        for (int denseThreshold : new int[]{0, 4}) {
+            TopicInferencer inferencer = model.getInferencer();
+            TopicInferencer slabInferencer = model.getInferencer(denseThreshold, true);
+            inferencer.setRandomSeed(2);
+            slabInferencer.setRandomSeed(2);
+            for (Instance instance : testing) {
+                double[] topics = inferencer.getSampledDistribution(instance, 20, 2, 5);
+                double[] slabTopics = slabInferencer.getSampledDistribution(instance, 20, 2, 5);
+                for (int topic = 0; topic < numTopics; topic++) {
+                    assertEquals(topics[topic], slabTopics[topic], 0.0);
+                }
+            }
+        }
+    }
+
+    public void testIncrementalUpdate() throws Exception {
+        InstanceList instances = syntheticCorpus(100, 8);
+        ParallelTopicModel model = newModel(instances, 2);
+        model.estimate();
+
+        // New documents that use both old words and words the model has never seen
+        Alphabet alphabet = instances.getDataAlphabet();
+        Randoms random = new Randoms(9);
+        InstanceList newInstances = new InstanceList(alphabet, null);
+        for (int doc = 0; doc < 30; doc++) {
+            FeatureSequence tokens = new FeatureSequence(alphabet, 20);
+            for (int position = 0; position < 20; position++) {
+                if (random.nextUniform() < 0.5) {
+                    tokens.add("new" + random.nextInt(10));
+                } else {
+                    tokens.add(random.nextInt(200));
+                }
+            }
+            newInstances.add(new Instance(tokens, null, "new" + doc, null));
+        }
+
+        // Without a sweep the new tokens would keep no topic
+        try {
+            model.addInstancesIncrementally(newInstances, 0, 20);
+            fail("Expected an exception for 0 sweeps");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        assertEquals(100, model.getData().size());
+
+        model.addInstancesIncrementally(newInstances, 5, 20);
+        assertEquals(130, model.getData().size());
+        assertEquals(210, model.getTypeTopicCounts().length);
+        assertCountsConsistent(model);
+
+        // Full sweeps still work on the grown model
+        model.setNumIterations(5);
+        model.estimate();
+        assertCountsConsistent(model);
+    }
+
+    public void testAliasSampler() throws Exception {
+        InstanceList instances = syntheticCorpus(100, 7);
+
+        ParallelTopicModel sparse = newModel(instances, 1);
+        sparse.setNumIterations(100);
+        sparse.estimate();
+
+        ParallelTopicModel alias = newModel(instances, 1);
+        alias.setNumIterations(100);
+        alias.setSampler(ParallelTopicModel.SamplerType.ALIAS);
+        alias.estimate();
+        assertCountsConsistent(alias);
+
+        // Both samplers should reach a similar state
+        double sparseLL = sparse.modelLogLikelihood() / sparse.totalTokens;
+        double aliasLL = alias.modelLogLikelihood() / alias.totalTokens;
+        assertTrue(sparseLL + " vs " + aliasLL, Math.abs(sparseLL - aliasLL) < 0.1 * Math.abs(sparseLL));
+
+        alias = newModel(instances, 3);
+        alias.setSampler(ParallelTopicModel.SamplerType.ALIAS);
+        alias.setSharedCounts(true);
+        alias.estimate();
+        assertCountsConsistent(alias);
+
+        try {
+            alias.setMetropolisHastingsSteps(0);
+            fail("Expected an exception for 0 steps");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        // A model read back from disk must still move its topics with the alias sampler
+        File file = File.createTempFile("alias", ".model");
+        file.deleteOnExit();
+        sparse.write(file);
+        ParallelTopicModel loaded = ParallelTopicModel.read(file);
+        int[][] before = new int[loaded.getData().size()][];
+        for (int doc = 0; doc < before.length; doc++) {
+            before[doc] = loaded.getData().get(doc).topicSequence.getFeatures().clone();
+        }
+        loaded.setSampler(ParallelTopicModel.SamplerType.ALIAS);
+        loaded.setNumIterations(5);
+        loaded.setTopicDisplay(0, 5);
+        loaded.estimate();
+        assertCountsConsistent(loaded);
+
+        int changed = 0;
+        for (int doc = 0; doc < before.length; doc++) {
+            int[] after = loaded.getData().get(doc).topicSequence.getFeatures();
+            for (int position = 0; position < before[doc].length; position++) {
+                if (after[position] != before[doc][position]) {
+                    changed++;
+                }
+            }
+        }
+        assertTrue(changed > 0);
+    }
+
+    /**
+     * Check that the sparse rows sum to the topic totals,
+     * for models whose documents are no longer all in memory.
+     */
+    private static void assertTotalsConsistent(ParallelTopicModel model, long expectedTokens) {
+        int numTopics = model.getNumTopics();
+        int[] totals = new int[numTopics];
+        long sum = 0;
+        for (int[] counts : model.getTypeTopicCounts()) {
+            for (int index = 0; index < counts.length && counts[index] > 0; index++) {
+                totals[counts[index] & model.topicMask] += counts[index] >> model.topicBits;
+                sum += counts[index] >> model.topicBits;
+            }
+        }
+        for (int topic = 0; topic < numTopics; topic++) {
+            assertEquals(totals[topic], model.getTokensPerTopic()[topic]);
+        }
+        if (expectedTokens >= 0) {
+            assertEquals(expectedTokens, sum);
+        }
+    }
+
+    public void testOnlineTraining() throws Exception {
+        InstanceList instances = syntheticCorpus(300, 1);
+        long numTokens = 0;
+        for (Instance instance : instances) {
+            numTokens += ((FeatureSequence) instance.getData()).getLength();
+        }
+
+        OnlineTopicModel model = new OnlineTopicModel(8, 1.0, 0.01);
+        model.setRandomSeed(1);
+        model.setNumThreads(3);
+        model.setBatchSize(40);
+        model.train(instances.iterator());
+
+        assertEquals(300, model.getNumDocsSeen());
+        assertEquals(instances.getDataAlphabet().size(), model.getTypeTopicCounts().length);
+        assertTotalsConsistent(model, numTokens);
+
+        model.rescaleCounts();
+        assertTotalsConsistent(model, -1);
+        for (int[] counts : model.getTypeTopicCounts()) {
+            for (int index = 1; index < counts.length && counts[index] > 0; index++) {
+                assertTrue(counts[index - 1] > counts[index]);
+            }
+        }
+
+        // Training continues on top of the rescaled counts
+        model.train(syntheticCorpus(50, 2).iterator());
+        assertEquals(350, model.getNumDocsSeen());
+        assertTotalsConsistent(model, -1);
+
+        // Counts of 3 and 2 both halve to 1, which puts topic 1 before topic 0
+        int[] row = null;
+        for (int[] counts : model.getTypeTopicCounts()) {
+            if (counts.length >= 2) {
+                row = counts;
+                break;
+            }
+        }
+        Arrays.fill(row, 0);
+        row[0] = (3 << model.topicBits) + 0;
+        row[1] = (2 << model.topicBits) + 1;
+        model.rescaleCounts();
+        assertEquals((1 << model.topicBits) + 1, row[0]);
+        assertEquals((1 << model.topicBits) + 0, row[1]);
+    }
+
+    public void testDistributedTraining() throws Exception {
+        InstanceList instances = syntheticCorpus(150, 10);
+        int numWorkers = 3;
+
+        final TopicModelCoordinator coordinator =
+                new TopicModelCoordinator(InetAddress.getLoopbackAddress(), 0, numWorkers);
+        final Exception[] failures = new Exception[numWorkers + 1];
+        Thread[] threads = new Thread[numWorkers + 1];
+        threads[numWorkers] = new Thread() {
+            public void run() {
+                try {
+                    coordinator.run();
+                } catch (Exception e) {
+                    failures[failures.length - 1] = e;
+                }
+            }
+        };
+        threads[numWorkers].start();
+
+        final DistributedTopicModel[] workers = new DistributedTopicModel[numWorkers];
+        for (int worker = 0; worker < numWorkers; worker++) {
+            workers[worker] = new DistributedTopicModel(8, 1.0, 0.01);
+            workers[worker].setRandomSeed(worker + 1);
+            workers[worker].setTopicDisplay(0, 5);
+            workers[worker].setNumIterations(25);
+            workers[worker].setOptimizeInterval(0);
+            workers[worker].setSyncInterval(4);
+            workers[worker].setCoordinator("localhost", coordinator.getPort());
+            workers[worker].addInstances(instances.subList(worker * 50, (worker + 1) * 50));
+            workers[worker].setNumThreads(worker + 1);
+
+            final int index = worker;
+            threads[worker] = new Thread() {
+                public void run() {
+                    try {
+                        workers[index].estimate();
+                    } catch (Exception e) {
+                        failures[index] = e;
+                    }
+                }
+            };
+            threads[worker].start();
+        }
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        for (Exception failure : failures) {
+            if (failure != null) {
+                throw failure;
+            }
+        }
+
+        // The initial counts, then one round after every 4 of the 25 iterations
+        assertEquals(8, coordinator.getNumRounds());
+
+        // Recount every worker's assignments together
+        int numTypes = instances.getDataAlphabet().size();
+        int[][] expected = new int[numTypes][8];
+        int[] expectedTotals = new int[8];
+        for (DistributedTopicModel worker : workers) {
+            for (TopicAssignment document : worker.getData()) {
+                FeatureSequence tokens = (FeatureSequence) document.instance.getData();
+                int[] topics = document.topicSequence.getFeatures();
+                for (int position = 0; position < tokens.getLength(); position++) {
+                    expected[tokens.getIndexAtPosition(position)][topics[position]]++;
+                    expectedTotals[topics[position]]++;
+                }
+            }
+        }
+
+        assertCountsEqual(expected, expectedTotals, coordinator.getTypeTopicCounts(),
+                coordinator.getTokensPerTopic(), workers[0].topicMask, workers[0].topicBits);
+        for (DistributedTopicModel worker : workers) {
+            assertCountsEqual(expected, expectedTotals, worker.getTypeTopicCounts(),
+                    worker.getTokensPerTopic(), worker.topicMask, worker.topicBits);
+        }
+    }
+
+    private static void assertCountsEqual(int[][] expected, int[] expectedTotals,
+                                          int[][] typeTopicCounts, int[] tokensPerTopic,
+                                          int topicMask, int topicBits) {
+        for (int type = 0; type < expected.length; type++) {
+            int[] found = new int[expectedTotals.length];
+            int[] counts = typeTopicCounts[type];
+            for (int index = 0; index < counts.length && counts[index] > 0; index++) {
+                found[counts[index] & topicMask] += counts[index] >> topicBits;
+            }
+            for (int topic = 0; topic < expectedTotals.length; topic++) {
+                assertEquals("type " + type + " topic " + topic, expected[type][topic], found[topic]);
+            }
+        }
+        for (int topic = 0; topic < expectedTotals.length; topic++) {
+            assertEquals("topic total " + topic, expectedTotals[topic], tokensPerTopic[topic]);
+        }
+    }
+
+    public void testAliasTable() {
+        Randoms random = new Randoms(1);
+        // Outcomes need not be in order
+        int[] topics = {11, 2, 12, 5};
+        double[] weights = {1.0, 0.5, 0.0, 3.0};
+        AliasTable table = new AliasTable();
+        table.build(topics, weights, 4, new int[4]);
+
+        assertEquals(4.5, table.getMass(), 1e-12);
+        assertEquals(3.0, table.getWeight(5), 0.0);
+        assertEquals(0.0, table.getWeight(7), 0.0);
+        assertEquals(1.0, table.getWeight(11), 0.0);
+        assertEquals(0.0, table.getWeight(3), 0.0);
+
+        int[] counts = new int[13];
+        int numDraws = 90000;
+        for (int i = 0; i < numDraws; i++) {
+            counts[table.sample(random)]++;
+        }
+        assertEquals(0, counts[12]);
+        for (int i = 0; i < topics.length; i++) {
+            assertEquals(weights[i] / 4.5, (double) counts[topics[i]] / numDraws, 0.01);
+        }
+    }
+
+    public void testTokenBalancedShards() {
+        ParallelTopicModel model = newModel(syntheticCorpus(100, 6), 1);
+        DocumentShards shards = DocumentShards.tokenBalanced(model.getData(), 7);
+
+        assertEquals(7, shards.size());
+        assertEquals(0, shards.getStart(0));
+        assertEquals(model.getData().size(), shards.getEnd(shards.size() - 1));
+
+        int[] shardTokens = new int[shards.size()];
+        for (int shard = 0; shard < shards.size(); shard++) {
+            assertTrue(shards.getEnd(shard) > shards.getStart(shard));
+            for (int doc = shards.getStart(shard); doc < shards.getEnd(shard); doc++) {
+                shardTokens[shard] += model.getData().get(doc).topicSequence.getLength();
+            }
+        }
+        // No shard should be more than one (long) document away from its share
+        for (int shard = 0; shard < shards.size(); shard++) {
+            assertTrue(Math.abs(shardTokens[shard] - model.totalTokens / 7) < 310);
+        }
+
+        int claimed = 0;
+        while (shards.claim() != -1) {
+            claimed++;
+        }
+        assertEquals(7, claimed);
+        shards.reset();
+        assertEquals(0, shards.claim());
+
+        // More shards than documents
+        shards = DocumentShards.tokenBalanced(model.getData(), 1000);
+        assertEquals(model.getData().size(), shards.size());
+    }
+
+}
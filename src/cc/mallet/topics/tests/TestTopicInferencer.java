@@ -0,0 +1,269 @@
+/* Copyright (C) 2005 Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.  For further
+   information, see the file `LICENSE' included with this distribution. */
+
+package cc.mallet.topics.tests;
+
+import cc.mallet.topics.LDAStream;
+import cc.mallet.topics.MarginalProbEstimator;
+import cc.mallet.topics.ParallelTopicModel;
+import cc.mallet.topics.TopicInferencer;
+import cc.mallet.topics.TopicModelFile;
+import cc.mallet.types.Alphabet;
+import cc.mallet.types.InstanceList;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.logging.Level;
+
+public class TestTopicInferencer extends TestCase {
+
+    public TestTopicInferencer(String name) {
+        super(name);
+    }
+
+    public static Test suite() {
+        return new TestSuite(TestTopicInferencer.class);
+    }
+
+    public static void main(String[] args) {
+        junit.textui.TestRunner.run(suite());
+    }
+
+    private TopicInferencer trainInferencer() throws Exception {
+        return trainModel().getInferencer();
+    }
+
+    private ParallelTopicModel trainModel() throws Exception {
+        ParallelTopicModel.logger.setLevel(Level.WARNING);
+        ParallelTopicModel model = new ParallelTopicModel(8, 1.0, 0.01);
+        model.setRandomSeed(1);
+        model.addInstances(TestParallelTopicModel.syntheticCorpus(200, 1));
+        model.setNumIterations(50);
+        model.estimate();
+        return model;
+    }
+
+    public void testBatchMatchesAnyThreadCount() throws Exception {
+        TopicInferencer inferencer = trainInferencer();
+        InstanceList testing = TestParallelTopicModel.syntheticCorpus(60, 2);
+
+        inferencer.setRandomSeed(3);
+        inferencer.setNumThreads(1);
+        double[][] serial = inferencer.getSampledDistributions(testing, 20, 2, 5);
+
+        inferencer.setRandomSeed(3);
+        inferencer.setNumThreads(4);
+        double[][] parallel = inferencer.getSampledDistributions(testing, 20, 2, 5);
+
+        assertEquals(testing.size(), parallel.length);
+        for (int doc = 0; doc < testing.size(); doc++) {
+            double sum = 0.0;
+            for (int topic = 0; topic < parallel[doc].length; topic++) {
+                assertEquals(serial[doc][topic], parallel[doc][topic], 0.0);
+                sum += parallel[doc][topic];
+            }
+            assertEquals(1.0, sum, 1e-9);
+        }
+    }
+
+    public void testLeftToRightEvaluation() throws Exception {
+        MarginalProbEstimator evaluator = trainModel().getProbEstimator();
+        InstanceList testing = TestParallelTopicModel.syntheticCorpus(60, 2);
+
+        evaluator.setRandomSeed(7);
+        evaluator.setNumThreads(1);
+        double serial = evaluator.evaluateLeftToRight(testing, 5, false, null);
+
+        evaluator.setNumThreads(3);
+        double parallel = evaluator.evaluateLeftToRight(testing, 5, false, null);
+        assertEquals(serial, parallel, 0.0);
+        assertTrue(serial < 0.0);
+
+        // Resume from the first 25 documents and part of a line
+        File progressFile = File.createTempFile("left-to-right", ".txt");
+        progressFile.deleteOnExit();
+        evaluator.evaluateLeftToRight(testing, 5, false, null, progressFile);
+        BufferedReader in = new BufferedReader(new FileReader(progressFile));
+        StringBuilder partial = new StringBuilder();
+        for (int doc = 0; doc < 25; doc++) {
+            partial.append(in.readLine()).append('\n');
+        }
+        partial.append("-12.");
+        in.close();
+        PrintWriter out = new PrintWriter(progressFile);
+        out.print(partial);
+        out.close();
+
+        double resumed = evaluator.evaluateLeftToRight(testing, 5, false, null, progressFile);
+        assertEquals(serial, resumed, 1e-9 * Math.abs(serial));
+
+        // A sample of every document has no sampling error
+        MarginalProbEstimator.Estimate estimate =
+                evaluator.evaluateLeftToRightSample(testing, testing.size(), 5, false);
+        assertEquals(serial, estimate.getLogLikelihood(), 1e-9 * Math.abs(serial));
+        assertEquals(0.0, estimate.getStandardError(), 0.0);
+
+        estimate = evaluator.evaluateLeftToRightSample(testing, 20, 5, false);
+        assertEquals(20, estimate.getSampleSize());
+        assertTrue(estimate.getStandardError() > 0.0);
+        assertTrue(estimate.getLowerBound() < estimate.getLogLikelihood());
+        assertTrue(estimate.getUpperBound() > estimate.getLogLikelihood());
+    }
+
+    public void testMappedModelFile() throws Exception {
+        TopicInferencer inferencer = trainInferencer();
+        InstanceList testing = TestParallelTopicModel.syntheticCorpus(30, 2);
+
+        File modelFile = File.createTempFile("model", ".bin");
+        modelFile.deleteOnExit();
+        inferencer.writeModelFile(modelFile);
+
+        assertTrue(TopicModelFile.isModelFile(modelFile));
+        TopicInferencer mapped = TopicInferencer.read(modelFile);
+
+        Alphabet alphabet = inferencer.getAlphabet();
+        assertEquals(alphabet.size(), mapped.getAlphabet().size());
+        for (int type = 0; type < alphabet.size(); type++) {
+            assertEquals(alphabet.lookupObject(type), mapped.getAlphabet().lookupObject(type));
+        }
+
+        inferencer.setRandomSeed(5);
+        mapped.setRandomSeed(5);
+        for (int doc = 0; doc < testing.size(); doc++) {
+            double[] expected = inferencer.getSampledDistribution(testing.get(doc), 20, 2, 5);
+            double[] actual = mapped.getSampledDistribution(testing.get(doc), 20, 2, 5);
+            for (int topic = 0; topic < expected.length; topic++) {
+                assertEquals(expected[topic], actual[topic], 0.0);
+            }
+        }
+    }
+
+    public void testModelFileSegmentPadding() throws Exception {
+        // Segments of 8 ints, rows of up to 4 topics: the third row would cross
+        //  the first boundary, so the second row is followed by one int of padding
+        int numTopics = 4;
+        int topicBits = 2;
+        int[][] typeTopicCounts = {
+                {(5 << topicBits) + 1, (2 << topicBits) + 0, (1 << topicBits) + 3},
+                {(9 << topicBits) + 2, (7 << topicBits) + 0, (3 << topicBits) + 3, (1 << topicBits) + 1},
+                {(4 << topicBits) + 3, (4 << topicBits) + 2, (2 << topicBits) + 1, (1 << topicBits) + 0},
+                {},
+                {(6 << topicBits) + 0, 0, 0},
+                {(3 << topicBits) + 2, (1 << topicBits) + 1}
+        };
+        Alphabet alphabet = new Alphabet();
+        for (int type = 0; type < typeTopicCounts.length; type++) {
+            alphabet.lookupIndex("word" + type);
+        }
+
+        File file = File.createTempFile("model", ".bin");
+        file.deleteOnExit();
+        TopicModelFile.write(file, alphabet, new double[]{0.1, 0.1, 0.1, 0.1}, 0.01, 0.06,
+                new int[]{10, 13, 18, 10}, typeTopicCounts, 3);
+
+        TopicModelFile model = TopicModelFile.open(file);
+        int[] row = new int[numTopics];
+        for (int type = 0; type < typeTopicCounts.length; type++) {
+            int expectedLength = 0;
+            while (expectedLength < typeTopicCounts[type].length && typeTopicCounts[type][expectedLength] > 0) {
+                expectedLength++;
+            }
+            assertEquals(expectedLength, model.getRowLength(type));
+            assertEquals(expectedLength, model.copyRow(type, row));
+            for (int i = 0; i < expectedLength; i++) {
+                assertEquals(typeTopicCounts[type][i], row[i]);
+            }
+            if (expectedLength < numTopics) {
+                assertEquals(0, row[expectedLength]);
+            }
+            assertEquals(expectedLength, model.readTypeTopicCounts()[type].length);
+        }
+
+        try {
+            TopicModelFile.write(file, alphabet, new double[]{0.1, 0.1, 0.1, 0.1}, 0.01, 0.06,
+                    new int[]{10, 13, 18, 10}, typeTopicCounts, 1);
+            fail("segments of 2 ints cannot hold rows of 4 topics");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    public void testWriteInferredDistributions() throws Exception {
+        TopicInferencer inferencer = trainInferencer();
+        InstanceList testing = TestParallelTopicModel.syntheticCorpus(60, 2);
+        inferencer.setNumThreads(4);
+
+        File ordered = File.createTempFile("doc-topics", ".txt");
+        File streamed = File.createTempFile("doc-topics", ".txt");
+        ordered.deleteOnExit();
+        streamed.deleteOnExit();
+
+        inferencer.writeInferredDistributions(testing, ordered, 20, 2, 5, 0.0, -1);
+        inferencer.writeInferredDistributions(testing.iterator(), streamed, 20, 2, 5, 0.0, -1, true);
+
+        boolean[] seen = new boolean[testing.size()];
+        BufferedReader in = new BufferedReader(new FileReader(ordered));
+        assertTrue(in.readLine().startsWith("#"));
+        for (int doc = 0; doc < testing.size(); doc++) {
+            String[] fields = in.readLine().split("\t");
+            assertEquals(doc, Integer.parseInt(fields[0]));
+            assertEquals(testing.get(doc).getName(), fields[1]);
+            assertEquals(2 + inferencer.getSampledDistribution(testing.get(doc), 0, 1, 0).length, fields.length);
+        }
+        assertNull(in.readLine());
+        in.close();
+
+        in = new BufferedReader(new FileReader(streamed));
+        in.readLine();
+        String line;
+        while ((line = in.readLine()) != null) {
+            int doc = Integer.parseInt(line.split("\t")[0]);
+            assertFalse(seen[doc]);
+            seen[doc] = true;
+        }
+        in.close();
+        for (boolean docSeen : seen) {
+            assertTrue(docSeen);
+        }
+    }
+
+    public void testStreamInference() throws Exception {
+        LDAStream model = new LDAStream(5, 1.0, 0.01);
+        model.addInstances(TestParallelTopicModel.syntheticCorpus(100, 1));
+        model.estimate(20);
+        InstanceList testing = TestParallelTopicModel.syntheticCorpus(150, 2);
+
+        model.setRandomSeed(3);
+        StringWriter serial = new StringWriter();
+        model.inferenceStream(testing.iterator(), 10, 1, new PrintWriter(serial));
+
+        model.setRandomSeed(3);
+        StringWriter parallel = new StringWriter();
+        model.inferenceStream(testing.iterator(), 10, 3, new PrintWriter(parallel));
+
+        assertEquals(serial.toString(), parallel.toString());
+
+        String[] lines = parallel.toString().split("\n", -1);
+        assertEquals(testing.size() * 7 + 1, lines.length);
+        for (int doc = 0; doc < testing.size(); doc++) {
+            assertEquals(testing.get(doc).getName().toString(), lines[doc * 7]);
+            double sum = 0.0;
+            for (int topic = 0; topic < 5; topic++) {
+                String[] fields = lines[doc * 7 + 1 + topic].split("\t");
+                assertEquals("topic" + topic, fields[0]);
+                sum += Double.parseDouble(fields[1]);
+            }
+            assertEquals(1.0, sum, 1e-9);
+        }
+    }
+}
@@ -55,6 +55,22 @@ public class EvaluateTopics {
             (EvaluateTopics.class, "random-seed", "INTEGER", true, 0,
                     "The random seed for the Gibbs sampler.  Default is 0, which will use the clock.", null);
 
+    static CommandOption.Integer numThreads = new CommandOption.Integer
+            (EvaluateTopics.class, "num-threads", "INTEGER", true, 1,
+                    "The number of threads for left-to-right evaluation.", null);
+
+    static CommandOption.Integer docSampleSize = new CommandOption.Integer
+            (EvaluateTopics.class, "doc-sample-size", "INTEGER", true, 0,
+                    "Evaluate a random sample of this many documents, and report an estimate\n" +
+                            "of the log probability of all of them with a 95% confidence interval.  " +
+                            "Default is 0, which evaluates every document.", null);
+
+    static CommandOption.String progressFile = new CommandOption.String
+            (EvaluateTopics.class, "progress-file", "FILENAME", true, null,
+                    "A file for the log probability of each document evaluated so far.\n" +
+                            "If the file exists, evaluation resumes after the documents it lists.  " +
+                            "Set --random-seed for the same result as an uninterrupted run.", null);
+
     public static void main(String[] args) {
 
         // Process the command-line options
@@ -90,9 +106,26 @@ public class EvaluateTopics {
 
             InstanceList instances = InstanceList.load(new File(inputFile.value));
 
-            outputStream.println(evaluator.evaluateLeftToRight(instances, numParticles.value,
-                    usingResampling.value,
-                    docProbabilityStream));
+            evaluator.setNumThreads(numThreads.value);
+            if (randomSeed.value != 0) {
+                evaluator.setRandomSeed(randomSeed.value);
+            }
+
+            if (docSampleSize.value > 0) {
+                MarginalProbEstimator.Estimate estimate =
+                        evaluator.evaluateLeftToRightSample(instances, docSampleSize.value,
+                                numParticles.value, usingResampling.value);
+                System.err.println(estimate);
+                outputStream.println(estimate.getLogLikelihood());
+            } else if (progressFile.value != null) {
+                outputStream.println(evaluator.evaluateLeftToRight(instances, numParticles.value,
+                        usingResampling.value,
+                        docProbabilityStream, new File(progressFile.value)));
+            } else {
+                outputStream.println(evaluator.evaluateLeftToRight(instances, numParticles.value,
+                        usingResampling.value,
+                        docProbabilityStream));
+            }
 
 
         } catch (Exception e) {
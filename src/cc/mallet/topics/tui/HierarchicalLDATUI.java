@@ -61,6 +61,10 @@ public class HierarchicalLDATUI {
             (HierarchicalLDATUI.class, "eta", "DECIMAL", true, 0.1,
                     "Eta parameter: smoothing over topic-word distributions", null);
 
+    static CommandOption.Integer numThreads = new CommandOption.Integer
+            (HierarchicalLDATUI.class, "num-threads", "INTEGER", true, 1,
+                    "The number of threads for parallel training.", null);
+
     public static void main(String[] args) throws java.io.IOException {
 
         // Process the command-line options
@@ -93,6 +97,7 @@ public class HierarchicalLDATUI {
 
         hlda.setTopicDisplay(showTopicsInterval.value(), topWords.value());
         hlda.setProgressDisplay(showProgress.value());
+        hlda.setNumThreads(numThreads.value());
 
         // Initialize random number generator
 
@@ -52,6 +52,15 @@ public class InferTopics {
             (InferTopics.class, "random-seed", "INTEGER", true, 0,
                     "The random seed for the Gibbs sampler.  Default is 0, which will use the clock.", null);
 
+    static CommandOption.Integer numThreads = new CommandOption.Integer
+            (InferTopics.class, "num-threads", "INTEGER", true, 1,
+                    "The number of threads for parallel inference.", null);
+
+    static CommandOption.Boolean streamOutput = new CommandOption.Boolean
+            (InferTopics.class, "stream-output", "true|false", false, false,
+                    "Write each document's topic proportions as soon as it is finished. " +
+                            "Lines may then be out of order; the first column gives the document's position.", null);
+
     public static void main(String[] args) {
 
         // Process the command-line options                                                                           
@@ -80,10 +89,13 @@ public class InferTopics {
                 inferencer.setRandomSeed(randomSeed.value);
             }
 
-            inferencer.writeInferredDistributions(instances, new File(docTopicsFile.value),
+            inferencer.setNumThreads(numThreads.value);
+
+            inferencer.writeInferredDistributions(instances.iterator(), new File(docTopicsFile.value),
                     numIterations.value, sampleInterval.value,
                     burnInIterations.value,
-                    docTopicsThreshold.value, docTopicsMax.value);
+                    docTopicsThreshold.value, docTopicsMax.value,
+                    streamOutput.value);
 
 
         } catch (Exception e) {
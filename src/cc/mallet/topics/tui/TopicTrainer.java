@@ -35,7 +35,7 @@ public class TopicTrainer {
                     "By default this is null, indicating that no file will be read.", null);
 
     static CommandOption.String inputStateFilename = new CommandOption.String(TopicTrainer.class, "input-state", "FILENAME", true, null,
-            "The filename from which to read the gzipped Gibbs sampling state created by --output-state. " +
+            "The filename from which to read the Gibbs sampling state created by --output-state, in either format. " +
                     "The original input file must be included, using --input. " +
                     "By default this is null, indicating that no file will be read.", null);
 
@@ -57,6 +57,22 @@ public class TopicTrainer {
             "The number of iterations between writing the sampling state to a text file.  " +
                     "You must also set the --output-state to use this option, whose argument will be the prefix of the filenames.", null);
 
+    static CommandOption.Boolean textState = new CommandOption.Boolean(TopicTrainer.class, "output-state-text", "true|false", false, false,
+            "Write --output-state as gzipped text with one line per token, rather than the default compact binary format.", null);
+
+    static CommandOption.String checkpointFile = new CommandOption.String(TopicTrainer.class, "output-checkpoint", "FILENAME", true, null,
+            "The prefix of the filenames in which to write binary checkpoints of the sampling state, " +
+                    "which are much smaller and faster to write than --output-state, and are written while sampling continues. " +
+                    "You must also set --output-checkpoint-interval.", null);
+
+    static CommandOption.Integer checkpointInterval = new CommandOption.Integer(TopicTrainer.class, "output-checkpoint-interval", "INTEGER", true, 0,
+            "The number of iterations between writing binary checkpoints.", null);
+
+    static CommandOption.String inputCheckpointFilename = new CommandOption.String(TopicTrainer.class, "input-checkpoint", "FILENAME", true, null,
+            "The filename from which to read a binary checkpoint written with --output-checkpoint, " +
+                    "to continue training from the iteration at which it was written. " +
+                    "The original input file must be included, using --input.", null);
+
     // Tools
 
     static CommandOption.String inferencerFilename = new CommandOption.String(TopicTrainer.class, "inferencer-filename", "FILENAME", true, null,
@@ -128,6 +144,22 @@ public class TopicTrainer {
     static CommandOption.Integer numThreads = new CommandOption.Integer(TopicTrainer.class, "num-threads", "INTEGER", true, 1,
             "The number of threads for parallel training.", null);
 
+    static CommandOption.String sampler = new CommandOption.String(TopicTrainer.class, "sampler", "sparse|alias", true, "sparse",
+            "The per-token sampling algorithm. sparse is the SparseLDA sampler. alias uses alias tables and " +
+                    "Metropolis-Hastings proposals, which take constant time per token and are faster for thousands of topics.", null);
+
+    static CommandOption.Double denseTypeThreshold = new CommandOption.Double(TopicTrainer.class, "dense-type-threshold", "DECIMAL", true, 0.0,
+            "With the sparse sampler, sample the words whose counts are non-zero for at least this fraction " +
+                    "of the topics, such as stop words, with a dense kernel. 0 turns it off.", null);
+
+    static CommandOption.String metricsFile = new CommandOption.String(TopicTrainer.class, "metrics-file", "FILENAME", true, null,
+            "Append the tokens/sec, phase times, per-thread busy and idle times, heap use and " +
+                    "count density of every iteration to this file, one tab-separated line each.", null);
+
+    static CommandOption.String metricsJmxName = new CommandOption.String(TopicTrainer.class, "metrics-jmx", "NAME", true, null,
+            "Publish the measurements of the latest iteration as the JMX bean " +
+                    "cc.mallet.topics:type=TrainingMetrics,name=NAME.", null);
+
     static CommandOption.Integer numIterations = new CommandOption.Integer(TopicTrainer.class, "num-iterations", "INTEGER", true, 1000,
             "The number of iterations of Gibbs sampling.", null);
 
@@ -224,6 +256,11 @@ public class TopicTrainer {
             topicModel.initializeFromState(new File(inputStateFilename.value));
         }
 
+        if (inputCheckpointFilename.value != null) {
+            logger.info("Initializing from checkpoint.");
+            topicModel.initializeFromCheckpoint(new File(inputCheckpointFilename.value));
+        }
+
         topicModel.setTopicDisplay(showTopicsInterval.value, topWords.value);
 
         topicModel.setNumIterations(numIterations.value);
@@ -235,14 +272,29 @@ public class TopicTrainer {
             topicModel.setSaveState(outputStateInterval.value, stateFile.value);
         }
 
+        topicModel.setTextState(textState.value);
+
+        if (checkpointInterval.value != 0) {
+            topicModel.setSaveCheckpoint(checkpointInterval.value, checkpointFile.value);
+        }
+
         if (outputModelInterval.value != 0) {
             topicModel.setSaveSerializedModel(outputModelInterval.value, outputModelFilename.value);
         }
 
         topicModel.setNumThreads(numThreads.value);
+        topicModel.setSampler(ParallelTopicModel.SamplerType.valueOf(sampler.value.toUpperCase()));
+        topicModel.setDenseTypeThreshold(denseTypeThreshold.value);
 
         if (!noInference.value()) {
-            topicModel.estimate();
+            Vectors2Topics.TrainingMetricsOutputs metrics =
+                    Vectors2Topics.openTrainingMetrics(metricsFile.value, metricsJmxName.value);
+            topicModel.setTrainingMetrics(metrics);
+            try {
+                topicModel.estimate();
+            } finally {
+                Vectors2Topics.closeTrainingMetrics(metrics);
+            }
         }
 
         if (numMaximizationIterations.value > 0) {
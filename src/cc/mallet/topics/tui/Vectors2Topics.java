@@ -8,15 +8,21 @@
 package cc.mallet.topics.tui;
 
 import cc.mallet.pipe.iterator.DBInstanceIterator;
+import cc.mallet.topics.DistributedTopicModel;
+import cc.mallet.topics.IterationMetrics;
+import cc.mallet.topics.JmxTrainingMetrics;
 import cc.mallet.topics.PAM4L;
 import cc.mallet.topics.ParallelTopicModel;
 import cc.mallet.topics.PolylingualTopicModel;
 import cc.mallet.topics.TopicalNGrams;
+import cc.mallet.topics.TrainingMetrics;
+import cc.mallet.topics.TrainingMetricsFile;
 import cc.mallet.types.FeatureSequence;
 import cc.mallet.types.InstanceList;
 import cc.mallet.util.CommandOption;
 import cc.mallet.util.Randoms;
 
+import javax.management.JMException;
 import java.io.*;
 
 /**
@@ -50,8 +56,8 @@ public class Vectors2Topics {
 
     static CommandOption.String inputModelFilename = new CommandOption.String
             (Vectors2Topics.class, "input-model", "FILENAME", true, null,
-                    "The filename from which to read the binary topic model to which the --input will be appended, " +
-                            "allowing incremental training.  " +
+                    "The filename from which to read the binary topic model to continue training.  " +
+                            "With --append-input, the --input is added to it first.  " +
                             "By default this is null, indicating that no file will be read.", null);
 
     static CommandOption.String inferencerFilename = new CommandOption.String
@@ -59,6 +65,13 @@ public class Vectors2Topics {
                     "A topic inferencer applies a previously trained topic model to new documents.  " +
                             "By default this is null, indicating that no file will be written.", null);
 
+    static CommandOption.String modelFilename = new CommandOption.String
+            (Vectors2Topics.class, "binary-inferencer-filename", "FILENAME", true, null,
+                    "A topic inferencer in a compact binary format that is memory-mapped when read, " +
+                            "so that it loads quickly and can be shared between processes. " +
+                            "It can be used anywhere a file from --inferencer-filename is accepted.  " +
+                            "By default this is null, indicating that no file will be written.", null);
+
     static CommandOption.String evaluatorFilename = new CommandOption.String
             (Vectors2Topics.class, "evaluator-filename", "FILENAME", true, null,
                     "A held-out likelihood evaluator for new documents.  " +
@@ -69,6 +82,11 @@ public class Vectors2Topics {
                     "The filename in which to write the Gibbs sampling state after at the end of the iterations.  " +
                             "By default this is null, indicating that no file will be written.", null);
 
+    static CommandOption.Boolean textState = new CommandOption.Boolean
+            (Vectors2Topics.class, "output-state-text", "true|false", false, false,
+                    "For LDA, write --output-state as gzipped text with one line per token, " +
+                            "rather than the default compact binary format.", null);
+
     static CommandOption.String topicKeysFile = new CommandOption.String
             (Vectors2Topics.class, "output-topic-keys", "FILENAME", true, null,
                     "The filename in which to write the top words for each topic and any Dirichlet parameters.  " +
@@ -118,10 +136,72 @@ public class Vectors2Topics {
             (Vectors2Topics.class, "num-threads", "INTEGER", true, 1,
                     "The number of threads for parallel training.", null);
 
+    static CommandOption.String coordinator = new CommandOption.String
+            (Vectors2Topics.class, "coordinator", "HOST:PORT", true, null,
+                    "Train as one worker of a multi-process run, over the documents in --input only, " +
+                            "exchanging word-topic counts with the TopicModelCoordinator at this address. " +
+                            "Every worker's input must use the same alphabet.", null);
+
+    static CommandOption.Integer syncInterval = new CommandOption.Integer
+            (Vectors2Topics.class, "sync-interval", "INTEGER", true, DistributedTopicModel.DEFAULT_SYNC_INTERVAL,
+                    "When training with --coordinator, the number of iterations between exchanges of counts.", null);
+
+    static CommandOption.Boolean sharedCounts = new CommandOption.Boolean
+            (Vectors2Topics.class, "shared-counts", "true|false", false, false,
+                    "When training with more than one thread, have all threads update a single copy of the " +
+                            "word-topic counts rather than one copy per thread. Memory use no longer grows with --num-threads.", null);
+
+    static CommandOption.Boolean packedCorpus = new CommandOption.Boolean
+            (Vectors2Topics.class, "packed-corpus", "true|false", false, false,
+                    "Store the training documents in flat arrays of tokens and topics rather than one object per " +
+                            "document. Uses much less memory for many short documents. The instance sources are not kept.", null);
+
+    static CommandOption.Boolean workStealing = new CommandOption.Boolean
+            (Vectors2Topics.class, "work-stealing", "true|false", false, false,
+                    "When training with more than one thread, split the documents into many small shards " +
+                            "that idle threads claim one at a time, rather than one fixed range per thread.", null);
+
+    static CommandOption.String sampler = new CommandOption.String
+            (Vectors2Topics.class, "sampler", "sparse|alias", true, "sparse",
+                    "The per-token sampling algorithm. sparse is the SparseLDA sampler. alias uses alias tables and " +
+                            "Metropolis-Hastings proposals, which take constant time per token and are faster for thousands of topics.", null);
+
+    static CommandOption.Double denseTypeThreshold = new CommandOption.Double
+            (Vectors2Topics.class, "dense-type-threshold", "DECIMAL", true, 0.0,
+                    "With the sparse sampler, sample the words whose counts are non-zero for at least this fraction " +
+                            "of the topics, such as stop words, with a dense kernel. 0 turns it off.", null);
+
+    static CommandOption.String metricsFile = new CommandOption.String
+            (Vectors2Topics.class, "metrics-file", "FILENAME", true, null,
+                    "Append the tokens/sec, phase times, per-thread busy and idle times, heap use and " +
+                            "count density of every iteration to this file, one tab-separated line each.", null);
+
+    static CommandOption.String metricsJmxName = new CommandOption.String
+            (Vectors2Topics.class, "metrics-jmx", "NAME", true, null,
+                    "Publish the measurements of the latest iteration as the JMX bean " +
+                            "cc.mallet.topics:type=TrainingMetrics,name=NAME.", null);
+
     static CommandOption.Integer numIterations = new CommandOption.Integer
             (Vectors2Topics.class, "num-iterations", "INTEGER", true, 1000,
                     "The number of iterations of Gibbs sampling.", null);
 
+    static CommandOption.Boolean appendInput = new CommandOption.Boolean
+            (Vectors2Topics.class, "append-input", "true|false", false, false,
+                    "Add the documents of --input to the --input-model and sample their topics before training. " +
+                            "Without this option, --input is ignored when --input-model is given.", null);
+
+    static CommandOption.Integer incrementalSweeps = new CommandOption.Integer
+            (Vectors2Topics.class, "incremental-sweeps", "INTEGER", true, 50,
+                    "With --append-input, the number of Gibbs sweeps over the new documents " +
+                            "(and --incremental-recent-docs) before the usual --num-iterations over all documents. " +
+                            "Must be at least 1, since the first sweep assigns the new documents' topics. " +
+                            "To add documents without further training, also set --num-iterations to 0.", null);
+
+    static CommandOption.Integer incrementalRecentDocs = new CommandOption.Integer
+            (Vectors2Topics.class, "incremental-recent-docs", "INTEGER", true, 0,
+                    "With --append-input, the number of the model's most " +
+                            "recently added documents to resample along with the new documents.", null);
+
     static CommandOption.Integer randomSeed = new CommandOption.Integer
             (Vectors2Topics.class, "random-seed", "INTEGER", true, 0,
                     "The random seed for the Gibbs sampler.  Default is 0, which will use the clock.", null);
@@ -198,6 +278,66 @@ public class Vectors2Topics {
             (Vectors2Topics.class, "pam-num-subtopics", "INTEGER", true, 20,
                     "When using the Pachinko Allocation Model (PAM) set the number of subtopics.", null);
 
+    /**
+     * The destinations chosen with --metrics-file and --metrics-jmx.
+     * Closing it closes the file and unregisters the JMX bean.
+     */
+    static class TrainingMetricsOutputs implements TrainingMetrics, Closeable {
+        TrainingMetricsFile fileMetrics;
+        JmxTrainingMetrics jmxMetrics;
+
+        public void publish(IterationMetrics metrics) {
+            if (fileMetrics != null) {
+                fileMetrics.publish(metrics);
+            }
+            if (jmxMetrics != null) {
+                jmxMetrics.publish(metrics);
+            }
+        }
+
+        public void close() throws IOException {
+            if (fileMetrics != null) {
+                fileMetrics.close();
+            }
+            if (jmxMetrics != null) {
+                jmxMetrics.close();
+            }
+        }
+    }
+
+    /**
+     * Open the destinations chosen with --metrics-file and --metrics-jmx,
+     * or return null if neither was given. The caller should close the
+     * result when training is done.
+     */
+    static TrainingMetricsOutputs openTrainingMetrics(String filename, String jmxName) throws IOException {
+        if (filename == null && jmxName == null) {
+            return null;
+        }
+
+        TrainingMetricsOutputs outputs = new TrainingMetricsOutputs();
+        if (filename != null) {
+            outputs.fileMetrics = new TrainingMetricsFile(new File(filename));
+        }
+
+        if (jmxName != null) {
+            outputs.jmxMetrics = new JmxTrainingMetrics();
+            try {
+                outputs.jmxMetrics.register(jmxName);
+            } catch (JMException e) {
+                outputs.close();
+                throw new IOException("Couldn't register training metrics as " + jmxName, e);
+            }
+        }
+        return outputs;
+    }
+
+    static void closeTrainingMetrics(TrainingMetricsOutputs metrics) throws IOException {
+        if (metrics != null) {
+            metrics.close();
+        }
+    }
+
     public static void main(String[] args) throws java.io.IOException {
         // Process the command-line options
         CommandOption.setSummary(Vectors2Topics.class,
@@ -210,10 +350,17 @@ public class Vectors2Topics {
             if (inputModelFilename.value != null)
                 throw new IllegalArgumentException("--input-model not supported with --use-pam.");
             PAM4L pam = new PAM4L(pamNumSupertopics.value, pamNumSubtopics.value);
-            pam.estimate(ilist, numIterations.value, /*optimizeModelInterval*/50,
-                    showTopicsInterval.value,
-                    outputModelInterval.value, outputModelFilename.value,
-                    randomSeed.value == 0 ? new Randoms() : new Randoms(randomSeed.value));
+            pam.setNumThreads(numThreads.value);
+            TrainingMetricsOutputs metrics = openTrainingMetrics(metricsFile.value, metricsJmxName.value);
+            pam.setTrainingMetrics(metrics);
+            try {
+                pam.estimate(ilist, numIterations.value, /*optimizeModelInterval*/50,
+                        showTopicsInterval.value,
+                        outputModelInterval.value, outputModelFilename.value,
+                        randomSeed.value == 0 ? new Randoms() : new Randoms(randomSeed.value));
+            } finally {
+                closeTrainingMetrics(metrics);
+            }
             pam.printTopWords(topWords.value, true);
             if (stateFile.value != null)
                 pam.printState(new File(stateFile.value));
@@ -249,9 +396,16 @@ public class Vectors2Topics {
                     delta.value,
                     delta1.value,
                     delta2.value);
-            tng.estimate(ilist, numIterations.value, showTopicsInterval.value,
-                    outputModelInterval.value, outputModelFilename.value,
-                    randomSeed.value == 0 ? new Randoms() : new Randoms(randomSeed.value));
+            tng.setNumThreads(numThreads.value);
+            TrainingMetricsOutputs metrics = openTrainingMetrics(metricsFile.value, metricsJmxName.value);
+            tng.setTrainingMetrics(metrics);
+            try {
+                tng.estimate(ilist, numIterations.value, showTopicsInterval.value,
+                        outputModelInterval.value, outputModelFilename.value,
+                        randomSeed.value == 0 ? new Randoms() : new Randoms(randomSeed.value));
+            } finally {
+                closeTrainingMetrics(metrics);
+            }
             tng.printTopWords(topWords.value, true);
             if (stateFile.value != null)
                 tng.printState(new File(stateFile.value));
@@ -316,6 +470,7 @@ public class Vectors2Topics {
             topicModel.setNumIterations(numIterations.value);
             topicModel.setOptimizeInterval(optimizeInterval.value);
             topicModel.setBurninPeriod(optimizeBurnIn.value);
+            topicModel.setNumThreads(numThreads.value);
 
             if (outputStateInterval.value != 0) {
                 topicModel.setSaveState(outputStateInterval.value, stateFile.value);
@@ -325,7 +480,13 @@ public class Vectors2Topics {
                 topicModel.setModelOutput(outputModelInterval.value, outputModelFilename.value);
             }
 
-            topicModel.estimate();
+            TrainingMetricsOutputs metrics = openTrainingMetrics(metricsFile.value, metricsJmxName.value);
+            topicModel.setTrainingMetrics(metrics);
+            try {
+                topicModel.estimate();
+            } finally {
+                closeTrainingMetrics(metrics);
+            }
 
             if (topicKeysFile.value != null) {
                 topicModel.printTopWords(new File(topicKeysFile.value), topWords.value, false);
@@ -377,6 +538,7 @@ public class Vectors2Topics {
             // Start a new LDA topic model
 
             ParallelTopicModel topicModel = null;
+            InstanceList newInstances = null;
 
             if (inputModelFilename.value != null) {
 
@@ -387,14 +549,23 @@ public class Vectors2Topics {
                             inputModelFilename.value + ": " + e);
                     System.exit(1);
                 }
-                /*
-				// Loading new data is optional if we are restoring a saved state.
-				if (inputFile.value != null) {
-					InstanceList instances = InstanceList.load (new File(inputFile.value));
-					System.out.println ("Data loaded.");
-					lda.addInstances(instances);
-				}
-				*/
+
+                // Loading new data is optional if we are restoring a saved model.
+                if (appendInput.value) {
+                    if (inputFile.value == null) {
+                        System.err.println("--append-input requires --input");
+                        System.exit(1);
+                    }
+                    if (incrementalSweeps.value < 1) {
+                        System.err.println("--incremental-sweeps must be at least 1");
+                        System.exit(1);
+                    }
+                    newInstances = InstanceList.load(new File(inputFile.value));
+                    System.out.println("Data loaded.");
+                } else if (inputFile.value != null) {
+                    System.err.println("Ignoring --input " + inputFile.value +
+                            ": use --append-input to add it to the --input-model");
+                }
             } else {
                 InstanceList training = null;
                 try {
@@ -420,11 +591,35 @@ public class Vectors2Topics {
                     }
                 }
 
-                topicModel = new ParallelTopicModel(numTopics.value, alpha.value, beta.value);
+                if (coordinator.value != null) {
+                    int colon = coordinator.value.lastIndexOf(':');
+                    int port = -1;
+                    if (colon > 0) {
+                        try {
+                            port = Integer.parseInt(coordinator.value.substring(colon + 1));
+                        } catch (NumberFormatException e) {
+                            // reported below
+                        }
+                    }
+                    if (port < 0 || port > 65535) {
+                        System.err.println("Usage: --coordinator HOST:PORT, for example localhost:9876, not " +
+                                coordinator.value);
+                        System.exit(1);
+                    }
+
+                    DistributedTopicModel worker =
+                            new DistributedTopicModel(numTopics.value, alpha.value, beta.value);
+                    worker.setCoordinator(coordinator.value.substring(0, colon), port);
+                    worker.setSyncInterval(syncInterval.value);
+                    topicModel = worker;
+                } else {
+                    topicModel = new ParallelTopicModel(numTopics.value, alpha.value, beta.value);
+                }
                 if (randomSeed.value != 0) {
                     topicModel.setRandomSeed(randomSeed.value);
                 }
 
+                topicModel.setPackedCorpus(packedCorpus.value);
                 topicModel.addInstances(training);
             }
 
@@ -449,9 +644,25 @@ public class Vectors2Topics {
                 topicModel.setSaveSerializedModel(outputModelInterval.value, outputModelFilename.value);
             }
 
+            topicModel.setTextState(textState.value);
             topicModel.setNumThreads(numThreads.value);
+            topicModel.setSharedCounts(sharedCounts.value);
+            topicModel.setWorkStealing(workStealing.value);
+            topicModel.setSampler(ParallelTopicModel.SamplerType.valueOf(sampler.value.toUpperCase()));
+            topicModel.setDenseTypeThreshold(denseTypeThreshold.value);
+
+            if (newInstances != null) {
+                topicModel.addInstancesIncrementally(newInstances,
+                        incrementalSweeps.value, incrementalRecentDocs.value);
+            }
 
-            topicModel.estimate();
+            TrainingMetricsOutputs metrics = openTrainingMetrics(metricsFile.value, metricsJmxName.value);
+            topicModel.setTrainingMetrics(metrics);
+            try {
+                topicModel.estimate();
+            } finally {
+                closeTrainingMetrics(metrics);
+            }
 
             if (topicKeysFile.value != null) {
                 topicModel.printTopWords(new File(topicKeysFile.value), topWords.value, false);
@@ -516,6 +727,15 @@ public class Vectors2Topics {
 
             }
 
+            if (modelFilename.value != null) {
+                try {
+                    topicModel.writeModelFile(new File(modelFilename.value));
+                } catch (Exception e) {
+                    System.err.println(e.getMessage());
+                }
+
+            }
+
             if (evaluatorFilename.value != null) {
                 try {
 
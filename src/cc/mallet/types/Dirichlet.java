@@ -7,6 +7,7 @@
 
 package cc.mallet.types;
 
+import cc.mallet.util.ParallelRanges;
 import cc.mallet.util.Randoms;
 import gnu.trove.iterator.TIntIterator;
 import gnu.trove.map.hash.TIntIntHashMap;
@@ -20,6 +21,7 @@ import java.text.NumberFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.concurrent.ExecutorService;
 
 /**
  * Various useful functions related to Dirichlet distributions.
@@ -480,6 +482,27 @@ public class Dirichlet {
                                          int[] observationLengths,
                                          double shape, double scale,
                                          int numIterations) {
+        return learnParameters(parameters, observations, observationLengths,
+                shape, scale, numIterations, null, 1);
+    }
+
+    /**
+     * Learn Dirichlet parameters using frequency histograms, updating
+     * ranges of the parameters in parallel. Each parameter's update only
+     * depends on its own histogram and the shared denominator, so the
+     * result is the same as the serial version.
+     *
+     * @param executor The thread pool for the updates, or null to run on the calling thread
+     * @param numTasks The number of ranges of parameters to update in parallel
+     * @returns The sum of the learned parameters.
+     * @see #learnParameters(double[], int[][], int[], double, double, int)
+     */
+    public static double learnParameters(final double[] parameters,
+                                         final int[][] observations,
+                                         int[] observationLengths,
+                                         final double shape, double scale,
+                                         int numIterations,
+                                         ExecutorService executor, int numTasks) {
         int i, k;
 
         double parametersSum = 0;
@@ -490,72 +513,76 @@ public class Dirichlet {
             parametersSum += parameters[k];
         }
 
-        double oldParametersK;
         double currentDigamma;
-        double denominator;
 
-        int nonZeroLimit;
-        int[] nonZeroLimits = new int[observations.length];
-        Arrays.fill(nonZeroLimits, -1);
+        final int[] nonZeroLimits = new int[observations.length];
 
         // The histogram arrays go up to the size of the largest document,
         //	but the non-zero values will almost always cluster in the low end.
         //	We avoid looping over empty arrays by saving the index of the largest
         //	non-zero value.
 
-        int[] histogram;
+        ParallelRanges.run(executor, observations.length, numTasks, new ParallelRanges.Body() {
+            public void run(int start, int end, int task) {
+                for (int i = start; i < end; i++) {
+                    int[] histogram = observations[i];
+                    nonZeroLimits[i] = -1;
+                    for (int k = 0; k < histogram.length; k++) {
+                        if (histogram[k] > 0) {
+                            nonZeroLimits[i] = k;
+                        }
+                    }
+                }
+            }
+        });
+
+        final double[] denominator = new double[1];
 
-        for (i = 0; i < observations.length; i++) {
-            histogram = observations[i];
+        ParallelRanges.Body update = new ParallelRanges.Body() {
+            public void run(int start, int end, int task) {
+                for (int k = start; k < end; k++) {
+
+                    // What's the largest non-zero element in the histogram?
+                    int nonZeroLimit = nonZeroLimits[k];
 
-            //StringBuffer out = new StringBuffer();
-            for (k = 0; k < histogram.length; k++) {
-                if (histogram[k] > 0) {
-                    nonZeroLimits[i] = k;
-                    //out.append(k + ":" + histogram[k] + " ");
+                    double oldParametersK = parameters[k];
+                    parameters[k] = 0;
+                    double currentDigamma = 0;
+
+                    int[] histogram = observations[k];
+
+                    for (int i = 1; i <= nonZeroLimit; i++) {
+                        currentDigamma += 1 / (oldParametersK + i - 1);
+                        parameters[k] += histogram[i] * currentDigamma;
+                    }
+
+                    // Bayesian estimation part II
+                    parameters[k] = oldParametersK * (parameters[k] + shape) / denominator[0];
                 }
             }
-            //System.out.println(out);
-        }
+        };
 
         for (int iteration = 0; iteration < numIterations; iteration++) {
 
             // Calculate the denominator
-            denominator = 0;
+            denominator[0] = 0;
             currentDigamma = 0;
 
             // Iterate over the histogram:
             for (i = 1; i < observationLengths.length; i++) {
                 currentDigamma += 1 / (parametersSum + i - 1);
-                denominator += observationLengths[i] * currentDigamma;
+                denominator[0] += observationLengths[i] * currentDigamma;
             }
 
             // Bayesian estimation Part I
-            denominator -= 1 / scale;
+            denominator[0] -= 1 / scale;
 
             // Calculate the individual parameters
 
-            parametersSum = 0;
+            ParallelRanges.run(executor, parameters.length, numTasks, update);
 
+            parametersSum = 0;
             for (k = 0; k < parameters.length; k++) {
-
-                // What's the largest non-zero element in the histogram?
-                nonZeroLimit = nonZeroLimits[k];
-
-                oldParametersK = parameters[k];
-                parameters[k] = 0;
-                currentDigamma = 0;
-
-                histogram = observations[k];
-
-                for (i = 1; i <= nonZeroLimit; i++) {
-                    currentDigamma += 1 / (oldParametersK + i - 1);
-                    parameters[k] += histogram[i] * currentDigamma;
-                }
-
-                // Bayesian estimation part II
-                parameters[k] = oldParametersK * (parameters[k] + shape) / denominator;
-
                 parametersSum += parameters[k];
             }
         }
@@ -0,0 +1,94 @@
+/* Copyright (C) 2005 Univ. of Massachusetts Amherst, Computer Science Dept.
+   This file is part of "MALLET" (MAchine Learning for LanguagE Toolkit).
+   http://www.cs.umass.edu/~mccallum/mallet
+   This software is provided under the terms of the Common Public License,
+   version 1.0, as published by http://www.opensource.org.  For further
+   information, see the file `LICENSE' included with this distribution. */
+
+package cc.mallet.util;
+
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Split the indices <code>[0, size)</code> into contiguous ranges and
+ * process them as tasks on a thread pool, waiting until all are done.
+ * Used for loops over topics or types whose iterations are independent.
+ */
+
+public class ParallelRanges {
+
+    /**
+     * The work for one range of indices. <code>task</code> numbers the
+     * ranges from 0, so that tasks can write partial results into
+     * their own slot of a shared array.
+     */
+    public static abstract class Body {
+        public abstract void run(int start, int end, int task);
+    }
+
+    /**
+     * The number of ranges <code>run</code> will use with these arguments
+     */
+    public static int numRanges(ExecutorService executor, int size, int numTasks) {
+        if (executor == null) {
+            return 1;
+        }
+        return Math.max(1, Math.min(size, numTasks));
+    }
+
+    /**
+     * Run <code>body</code> over <code>numRanges(executor, size, numTasks)</code>
+     * ranges of nearly equal size. If <code>executor</code> is null or
+     * there is only one range, the body runs on the calling thread.
+     * A RuntimeException or Error thrown by a task is rethrown as is.
+     */
+    public static void run(ExecutorService executor, int size, int numTasks, final Body body) {
+
+        final int numRanges = numRanges(executor, size, numTasks);
+        if (numRanges == 1) {
+            body.run(0, size, 0);
+            return;
+        }
+
+        ArrayList<Future<Object>> futures = new ArrayList<Future<Object>>(numRanges);
+        for (int range = 0; range < numRanges; range++) {
+            final int task = range;
+            final int start = (int) ((long) size * range / numRanges);
+            final int end = (int) ((long) size * (range + 1) / numRanges);
+            futures.add(executor.submit(new Callable<Object>() {
+                public Object call() {
+                    body.run(start, end, task);
+                    return null;
+                }
+            }));
+        }
+
+        try {
+            for (Future<Object> future : futures) {
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            for (Future<Object> future : futures) {
+                future.cancel(true);
+            }
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        } catch (InterruptedException e) {
+            for (Future<Object> future : futures) {
+                future.cancel(true);
+            }
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted", e);
+        }
+    }
+}